@@ -16,19 +16,44 @@
  */
 package org.openmrs.module.santedb.mpiclient;
 
+import java.io.IOException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.util.HttpClientManager;
+import org.openmrs.module.santedb.mpiclient.util.LocalPatientMatcher;
+import org.openmrs.module.santedb.mpiclient.util.MpiBackfillJob;
+import org.openmrs.module.santedb.mpiclient.util.MllpConnectionPool;
+import org.openmrs.module.santedb.mpiclient.util.MllpListener;
+import org.openmrs.module.santedb.mpiclient.util.MllpPipelinedSender;
+import org.openmrs.module.santedb.mpiclient.util.MpiDaemon;
+import org.openmrs.module.santedb.mpiclient.util.MpiOutboxDrainer;
+import org.openmrs.module.santedb.mpiclient.util.MpiPullSynchronizer;
+import org.openmrs.module.santedb.mpiclient.util.MpiReconcileJob;
+import org.openmrs.module.santedb.mpiclient.util.MpiSubscriptionReceiver;
+import org.openmrs.module.santedb.mpiclient.util.OAuthTokenManager;
+import org.openmrs.module.santedb.mpiclient.util.SynchronizationExecutor;
 
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
  */
-public class MpiClientActivator implements ModuleActivator {
+public class MpiClientActivator implements ModuleActivator, DaemonTokenAware {
 	
 	// Log
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		MpiDaemon.setDaemonToken(token);
+	}
+	
 	/**
 	 * @see ModuleActivator#willRefreshContext()
 	 */
@@ -54,7 +79,25 @@ public class MpiClientActivator implements ModuleActivator {
 	 * @see ModuleActivator#started()
 	 */
 	public void started() {		
+		SynchronizationExecutor.getInstance().start();
+		MpiOutboxDrainer.getInstance().start();
+		MpiBackfillJob.getInstance().resume();
+		MpiReconcileJob.getInstance().resume();
+		SynchronizationExecutor.getInstance().submit(new Runnable() {
 
+			@Override
+			public void run() {
+				MpiSubscriptionReceiver.getInstance().register();
+			}
+		}, "MPI subscription registration");
+		if (MpiClientConfiguration.getInstance().getHl7ListenerPort() > 0)
+			try {
+				MllpListener.getInstance().start();
+			}
+			catch (IOException e) {
+				log.error("Could not start the MLLP listener for MPI notifications", e);
+			}
+		LocalPatientMatcher.getInstance().start();
 		log.info("MPI Interface Module started");
 	}
 	
@@ -69,6 +112,17 @@ public class MpiClientActivator implements ModuleActivator {
 	 * @see ModuleActivator#stopped()
 	 */
 	public void stopped() {
+		MllpListener.getInstance().shutdown();
+		LocalPatientMatcher.getInstance().shutdown();
+		MpiPullSynchronizer.getInstance().shutdown();
+		MpiReconcileJob.getInstance().shutdown();
+		MpiBackfillJob.getInstance().shutdown();
+		MpiOutboxDrainer.getInstance().shutdown();
+		SynchronizationExecutor.getInstance().shutdown();
+		OAuthTokenManager.getInstance().shutdown();
+		HttpClientManager.getInstance().shutdown();
+		MllpConnectionPool.getInstance().shutdown();
+		MllpPipelinedSender.getInstance().shutdown();
 		log.info("MPI Interface Module stopped");
 	}
 	
@@ -20,16 +20,19 @@ package org.openmrs.module.santedb.mpiclient.aop;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Encounter;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
 import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
-import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.openmrs.module.santedb.mpiclient.util.MpiOutboxDrainer;
 import org.springframework.aop.AfterReturningAdvice;
 
 import java.lang.reflect.Method;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 
 /**
  * After returning from the save method of the Patient service
@@ -46,24 +49,33 @@ public class EncounterSynchronizationAdvice implements AfterReturningAdvice {
      * @see AfterReturningAdvice#afterReturning(Object, Method, Object[], Object)
      */
     public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
-        String crEndpoint = Context.getAdministrationService().getGlobalProperty("mpi-client.endpoint.cr.addr");
+        String crEndpoint = this.m_configuration.getClientRegistryEndpoint();
         if (crEndpoint == null || crEndpoint.trim().isEmpty()) {
             return;
         }
 
         if (method.getName().equals("saveEncounter") && target instanceof EncounterService) {
             org.openmrs.Encounter encounter = (Encounter) returnValue;
-            if(encounter.getObsAtTopLevel(false).size() > 0){
-                try {
-                    TimeUnit.SECONDS.sleep(15);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                }
-                MpiPatientExport patientExport = new MpiPatientExport(encounter.getPatient(), null, null, null, encounter.getObsAtTopLevel(false));
-                PatientUpdateWorker worker = new PatientUpdateWorker(patientExport, Context.getUserContext());
-                worker.start();
+            if(this.hasExportedObs(encounter)){
+                // Sent once the encounter and its obs are committed (after mpi-client.outbox.encounterDelay)
+                MpiOutboxEntry entry = Context.getService(MpiClientService.class).queuePatientExport(encounter.getPatient(), encounter);
+                MpiOutboxDrainer.getInstance().wakeAfterCommit(entry);
             }
         }
     }
 
+    /**
+     * True if the encounter has an obs which is sent to the MPI (most clinical encounters do not)
+     */
+    private boolean hasExportedObs(Encounter encounter) {
+        Set<Integer> exportedConcepts = this.m_configuration.getExportedObsConcepts();
+        if(exportedConcepts.isEmpty())
+            return false;
+        for(Obs obs : encounter.getObsAtTopLevel(false)) {
+            if(obs.getConcept() != null && exportedConcepts.contains(obs.getConcept().getConceptId()))
+                return true;
+        }
+        return false;
+    }
+
 }
@@ -19,15 +19,24 @@ package org.openmrs.module.santedb.mpiclient.aop;
 
 
 import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Patient;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
 import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
-import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.openmrs.module.santedb.mpiclient.util.LocalPatientMatcher;
+import org.openmrs.module.santedb.mpiclient.util.MpiOutboxDrainer;
 import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * After returning from the save method of the Patient service
@@ -36,38 +45,78 @@ public class PatientSynchronizationAdvice implements AfterReturningAdvice {
 
 	/**
 	 * Thread-local flag to suppress MPI sync during patient import.
-	 * When set to true, the advice will skip spawning PatientUpdateWorker,
+	 * When set to true, the advice will skip queuing the patient export,
 	 * preventing the re-entrant import loop that creates duplicate patients.
 	 */
 	public static final ThreadLocal<Boolean> SUPPRESS = ThreadLocal.withInitial(() -> false);
 
+	// AdministrationService methods which change global properties
+	private static final Pattern GLOBAL_PROPERTY_CHANGE = Pattern.compile("(save|set|update|purge)GlobalPropert(y|ies)");
+
+	// PatientService methods which change identifier types
+	private static final Pattern IDENTIFIER_TYPE_CHANGE = Pattern.compile("(save|retire|unretire|purge)PatientIdentifierType");
+
 	private final Log log = LogFactory.getLog(this.getClass());
 
-	private final MpiClientConfiguration m_configuration = MpiClientConfiguration.getInstance();
+	private final MpiClientConfiguration m_configuration;
+
+	private final Supplier<MpiClientService> m_service;
+
+	/**
+	 * Creates the advice against the module's configuration and service
+	 */
+	public PatientSynchronizationAdvice() {
+		this(MpiClientConfiguration.getInstance(), () -> Context.getService(MpiClientService.class));
+	}
+
+	/**
+	 * Creates the advice against the specified configuration and service
+	 */
+	public PatientSynchronizationAdvice(MpiClientConfiguration configuration, Supplier<MpiClientService> service) {
+		this.m_configuration = configuration;
+		this.m_service = service;
+	}
 
 	/**
 	 * Runs everytime a patient a updated
 	 * @see org.springframework.aop.AfterReturningAdvice#afterReturning(java.lang.Object, java.lang.reflect.Method, java.lang.Object[], java.lang.Object)
 	 */
 	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		// Registered against the AdministrationService as well so configuration changes are picked up
+		if(target instanceof AdministrationService)
+		{
+			if(GLOBAL_PROPERTY_CHANGE.matcher(method.getName()).matches())
+				this.clearCacheAfterCommit();
+			return;
+		}
+
+		// Identifier types are part of the identifier domain index
+		if(target instanceof PatientService && IDENTIFIER_TYPE_CHANGE.matcher(method.getName()).matches())
+		{
+			this.clearCacheAfterCommit();
+			return;
+		}
+
+		// The local match index follows every change, including imports from the MPI
+		if(target instanceof PatientService)
+			this.updateMatchIndex(method.getName(), returnValue, args);
+
 		if (SUPPRESS.get()) {
-			log.info("MPI sync suppressed during patient import, skipping PatientUpdateWorker");
+			log.info("MPI sync suppressed during patient import, skipping export");
 			return;
 		}
 
-		String crEndpoint = Context.getAdministrationService().getGlobalProperty("mpi-client.endpoint.cr.addr");
+		String crEndpoint = this.m_configuration.getClientRegistryEndpoint();
 		if (crEndpoint == null || crEndpoint.trim().isEmpty()) {
 			return;
 		}
 
 		if(method.getName().equals("savePatient") && target instanceof PatientService)
 		{
-			MpiPatientExport patientExport = new MpiPatientExport((Patient)returnValue,null,null,null,null);
-			PatientUpdateWorker worker = new PatientUpdateWorker(patientExport, Context.getUserContext());
-			worker.start();
+			// Queued in the save transaction so the export survives a restart, and sent once it is committed
+			MpiOutboxEntry entry = this.m_service.get().queuePatientExport((Patient)returnValue, null);
+			MpiOutboxDrainer.getInstance().wakeAfterCommit(entry);
 		}
-		else if(method.getName().equals("saveGlobalProperty"))
-			MpiClientConfiguration.getInstance().clearCache();
 		else if(method.getName().equals("mergePatients") && target instanceof PatientService) {
 			// TODO:
 //			log.info("Sending patient merge to the MPI ...");
@@ -95,5 +144,58 @@ public class PatientSynchronizationAdvice implements AfterReturningAdvice {
 //			}
 		}
 	}
+
+	/**
+	 * Clear the cached configuration once the change is committed, so that the cache is not
+	 * reloaded from the data the change is about to replace (or which is rolled back)
+	 */
+	private void clearCacheAfterCommit() {
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCommit() {
+					m_configuration.clearCache();
+				}
+			});
+		else
+			this.m_configuration.clearCache();
+	}
+
+	/**
+	 * Update the local patient match index once the change to the patient is committed, so
+	 * that a change which is rolled back is never matched against
+	 */
+	private void updateMatchIndex(final String methodName, final Object returnValue, final Object[] args) {
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCommit() {
+					applyMatchIndexChange(methodName, returnValue, args);
+				}
+			});
+		else
+			this.applyMatchIndexChange(methodName, returnValue, args);
+	}
+
+	/**
+	 * Apply a change to a patient to the local patient match index
+	 */
+	private void applyMatchIndexChange(String methodName, Object returnValue, Object[] args) {
+		LocalPatientMatcher matcher = LocalPatientMatcher.getInstance();
+		if(methodName.equals("savePatient") || methodName.equals("unvoidPatient"))
+			matcher.update((Patient)returnValue);
+		else if(methodName.equals("voidPatient") || methodName.equals("purgePatient"))
+			matcher.remove(((Patient)args[0]).getPatientId());
+		else if(methodName.equals("mergePatients")) {
+			matcher.update((Patient)args[0]);
+			if(args[1] instanceof Patient)
+				matcher.remove(((Patient)args[1]).getPatientId());
+			else if(args[1] instanceof List)
+				for(Object notPreferred : (List<?>)args[1])
+					matcher.remove(((Patient)notPreferred).getPatientId());
+		}
+	}
 	
 }
@@ -16,22 +16,23 @@
  */
 package org.openmrs.module.santedb.mpiclient.aop;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
-import org.openmrs.PatientIdentifier;
-import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.context.UserContext;
 import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
 import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
-import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+import org.openmrs.module.santedb.mpiclient.util.MpiDaemon;
+import org.openmrs.module.santedb.mpiclient.util.PatientLockRegistry;
 
 /**
  * Patient update worker
@@ -39,25 +40,22 @@ import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
  * @author Justin Fyfe
  *
  */
-public class PatientUpdateWorker extends Thread {
-
-	private final static HashSet<String> s_lock = new HashSet<String>();
+public class PatientUpdateWorker implements Runnable {
 
 	private final Log log = LogFactory.getLog(this.getClass());
 
 	private final MpiClientConfiguration m_configuration = MpiClientConfiguration.getInstance();
-	private final UserContext m_userContext;
 
-	private MpiPatientExport mpiPatientExport;
+	// The outbox entry being sent
+	private final Integer m_outboxEntryId;
 
 	/**
-	 * Create a new patient update worker
-	 * 
-	 * @param patient
+	 * Create a worker which sends the export queued in the outbox
+	 *
+	 * @param outboxEntryId The claimed outbox entry
 	 */
-	public PatientUpdateWorker(MpiPatientExport patient, UserContext ctx) {
-		this.mpiPatientExport = patient;
-		this.m_userContext = ctx;
+	public PatientUpdateWorker(Integer outboxEntryId) {
+		this.m_outboxEntryId = outboxEntryId;
 	}
 
 	/**
@@ -66,96 +64,80 @@ public class PatientUpdateWorker extends Thread {
 	@Override
 	public void run() {
 		log.info("Sending update to the MPI for new patient data...");
-		Patient m_patient = this.mpiPatientExport.getPatient();
-		String patientUuid = m_patient.getUuid();
 		try {
-			// Prevent concurrent exports of the same patient
-			synchronized (s_lock) {
-				if (s_lock.contains(patientUuid)) {
-					log.warn(String.format("Patient %s is already being exported, skipping", patientUuid));
-					return;
-				}
-				s_lock.add(patientUuid);
-			}
-
-			Context.openSession();
-			Context.setUserContext(this.m_userContext);
-			try {
-				Context.addProxyPrivilege("Get Identifier Types");
-				Context.addProxyPrivilege("Get Patients");
-				Context.addProxyPrivilege("Get Patient Identifiers");
-				Context.addProxyPrivilege("Edit Patient Identifiers");
-				Context.addProxyPrivilege("Add Patient Identifiers");
-			} catch (Exception e) {
-				log.debug("Error adding proxy privileges", e);
-			}
-			MpiClientService hieService = Context.getService(MpiClientService.class);
-
-			hieService.exportPatient(this.mpiPatientExport);
-
-			// Grab the national health ID for the patient
-			if (this.m_configuration.getAutomaticCrossReferenceDomains() != null) {
-
-				// Find the value for the NHID
-				HashMap<String, String> identifierMaps = this.m_configuration.getLocalPatientIdentifierTypeMap();
-
-				// Automatically xref patients in the identity domains
-				String[] autoXrefDomains = this.m_configuration.getAutomaticCrossReferenceDomains().split(",");
-				if (autoXrefDomains.length == 0)
-					autoXrefDomains = new String[] { this.m_configuration.getNationalPatientIdRoot() };
-
-				for (String xrefDomain : autoXrefDomains) {
-
-					log.info(String.format("Will XREF %s with %s", m_patient.getId(), xrefDomain));
+			// Run as the daemon user, so the identifiers added from the MPI have a creator
+			MpiDaemon.run(this::sendQueuedExport);
+		} catch (Exception e) {
+			log.error(String.format("Could not send outbox entry %s", this.m_outboxEntryId), e);
+		}
+	}
 
-					PatientIdentifierType pit = null;
-					for (String key : identifierMaps.keySet())
-						if (xrefDomain.equals(identifierMaps.get(key))) {
-							pit = Context.getPatientService().getPatientIdentifierTypeByName(key);
-							break;
-						}
+	/**
+	 * Get the MPI client service the export is sent through
+	 */
+	MpiClientService getService() {
+		return Context.getService(MpiClientService.class);
+	}
 
-					List<PatientIdentifierType> pitList = new ArrayList<PatientIdentifierType>();
-					pitList.add(pit);
+	/**
+	 * Send the export queued in the outbox and cross-reference the patient
+	 */
+	private void sendQueuedExport() {
+		MpiOutboxEntry outboxEntry = null;
+		String patientUuid = null;
+		MpiClientService hieService = null;
+		try {
+			hieService = this.getService();
 
-					if (pit != null && m_patient.getPatientIdentifier(pit) == null) {
-						PatientIdentifier pid = hieService.resolvePatientIdentifier(m_patient, xrefDomain);
-						// Already exists
-						if(pid != null && Context.getPatientService().getPatientIdentifiers(pid.getIdentifier(), pitList, null, null, null).size() != 0)
-							log.warn(String.format("Identifier %s already exists", pid.getIdentifier()));
-						else if (pid != null) {
-							pid.setPatient(m_patient);
-							Context.getPatientService().savePatientIdentifier(pid);
-						} else {
-							log.info(String.format("MPI does not have an ID for patient %s in domain %s",
-									m_patient.getId(), xrefDomain));
-						}
-					} else if (pit == null)
-						log.warn(String.format("Identity domain %s has no local equivalent", xrefDomain));
-					else
-						log.warn(String.format("Patient already has local identifier in domain %s", xrefDomain));
-				}
+			// Load the export from the outbox
+			outboxEntry = hieService.getQueuedExport(this.m_outboxEntryId);
+			if (outboxEntry == null) {
+				log.warn(String.format("Outbox entry %s no longer exists", this.m_outboxEntryId));
+				return;
 			}
-		} catch (MpiClientException e) {
-			log.error(e);
-		} finally {
-			synchronized (s_lock) {
-				s_lock.remove(patientUuid);
+			// Only the obs which are sent to the MPI
+			Set<Obs> patientObs = new HashSet<Obs>();
+			if (outboxEntry.getEncounter() != null)
+				patientObs = MpiPatientExport.getExportedObs(outboxEntry.getEncounter().getObsAtTopLevel(false),
+						this.m_configuration.getExportedObsConcepts());
+			MpiPatientExport mpiPatientExport = new MpiPatientExport(outboxEntry.getPatient(), null, null, null, patientObs);
+			Patient patient = mpiPatientExport.getPatient();
+
+			// Prevent concurrent work on the same patient, re-queuing the export if the other work takes too long
+			if (!PatientLockRegistry.getInstance().tryLock(patient.getUuid(), this.m_configuration.getSyncLockTimeout(),
+					TimeUnit.MILLISECONDS)) {
+				log.warn(String.format("Patient %s is busy, re-queuing export", patient.getUuid()));
+				hieService.requeueQueuedExport(outboxEntry, this.m_configuration.getOutboxPollInterval());
+				return;
 			}
+			patientUuid = patient.getUuid();
+
+			// The export is sent on this thread so the entry is only removed once the MPI has acknowledged it
+			MpiPatientExportResult result = hieService.exportPatients(Collections.singletonList(mpiPatientExport)).get(0);
+			if (!result.isSuccessful())
+				throw result.getError();
+			hieService.completeQueuedExport(outboxEntry);
+			outboxEntry = null;
+
+			// Grab the national health ID for the patient. The MPI already has the export, so a failure here does
+			// not send it again; the reconciliation job picks up patients which are still missing identifiers.
 			try {
-				Context.removeProxyPrivilege("Get Identifier Types");
-				Context.removeProxyPrivilege("Get Patients");
-				Context.removeProxyPrivilege("Get Patient Identifiers");
-				Context.removeProxyPrivilege("Edit Patient Identifiers");
-				Context.removeProxyPrivilege("Add Patient Identifiers");
+				hieService.crossReferencePatient(patient);
 			} catch (Exception e) {
-				log.debug("Error removing proxy privileges", e);
+				log.warn(String.format("Could not cross-reference patient %s", patientUuid), e);
 			}
-			try {
-				Context.closeSession();
-			} catch (Exception e) {
-				log.debug("Error closing session", e);
+		} catch (Exception e) {
+			log.error(e);
+			if (outboxEntry != null) {
+				try {
+					hieService.failQueuedExport(outboxEntry, e.getMessage() == null ? e.toString() : e.getMessage());
+				} catch (Exception e2) {
+					log.error(String.format("Could not record failure of outbox entry %s", this.m_outboxEntryId), e2);
+				}
 			}
+		} finally {
+			if (patientUuid != null)
+				PatientLockRegistry.getInstance().unlock(patientUuid);
 		}
 	}
 }
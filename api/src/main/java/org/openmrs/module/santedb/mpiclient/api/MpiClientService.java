@@ -16,17 +16,28 @@
  */
 package org.openmrs.module.santedb.mpiclient.api;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.dcm4che3.net.audit.AuditLogger;
+import org.openmrs.Encounter;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+import org.openmrs.module.santedb.mpiclient.model.MpiPullState;
+import org.openmrs.module.santedb.mpiclient.model.MpiReconcileState;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -55,6 +66,17 @@ public interface MpiClientService extends OpenmrsService {
      */
     List<MpiPatient> searchPatient(Patient patient, Map<String, Object> otherDataPoints) throws MpiClientException;
 
+    /**
+     * Searches the PDQ supplier for patients matching the specified search patient. Further pages of results
+     * are only requested from the supplier as the returned stream is consumed
+     * @param patient - OpenMRS patient to find matches for
+     * @param otherDataPoints - additional data points for patient search
+     * @param pageSize - number of results to request per page (0 for the supplier's default)
+     * @param maxResults - maximum number of results to return (0 for no limit)
+     * @return Stream of matching patients
+     */
+    Stream<MpiPatient> searchPatientStream(Patient patient, Map<String, Object> otherDataPoints, int pageSize, int maxResults) throws MpiClientException;
+
     /**
      * Searches for patients with the specified patient identity string
      */
@@ -66,6 +88,21 @@ public interface MpiClientService extends OpenmrsService {
 	 */
 	List<MpiPatient> getPatientList(String identifier, String assigningAuthority) throws MpiClientException;
 
+	/**
+	 * Get the patients with the specified identifier and AA, reading further pages of results only as the stream is consumed
+	 */
+	Stream<MpiPatient> getPatientListStream(String identifier, String assigningAuthority, int pageSize, int maxResults) throws MpiClientException;
+
+    /**
+     * Get the patients which have been changed on the MPI since the specified time, oldest change first
+     * @param since Only return patients changed after this time (null for all patients)
+     * @param domains Only return patients with an identifier in one of these identity domains
+     * @param pageSize The number of patients to read at one time
+     * @return The patients, whose date changed is the time they were last updated on the MPI
+     * @throws MpiClientException
+     */
+    Stream<MpiPatient> getUpdatedPatientStream(Date since, Collection<String> domains, int pageSize) throws MpiClientException;
+
 
 
     /**
@@ -74,6 +111,21 @@ public interface MpiClientService extends OpenmrsService {
      */
     PatientIdentifier resolvePatientIdentifier(Patient patient, String toAssigningAuthority) throws MpiClientException;
 
+    /**
+     * Resolve the HIE patient identifiers in several identity domains with one query
+     * @return The identifier found in each domain, keyed by domain (domains the MPI has no identifier in are absent)
+     * @throws MpiClientException
+     */
+    Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient, Set<String> toAssigningAuthorities) throws MpiClientException;
+
+    /**
+     * Resolve the HIE patient identifiers of several patients in as few round trips as possible
+     * @return The identifiers found for each patient, keyed by patient id and then by domain. Patients whose query
+     * failed or whose match was ambiguous are absent; patients the MPI has no identifiers for have an empty map.
+     * @throws MpiClientException
+     */
+    Map<Integer, Map<String, PatientIdentifier>> resolvePatientIdentifiers(Collection<Patient> patients, Set<String> toAssigningAuthorities) throws MpiClientException;
+
     /**
      * Forces an update of the patient's ECID data
      * @param patient
@@ -89,13 +141,56 @@ public interface MpiClientService extends OpenmrsService {
      */
     public Patient importPatient(MpiPatient patient) throws MpiClientException;
 
+    /**
+     * Import the specified patient data from the PDQ supplier
+     * @param patient The patient to import
+     * @param confirmDuplicate True when the user has confirmed that the patient is another person than the probable
+     *        local duplicate (see {@link #getProbableLocalDuplicate(Patient)}), and it is to be imported anyway
+     * @return The imported patient
+     * @throws MpiClientException When the import fails, or the patient probably exists locally and the import was
+     *         not confirmed
+     */
+    public Patient importPatient(MpiPatient patient, boolean confirmDuplicate) throws MpiClientException;
+
+    /**
+     * Get the local patient which is probably the same person as the specified patient according to the local
+     * match index
+     * @param patient The patient (usually from an MPI search)
+     * @return The id of the best scoring local patient, or null if there is none or the local match index is not ready
+     */
+    public Integer getProbableLocalDuplicate(Patient patient);
+
     /**
      * Matches an external patient with an internal
      */
     public Patient matchWithExistingPatient(Patient remotePatient);
 
     /**
-     * Export patient demographic record to the CR
+     * Matches several external patients with internal patients, looking up their identifiers with one query
+     * @param remotePatients The external patients
+     * @return The matching internal patients in the order of the external patients (null where none matches)
+     */
+    public List<Patient> matchWithExistingPatients(List<? extends Patient> remotePatients);
+
+    /**
+     * Get the internal patients of several identifiers with one query
+     * @param identifiers The identifier values and types
+     * @return The patient of each identifier which belongs to a patient
+     */
+    public Map<Pair<String, PatientIdentifierType>, Patient> getPatientsByIdentifiers(Collection<Pair<String, PatientIdentifierType>> identifiers);
+
+    /**
+     * Get the fields used by the local matcher of the next patients after the specified patient
+     * @param afterPatientId The last patient already read (0 to start)
+     * @param count The maximum number of patients to read
+     * @return The patient id, family name, given name, birthdate, gender and city / village of each name and address
+     *         of the patients, ordered by patient with preferred names and addresses first
+     */
+    public List<Object[]> getPatientMatchRows(Integer afterPatientId, int count);
+
+    /**
+     * Export patient demographic record to the CR. The export is skipped if the exported
+     * data of the patient has not changed since it was last exported.
      * @param patientExport
      */
     public void exportPatient(MpiPatientExport patientExport) throws MpiClientException;
@@ -106,9 +201,169 @@ public interface MpiClientService extends OpenmrsService {
      */
     public void updatePatient(MpiPatientExport patientExport) throws MpiClientException;
 
+    /**
+     * Export several patient demographic records to the CR in as few requests as possible.
+     * Patients whose exported data has not changed since they were last exported are not sent.
+     * @param patientExports The patients to export
+     * @return The outcome for each patient, in the order of patientExports
+     */
+    public List<MpiPatientExportResult> exportPatients(Collection<MpiPatientExport> patientExports);
+
     /**
      * Get the audit logger
      */
     public AuditLogger getAuditLogger();
 
+    /**
+     * Queue the export of the patient in the outbox as part of the current transaction
+     * @param patient The patient to export
+     * @param encounter The encounter whose observations are exported with the patient (optional)
+     */
+    public MpiOutboxEntry queuePatientExport(Patient patient, Encounter encounter);
+
+    /**
+     * Claim a batch of queued exports which are due
+     * @param batchSize The maximum number of exports to claim
+     */
+    public List<MpiOutboxEntry> claimQueuedExports(int batchSize);
+
+    /**
+     * Get a queued export
+     */
+    public MpiOutboxEntry getQueuedExport(Integer outboxEntryId);
+
+    /**
+     * Remove a queued export which the MPI has acknowledged. The export is kept if its claim
+     * expired and it was returned to the outbox while it was being sent.
+     */
+    public void completeQueuedExport(MpiOutboxEntry entry);
+
+    /**
+     * Record a failed attempt to send a queued export, scheduling a retry or marking the export
+     * as failed once the maximum number of attempts is reached
+     */
+    public void failQueuedExport(MpiOutboxEntry entry, String error);
+
+    /**
+     * Return a claimed export to the outbox without counting an attempt
+     * @param delay How long to wait before the export is due again (in milliseconds)
+     */
+    public void requeueQueuedExport(MpiOutboxEntry entry, long delay);
+
+    /**
+     * Return exports which were claimed longer ago than the claim timeout to the outbox
+     * @param claimTimeout How long an export may be claimed (in milliseconds)
+     * @return The number of exports returned to the outbox
+     */
+    public int releaseQueuedExports(long claimTimeout);
+
+    /**
+     * Count the queued exports with the specified status
+     */
+    public long getQueuedExportCount(String status);
+
+    /**
+     * Export the patients with the specified ids in as few requests as possible. The patients
+     * are loaded read-only, so this can be used to export large numbers of patients.
+     * @param patientIds The ids of the patients to export
+     * @return The outcome for each patient which exists, in order of patient id
+     */
+    public List<MpiPatientExportResult> exportPatientsById(Collection<Integer> patientIds);
+
+    /**
+     * Get the state of the latest backfill of existing patients to the MPI
+     * @return The state or null if no backfill has been run
+     */
+    public MpiBackfillState getBackfillState();
+
+    /**
+     * Create the state of a new backfill covering all of the existing patients
+     */
+    public MpiBackfillState createBackfillState();
+
+    /**
+     * Save the state (checkpoint) of a backfill
+     */
+    public MpiBackfillState saveBackfillState(MpiBackfillState backfillState);
+
+    /**
+     * Get the ids of the next patients to be exported by the backfill, after its checkpoint
+     * @param count The maximum number of ids to return
+     */
+    public List<Integer> getBackfillPatientIds(MpiBackfillState backfillState, int count);
+
+    /**
+     * Add the identifiers the MPI has for the patient in the automatic cross reference domains the patient
+     * has no local identifier in, with one query of the MPI. Identifiers which already belong to another
+     * patient are not added.
+     * @param patient The patient to cross reference
+     * @throws MpiClientException If the MPI could not be queried
+     */
+    public void crossReferencePatient(Patient patient) throws MpiClientException;
+
+    /**
+     * Add the identifiers the MPI has to patients which are missing identifiers in the specified domains.
+     * Identifiers which already belong to another patient are not added.
+     * @param patientIds The ids of the patients to reconcile
+     * @param domains The identifier type of each domain to reconcile
+     * @return The number of identifiers added to each patient, keyed by patient id. Patients which could not be
+     * looked up (or are being updated by another thread) are absent.
+     * @throws MpiClientException If the MPI could not be queried at all
+     */
+    public Map<Integer, Integer> reconcilePatientIdentifiers(Collection<Integer> patientIds, Map<String, PatientIdentifierType> domains) throws MpiClientException;
+
+    /**
+     * Get the state of the latest reconciliation of patient identifiers with the MPI
+     * @return The state or null if no reconciliation has been run
+     */
+    public MpiReconcileState getReconcileState();
+
+    /**
+     * Create the state of a new reconciliation covering all of the existing patients
+     */
+    public MpiReconcileState createReconcileState();
+
+    /**
+     * Save the state (checkpoint) of a reconciliation
+     */
+    public MpiReconcileState saveReconcileState(MpiReconcileState reconcileState);
+
+    /**
+     * Get the ids of the next patients after the checkpoint of the reconciliation which are missing an identifier
+     * of at least one of the identifier types
+     * @param count The maximum number of ids to return
+     */
+    public List<Integer> getReconcilePatientIds(MpiReconcileState reconcileState, Collection<PatientIdentifierType> identifierTypes, int count);
+
+    /**
+     * Update the local patient which matches the MPI patient with the MPI's names, addresses, birth, death,
+     * gender and any new identifiers. Patients which do not match a local patient are not imported.
+     * @param remotePatient The patient from the MPI
+     * @return True if a local patient matched and was changed
+     * @throws MpiClientException If the local patient is being updated by another thread or could not be saved
+     */
+    public boolean applyPatientUpdate(MpiPatient remotePatient) throws MpiClientException;
+
+    /**
+     * Apply a merge made on the MPI. When both patients are known locally the merged patient is merged into the
+     * surviving patient; when only the merged patient is known locally it takes the surviving patient's place.
+     * The surviving patient's demographics and identifiers are then applied as by {@link #applyPatientUpdate(MpiPatient)}.
+     * @param survivingPatient The patient from the MPI which survives the merge
+     * @param mergedPatient The patient which was merged, identified by its prior identifiers
+     * @return True if a local patient matched and was merged or changed
+     * @throws MpiClientException If a local patient is being updated by another thread or could not be merged or saved
+     */
+    public boolean applyPatientMerge(MpiPatient survivingPatient, MpiPatient mergedPatient) throws MpiClientException;
+
+    /**
+     * Get the state of the incremental pull of changed patients from the MPI
+     * @return The state, which is new (and has no watermark) if no pull has been run
+     */
+    public MpiPullState getPullState();
+
+    /**
+     * Save the state (watermark) of the incremental pull
+     */
+    public MpiPullState savePullState(MpiPullState pullState);
+
 }
@@ -15,10 +15,12 @@
  * the License.
  */package org.openmrs.module.santedb.mpiclient.api;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Stream;
 
 import org.dcm4che3.net.audit.AuditLogger;
 import org.openmrs.Patient;
@@ -26,6 +28,7 @@ import org.openmrs.PatientIdentifier;
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
 
 /**
  * Implementation of the HealthInformationExchangeService
@@ -49,6 +52,16 @@ public interface MpiClientWorker  {
 								   PatientIdentifier mothersIdentifier, String nextOfKinName, String birthPlace,
 								   Map<String, Object> otherDataPoints) throws MpiClientException;
 
+	/**
+	 * Searches the PDQ supplier for patients, reading further pages of results only as the stream is consumed
+	 * @param pageSize - number of results to request per page (0 for the supplier's default)
+	 * @param maxResults - maximum number of results to return (0 for no limit)
+	 */
+	Stream<MpiPatient> searchPatientStream(String familyName, String givenName, Date dateOfBirth, boolean fuzzyDate,
+								   String gender, String stateOrRegion, String cityOrTownship, Set<PatientIdentifier> patientIdentifiers,
+								   PatientIdentifier mothersIdentifier, String nextOfKinName, String birthPlace,
+								   Map<String, Object> otherDataPoints, int pageSize, int maxResults) throws MpiClientException;
+
 	/**
 	 * Searches for patients with the specified patient identity string
 	 */
@@ -60,6 +73,23 @@ public interface MpiClientWorker  {
 	 */
 	List<MpiPatient> getPatientList(String identifier, String assigningAuthority) throws MpiClientException;
 
+	/**
+	 * Retrieves the patients with the given identifier, reading further pages of results only as the stream is consumed
+	 * @param pageSize - number of results to request per page (0 for the supplier's default)
+	 * @param maxResults - maximum number of results to return (0 for no limit)
+	 */
+	Stream<MpiPatient> getPatientListStream(String identifier, String assigningAuthority, int pageSize, int maxResults) throws MpiClientException;
+
+	/**
+	 * Get the patients which have been changed on the MPI since the specified time, oldest change first
+	 * @param since Only return patients changed after this time (null for all patients)
+	 * @param domains Only return patients with an identifier in one of these identity domains
+	 * @param pageSize The number of patients to read at one time
+	 * @return The patients, whose date changed is the time they were last updated on the MPI
+	 * @throws MpiClientException
+	 */
+	Stream<MpiPatient> getUpdatedPatientStream(Date since, Collection<String> domains, int pageSize) throws MpiClientException;
+
 
 	/**
 	 * Resolve an HIE patient identifier
@@ -67,6 +97,21 @@ public interface MpiClientWorker  {
 	 */
 	public PatientIdentifier resolvePatientIdentifier(Patient patient, String toAssigningAuthority) throws MpiClientException;
 
+	/**
+	 * Resolve the HIE patient identifiers in several identity domains with one query
+	 * @return The identifier found in each domain, keyed by domain (domains the MPI has no identifier in are absent)
+	 * @throws MpiClientException
+	 */
+	public Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient, Set<String> toAssigningAuthorities) throws MpiClientException;
+
+	/**
+	 * Resolve the HIE patient identifiers of several patients in as few round trips as possible
+	 * @return The identifiers found for each patient, keyed by patient id and then by domain. Patients whose query
+	 * failed or whose match was ambiguous are absent; patients the MPI has no identifiers for have an empty map.
+	 * @throws MpiClientException
+	 */
+	public Map<Integer, Map<String, PatientIdentifier>> resolvePatientIdentifiers(Collection<Patient> patients, Set<String> toAssigningAuthorities) throws MpiClientException;
+
 	/**
 	 * Import the specified patient data from the PDQ supplier
 	 * @param identifier
@@ -88,6 +133,13 @@ public interface MpiClientWorker  {
 	 */
 	public void updatePatient(MpiPatientExport patient) throws MpiClientException;
 
+	/**
+	 * Export several patient demographic records to the CR in as few requests as possible
+	 * @param patientExports The patients to export
+	 * @return The outcome for each patient, in the order of patientExports
+	 */
+	public List<MpiPatientExportResult> exportPatients(Collection<MpiPatientExport> patientExports);
+
 	/**
 	 * Get the audit logger
 	 */
@@ -13,41 +13,34 @@
  */
 package org.openmrs.module.santedb.mpiclient.api.impl;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
-import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.gclient.DateClientParam;
 import ca.uhn.fhir.rest.gclient.IQuery;
-import com.google.common.io.CharStreams;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.dcm4che3.net.audit.AuditLogger;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.r4.model.Address;
@@ -57,6 +50,10 @@ import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.ContactPoint;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r4.model.Patient.PatientLinkComponent;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
@@ -71,6 +68,9 @@ import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+import org.openmrs.module.santedb.mpiclient.util.FhirClientFactory;
+import org.openmrs.module.santedb.mpiclient.util.FhirSearchIterator;
 import org.openmrs.module.santedb.mpiclient.util.FhirUtil;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -96,7 +96,7 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 	private static final Log log = LogFactory.getLog(HL7MpiClientServiceImpl.class);
 
 	// Get health information exchange information
-	private final MpiClientConfiguration m_configuration = MpiClientConfiguration.getInstance();
+	private final MpiClientConfiguration m_configuration;
 
 	private ApplicationContext applicationContext;
 
@@ -105,104 +105,34 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 
 	@Autowired
 	private FhirUtil fhirUtil;
-	/**
-	 * Get the client as configured in this copy of the OMOD
-	 */
-	// TODO: use existing FHIR context
-	private IGenericClient getClient(boolean isSearch) throws MpiClientException {
-		FhirContext ctx = FhirContext.forR4();
-		if (null != this.m_configuration.getProxy() && !this.m_configuration.getProxy().isEmpty()) {
-			String[] proxyData = this.m_configuration.getProxy().split(":");
-			ctx.getRestfulClientFactory().setProxy(proxyData[0], Integer.parseInt(proxyData[1]));
-		}
 
-		IGenericClient client = ctx.newRestfulGenericClient(isSearch ?
-				this.m_configuration.getPdqEndpoint() :
-				this.m_configuration.getPixEndpoint());
+	// How long an endpoint which rejected _include is searched without it before it is tried again
+	private static final long INCLUDE_RETRY_MILLIS = 60 * 60 * 1000L;
 
-		client.setEncoding(EncodingEnum.JSON);
-		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
-
-		// Is an IDP provided?
-		if (this.m_configuration.getIdentityProviderUrl() != null
-				&& !this.m_configuration.getIdentityProviderUrl().isEmpty()
-				&& "oauth".equals(this.m_configuration.getAuthenticationMode())) {
-
-			// Call the IDP
-			CloseableHttpClient oauthClientCredentialsClient = HttpClientBuilder.create().build();
-
-			try {
-				HttpPost post = new HttpPost(this.m_configuration.getIdentityProviderUrl());
-				post.addHeader("Content-Type", "application/x-www-form-urlencoded");
-
-				// HACK: SanteMPI requires either X.509 node authentication (configured via JKS)
-				// but can also use the X-Device-Authorization header
-				// Since the JKS / X.509 node authentication is not supported, we'll have to use
-				// the X-DeviceAuthorization
-				String clientSecret = this.m_configuration.getMsh8Security(), deviceSecret = null;
-				if (clientSecret.contains("+")) {
-					String[] clientParts = clientSecret.split("\\+");
-					clientSecret = clientParts[1];
-					deviceSecret = clientParts[0];
-
-					// Now append the proper header for device authentication
-					post.addHeader("X-Device-Authorization",
-							String.format("basic %s",
-									Base64.getEncoder()
-											.encodeToString(String
-													.format("%s|%s:%s", this.m_configuration.getLocalApplication(),
-															this.m_configuration.getLocalFacility(), deviceSecret)
-													.getBytes())));
-				}
+	// PDQ endpoints which rejected _include / _revinclude on Patient:link, and when to try them again
+	private final Map<String, Long> m_includeUnsupportedEndpoints = new ConcurrentHashMap<String, Long>();
 
-				post.setEntity(new StringEntity(
-						String.format("client_id=%s&client_secret=%s&grant_type=client_credentials&scope=*",
-								this.m_configuration.getLocalApplication(), clientSecret)));
-
-				HttpResponse response = oauthClientCredentialsClient.execute(post);
-				if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-					InputStream inStream = response.getEntity().getContent();
-					try {
-						Reader reader = new InputStreamReader(inStream);
-						String jsonText = CharStreams.toString(reader);
-						JsonParser parser = new JsonParser();
-						JsonObject oauthResponse = parser.parse(jsonText).getAsJsonObject();
-						String token = oauthResponse.get("access_token").getAsString();
-						log.warn(String.format("Using token: %s", token));
-						client.registerInterceptor(new BearerTokenAuthInterceptor(token));
+	/**
+	 * Creates a new FHIR MPI client
+	 */
+	public FhirMpiClientServiceImpl() {
+		this.m_configuration = MpiClientConfiguration.getInstance();
+	}
 
-					}
-					finally {
-						inStream.close();
-					}
-				} else
-					throw new Exception(String.format("Identity provider responded with %s",
-							response.getStatusLine().getStatusCode()));
+	/**
+	 * Creates a new FHIR MPI client with the specified configuration and patient translator
+	 */
+	FhirMpiClientServiceImpl(MpiClientConfiguration configuration, PatientTranslator patientTranslator) {
+		this.m_configuration = configuration;
+		this.patientTranslator = patientTranslator;
+	}
 
-			}
-			catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				throw new MpiClientException(
-						String.format("Could not authenticate client %s", this.m_configuration.getLocalApplication()),
-						e);
-			}
-			finally {
-				try {
-					oauthClientCredentialsClient.close();
-				}
-				catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-		}
-		// Basic Auth
-		else if ("basic".equals(this.m_configuration.getAuthenticationMode())) {
-			client.registerInterceptor(new BasicAuthInterceptor(this.m_configuration.getLocalApplication(),
-					this.m_configuration.getMsh8Security()));
-		}
-		return client;
+	/**
+	 * Get the client as configured in this copy of the OMOD
+	 */
+	IGenericClient getClient(boolean isSearch) throws MpiClientException {
+		return FhirClientFactory.getInstance()
+				.getClient(isSearch ? FhirClientFactory.Endpoint.PDQ : FhirClientFactory.Endpoint.PIX);
 	}
 
 	/**
@@ -231,76 +161,263 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 				stateOrRegion, cityOrTownship, patientIdentifiers, mothersIdentifier, nextOfKinName, birthPlace,
 				otherDataPoints);
 */
-		IQuery<IBaseBundle> query = loadSearchQuery(familyName, givenName, dateOfBirth, fuzzyDate, gender,
-				null, null, null, null, null, null,otherDataPoints);		
-		
-		
+		Bundle results = this.executeSearch(familyName, givenName, dateOfBirth, fuzzyDate, gender, otherDataPoints, 0);
 
-		// Send the message and construct the result set
-		return getMpiPatientMatches(query);
+		// Construct the result set
+		return getMpiPatientMatches(results);
 	}
 
-	private List<MpiPatient> getMpiPatientMatches(IQuery<IBaseBundle> query) throws MpiClientException {
-		try {
+	/**
+	 * Search for patients in the MPI, reading further pages of results only as the stream is consumed
+	 */
+	@Override
+	public Stream<MpiPatient> searchPatientStream(String familyName, String givenName, Date dateOfBirth, boolean fuzzyDate,
+			String gender, String stateOrRegion, String cityOrTownship, Set<PatientIdentifier> patientIdentifiers,
+			PatientIdentifier mothersIdentifier, String nextOfKinName, String birthPlace,
+			Map<String, Object> otherDataPoints, int pageSize, int maxResults) throws MpiClientException {
+
+		Bundle results = this.executeSearch(familyName, givenName, dateOfBirth, fuzzyDate, gender, otherDataPoints,
+				this.getPageSize(pageSize, maxResults));
+
+		// Golden records already returned on an earlier page are skipped
+		final Set<String> seenGoldenRecordUuids = new HashSet<>();
+		return new FhirSearchIterator(this.getClient(true), results,
+				page -> this.resolveGoldenRecordSources(page, seenGoldenRecordUuids),
+				pat -> fhirUtil.parseFhirPatient(pat, patientTranslator.toOpenmrsType(pat)), maxResults).stream();
+	}
+
+	/**
+	 * Execute the patient search returning the first page of results
+	 */
+	private Bundle executeSearch(String familyName, String givenName, Date dateOfBirth, boolean fuzzyDate,
+			String gender, Map<String, Object> otherDataPoints, int pageSize) throws MpiClientException {
+		Bundle results = null;
+
+		// Try to get the source records and their golden records in a single round trip
+		String endpoint = this.m_configuration.getPdqEndpoint();
+		boolean includeRejected = false;
+		if (this.m_configuration.getSearchIncludeGoldenRecords() && this.isIncludeSupported(endpoint)) {
+			IQuery<IBaseBundle> query = loadSearchQuery(familyName, givenName, dateOfBirth, fuzzyDate, gender,
+					null, null, null, null, null, null, otherDataPoints)
+					.include(new Include("Patient:link"))
+					.revInclude(new Include("Patient:link"));
+			if (pageSize > 0)
+				query = query.count(pageSize);
+			try {
+				results = query.returnBundle(Bundle.class).execute();
+			}
+			catch (InvalidRequestException | NotImplementedOperationException e) {
+				// Any other invalid request would fail without _include as well
+				if (!isIncludeRejected(e)) {
+					log.error("Error in FHIR Search", e);
+					throw new MpiClientException(e);
+				}
+				log.warn(String.format("%s does not support _include on Patient:link, golden records will be fetched separately", endpoint), e);
+				includeRejected = true;
+			}
+			catch (Exception e) {
+				log.error("Error in FHIR Search", e);
+				throw new MpiClientException(e);
+			}
+		}
+
+		if (results == null) {
+			IQuery<IBaseBundle> query = loadSearchQuery(familyName, givenName, dateOfBirth, fuzzyDate, gender,
+					null, null, null, null, null, null, otherDataPoints);
+			if (pageSize > 0)
+				query = query.count(pageSize);
+			try {
+				results = query.returnBundle(Bundle.class).execute();
+			}
+			catch (Exception e) {
+				log.error("Error in FHIR Search", e);
+				throw new MpiClientException(e);
+			}
+			// Only once the same search works without _include was it really the _include which was rejected
+			if (includeRejected)
+				this.markIncludeUnsupported(endpoint, INCLUDE_RETRY_MILLIS);
+		}
+		return results;
+	}
+
+	/**
+	 * True unless the endpoint rejected _include on Patient:link recently
+	 */
+	boolean isIncludeSupported(String endpoint) {
+		Long retryAt = this.m_includeUnsupportedEndpoints.get(endpoint);
+		if (retryAt == null)
+			return true;
+		else if (System.currentTimeMillis() < retryAt)
+			return false;
+		this.m_includeUnsupportedEndpoints.remove(endpoint, retryAt);
+		return true;
+	}
+
+	/**
+	 * Search the endpoint without _include on Patient:link for the specified time
+	 */
+	void markIncludeUnsupported(String endpoint, long retryAfter) {
+		this.m_includeUnsupportedEndpoints.put(endpoint, System.currentTimeMillis() + retryAfter);
+	}
+
+	/**
+	 * True if the error means the server does not support something in the search (such as
+	 * _include / _revinclude), going by the issue code of the OperationOutcome rather than the
+	 * wording of the message, which may be localized
+	 */
+	static boolean isIncludeRejected(BaseServerResponseException e) {
+		if (e instanceof NotImplementedOperationException)
+			return true;
+		if (e.getOperationOutcome() instanceof OperationOutcome)
+			for (OperationOutcomeIssueComponent issue : ((OperationOutcome) e.getOperationOutcome()).getIssue())
+				if (issue.getCode() == IssueType.NOTSUPPORTED)
+					return true;
+		return false;
+	}
 
-			Bundle results = query.returnBundle(Bundle.class).execute();
-			
-			log.warn(String.format("GetMpiPatientMatches ::: >>> "+ results.getEntry().size()));
+	/**
+	 * Get the number of results to request per page
+	 */
+	private int getPageSize(int pageSize, int maxResults) {
+		if (maxResults > 0 && (pageSize <= 0 || maxResults < pageSize))
+			return maxResults;
+		return pageSize;
+	}
 
-			List<String> goldenRecordUuids = new ArrayList<>();
+	/**
+	 * Translate the source records linked to the golden records in the search results
+	 */
+	private List<MpiPatient> getMpiPatientMatches(Bundle results) throws MpiClientException {
+		try {
 			List<MpiPatient> retVal = new ArrayList<>();
-			Map<String, org.hl7.fhir.r4.model.Patient> patientMap = new HashMap<>();
+			for (org.hl7.fhir.r4.model.Patient source : this.resolveGoldenRecordSources(results, new HashSet<String>())) {
+
+				MpiPatient mpiPatient = fhirUtil.parseFhirPatient(source, patientTranslator.toOpenmrsType(source));
+
+				retVal.add(mpiPatient);
+			}
+			return retVal;
+		}
+		catch (MpiClientException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			log.error("Error in FHIR Search", e);
+			throw new MpiClientException(e);
+		}
+	}
+
+	/**
+	 * Resolve the golden records of the source records in the search results and return the source
+	 * records linked to them. Golden records (or linked source records) which the server did not include
+	 * in the results are fetched with a second query. Golden records in seenGoldenRecordUuids are skipped
+	 * and the golden records resolved are added to it.
+	 */
+	private List<org.hl7.fhir.r4.model.Patient> resolveGoldenRecordSources(Bundle results, Set<String> seenGoldenRecordUuids)
+			throws MpiClientException {
+		try {
+
+			log.debug(String.format("Resolving golden records for %s search results", results.getEntry().size()));
+
+			Set<String> goldenRecordUuids = new LinkedHashSet<>();
+			List<org.hl7.fhir.r4.model.Patient> retVal = new ArrayList<>();
+			Map<String, org.hl7.fhir.r4.model.Patient> patientMap = new LinkedHashMap<>();
 			// First stage - loop through result set to get golden record uuids
-			for (BundleEntryComponent result : results.getEntry()) {
-				org.hl7.fhir.r4.model.Patient pat;
-				if (result.hasResource() && result.getResource().hasType("Patient")) {
-					pat = (org.hl7.fhir.r4.model.Patient) result.getResource();
-					String grId = null;
-					if (pat.hasLink() && pat.getLink().size() == 1 && pat.getLinkFirstRep().hasOther()) {
-						grId = pat.getLinkFirstRep().getOther().getReferenceElement().getIdPart();
-					}
-					// Create a list with all of the unique IDs for the golden records.
-					if (grId != null && !goldenRecordUuids.contains(grId))
+			this.addPatientsToMap(results, patientMap);
+			for (org.hl7.fhir.r4.model.Patient pat : patientMap.values()) {
+				if (!this.isGoldenRecord(pat) && pat.hasLink() && pat.getLink().size() == 1 && pat.getLinkFirstRep().hasOther()) {
+					// Create a set with all of the unique IDs for the golden records.
+					String grId = pat.getLinkFirstRep().getOther().getReferenceElement().getIdPart();
+					if (seenGoldenRecordUuids.add(grId))
 						goldenRecordUuids.add(grId);
 				}
 			}
 
-			if (!goldenRecordUuids.isEmpty()) {
-				results = goldenRecordSetQuery(goldenRecordUuids).returnBundle(Bundle.class).execute();
-
-				for (BundleEntryComponent result : results.getEntry()) {
-					org.hl7.fhir.r4.model.Patient gr = (org.hl7.fhir.r4.model.Patient) result.getResource();
-					if (gr != null && gr.hasType("Patient") && gr.hasMeta()
-							&& gr.getMeta().hasTag()
-							&& gr.getMeta().getTagFirstRep().hasCode()
-							&& gr.getMeta().getTagFirstRep().getCode().equals(m_configuration.getGoldenRecordUuid())
-							&& gr.hasLink()) {
-						for (PatientLinkComponent grPatLink : gr.getLink()) {
-							if (grPatLink.getOther().getResource() != null) {
-
-								MpiPatient mpiPatient = fhirUtil.parseFhirPatient((org.hl7.fhir.r4.model.Patient) grPatLink.getOther().getResource(), patientTranslator.toOpenmrsType(
-										(org.hl7.fhir.r4.model.Patient) grPatLink.getOther().getResource()));
-
-								retVal.add(mpiPatient);
-							}
-						}
+			// Second stage - fetch any golden records the server did not include
+			List<String> missingGoldenRecordUuids = new ArrayList<>();
+			for (String grId : goldenRecordUuids) {
+				if (!this.isResolved(patientMap.get(grId), patientMap))
+					missingGoldenRecordUuids.add(grId);
+			}
+			if (!missingGoldenRecordUuids.isEmpty()) {
+				this.addPatientsToMap(goldenRecordSetQuery(missingGoldenRecordUuids).returnBundle(Bundle.class).execute(), patientMap);
+			}
 
+			for (String grId : goldenRecordUuids) {
+				org.hl7.fhir.r4.model.Patient gr = patientMap.get(grId);
+				if (gr != null && this.isGoldenRecord(gr) && gr.hasLink()) {
+					for (PatientLinkComponent grPatLink : gr.getLink()) {
+						org.hl7.fhir.r4.model.Patient source = this.getLinkedPatient(grPatLink, patientMap);
+						if (source != null)
+							retVal.add(source);
 					}
 				}
 			}
 			return retVal;
 		}
-		catch (
-
-				Exception e) {
-			e.printStackTrace();
+		catch (MpiClientException e) {
+			throw e;
+		}
+		catch (Exception e) {
 			log.error("Error in FHIR Search", e);
-			log.error(ExceptionUtils.getFullStackTrace(e));
 			throw new MpiClientException(e);
 		}
-		finally {
+	}
+
+	/**
+	 * Get the patients in the bundle
+	 */
+	private List<org.hl7.fhir.r4.model.Patient> getPatientResources(Bundle results) {
+		List<org.hl7.fhir.r4.model.Patient> retVal = new ArrayList<>();
+		for (BundleEntryComponent result : results.getEntry()) {
+			if (result.hasResource() && result.getResource().hasType("Patient"))
+				retVal.add((org.hl7.fhir.r4.model.Patient) result.getResource());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Index the patients in the bundle by their logical id
+	 */
+	private void addPatientsToMap(Bundle results, Map<String, org.hl7.fhir.r4.model.Patient> patientMap) {
+		for (org.hl7.fhir.r4.model.Patient pat : this.getPatientResources(results)) {
+			patientMap.put(pat.getIdElement().getIdPart(), pat);
+		}
+	}
+
+	/**
+	 * True if the patient is tagged as a golden record
+	 */
+	private boolean isGoldenRecord(org.hl7.fhir.r4.model.Patient pat) {
+		return pat.hasMeta()
+				&& pat.getMeta().hasTag()
+				&& pat.getMeta().getTagFirstRep().hasCode()
+				&& pat.getMeta().getTagFirstRep().getCode().equals(m_configuration.getGoldenRecordUuid());
+	}
+
+	/**
+	 * True if the golden record and all of the source records it links to are available
+	 */
+	private boolean isResolved(org.hl7.fhir.r4.model.Patient gr, Map<String, org.hl7.fhir.r4.model.Patient> patientMap) {
+		if (gr == null)
+			return false;
+		for (PatientLinkComponent grPatLink : gr.getLink()) {
+			if (this.getLinkedPatient(grPatLink, patientMap) == null)
+				return false;
 		}
+		return true;
+	}
 
+	/**
+	 * Get the patient a link points at, either as resolved by the parser or from the other results
+	 */
+	private org.hl7.fhir.r4.model.Patient getLinkedPatient(PatientLinkComponent link,
+			Map<String, org.hl7.fhir.r4.model.Patient> patientMap) {
+		if (!link.hasOther())
+			return null;
+		if (link.getOther().getResource() instanceof org.hl7.fhir.r4.model.Patient)
+			return (org.hl7.fhir.r4.model.Patient) link.getOther().getResource();
+		return patientMap.get(link.getOther().getReferenceElement().getIdPart());
 	}
 
 	private IQuery<IBaseBundle> loadSearchQuery(String familyName, String givenName, Date dateOfBirth, boolean fuzzyDate,
@@ -338,7 +455,7 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 		if(gender.equals("F")) gender="female";
 		}
 
-		log.warn(String.format("GetMpiPatientMatches GENDER ::: >>> "+gender));
+		log.debug(String.format("Searching the MPI for patients with gender %s", gender));
 		
 		if (gender != null && !gender.isEmpty())
 			query = query.where(org.hl7.fhir.r4.model.Patient.GENDER.exactly().code(gender));
@@ -347,9 +464,8 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 			for (PatientIdentifier patientIdentifier : patientIdentifiers) {
 				if (patientIdentifier.getIdentifierType() != null) {
 
-					HashMap<String, String> localPatientIdentifierTypeMap = this.m_configuration.getLocalPatientIdentifierTypeMap();
-					String authority = localPatientIdentifierTypeMap
-							.get(patientIdentifier.getIdentifierType().getName());
+					String authority = this.m_configuration.getIdentifierDomainIndex()
+							.getDomain(patientIdentifier.getIdentifierType());
 					if (authority == null)
 						throw new MpiClientException(
 								String.format("Identity domain %s doesn't have an equivalent in the MPI configuration",
@@ -457,42 +573,96 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
         }
     }
 
+    /**
+     * Retrieves the patients with the given identifier, reading further pages of results only as the stream is consumed
+     */
+    @Override
+    public Stream<MpiPatient> getPatientListStream(String identifier, String assigningAuthority, int pageSize, int maxResults)
+            throws MpiClientException {
+        try {
+            IQuery<Bundle> query = this
+                    .getClient(true).search().forResource("Patient").where(org.hl7.fhir.r4.model.Patient.IDENTIFIER
+                            .exactly().identifier(identifier))
+                    .returnBundle(Bundle.class);
+            pageSize = this.getPageSize(pageSize, maxResults);
+            if (pageSize > 0)
+                query = query.count(pageSize);
+            Bundle results = query.execute();
+
+            return new FhirSearchIterator(this.getClient(true), results,
+                    page -> this.getPatientResources(page),
+                    pat -> fhirUtil.parseFhirPatient(pat, patientTranslator.toOpenmrsType(pat)), maxResults).stream();
+        } catch (MpiClientException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Error in PDQ Search", e);
+            throw new MpiClientException(e);
+        }
+    }
+
+    /**
+     * Get the patients changed on the MPI since the specified time, sorted by the time they were changed
+     */
+    @Override
+    public Stream<MpiPatient> getUpdatedPatientStream(Date since, Collection<String> domains, int pageSize)
+            throws MpiClientException {
+        try {
+            // Any identifier in one of the domains
+            Map<String, List<String>> identifiers = new HashMap<String, List<String>>();
+            identifiers.put(org.hl7.fhir.r4.model.Patient.SP_IDENTIFIER,
+                    Collections.singletonList(StringUtils.join(domains.stream().map(d -> d + "|").iterator(), ",")));
+
+            IQuery<Bundle> query = this.getClient(true).search().forResource("Patient").whereMap(identifiers)
+                    .sort().ascending(Constants.PARAM_LASTUPDATED).returnBundle(Bundle.class);
+            if (since != null)
+                query = query.where(new DateClientParam(Constants.PARAM_LASTUPDATED).after().millis(since));
+            if (pageSize > 0)
+                query = query.count(pageSize);
+            Bundle results = query.execute();
+
+            return new FhirSearchIterator(this.getClient(true), results,
+                    page -> this.getPatientResources(page),
+                    pat -> {
+                        MpiPatient retVal = fhirUtil.parseFhirPatient(pat, patientTranslator.toOpenmrsType(pat));
+                        retVal.setDateChanged(pat.getMeta().getLastUpdated());
+                        return retVal;
+                    }, 0).stream();
+        } catch (MpiClientException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Error in FHIR Search", e);
+            throw new MpiClientException(e);
+        }
+    }
+
     /**
      * Resolve patient identifier in the specified identity domain
      */
     @Override
     public PatientIdentifier resolvePatientIdentifier(Patient patient, String toAssigningAuthority)
             throws MpiClientException {
+		return this.resolvePatientIdentifiers(patient, Collections.singleton(toAssigningAuthority)).get(toAssigningAuthority);
+	}
+
+	/**
+	 * Resolve the patient identifiers in the specified identity domains from one search of the MPI
+	 */
+	@Override
+	public Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient, Set<String> toAssigningAuthorities)
+			throws MpiClientException {
         // Send the message and construct the result set
         try {
 
-			String identifier = null, assigningAuthority = null;
-			// Preferred correlation identifier
-			if (!this.m_configuration.getPreferredCorrelationDomain().isEmpty()) {
-				for (PatientIdentifier pid : patient.getIdentifiers()) {
-					String domain = this.m_configuration.getLocalPatientIdentifierTypeMap()
-							.get(pid.getIdentifierType().getName());
-					if (this.m_configuration.getPreferredCorrelationDomain().equals(domain)) {
-						identifier = pid.getIdentifier();
-						assigningAuthority = domain;
-						break;
-					}
-				}
-			} else // use local identity
-			{
-				identifier = patient.getId().toString();
-				assigningAuthority = this.m_configuration.getLocalPatientIdRoot();
-			}
-
 			// No identity domains to xref with
-			if (identifier == null || assigningAuthority == null) {
+			String[] correlation = this.getCorrelationIdentifier(patient);
+			if (correlation == null) {
 				log.warn(String.format("Patient %s has no good cross reference identities to use", patient.getId()));
-				return null;
+				return new HashMap<String, PatientIdentifier>();
 			}
 
 			Bundle results = this
 					.getClient(true).search().forResource("Patient").where(org.hl7.fhir.r4.model.Patient.IDENTIFIER
-							.exactly().systemAndIdentifier(assigningAuthority, identifier))
+							.exactly().systemAndIdentifier(correlation[0], correlation[1]))
 					.count(2).returnBundle(Bundle.class).execute();
 			// ASSERT: Only 1 result
 			if (results.getEntry().size() != 1)
@@ -500,38 +670,129 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 						String.format("Found ambiguous matches (%s matches) on MPI, can't reliably xref this patient",
 								results.getTotal()));
 
-			// Is there a result?
-			for (BundleEntryComponent result : results.getEntry()) {
-				org.hl7.fhir.r4.model.Patient pat = (org.hl7.fhir.r4.model.Patient) result.getResource();
-
-				// Is this patient linked to another patient?
-				if (pat.getLink() != null)
-					for (PatientLinkComponent lnk : pat.getLink()) {
-						if (LinkType.REFER.equals(lnk.getType())) {
-							pat = (org.hl7.fhir.r4.model.Patient) lnk.getOtherTarget();
-						}
-					}
+			return this.getXrefIdentifiers((org.hl7.fhir.r4.model.Patient) results.getEntry().get(0).getResource(),
+					toAssigningAuthorities);
+		}
+		catch (Exception e) {
+			log.error("Error in PDQ Search", e);
+			throw new MpiClientException(e);
+		}
+	}
 
-				MpiPatient mpiPatient = fhirUtil.parseFhirPatient(pat, patientTranslator.toOpenmrsType(pat));
+	/**
+	 * Resolve the patient identifiers of several patients with one search of the MPI for all of
+	 * their correlation identifiers
+	 */
+	@Override
+	public Map<Integer, Map<String, PatientIdentifier>> resolvePatientIdentifiers(Collection<Patient> patients,
+			Set<String> toAssigningAuthorities) throws MpiClientException {
+		Map<Integer, Map<String, PatientIdentifier>> retVal = new HashMap<Integer, Map<String, PatientIdentifier>>();
+
+		// All of the correlation identifiers are in the same domain
+		String assigningAuthority = null;
+		Map<String, Patient> patientsByIdentifier = new HashMap<String, Patient>();
+		for (Patient patient : patients) {
+			String[] correlation = this.getCorrelationIdentifier(patient);
+			if (correlation == null)
+				log.warn(String.format("Patient %s has no good cross reference identities to use", patient.getId()));
+			else if (patientsByIdentifier.put(correlation[1], patient) != null)
+				log.warn(String.format("Several patients have correlation identifier %s, can't reliably xref them",
+						correlation[1]));
+			else
+				assigningAuthority = correlation[0];
+		}
+		if (assigningAuthority == null)
+			return retVal;
 
-				// Now look for the identity domain we want to xref to
-				for (PatientIdentifier pid : mpiPatient.getIdentifiers()) {
-					String domain = this.m_configuration.getLocalPatientIdentifierTypeMap()
-							.get(pid.getIdentifierType().getName());
-					if (toAssigningAuthority.equals(domain))
-						return pid;
+		try {
+			IGenericClient client = this.getClient(true);
+			Bundle results = client.search().forResource("Patient")
+					.where(org.hl7.fhir.r4.model.Patient.IDENTIFIER.exactly().systemAndValues(assigningAuthority,
+							patientsByIdentifier.keySet()))
+					.count(patientsByIdentifier.size() * 2).returnBundle(Bundle.class).execute();
+
+			// Group the results by the correlation identifier they were found by
+			Map<String, List<org.hl7.fhir.r4.model.Patient>> matches = new HashMap<String, List<org.hl7.fhir.r4.model.Patient>>();
+			while (true) {
+				for (BundleEntryComponent result : results.getEntry()) {
+					if (!(result.getResource() instanceof org.hl7.fhir.r4.model.Patient))
+						continue;
+					org.hl7.fhir.r4.model.Patient pat = (org.hl7.fhir.r4.model.Patient) result.getResource();
+					for (Identifier id : pat.getIdentifier())
+						if (assigningAuthority.equals(id.getSystem()) && patientsByIdentifier.containsKey(id.getValue()))
+							matches.computeIfAbsent(id.getValue(), k -> new ArrayList<org.hl7.fhir.r4.model.Patient>()).add(pat);
 				}
-				return null;
+				if (results.getLink(Bundle.LINK_NEXT) == null)
+					break;
+				results = client.loadPage().next(results).execute();
 			}
-			return null; // no results
+
+			for (Map.Entry<String, Patient> patient : patientsByIdentifier.entrySet()) {
+				List<org.hl7.fhir.r4.model.Patient> match = matches.get(patient.getKey());
+				if (match == null)
+					retVal.put(patient.getValue().getPatientId(), new HashMap<String, PatientIdentifier>());
+				else if (match.size() != 1)
+					log.warn(String.format("Found ambiguous matches (%s matches) on MPI, can't reliably xref patient %s",
+							match.size(), patient.getValue().getId()));
+				else
+					retVal.put(patient.getValue().getPatientId(), this.getXrefIdentifiers(match.get(0), toAssigningAuthorities));
+			}
+			return retVal;
+		}
+		catch (MpiClientException e) {
+			throw e;
 		}
 		catch (Exception e) {
-			e.printStackTrace();
 			log.error("Error in PDQ Search", e);
 			throw new MpiClientException(e);
 		}
 	}
 
+	/**
+	 * Get the identifier used to find the patient on the MPI
+	 *
+	 * @return The domain and the identifier, or null if the patient has no identifier in the
+	 *         correlation domain
+	 */
+	private String[] getCorrelationIdentifier(Patient patient) {
+		// Preferred correlation identifier
+		if (!this.m_configuration.getPreferredCorrelationDomain().isEmpty()) {
+			for (PatientIdentifier pid : patient.getIdentifiers()) {
+				String domain = this.m_configuration.getIdentifierDomainIndex().getDomain(pid.getIdentifierType());
+				if (this.m_configuration.getPreferredCorrelationDomain().equals(domain))
+					return new String[] { domain, pid.getIdentifier() };
+			}
+			return null;
+		} else // use local identity
+			return new String[] { this.m_configuration.getLocalPatientIdRoot(), patient.getId().toString() };
+	}
+
+	/**
+	 * Get the identifiers of the MPI patient (or the patient it refers to) in the requested domains
+	 */
+	private Map<String, PatientIdentifier> getXrefIdentifiers(org.hl7.fhir.r4.model.Patient pat,
+			Set<String> toAssigningAuthorities) {
+		Map<String, PatientIdentifier> retVal = new HashMap<String, PatientIdentifier>();
+
+		// Is this patient linked to another patient?
+		if (pat.getLink() != null)
+			for (PatientLinkComponent lnk : pat.getLink()) {
+				if (LinkType.REFER.equals(lnk.getType()) && lnk.getOtherTarget() != null) {
+					pat = (org.hl7.fhir.r4.model.Patient) lnk.getOtherTarget();
+				}
+			}
+
+		MpiPatient mpiPatient = fhirUtil.parseFhirPatient(pat, patientTranslator.toOpenmrsType(pat));
+
+		// Now look for the identity domains we want to xref to
+		for (PatientIdentifier pid : mpiPatient.getIdentifiers()) {
+			String domain = this.m_configuration.getIdentifierDomainIndex().getDomain(pid.getIdentifierType());
+			if (domain != null && toAssigningAuthorities.contains(domain) && !retVal.containsKey(domain))
+				retVal.put(domain, pid);
+		}
+		return retVal;
+	}
+
 	/**
 	 * Imports patient from MPI? Was in not implemented due to lack of FHIR create capabilites in OpenMRS?
 	 *
@@ -553,52 +814,7 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 		org.hl7.fhir.r4.model.Patient admitMessage = null;
 
 		try {
-			admitMessage = patientTranslator.toFhirResource(patientExport.getPatient());
-			admitMessage.getNameFirstRep().setUse(HumanName.NameUse.OFFICIAL);
-
-			//           Set mother's name
-			if (patientExport.getMothersMaidenName() != null) {
-				Extension mothersMaidenName = new Extension();
-				mothersMaidenName.setUrl("http://hl7.org/fhir/StructureDefinition/patient-mothersMaidenName");
-				mothersMaidenName.setValue(new StringType(patientExport.getMothersMaidenName().getValue()));
-				admitMessage.addExtension(mothersMaidenName);
-			}
-			//            Set Patient Phone number
-			PersonAttribute patientTelephone = patientExport.getPatientTelephone();
-			if (patientTelephone != null) {
-				ContactPoint contactPoint = new ContactPoint();
-				contactPoint.setId(patientTelephone.getUuid());
-				contactPoint.setValue(patientTelephone.getValue());
-				contactPoint.setSystem(ContactPoint.ContactPointSystem.PHONE);
-				contactPoint.setUse(ContactPoint.ContactPointUse.MOBILE);
-				admitMessage.addTelecom(contactPoint);
-			}
-
-			//            Patient Obs processing
-			Set<Obs> patientObs = patientExport.getPatientObs();
-			if (patientObs != null) {
-				for (Obs obs : patientObs) {
-					switch (obs.getConcept().getConceptId()) {
-						case 165194: {//Place of birth address construct
-							//                            165195=>locality, 165198=>country of residence, 1354=>village, 165197=>province, 165196=>communal section, 162725=> address
-							Extension birthplace = new Extension();
-							birthplace.setUrl("http://hl7.org/fhir/StructureDefinition/patient-birthPlace");
-							Address address = parseAddress(obs);
-							birthplace.setValue(address);
-							admitMessage.addExtension(birthplace);
-							break;
-						}
-						case 165210:
-						case 165213:
-						case 165212: {//Emergency contact construct, Primary medical disclosure construct,secondary medical disclosure construct
-							//                            159635=> phone number, 164352=> relationship to patient, 163258 => name of contact,
-							//                            165196 => communal section, 165195=> locality, 165198=> country of residence, 1354=> village, 165197=> province, 162725=> address
-							admitMessage.addContact(translatePatientContact(obs));
-							break;
-						}
-					}
-				}
-			}
+			admitMessage = this.createPatientResource(patientExport);
 
 			IGenericClient client = this.getClient(false);
 			MethodOutcome result = client.create().resource(admitMessage).execute();
@@ -610,19 +826,144 @@ public class FhirMpiClientServiceImpl implements MpiClientWorker, ApplicationCon
 		}
 		catch (FhirClientConnectionException e) {
 			log.error("Error in FHIR PIX message", e);
+			throw new MpiClientException("Error in FHIR PIX message", e);
 		}
 		catch (MpiClientException e) {
 			log.error("Error in FHIR PIX message", e);
-			e.printStackTrace();
 			throw e;
 		}
 		catch (Exception e) {
-			e.printStackTrace();
-			log.error(e);
+			log.error("Error in FHIR PIX message", e);
+			throw new MpiClientException(e);
 		}
 
 	}
 
+	/**
+	 * Create the FHIR patient resource which is sent to the MPI for the export
+	 */
+	private org.hl7.fhir.r4.model.Patient createPatientResource(MpiPatientExport patientExport) {
+		org.hl7.fhir.r4.model.Patient admitMessage = patientTranslator.toFhirResource(patientExport.getPatient());
+		admitMessage.getNameFirstRep().setUse(HumanName.NameUse.OFFICIAL);
+
+		//           Set mother's name
+		if (patientExport.getMothersMaidenName() != null) {
+			Extension mothersMaidenName = new Extension();
+			mothersMaidenName.setUrl("http://hl7.org/fhir/StructureDefinition/patient-mothersMaidenName");
+			mothersMaidenName.setValue(new StringType(patientExport.getMothersMaidenName().getValue()));
+			admitMessage.addExtension(mothersMaidenName);
+		}
+		//            Set Patient Phone number
+		PersonAttribute patientTelephone = patientExport.getPatientTelephone();
+		if (patientTelephone != null) {
+			ContactPoint contactPoint = new ContactPoint();
+			contactPoint.setId(patientTelephone.getUuid());
+			contactPoint.setValue(patientTelephone.getValue());
+			contactPoint.setSystem(ContactPoint.ContactPointSystem.PHONE);
+			contactPoint.setUse(ContactPoint.ContactPointUse.MOBILE);
+			admitMessage.addTelecom(contactPoint);
+		}
+
+		//            Patient Obs processing
+		Set<Obs> patientObs = patientExport.getExportedObs(this.m_configuration.getExportedObsConcepts());
+		if (patientObs != null) {
+			for (Obs obs : patientObs) {
+				switch (obs.getConcept().getConceptId()) {
+					case 165194: {//Place of birth address construct
+						//                            165195=>locality, 165198=>country of residence, 1354=>village, 165197=>province, 165196=>communal section, 162725=> address
+						Extension birthplace = new Extension();
+						birthplace.setUrl("http://hl7.org/fhir/StructureDefinition/patient-birthPlace");
+						Address address = parseAddress(obs);
+						birthplace.setValue(address);
+						admitMessage.addExtension(birthplace);
+						break;
+					}
+					case 165210:
+					case 165213:
+					case 165212: {//Emergency contact construct, Primary medical disclosure construct,secondary medical disclosure construct
+						//                            159635=> phone number, 164352=> relationship to patient, 163258 => name of contact,
+						//                            165196 => communal section, 165195=> locality, 165198=> country of residence, 1354=> village, 165197=> province, 162725=> address
+						admitMessage.addContact(translatePatientContact(obs));
+						break;
+					}
+				}
+			}
+		}
+		return admitMessage;
+	}
+
+	/**
+	 * Export the patients in batch (or transaction) bundles of the configured size
+	 */
+	@Override
+	public List<MpiPatientExportResult> exportPatients(Collection<MpiPatientExport> patientExports) {
+		List<MpiPatientExportResult> retVal = new ArrayList<MpiPatientExportResult>(patientExports.size());
+		int chunkSize = Math.max(1, this.m_configuration.getFhirBatchSize());
+		Bundle.BundleType bundleType = "transaction".equalsIgnoreCase(this.m_configuration.getFhirBundleType())
+				? Bundle.BundleType.TRANSACTION : Bundle.BundleType.BATCH;
+
+		List<MpiPatientExport> chunk = new ArrayList<MpiPatientExport>(chunkSize);
+		for (MpiPatientExport patientExport : patientExports) {
+			chunk.add(patientExport);
+			if (chunk.size() == chunkSize) {
+				retVal.addAll(this.exportPatientBundle(chunk, bundleType));
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty())
+			retVal.addAll(this.exportPatientBundle(chunk, bundleType));
+		return retVal;
+	}
+
+	/**
+	 * Send one bundle of patients, matching the response entries to the request entries by position
+	 */
+	private List<MpiPatientExportResult> exportPatientBundle(List<MpiPatientExport> chunk, Bundle.BundleType bundleType) {
+		MpiPatientExportResult[] retVal = new MpiPatientExportResult[chunk.size()];
+		List<Integer> sent = new ArrayList<Integer>(chunk.size());
+
+		Bundle request = new Bundle();
+		request.setType(bundleType);
+		for (int i = 0; i < chunk.size(); i++) {
+			MpiPatientExport patientExport = chunk.get(i);
+			try {
+				BundleEntryComponent entry = request.addEntry();
+				entry.setFullUrl("urn:uuid:" + patientExport.getPatient().getUuid());
+				entry.setResource(this.createPatientResource(patientExport));
+				entry.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+				sent.add(i);
+			}
+			catch (Exception e) {
+				log.error(String.format("Error creating FHIR patient %s", patientExport.getPatient().getUuid()), e);
+				request.getEntry().remove(request.getEntry().size() - 1);
+				retVal[i] = new MpiPatientExportResult(patientExport, new MpiClientException(e));
+			}
+		}
+
+		if (!sent.isEmpty()) {
+			try {
+				Bundle response = this.getClient(false).transaction().withBundle(request).execute();
+				for (int i = 0; i < sent.size(); i++) {
+					MpiPatientExport patientExport = chunk.get(sent.get(i));
+					Bundle.BundleEntryResponseComponent entryResponse = i < response.getEntry().size()
+							? response.getEntry().get(i).getResponse() : null;
+					if (entryResponse != null && entryResponse.getStatus() != null && entryResponse.getStatus().startsWith("2"))
+						retVal[sent.get(i)] = new MpiPatientExportResult(patientExport, null);
+					else
+						retVal[sent.get(i)] = new MpiPatientExportResult(patientExport, new MpiClientException(String.format(
+								"Error from MPI :> %s", entryResponse == null ? "no response" : entryResponse.getStatus())));
+				}
+			}
+			catch (Exception e) {
+				log.error("Error in FHIR PIX batch message", e);
+				MpiClientException error = new MpiClientException("Error in FHIR PIX batch message", e);
+				for (Integer i : sent)
+					retVal[i] = new MpiPatientExportResult(chunk.get(i), error);
+			}
+		}
+		return Arrays.asList(retVal);
+	}
+
 	private Address parseAddress(Obs obs) {
 		Address fhirAddress = new Address();
 		fhirAddress.setUse(Address.AddressUse.HOME);
@@ -19,6 +19,10 @@ package org.openmrs.module.santedb.mpiclient.api.impl;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,6 +32,7 @@ import org.hibernate.cfg.NotYetImplementedException;
 import org.marc.everest.datatypes.II;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.PatientIdentifierType.LocationBehavior;
 import org.openmrs.PersonAddress;
 import org.openmrs.PersonName;
@@ -42,9 +47,13 @@ import org.openmrs.module.santedb.mpiclient.dao.MpiClientDao;
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
 import org.openmrs.module.santedb.mpiclient.util.AuditUtil;
 import org.openmrs.module.santedb.mpiclient.util.MessageDispatchWorker;
 import org.openmrs.module.santedb.mpiclient.util.MessageUtil;
+import org.openmrs.module.santedb.mpiclient.util.MpiOutboxDrainer;
+import org.openmrs.module.santedb.mpiclient.util.PatientLockRegistry;
+import org.openmrs.module.santedb.mpiclient.util.SynchronizationExecutor;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Message;
@@ -227,6 +236,25 @@ public class HL7MpiClientServiceImpl
 		throw new NotYetImplementedException("Not Yet Implemented for HL7");
 	}
 
+	/**
+	 * PDQ has no query for patients changed since a point in time
+	 */
+	@Override
+	public Stream<MpiPatient> getUpdatedPatientStream(Date since, Collection<String> domains, int pageSize) throws MpiClientException {
+		throw new NotYetImplementedException("Not Yet Implemented for HL7");
+	}
+
+	/**
+	 * Search the PDQ supplier returning the results as a stream. PDQ continuation is not supported so
+	 * all results are read from the first response.
+	 */
+	@Override
+	public Stream<MpiPatient> searchPatientStream(String familyName, String givenName, Date dateOfBirth, boolean fuzzyDate, String gender, String stateOrRegion, String cityOrTownship, Set<PatientIdentifier> patientIdentifiers, PatientIdentifier mothersIdentifier, String nextOfKinName, String birthPlace, Map<String, Object> otherDataPoints, int pageSize, int maxResults) throws MpiClientException {
+		PatientIdentifier identifier = patientIdentifiers != null && !patientIdentifiers.isEmpty() ? patientIdentifiers.iterator().next() : null;
+		Stream<MpiPatient> retVal = this.searchPatient(familyName, givenName, dateOfBirth, fuzzyDate, gender, stateOrRegion, cityOrTownship, identifier, mothersIdentifier, nextOfKinName, birthPlace, otherDataPoints).stream();
+		return maxResults > 0 ? retVal.limit(maxResults) : retVal;
+	}
+
 	/**
 	 * Search the PDQ supplier for the specified patient data with identifier
 	 * @throws MpiClientException
@@ -304,6 +332,16 @@ public class HL7MpiClientServiceImpl
 		}
 	}
 
+	/**
+	 * Search the PDQ supplier for the specified patient data with identifier returning the results as a stream
+	 * @throws MpiClientException
+	 */
+	@Override
+	public Stream<MpiPatient> getPatientListStream(String identifier, String assigningAuthority, int pageSize, int maxResults) throws MpiClientException {
+		Stream<MpiPatient> retVal = this.getPatientList(identifier, assigningAuthority).stream();
+		return maxResults > 0 ? retVal.limit(maxResults) : retVal;
+	}
+
 	/**
 	 * Search the PDQ supplier for the specified patient data with identifier
 	 * @throws MpiClientException
@@ -387,10 +425,52 @@ public class HL7MpiClientServiceImpl
 	}
 
 	/**
-	 * Import the patient from the PDQ supplier
+	 * Import the patient from the PDQ supplier, one import of the same MPI patient at a time
 	 * @throws MpiClientException
 	 */
 	public Patient importPatient(MpiPatient patient) throws MpiClientException
+	{
+		String lockKey = this.getImportLockKey(patient);
+		if(!PatientLockRegistry.getInstance().tryLock(lockKey, this.m_configuration.getSyncLockTimeout(), TimeUnit.MILLISECONDS))
+			throw new MpiClientException(String.format("Patient %s is already being imported", lockKey));
+		try {
+			return this.importLockedPatient(patient);
+		}
+		finally {
+			PatientLockRegistry.getInstance().unlock(lockKey);
+		}
+	}
+
+	/**
+	 * Gets the key imports of the patient are serialized on. Every copy of the patient the MPI
+	 * returns carries its enterprise identifier (ECID), so that is the key; without one the
+	 * first identifier the patient has a local type for is used instead.
+	 */
+	private String getImportLockKey(MpiPatient patient)
+	{
+		String enterpriseRoot = this.m_configuration.getEnterprisePatientIdRoot();
+		PatientIdentifierType ecidType = this.m_configuration.getIdentifierDomainIndex().getMappedIdentifierType(enterpriseRoot);
+		PatientIdentifier fallback = null;
+		for(PatientIdentifier id : patient.getIdentifiers())
+		{
+			PatientIdentifierType type = id.getIdentifierType();
+			// The enterprise domain usually has no local identifier type
+			if(ecidType == null ? type == null : type != null && ecidType.getId().equals(type.getId()))
+				return String.format("import:%s:%s", enterpriseRoot, id.getIdentifier());
+			else if(fallback == null && type != null)
+				fallback = id;
+		}
+
+		if(fallback == null)
+			return patient.getUuid();
+		this.log.warn(String.format("Patient from the MPI has no %s identifier, import is locked on identifier %s", enterpriseRoot, fallback.getIdentifier()));
+		return String.format("import:%s:%s", fallback.getIdentifierType().getUuid(), fallback.getIdentifier());
+	}
+
+	/**
+	 * Import the patient once the import lock is held
+	 */
+	private Patient importLockedPatient(MpiPatient patient) throws MpiClientException
 	{
 		Patient patientRecord = Context.getService(MpiClientService.class).matchWithExistingPatient(patient);
 
@@ -493,7 +573,13 @@ public class HL7MpiClientServiceImpl
 			if(this.m_configuration.getUseBackgroundThreads())
 			{
 				MessageDispatchWorker worker = new MessageDispatchWorker(admitMessage, auditMessage, this.m_configuration.getPixEndpoint(), this.m_configuration.getPixPort());
-				worker.start();
+				if(!SynchronizationExecutor.getInstance().submit(worker, String.format("PIX message for patient %s", patientExport.getPatient().getUuid())))
+				{
+					// Never wait for the queue on the caller's thread, the outbox sends the export later
+					if(patientExport.getPatient().getId() == null)
+						throw new MpiClientException(String.format("Synchronization queue is full, patient %s was not exported", patientExport.getPatient().getUuid()));
+					MpiOutboxDrainer.getInstance().wakeAfterCommit(Context.getService(MpiClientService.class).queuePatientExport(patientExport.getPatient(), null));
+				}
 				auditMessage = null; // prevent sending
 			}
 			else {
@@ -549,28 +635,100 @@ public class HL7MpiClientServiceImpl
 
 	}
 
+	/**
+	 * Export the patients to the HIE, pipelining the admit messages on one connection
+	 */
+	public List<MpiPatientExportResult> exportPatients(Collection<MpiPatientExport> patientExports) {
+		List<MpiPatientExport> exports = new ArrayList<MpiPatientExport>(patientExports);
+		List<Message> requests = new ArrayList<Message>(exports.size());
+		List<CompletableFuture<Message>> responses = new ArrayList<CompletableFuture<Message>>(exports.size());
+		List<MpiPatientExportResult> retVal = new ArrayList<MpiPatientExportResult>(exports.size());
+
+		// Send everything (A04 for new patients and A08 for updates) before waiting for the first response
+		for (MpiPatientExport patientExport : exports) {
+			Message admitMessage = null;
+			CompletableFuture<Message> response;
+			try {
+				admitMessage = patientExport.isUpdate() ? this.m_messageUtil.createUpdate(patientExport.getPatient())
+						: this.m_messageUtil.createAdmit(patientExport.getPatient());
+				// A single message gains nothing from pipelining, so it is sent on a pooled connection
+				if (exports.size() == 1)
+					response = CompletableFuture.completedFuture(this.m_messageUtil.sendMessage(admitMessage, this.m_configuration.getPixEndpoint(), this.m_configuration.getPixPort()));
+				else
+					response = this.m_messageUtil.sendMessageAsync(admitMessage, this.m_configuration.getPixEndpoint(), this.m_configuration.getPixPort());
+			}
+			catch (Exception e) {
+				response = new CompletableFuture<Message>();
+				response.completeExceptionally(e);
+			}
+			requests.add(admitMessage);
+			responses.add(response);
+		}
+
+		for (int i = 0; i < exports.size(); i++) {
+			MpiPatientExport patientExport = exports.get(i);
+			MpiClientException error = null;
+			try {
+				Message response = responses.get(i).get();
+				Terser terser = new Terser(response);
+				if (!terser.get("/MSA-1").endsWith("A"))
+					error = new MpiClientException(String.format("Error from MPI :> %s", terser.get("/MSA-1")), response);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = new MpiClientException(e);
+			}
+			catch (ExecutionException e) {
+				error = new MpiClientException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+			}
+			catch (Exception e) {
+				error = new MpiClientException(e);
+			}
+
+			if (error != null)
+				log.error(String.format("Error in PIX message for patient %s", patientExport.getPatient().getUuid()), error);
+			retVal.add(new MpiPatientExportResult(patientExport, error));
+
+			if (requests.get(i) != null)
+				try {
+					this.getAuditLogger().write(Calendar.getInstance(), AuditUtil.getInstance().createPatientAdmit(
+							patientExport.getPatient(), this.m_configuration.getPixEndpoint(), requests.get(i), error == null));
+				}
+				catch (Exception e) {
+					log.error(e);
+				}
+		}
+		return retVal;
+	}
+
 	/**
 	 * Resolve patient identifier of the patient
 	 * @throws MpiClientException
 	 */
 	public PatientIdentifier resolvePatientIdentifier(Patient patient,
 													  String toAssigningAuthority) throws MpiClientException {
+		return this.resolvePatientIdentifiers(patient, Collections.singleton(toAssigningAuthority)).get(toAssigningAuthority);
+	}
+
+	/**
+	 * Resolve the patient identifiers in the specified identity domains with one PIX query
+	 * @throws MpiClientException
+	 */
+	public Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient,
+													  Set<String> toAssigningAuthorities) throws MpiClientException {
 
 		AuditMessage auditMessage = null;
 
 		Message request = null;
 		try
 		{
-			request = this.m_messageUtil.createPixMessage(patient, toAssigningAuthority);
+			request = this.m_messageUtil.createPixMessage(patient, toAssigningAuthorities.toArray(new String[toAssigningAuthorities.size()]));
 			Message response = this.m_messageUtil.sendMessage(request, this.m_configuration.getPixEndpoint(), this.m_configuration.getPixPort());
 
 			// Interpret the result
 			List<MpiPatient> candidate = this.m_messageUtil.interpretPIDSegments(response);
 			auditMessage = AuditUtil.getInstance().createPatientResolve(candidate, this.m_configuration.getPixEndpoint(), request);
-			if(candidate.size() == 0)
-				return null;
-			else
-				return candidate.get(0).getIdentifiers().iterator().next();
+			return this.getResolvedIdentifiers(candidate, toAssigningAuthorities);
 		}
 		catch(Exception e)
 		{
@@ -595,6 +753,98 @@ public class HL7MpiClientServiceImpl
 	}
 
 
+	/**
+	 * Resolve the patient identifiers of several patients. The PIX queries are pipelined on the
+	 * pooled connections, so the responses are awaited together rather than one after another.
+	 * @throws MpiClientException
+	 */
+	public Map<Integer, Map<String, PatientIdentifier>> resolvePatientIdentifiers(Collection<Patient> patients,
+													  Set<String> toAssigningAuthorities) throws MpiClientException {
+
+		Map<Integer, Map<String, PatientIdentifier>> retVal = new HashMap<Integer, Map<String, PatientIdentifier>>();
+		String[] domains = toAssigningAuthorities.toArray(new String[toAssigningAuthorities.size()]);
+
+		// Send all of the queries
+		Map<Patient, Message> requests = new LinkedHashMap<Patient, Message>();
+		Map<Patient, CompletableFuture<Message>> responses = new LinkedHashMap<Patient, CompletableFuture<Message>>();
+		for(Patient patient : patients)
+		{
+			try
+			{
+				Message request = this.m_messageUtil.createPixMessage(patient, domains);
+				requests.put(patient, request);
+				responses.put(patient, this.m_messageUtil.sendMessageAsync(request, this.m_configuration.getPixEndpoint(), this.m_configuration.getPixPort()));
+			}
+			catch(HL7Exception e)
+			{
+				log.error(String.format("Could not create PIX query for patient %s", patient.getId()), e);
+			}
+		}
+
+		// Collect the responses
+		Exception lastError = null;
+		for(Map.Entry<Patient, CompletableFuture<Message>> response : responses.entrySet())
+		{
+			Message request = requests.get(response.getKey());
+			AuditMessage auditMessage = null;
+			try
+			{
+				List<MpiPatient> candidate = this.m_messageUtil.interpretPIDSegments(response.getValue().get());
+				auditMessage = AuditUtil.getInstance().createPatientResolve(candidate, this.m_configuration.getPixEndpoint(), request);
+				retVal.put(response.getKey().getPatientId(), this.getResolvedIdentifiers(candidate, toAssigningAuthorities));
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new MpiClientException(e);
+			}
+			catch(Exception e)
+			{
+				log.error(String.format("PIX query for patient %s failed", response.getKey().getId()), e);
+				lastError = e;
+				auditMessage = AuditUtil.getInstance().createPatientResolve(null, this.m_configuration.getPixEndpoint(), request);
+			}
+			finally
+			{
+				if(auditMessage != null)
+					try
+					{
+						this.getAuditLogger().write(Calendar.getInstance(), auditMessage);
+					}
+					catch(Exception e)
+					{
+						log.error(e);
+					}
+			}
+		}
+
+		// None of the queries got through
+		if(retVal.isEmpty() && lastError != null)
+			throw new MpiClientException(lastError);
+		return retVal;
+	}
+
+	/**
+	 * Get the identifiers of the first candidate of a PIX response in the requested domains
+	 */
+	private Map<String, PatientIdentifier> getResolvedIdentifiers(List<MpiPatient> candidate, Set<String> toAssigningAuthorities) {
+		Map<String, PatientIdentifier> retVal = new HashMap<String, PatientIdentifier>();
+		if(candidate.size() == 0)
+			return retVal;
+
+		for(PatientIdentifier pid : candidate.get(0).getIdentifiers())
+		{
+			String domain = this.m_configuration.getIdentifierDomainIndex().getDomain(pid.getIdentifierType());
+			// The response only has the requested domains so a single identifier answers a single domain
+			if(domain == null && toAssigningAuthorities.size() == 1 && candidate.get(0).getIdentifiers().size() == 1)
+				domain = toAssigningAuthorities.iterator().next();
+			if(domain != null && toAssigningAuthorities.contains(domain) && !retVal.containsKey(domain))
+				retVal.put(domain, pid);
+		}
+		return retVal;
+	}
+
+
 	/**
 	 * Update the patient record
 	 * @see org.openmrs.module.santedb.mpiclient.api.MpiClientService#updatePatient(org.openmrs.Patient)
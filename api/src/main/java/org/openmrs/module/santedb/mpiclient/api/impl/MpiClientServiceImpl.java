@@ -16,23 +16,56 @@
  */
 package org.openmrs.module.santedb.mpiclient.api.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dcm4che3.net.audit.AuditLogger;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PatientIdentifierType.LocationBehavior;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.User;
+import org.openmrs.api.APIException;
+import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.santedb.mpiclient.aop.PatientSynchronizationAdvice;
 import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.IdentifierDomainIndex;
 import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
 import org.openmrs.module.santedb.mpiclient.dao.MpiClientDao;
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+import org.openmrs.module.santedb.mpiclient.model.MpiPullState;
+import org.openmrs.module.santedb.mpiclient.model.MpiReconcileState;
+import org.openmrs.module.santedb.mpiclient.model.MpiSyncState;
+import org.openmrs.module.santedb.mpiclient.util.LocalPatientMatcher;
+import org.openmrs.module.santedb.mpiclient.util.MpiOutboxDrainer;
+import org.openmrs.module.santedb.mpiclient.util.PatientExportHasher;
+import org.openmrs.module.santedb.mpiclient.util.PatientLockRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -48,10 +81,13 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
 
     private HL7MpiClientServiceImpl m_hl7Service;
     // Get health information exchange information
-    private MpiClientConfiguration m_configuration = MpiClientConfiguration.getInstance();
+    private final MpiClientConfiguration m_configuration;
 
     private Log log = LogFactory.getLog(this.getClass());
 
+    // Reason given for names and addresses which are replaced by the MPI's copy
+    private static final String UPDATED_FROM_MPI_REASON = "Updated from the MPI";
+
     // DAO
     private MpiClientDao dao;
 
@@ -67,6 +103,14 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
      * @summary Creates a new instance of the MPI Client Service Implementation
      */
     public MpiClientServiceImpl() {
+        this(MpiClientConfiguration.getInstance());
+    }
+
+    /**
+     * Creates a new instance with the specified configuration
+     */
+    MpiClientServiceImpl(MpiClientConfiguration configuration) {
+        this.m_configuration = configuration;
         this.m_fhirService = new FhirMpiClientServiceImpl();
         this.m_hl7Service = new HL7MpiClientServiceImpl();
     }
@@ -78,7 +122,7 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
     public List<MpiPatient> searchPatient(String familyName, String givenName, Date dateOfBirth, boolean fuzzyDate,
                                           String gender, String stateOrRegion, String cityOrTownship, PatientIdentifier patientIdentifier,
                                           PatientIdentifier mothersIdentifier, String nextOfKinName, String birthPlace, Map<String, Object> otherDataPoints) throws MpiClientException {
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             return this.m_fhirService.searchPatient(familyName, givenName, dateOfBirth, fuzzyDate, gender, stateOrRegion, cityOrTownship, patientIdentifier, mothersIdentifier, nextOfKinName, birthPlace,otherDataPoints);
         else
             return this.m_hl7Service.searchPatient(familyName, givenName, dateOfBirth, fuzzyDate, gender, stateOrRegion, cityOrTownship, patientIdentifier, mothersIdentifier, nextOfKinName, birthPlace,otherDataPoints);
@@ -87,7 +131,7 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
 
     @Override
     public List<MpiPatient> searchPatient(Patient patient, Map<String, Object> otherDataPoints) throws MpiClientException {
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
         {
         	log.warn(patient.getFamilyName()+"/"+patient.getGivenName()+"/"+patient.getBirthDateTime()+"/"+
                     patient.getBirthdateEstimated()+"/"+ patient.getGender()+"/"+ patient.getIdentifiers());
@@ -110,13 +154,31 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
         }
     }
 
+    /**
+     * Search patient returning a lazily paged stream
+     */
+    @Override
+    public Stream<MpiPatient> searchPatientStream(Patient patient, Map<String, Object> otherDataPoints, int pageSize, int maxResults) throws MpiClientException {
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
+            return this.m_fhirService.searchPatientStream(patient.getFamilyName(), patient.getGivenName(), patient.getBirthDateTime(),
+                    patient.getBirthdateEstimated(), patient.getGender(), null, null, patient.getIdentifiers(),
+                    null, null, null, otherDataPoints, pageSize, maxResults);
+        else
+            return this.m_hl7Service.searchPatientStream(patient.getFamilyName(), patient.getGivenName(), patient.getBirthDateTime(),
+                    patient.getBirthdateEstimated(), patient.getGender(),
+                    patient.getPersonAddress() != null ? patient.getPersonAddress().getStateProvince() : null,
+                    patient.getPersonAddress() != null ? patient.getPersonAddress().getCityVillage() : null,
+                    patient.getPatientIdentifier() != null ? Collections.singleton(patient.getPatientIdentifier()) : null,
+                    null, null, null, otherDataPoints, pageSize, maxResults);
+    }
+
     /**
      * Get patient using specified identifier and AA
      */
     @Override
     public MpiPatient getPatient(String identifier, String assigningAuthority) throws MpiClientException {
         // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             return this.m_fhirService.getPatient(identifier, assigningAuthority);
         else
             return this.m_hl7Service.getPatient(identifier, assigningAuthority);
@@ -129,12 +191,34 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
     @Override
     public List<MpiPatient> getPatientList(String identifier, String assigningAuthority) throws MpiClientException {
         // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             return this.m_fhirService.getPatientList(identifier, assigningAuthority);
         else
         	return this.m_hl7Service.getPatientList(identifier, assigningAuthority);
     }
 
+    /**
+     * Get patients using specified identifier and AA returning a lazily paged stream
+     */
+    @Override
+    public Stream<MpiPatient> getPatientListStream(String identifier, String assigningAuthority, int pageSize, int maxResults) throws MpiClientException {
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
+            return this.m_fhirService.getPatientListStream(identifier, assigningAuthority, pageSize, maxResults);
+        else
+            return this.m_hl7Service.getPatientListStream(identifier, assigningAuthority, pageSize, maxResults);
+    }
+
+    /**
+     * Get patients changed on the MPI since the specified time
+     */
+    @Override
+    public Stream<MpiPatient> getUpdatedPatientStream(Date since, Collection<String> domains, int pageSize) throws MpiClientException {
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
+            return this.m_fhirService.getUpdatedPatientStream(since, domains, pageSize);
+        else
+            return this.m_hl7Service.getUpdatedPatientStream(since, domains, pageSize);
+    }
+
     /**
      * Resolve patient identifier
      */
@@ -142,12 +226,36 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
     public PatientIdentifier resolvePatientIdentifier(Patient patient, String toAssigningAuthority)
             throws MpiClientException {
         // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             return this.m_fhirService.resolvePatientIdentifier(patient, toAssigningAuthority);
         else
             return this.m_hl7Service.resolvePatientIdentifier(patient, toAssigningAuthority);
     }
 
+    /**
+     * Resolve patient identifiers in several domains
+     */
+    @Override
+    public Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient, Set<String> toAssigningAuthorities)
+            throws MpiClientException {
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
+            return this.m_fhirService.resolvePatientIdentifiers(patient, toAssigningAuthorities);
+        else
+            return this.m_hl7Service.resolvePatientIdentifiers(patient, toAssigningAuthorities);
+    }
+
+    /**
+     * Resolve patient identifiers of several patients
+     */
+    @Override
+    public Map<Integer, Map<String, PatientIdentifier>> resolvePatientIdentifiers(Collection<Patient> patients, Set<String> toAssigningAuthorities)
+            throws MpiClientException {
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
+            return this.m_fhirService.resolvePatientIdentifiers(patients, toAssigningAuthorities);
+        else
+            return this.m_hl7Service.resolvePatientIdentifiers(patients, toAssigningAuthorities);
+    }
+
     /**
      * Synchronize patient with enterprise identifier
      */
@@ -174,8 +282,23 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
      */
     @Override
     public Patient importPatient(MpiPatient patient) throws MpiClientException {
-        // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        return this.importPatient(patient, false);
+    }
+
+    /**
+     * Import patient with specified patient data, unless it probably exists locally and the import was not confirmed
+     */
+    @Override
+    public Patient importPatient(MpiPatient patient, boolean confirmDuplicate) throws MpiClientException {
+        // A patient which probably is already registered locally under other identifiers is only imported once the
+        // user has confirmed it is another person (twins or namesakes score as duplicates too)
+        if (!confirmDuplicate && this.matchWithExistingPatient(patient) == null) {
+            Integer duplicateId = this.getProbableLocalDuplicate(patient);
+            if (duplicateId != null)
+                throw new MpiClientException(String.format("Patient probably already exists locally as patient %s, confirm the import to import it anyway",
+                        duplicateId));
+        }
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             return this.m_fhirService.importPatient(patient);
         else
             return this.m_hl7Service.importPatient(patient);
@@ -188,27 +311,86 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
      */
     @Override
     public Patient matchWithExistingPatient(Patient remotePatient) {
-        Patient candidate = null;
-        // Does this patient have an identifier from our assigning authority?
-        for (PatientIdentifier pid : remotePatient.getIdentifiers()) {
-            if (pid.getIdentifierType() == null) continue;
-            String domain = this.m_configuration.getLocalPatientIdentifierTypeMap().get(pid.getIdentifierType().getName());
-            if (this.m_configuration.getLocalPatientIdRoot().equals(domain))
-                try {
-                    candidate = Context.getPatientService().getPatient(Integer.parseInt(pid.getIdentifier()));
-                } catch (Exception e) {
+        return this.matchWithExistingPatients(Collections.singletonList(remotePatient)).get(0);
+    }
 
-                }
-        }
-        // This patient may be an existing patient, so we just don't want to add it!
-        if (candidate == null)
+    /**
+     * Match external patients with internal patients
+     *
+     * @see org.openmrs.module.santedb.mpiclient.api.MpiClientService#matchWithExistingPatients(java.util.List)
+     */
+    @Override
+    public List<Patient> matchWithExistingPatients(List<? extends Patient> remotePatients) {
+        List<Integer> localIds = new ArrayList<Integer>();
+        List<Pair<String, PatientIdentifierType>> identifiers = new ArrayList<Pair<String, PatientIdentifierType>>();
+        for (Patient remotePatient : remotePatients) {
+            Integer localId = null;
+            // Does this patient have an identifier from our assigning authority?
             for (PatientIdentifier pid : remotePatient.getIdentifiers()) {
-                candidate = this.dao.getPatientByIdentifier(pid.getIdentifier(), pid.getIdentifierType());
-                if (candidate != null)
-                    break;
+                if (pid.getIdentifierType() == null) continue;
+                identifiers.add(Pair.of(pid.getIdentifier(), pid.getIdentifierType()));
+                String domain = this.m_configuration.getIdentifierDomainIndex().getDomain(pid.getIdentifierType());
+                if (this.m_configuration.getLocalPatientIdRoot().equals(domain))
+                    try {
+                        localId = Integer.valueOf(pid.getIdentifier());
+                    } catch (NumberFormatException e) {
+
+                    }
             }
+            // HL7 messages carry the identifier from our assigning authority as the patient id
+            if (localId == null)
+                localId = remotePatient.getPatientId();
+            localIds.add(localId);
+        }
+
+        // Look up the local ids and the identifiers of all patients at once. The matched patients may be updated
+        // from the MPI, so they are not loaded read-only.
+        Map<Integer, Patient> localPatients = new HashMap<Integer, Patient>();
+        Set<Integer> ids = new HashSet<Integer>(localIds);
+        ids.remove(null);
+        for (Patient localPatient : this.dao.getPatientsForUpdate(ids))
+            localPatients.put(localPatient.getPatientId(), localPatient);
+        Map<Pair<String, PatientIdentifierType>, Patient> identifierPatients = this.dao.getPatientsByIdentifiers(identifiers);
+
+        List<Patient> retVal = new ArrayList<Patient>();
+        for (int i = 0; i < remotePatients.size(); i++) {
+            Patient candidate = localPatients.get(localIds.get(i));
+            // This patient may be an existing patient, so we just don't want to add it!
+            if (candidate == null)
+                for (PatientIdentifier pid : remotePatients.get(i).getIdentifiers()) {
+                    candidate = identifierPatients.get(Pair.of(pid.getIdentifier(), pid.getIdentifierType()));
+                    if (candidate != null)
+                        break;
+                }
+            retVal.add(candidate);
+        }
+        return retVal;
+    }
 
-        return candidate;
+    /**
+     * Get the id of the best scoring local patient which is probably the same person as the patient, or null if
+     * there is none or the local match index is not ready
+     */
+    @Override
+    public Integer getProbableLocalDuplicate(Patient patient) {
+        List<LocalPatientMatcher.Match> matches = LocalPatientMatcher.getInstance().findMatches(patient);
+        return matches.isEmpty() ? null : matches.get(0).getPatientId();
+    }
+
+    /**
+     * Get the internal patients of several identifiers
+     */
+    @Override
+    public Map<Pair<String, PatientIdentifierType>, Patient> getPatientsByIdentifiers(Collection<Pair<String, PatientIdentifierType>> identifiers) {
+        return this.dao.getPatientsByIdentifiers(identifiers);
+    }
+
+    /**
+     * Get the fields used by the local matcher
+     */
+    @Override
+    public List<Object[]> getPatientMatchRows(Integer afterPatientId, int count) {
+        return this.dao.getPatientMatchRows(afterPatientId, count);
     }
 
 
@@ -217,11 +399,35 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
      */
     @Override
     public void exportPatient(MpiPatientExport patientExport) throws MpiClientException {
-        // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        Patient patient = patientExport.getPatient();
+        MpiSyncState syncState = patient.getId() == null ? null : this.dao.getSyncState(patient);
+        String exportHash = this.getExportHash(patientExport);
+        if (this.isUnchanged(syncState, exportHash, patientExport)) {
+            log.info(String.format("Patient %s has not changed since it was exported, skipping export", patient.getUuid()));
+            return;
+        }
+
+        // The MPI links the copies of a patient registered twice locally, so a duplicate is only reported
+        if (syncState == null) {
+            Integer duplicateId = this.getProbableLocalDuplicate(patient);
+            if (duplicateId != null)
+                log.warn(String.format("Patient %s is probably a local duplicate of patient %s", patient.getUuid(), duplicateId));
+        }
+
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             this.m_fhirService.exportPatient(patientExport);
+        else if (this.m_configuration.getUseBackgroundThreads() && patient.getId() != null) {
+            // Sent from the outbox, which records the export once the MPI has acknowledged it
+            Set<Obs> patientObs = patientExport.getPatientObs();
+            Encounter encounter = patientObs.isEmpty() ? null : patientObs.iterator().next().getEncounter();
+            MpiOutboxDrainer.getInstance().wakeAfterCommit(this.queuePatientExport(patient, encounter));
+            return;
+        }
         else
             this.m_hl7Service.exportPatient(patientExport);
+
+        // A patient which is not saved yet has no hash (and is always exported)
+        this.recordExport(patient, syncState, exportHash);
     }
 
     /**
@@ -230,22 +436,641 @@ public class MpiClientServiceImpl extends BaseOpenmrsService
     @Override
     public void updatePatient(MpiPatientExport patientExport) throws MpiClientException {
         // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             this.m_fhirService.updatePatient(patientExport);
         else
             this.m_hl7Service.updatePatient(patientExport);
     }
 
+    /**
+     * Export patients using preferred messaging format
+     */
+    @Override
+    public List<MpiPatientExportResult> exportPatients(Collection<MpiPatientExport> patientExports) {
+        // One query for the last export of all of the patients
+        List<Patient> patients = new ArrayList<Patient>(patientExports.size());
+        for (MpiPatientExport patientExport : patientExports)
+            if (patientExport.getPatient().getId() != null)
+                patients.add(patientExport.getPatient());
+        Map<String, MpiSyncState> syncStates = new HashMap<String, MpiSyncState>();
+        for (MpiSyncState syncState : this.dao.getSyncStates(patients))
+            syncStates.put(syncState.getPatient().getUuid(), syncState);
+
+        // Only send the patients which have changed
+        MpiPatientExportResult[] retVal = new MpiPatientExportResult[patientExports.size()];
+        List<MpiPatientExport> changed = new ArrayList<MpiPatientExport>(patientExports.size());
+        List<Integer> changedIndex = new ArrayList<Integer>(patientExports.size());
+        List<String> changedHash = new ArrayList<String>(patientExports.size());
+        int i = 0;
+        for (MpiPatientExport patientExport : patientExports) {
+            String exportHash = this.getExportHash(patientExport);
+            if (this.isUnchanged(syncStates.get(patientExport.getPatient().getUuid()), exportHash, patientExport))
+                retVal[i] = new MpiPatientExportResult(patientExport, null);
+            else {
+                // Patients the MPI has accepted before are sent as updates
+                patientExport.setUpdate(syncStates.containsKey(patientExport.getPatient().getUuid()));
+                changed.add(patientExport);
+                changedIndex.add(i);
+                changedHash.add(exportHash);
+            }
+            i++;
+        }
+        if (changed.size() < retVal.length)
+            log.info(String.format("Skipping export of %s patients which have not changed since they were exported",
+                    retVal.length - changed.size()));
+
+        if (!changed.isEmpty()) {
+            List<MpiPatientExportResult> results = this.m_configuration.getMessageFormat().equals("fhir")
+                    ? this.m_fhirService.exportPatients(changed) : this.m_hl7Service.exportPatients(changed);
+            for (i = 0; i < results.size(); i++) {
+                MpiPatientExportResult result = results.get(i);
+                retVal[changedIndex.get(i)] = result;
+                if (result.isSuccessful()) {
+                    Patient patient = result.getPatientExport().getPatient();
+                    this.recordExport(patient, syncStates.get(patient.getUuid()), changedHash.get(i));
+                }
+            }
+        }
+        return Arrays.asList(retVal);
+    }
+
+    /**
+     * Get the hash of the exported demographics of the patient, or null if it cannot be
+     * computed (in which case the patient is always exported). The obs of an encounter are
+     * not part of the hash, so exports of the patient alone and with an encounter give the
+     * same hash.
+     */
+    private String getExportHash(MpiPatientExport patientExport) {
+        Patient patient = patientExport.getPatient();
+        if (patient.getId() == null)
+            return null;
+        try {
+            return PatientExportHasher.getInstance().hash(patient, null,
+                    Context.getPersonService().getRelationshipsByPerson(patient));
+        } catch (Exception e) {
+            log.warn(String.format("Cannot compute export hash of patient %s", patient.getUuid()), e);
+            return null;
+        }
+    }
+
+    /**
+     * True if the last export of the patient sent the same demographics and this export
+     * carries no obs (which are always sent)
+     */
+    private boolean isUnchanged(MpiSyncState syncState, String exportHash, MpiPatientExport patientExport) {
+        return exportHash != null && syncState != null && exportHash.equals(syncState.getExportHash())
+                && this.m_configuration.getSyncSkipUnchanged()
+                && patientExport.getExportedObs(this.m_configuration.getExportedObsConcepts()).isEmpty();
+    }
+
+    /**
+     * Record the hash of the data which the MPI has accepted
+     */
+    private void recordExport(Patient patient, MpiSyncState syncState, String exportHash) {
+        if (exportHash == null)
+            return;
+        if (syncState == null)
+            syncState = new MpiSyncState(patient);
+        syncState.setExportHash(exportHash);
+        syncState.setDateExported(new Date());
+        this.dao.saveSyncState(syncState);
+    }
+
     /**
      * GEt audit logger
      */
     @Override
     public AuditLogger getAuditLogger() {
         // TODO Auto-generated method stub
-        if (MpiClientConfiguration.getInstance().getMessageFormat().equals("fhir"))
+        if (this.m_configuration.getMessageFormat().equals("fhir"))
             return this.m_fhirService.getAuditLogger();
         else
             return this.m_hl7Service.getAuditLogger();
     }
 
+    /**
+     * Queue the export of the patient in the outbox. A pending export of the patient already
+     * sends the latest demographics, so the save is merged into it unless it would replace
+     * the observations of a different encounter.
+     */
+    @Override
+    public MpiOutboxEntry queuePatientExport(Patient patient, Encounter encounter) {
+        long delay = Math.max(0, this.m_configuration.getOutboxCoalesceWindow());
+        if (encounter != null)
+            delay += Math.max(0, this.m_configuration.getOutboxEncounterDelay());
+        Date due = new Date(System.currentTimeMillis() + delay);
+
+        for (MpiOutboxEntry pending : this.dao.getPendingOutboxEntries(patient)) {
+            if (encounter == null)
+                return pending;
+            else if (pending.getEncounter() == null || encounter.equals(pending.getEncounter())) {
+                pending.setEncounter(encounter);
+                if (pending.getNextAttempt().before(due))
+                    pending.setNextAttempt(due);
+                return this.dao.saveOutboxEntry(pending);
+            }
+        }
+        return this.dao.saveOutboxEntry(new MpiOutboxEntry(patient, encounter, due));
+    }
+
+    /**
+     * Claim a batch of queued exports
+     */
+    @Override
+    public List<MpiOutboxEntry> claimQueuedExports(int batchSize) {
+        return this.dao.claimOutboxEntries(UUID.randomUUID().toString(), new Date(), batchSize);
+    }
+
+    /**
+     * Get a queued export
+     */
+    @Override
+    public MpiOutboxEntry getQueuedExport(Integer outboxEntryId) {
+        return this.dao.getOutboxEntry(outboxEntryId);
+    }
+
+    /**
+     * Remove a queued export which has been sent
+     */
+    @Override
+    public void completeQueuedExport(MpiOutboxEntry entry) {
+        if (!this.dao.deleteOutboxEntry(entry))
+            log.warn(String.format("Outbox entry %s is no longer claimed by this worker, leaving it in the outbox",
+                    entry.getOutboxEntryId()));
+    }
+
+    /**
+     * Record a failed attempt, backing off exponentially between retries
+     */
+    @Override
+    public void failQueuedExport(MpiOutboxEntry entry, String error) {
+        int attempts = entry.getAttempts() + 1;
+        entry.setAttempts(attempts);
+        entry.setClaimToken(null);
+        if (error != null && error.length() > 1024)
+            error = error.substring(0, 1024);
+        entry.setLastError(error);
+
+        if (attempts >= this.m_configuration.getOutboxMaxAttempts()) {
+            entry.setStatus(MpiOutboxEntry.STATUS_FAILED);
+            log.error(String.format("Giving up on export of patient %s after %s attempts: %s",
+                    entry.getPatient().getUuid(), attempts, error));
+        } else {
+            long delay = Math.min((long) this.m_configuration.getOutboxRetryDelay() << Math.min(attempts - 1, 20),
+                    this.m_configuration.getOutboxMaxRetryDelay());
+            entry.setStatus(MpiOutboxEntry.STATUS_PENDING);
+            entry.setNextAttempt(new Date(System.currentTimeMillis() + delay));
+            log.warn(String.format("Export of patient %s failed (attempt %s), retrying in %s ms: %s",
+                    entry.getPatient().getUuid(), attempts, delay, error));
+        }
+        this.dao.saveOutboxEntry(entry);
+    }
+
+    /**
+     * Return a claimed export to the outbox
+     */
+    @Override
+    public void requeueQueuedExport(MpiOutboxEntry entry, long delay) {
+        entry.setStatus(MpiOutboxEntry.STATUS_PENDING);
+        entry.setClaimToken(null);
+        entry.setNextAttempt(new Date(System.currentTimeMillis() + delay));
+        this.dao.saveOutboxEntry(entry);
+    }
+
+    /**
+     * Release exports whose claim has expired
+     */
+    @Override
+    public int releaseQueuedExports(long claimTimeout) {
+        return this.dao.releaseOutboxEntries(new Date(System.currentTimeMillis() - claimTimeout));
+    }
+
+    /**
+     * Count queued exports
+     */
+    @Override
+    public long getQueuedExportCount(String status) {
+        return this.dao.getOutboxEntryCount(status);
+    }
+
+    /**
+     * Export patients by id
+     */
+    @Override
+    public List<MpiPatientExportResult> exportPatientsById(Collection<Integer> patientIds) {
+        List<MpiPatientExport> patientExports = new ArrayList<MpiPatientExport>(patientIds.size());
+        for (Patient patient : this.dao.getPatients(patientIds))
+            patientExports.add(new MpiPatientExport(patient, null, null, null, null));
+        return this.exportPatients(patientExports);
+    }
+
+    /**
+     * Get the latest backfill state
+     */
+    @Override
+    public MpiBackfillState getBackfillState() {
+        return this.dao.getBackfillState();
+    }
+
+    /**
+     * Create a backfill state up to the current last patient
+     */
+    @Override
+    public MpiBackfillState createBackfillState() {
+        Integer maxPatientId = this.dao.getMaxPatientId();
+        return this.dao.saveBackfillState(new MpiBackfillState(maxPatientId, this.dao.getPatientCount(0, maxPatientId)));
+    }
+
+    /**
+     * Save the backfill state
+     */
+    @Override
+    public MpiBackfillState saveBackfillState(MpiBackfillState backfillState) {
+        return this.dao.saveBackfillState(backfillState);
+    }
+
+    /**
+     * Get the next page of patients for the backfill
+     */
+    @Override
+    public List<Integer> getBackfillPatientIds(MpiBackfillState backfillState, int count) {
+        return this.dao.getPatientIds(backfillState.getLastPatientId(), backfillState.getMaxPatientId(), count);
+    }
+
+    /**
+     * Add the identifiers the MPI has for the patient in the automatic cross reference domains
+     */
+    @Override
+    public void crossReferencePatient(Patient patient) throws MpiClientException {
+        if (this.m_configuration.getAutomaticCrossReferenceDomains() == null)
+            return;
+
+        IdentifierDomainIndex identifierDomains = this.m_configuration.getIdentifierDomainIndex();
+        String[] autoXrefDomains = this.m_configuration.getAutomaticCrossReferenceDomains().split(",");
+        if (autoXrefDomains.length == 0)
+            autoXrefDomains = new String[] { this.m_configuration.getNationalPatientIdRoot() };
+
+        // Only ask the MPI for the domains the patient has no local identifier in
+        Map<String, PatientIdentifierType> unresolved = new LinkedHashMap<String, PatientIdentifierType>();
+        for (String xrefDomain : autoXrefDomains) {
+            log.info(String.format("Will XREF %s with %s", patient.getId(), xrefDomain));
+            PatientIdentifierType pit = identifierDomains.getMappedIdentifierType(xrefDomain);
+            if (pit == null)
+                log.warn(String.format("Identity domain %s has no local equivalent", xrefDomain));
+            else if (patient.getPatientIdentifier(pit) != null)
+                log.warn(String.format("Patient already has local identifier in domain %s", xrefDomain));
+            else
+                unresolved.put(xrefDomain, pit);
+        }
+        if (unresolved.isEmpty())
+            return;
+
+        // One query for all of the domains
+        Map<String, PatientIdentifier> resolved = this.resolvePatientIdentifiers(patient, unresolved.keySet());
+        for (Map.Entry<String, PatientIdentifierType> xref : unresolved.entrySet()) {
+            PatientIdentifier pid = resolved.get(xref.getKey());
+            if (pid == null)
+                log.info(String.format("MPI does not have an ID for patient %s in domain %s", patient.getId(), xref.getKey()));
+            else if (this.getPatientService().getPatientIdentifiers(pid.getIdentifier(),
+                    Collections.singletonList(xref.getValue()), null, null, null).size() != 0)
+                log.warn(String.format("Identifier %s already exists", pid.getIdentifier()));
+            else {
+                pid.setPatient(patient);
+                this.getPatientService().savePatientIdentifier(pid);
+            }
+        }
+    }
+
+    /**
+     * Add the identifiers the MPI has to the patients
+     */
+    @Override
+    public Map<Integer, Integer> reconcilePatientIdentifiers(Collection<Integer> patientIds, Map<String, PatientIdentifierType> domains)
+            throws MpiClientException {
+        Map<Integer, Integer> retVal = new HashMap<Integer, Integer>();
+        // The identifiers are added to the patients, so they are not loaded read-only
+        List<Patient> patients = this.dao.getPatientsForUpdate(patientIds);
+        Map<Integer, Map<String, PatientIdentifier>> resolved = this.resolvePatientIdentifiers(patients, domains.keySet());
+
+        for (Patient patient : patients) {
+            Map<String, PatientIdentifier> pids = resolved.get(patient.getPatientId());
+            if (pids == null)
+                continue;
+
+            // Leave patients which are being updated to the workers updating them
+            if (!PatientLockRegistry.getInstance().tryLock(patient.getUuid())) {
+                log.warn(String.format("Patient %s is busy, not reconciling its identifiers", patient.getUuid()));
+                continue;
+            }
+            try {
+                int added = 0;
+                for (Map.Entry<String, PatientIdentifierType> domain : domains.entrySet()) {
+                    PatientIdentifier pid = pids.get(domain.getKey());
+                    if (pid == null || patient.getPatientIdentifier(domain.getValue()) != null)
+                        continue;
+                    if (this.getPatientService().getPatientIdentifiers(pid.getIdentifier(),
+                            Collections.singletonList(domain.getValue()), null, null, null).size() != 0)
+                        log.warn(String.format("Identifier %s already exists", pid.getIdentifier()));
+                    else {
+                        pid.setPatient(patient);
+                        this.getPatientService().savePatientIdentifier(pid);
+                        added++;
+                    }
+                }
+                retVal.put(patient.getPatientId(), added);
+            } finally {
+                PatientLockRegistry.getInstance().unlock(patient.getUuid());
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Get the latest reconciliation state
+     */
+    @Override
+    public MpiReconcileState getReconcileState() {
+        return this.dao.getReconcileState();
+    }
+
+    /**
+     * Create a reconciliation state up to the current last patient
+     */
+    @Override
+    public MpiReconcileState createReconcileState() {
+        return this.dao.saveReconcileState(new MpiReconcileState(this.dao.getMaxPatientId()));
+    }
+
+    /**
+     * Save the reconciliation state
+     */
+    @Override
+    public MpiReconcileState saveReconcileState(MpiReconcileState reconcileState) {
+        return this.dao.saveReconcileState(reconcileState);
+    }
+
+    /**
+     * Get the next page of patients for the reconciliation
+     */
+    @Override
+    public List<Integer> getReconcilePatientIds(MpiReconcileState reconcileState, Collection<PatientIdentifierType> identifierTypes, int count) {
+        return this.dao.getPatientIdsMissingIdentifiers(reconcileState.getLastPatientId(), reconcileState.getMaxPatientId(),
+                identifierTypes, count);
+    }
+
+    /**
+     * Apply the MPI's copy of a patient to the matching local patient
+     */
+    @Override
+    public boolean applyPatientUpdate(MpiPatient remotePatient) throws MpiClientException {
+        Patient patient = this.matchWithExistingPatient(remotePatient);
+        if (patient == null)
+            return false;
+        return this.applyPatientUpdate(patient, remotePatient);
+    }
+
+    /**
+     * Apply a merge made on the MPI to the local patients
+     */
+    @Override
+    public boolean applyPatientMerge(MpiPatient survivingPatient, MpiPatient mergedPatient) throws MpiClientException {
+        Patient surviving = this.matchWithExistingPatient(survivingPatient),
+                merged = this.matchWithExistingPatient(mergedPatient);
+        if (merged == null || (surviving != null && merged.getPatientId().equals(surviving.getPatientId())))
+            return surviving != null && this.applyPatientUpdate(surviving, survivingPatient);
+        // The surviving patient is not known here, so the merged patient takes its place
+        else if (surviving == null)
+            return this.applyPatientUpdate(merged, survivingPatient);
+
+        long lockTimeout = this.m_configuration.getSyncLockTimeout();
+        if (!PatientLockRegistry.getInstance().tryLock(surviving.getUuid(), lockTimeout, TimeUnit.MILLISECONDS))
+            throw new MpiClientException(String.format("Patient %s is busy, not applying the merge from the MPI", surviving.getUuid()));
+        try {
+            if (!PatientLockRegistry.getInstance().tryLock(merged.getUuid(), lockTimeout, TimeUnit.MILLISECONDS))
+                throw new MpiClientException(String.format("Patient %s is busy, not applying the merge from the MPI", merged.getUuid()));
+            try {
+                log.info(String.format("Merging patient %s into %s as they were merged on the MPI", merged.getUuid(), surviving.getUuid()));
+                // The merge came from the MPI, so it is not sent back
+                Boolean suppressed = PatientSynchronizationAdvice.SUPPRESS.get();
+                PatientSynchronizationAdvice.SUPPRESS.set(true);
+                try {
+                    this.getPatientService().mergePatients(surviving, merged);
+                } finally {
+                    PatientSynchronizationAdvice.SUPPRESS.set(suppressed);
+                }
+            } catch (Exception e) {
+                throw new MpiClientException(String.format("Unable to merge patient %s into %s", merged.getUuid(), surviving.getUuid()), e);
+            } finally {
+                PatientLockRegistry.getInstance().unlock(merged.getUuid());
+            }
+        } finally {
+            PatientLockRegistry.getInstance().unlock(surviving.getUuid());
+        }
+
+        this.applyPatientUpdate(surviving, survivingPatient);
+        return true;
+    }
+
+    /**
+     * Get the patient service the MPI's changes are applied through
+     */
+    PatientService getPatientService() {
+        return Context.getPatientService();
+    }
+
+    /**
+     * Apply the MPI's copy of a patient to the local patient
+     */
+    boolean applyPatientUpdate(Patient patient, MpiPatient remotePatient) throws MpiClientException {
+        if (!PatientLockRegistry.getInstance().tryLock(patient.getUuid(), this.m_configuration.getSyncLockTimeout(), TimeUnit.MILLISECONDS))
+            throw new MpiClientException(String.format("Patient %s is busy, not applying the update from the MPI", patient.getUuid()));
+        try {
+            boolean changed = false;
+
+            // Add new identifiers which do not belong to another patient
+            for (PatientIdentifier id : remotePatient.getIdentifiers()) {
+                if (id.getIdentifierType() == null || this.hasIdentifier(patient, id))
+                    continue;
+                if (this.getPatientService().getPatientIdentifiers(id.getIdentifier(),
+                        Collections.singletonList(id.getIdentifierType()), null, null, null).size() != 0) {
+                    log.warn(String.format("Identifier %s from the MPI already belongs to another patient", id.getIdentifier()));
+                    continue;
+                }
+                if (LocationBehavior.REQUIRED.equals(id.getIdentifierType().getLocationBehavior()))
+                    id.setLocation(Context.getLocationService().getDefaultLocation());
+                patient.addIdentifier(id);
+                changed = true;
+            }
+
+            changed |= this.copyDemographics(patient, remotePatient);
+
+            if (changed) {
+                log.info(String.format("Applying update of patient %s from the MPI", patient.getUuid()));
+                // The update came from the MPI, so it is not exported back
+                Boolean suppressed = PatientSynchronizationAdvice.SUPPRESS.get();
+                PatientSynchronizationAdvice.SUPPRESS.set(true);
+                try {
+                    this.getPatientService().savePatient(patient);
+                } finally {
+                    PatientSynchronizationAdvice.SUPPRESS.set(suppressed);
+                }
+            }
+            return changed;
+        } catch (APIException e) {
+            throw new MpiClientException(String.format("Unable to apply update of patient %s from the MPI", patient.getUuid()), e);
+        } finally {
+            PatientLockRegistry.getInstance().unlock(patient.getUuid());
+        }
+    }
+
+    /**
+     * Copy the MPI's names, addresses, birth, death and gender to the local patient. Names
+     * and addresses which are not in the MPI's copy are voided (not deleted) and only the new
+     * ones are added. Parts the MPI does not send (no names, no addresses, a null birthdate or
+     * gender) leave the local data as it is.
+     *
+     * @return True if the local patient was changed
+     */
+    boolean copyDemographics(Patient patient, MpiPatient remotePatient) {
+        boolean changed = false;
+        User user = Context.getAuthenticatedUser();
+        Date now = new Date();
+
+        // Update names and addresses
+        if (remotePatient.getNames() != null && !remotePatient.getNames().isEmpty()) {
+            Set<String> remoteKeys = this.getNameKeys(remotePatient.getNames()),
+                    localKeys = this.getNameKeys(patient.getNames());
+            for (PersonName name : patient.getNames())
+                if (!Boolean.TRUE.equals(name.getVoided()) && !remoteKeys.contains(this.getNameKey(name))) {
+                    name.setVoided(true);
+                    name.setVoidedBy(user);
+                    name.setDateVoided(now);
+                    name.setVoidReason(UPDATED_FROM_MPI_REASON);
+                    changed = true;
+                }
+            for (PersonName name : remotePatient.getNames())
+                if (!Boolean.TRUE.equals(name.getVoided()) && localKeys.add(this.getNameKey(name))) {
+                    patient.addName(name);
+                    changed = true;
+                }
+        }
+        if (remotePatient.getAddresses() != null && !remotePatient.getAddresses().isEmpty()) {
+            Set<String> remoteKeys = this.getAddressKeys(remotePatient.getAddresses()),
+                    localKeys = this.getAddressKeys(patient.getAddresses());
+            for (PersonAddress addr : patient.getAddresses())
+                if (!Boolean.TRUE.equals(addr.getVoided()) && !remoteKeys.contains(this.getAddressKey(addr))) {
+                    addr.setVoided(true);
+                    addr.setVoidedBy(user);
+                    addr.setDateVoided(now);
+                    addr.setVoidReason(UPDATED_FROM_MPI_REASON);
+                    changed = true;
+                }
+            for (PersonAddress addr : remotePatient.getAddresses())
+                if (!Boolean.TRUE.equals(addr.getVoided()) && localKeys.add(this.getAddressKey(addr))) {
+                    patient.addAddress(addr);
+                    changed = true;
+                }
+        }
+
+        // Update birth, death and gender (dead defaults to false, so only a death is copied)
+        if (remotePatient.getBirthdate() != null && (!this.isSameDate(patient.getBirthdate(), remotePatient.getBirthdate())
+                || (remotePatient.getBirthdateEstimated() != null
+                        && !remotePatient.getBirthdateEstimated().equals(patient.getBirthdateEstimated())))) {
+            patient.setBirthdate(remotePatient.getBirthdate());
+            if (remotePatient.getBirthdateEstimated() != null)
+                patient.setBirthdateEstimated(remotePatient.getBirthdateEstimated());
+            changed = true;
+        }
+        if (Boolean.TRUE.equals(remotePatient.getDead()) && !Boolean.TRUE.equals(patient.getDead())) {
+            patient.setDead(true);
+            changed = true;
+        }
+        if (remotePatient.getDeathDate() != null && !this.isSameDate(patient.getDeathDate(), remotePatient.getDeathDate())) {
+            patient.setDead(true);
+            patient.setDeathDate(remotePatient.getDeathDate());
+            changed = true;
+        }
+        if (remotePatient.getGender() != null && !remotePatient.getGender().isEmpty()
+                && !remotePatient.getGender().equals(patient.getGender())) {
+            patient.setGender(remotePatient.getGender());
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * True if the patient has the identifier (value and type)
+     */
+    private boolean hasIdentifier(Patient patient, PatientIdentifier id) {
+        for (PatientIdentifier eid : patient.getIdentifiers())
+            if (!Boolean.TRUE.equals(eid.getVoided()) && eid.getIdentifier().equals(id.getIdentifier())
+                    && eid.getIdentifierType().getId().equals(id.getIdentifierType().getId()))
+                return true;
+        return false;
+    }
+
+    /**
+     * Get the parts of each name which are compared with the MPI
+     */
+    private Set<String> getNameKeys(Collection<PersonName> names) {
+        Set<String> retVal = new HashSet<String>();
+        for (PersonName name : names)
+            if (!Boolean.TRUE.equals(name.getVoided()))
+                retVal.add(this.getNameKey(name));
+        return retVal;
+    }
+
+    /**
+     * Get the parts of a name which are compared with the MPI
+     */
+    private String getNameKey(PersonName name) {
+        return Arrays.asList(name.getPrefix(), name.getGivenName(), name.getMiddleName(), name.getFamilyNamePrefix(),
+                name.getFamilyName(), name.getFamilyName2(), name.getFamilyNameSuffix(), name.getDegree()).toString();
+    }
+
+    /**
+     * Get the parts of each address which are compared with the MPI
+     */
+    private Set<String> getAddressKeys(Collection<PersonAddress> addresses) {
+        Set<String> retVal = new HashSet<String>();
+        for (PersonAddress addr : addresses)
+            if (!Boolean.TRUE.equals(addr.getVoided()))
+                retVal.add(this.getAddressKey(addr));
+        return retVal;
+    }
+
+    /**
+     * Get the parts of an address which are compared with the MPI
+     */
+    private String getAddressKey(PersonAddress addr) {
+        return Arrays.asList(addr.getAddress1(), addr.getAddress2(), addr.getAddress3(), addr.getAddress4(),
+                addr.getAddress5(), addr.getAddress6(), addr.getCityVillage(), addr.getCountyDistrict(),
+                addr.getStateProvince(), addr.getCountry(), addr.getPostalCode()).toString();
+    }
+
+    /**
+     * True if both dates are null or are the same instant (a Timestamp loaded by Hibernate is
+     * never equal to a Date)
+     */
+    private boolean isSameDate(Date a, Date b) {
+        return a == null ? b == null : b != null && a.getTime() == b.getTime();
+    }
+
+    /**
+     * Get the state of the incremental pull
+     */
+    @Override
+    public MpiPullState getPullState() {
+        MpiPullState retVal = this.dao.getPullState();
+        return retVal == null ? new MpiPullState() : retVal;
+    }
+
+    /**
+     * Save the state of the incremental pull
+     */
+    @Override
+    public MpiPullState savePullState(MpiPullState pullState) {
+        return this.dao.savePullState(pullState);
+    }
+
 }
@@ -0,0 +1,131 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.configuration;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.PatientIdentifierType;
+
+/**
+ * Resolves identity domains (namespace, universal id / OID) to OpenMRS patient identifier
+ * types and back. The index is built from the configured identifier type map and the
+ * identifier types in the database whenever the configuration snapshot is reloaded, so
+ * lookups do not need to scan the map or query the database. The identifier types are
+ * detached from the session which loaded them and shared between threads, so they must
+ * be loaded again before they are changed.
+ */
+public final class IdentifierDomainIndex {
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Identifier types which domains are explicitly mapped to
+	private final Map<String, PatientIdentifierType> m_mappedTypes = new HashMap<String, PatientIdentifierType>();
+
+	// Identifier types by mapped domain, name and UUID (the mapped domain wins)
+	private final Map<String, PatientIdentifierType> m_types = new HashMap<String, PatientIdentifierType>();
+
+	// Domains by identifier type name
+	private final Map<String, String> m_domainsByTypeName;
+
+	/**
+	 * Creates a new index
+	 *
+	 * @param identifierTypeMap The configured map of identifier type name to domain
+	 * @param identifierTypes All identifier types known to OpenMRS (detached from their session)
+	 */
+	IdentifierDomainIndex(Map<String, String> identifierTypeMap, Collection<PatientIdentifierType> identifierTypes) {
+
+		this.m_domainsByTypeName = Collections.unmodifiableMap(new HashMap<String, String>(identifierTypeMap));
+
+		// Retired types are only used if there is no active type with the same name
+		Map<String, PatientIdentifierType> typesByNameOrUuid = new HashMap<String, PatientIdentifierType>();
+		for (PatientIdentifierType pit : identifierTypes) {
+			if (pit.getId() == null)
+				continue;
+			if (pit.getUuid() != null)
+				typesByNameOrUuid.put(pit.getUuid(), pit);
+			if (pit.getName() != null
+					&& (!Boolean.TRUE.equals(pit.getRetired()) || !typesByNameOrUuid.containsKey(pit.getName())))
+				typesByNameOrUuid.put(pit.getName(), pit);
+		}
+
+		for (Map.Entry<String, String> entry : identifierTypeMap.entrySet()) {
+			PatientIdentifierType pit = typesByNameOrUuid.get(entry.getKey());
+			if (pit == null)
+				this.log.warn(String.format("%s is mapped to %s but cannot find %s", entry.getValue(), entry.getKey(),
+						entry.getKey()));
+			else
+				this.m_mappedTypes.put(entry.getValue(), pit);
+		}
+
+		this.m_types.putAll(typesByNameOrUuid);
+		this.m_types.putAll(this.m_mappedTypes);
+	}
+
+	/**
+	 * Gets the identifier type which the domain is explicitly mapped to
+	 *
+	 * @param domain The namespace or universal id of the domain
+	 * @return The mapped identifier type or null if the domain is not mapped
+	 */
+	public PatientIdentifierType getMappedIdentifierType(String domain) {
+		return domain == null ? null : this.m_mappedTypes.get(domain);
+	}
+
+	/**
+	 * Gets the identifier type for the domain, falling back to an identifier type whose name
+	 * or UUID is the domain when it is not explicitly mapped
+	 *
+	 * @param domain The namespace, universal id or UUID of the domain
+	 * @return The identifier type or null if none matches
+	 */
+	public PatientIdentifierType getIdentifierType(String domain) {
+		return domain == null ? null : this.m_types.get(domain);
+	}
+
+	/**
+	 * Gets the identifier type for a domain known by a namespace and a universal id (as in
+	 * an HL7 assigning authority). A domain which is explicitly mapped by either name wins
+	 * over an identifier type whose name or UUID matches.
+	 *
+	 * @param namespace The namespace of the domain
+	 * @param universalId The universal id (OID) of the domain
+	 * @return The identifier type or null if none matches
+	 */
+	public PatientIdentifierType getIdentifierType(String namespace, String universalId) {
+		PatientIdentifierType retVal = this.getMappedIdentifierType(namespace);
+		if (retVal == null)
+			retVal = this.getMappedIdentifierType(universalId);
+		if (retVal == null)
+			retVal = this.getIdentifierType(namespace);
+		if (retVal == null)
+			retVal = this.getIdentifierType(universalId);
+		return retVal;
+	}
+
+	/**
+	 * Gets the domain which the identifier type is mapped to
+	 *
+	 * @param identifierType The identifier type
+	 * @return The domain or null if the identifier type is not mapped
+	 */
+	public String getDomain(PatientIdentifierType identifierType) {
+		return identifierType == null ? null : this.m_domainsByTypeName.get(identifierType.getName());
+	}
+}
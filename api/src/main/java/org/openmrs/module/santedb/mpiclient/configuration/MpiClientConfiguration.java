@@ -16,13 +16,23 @@
  */
 package org.openmrs.module.santedb.mpiclient.configuration;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.formatters.FormatterUtil;
 import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.context.Context;
 
 /**
@@ -35,12 +45,10 @@ public class MpiClientConfiguration {
 	// Lock object
 	private static final Object s_lockObject = new Object();
 	private static final String PROP_NAME_BIRTHPLACE_CONCEPT = "mpi-client.reg.birthPlaceConcept";
+	public static final String PROP_NAME_EXPORTED_OBS_CONCEPTS = "mpi-client.reg.exportedObsConcepts";
 	// Singleton
 	private static MpiClientConfiguration s_instance;
 
-	// Local identifier map
-	private HashMap<String, String> m_localIdentifierMap;
-
 
 	private final Log log = LogFactory.getLog(this.getClass());
 
@@ -50,6 +58,7 @@ public class MpiClientConfiguration {
 	public static final String PROP_NAME_PDQ_EP_PORT = "mpi-client.endpoint.pdq.port";
 	public static final String PROP_NAME_PIX_EP = "mpi-client.endpoint.pix.addr";
 	public static final String PROP_NAME_PIX_EP_PORT = "mpi-client.endpoint.pix.port";
+	public static final String PROP_NAME_CR_EP = "mpi-client.endpoint.cr.addr";
 
 	public static final String PROP_NAME_ENT_ID = "mpi-client.pid.enterprise";
 	public static final String PROP_NAME_LOCAL_ID = "mpi-client.pid.local";
@@ -85,45 +94,153 @@ public class MpiClientConfiguration {
 	public static final String PROP_NAME_PREFER_CORR_AA = "mpi-client.pid.correlation";
 	public static final String PROP_NAME_AUTO_PIX = "mpi-client.pid.autoXref";
 	public static final String PROP_SEARCH_DATE_FUZZ = "mpi-client.search.dateFuzz";
+	public static final String PROP_SEARCH_INCLUDE_GOLDEN = "mpi-client.search.includeGoldenRecords";
 
 	public static final String PROP_HTTP_PROXY = "mpi-client.http.proxyAddress";
+	public static final String PROP_HTTP_MAX_CONNECTIONS = "mpi-client.http.maxConnections";
+	public static final String PROP_HTTP_MAX_CONNECTIONS_PER_ROUTE = "mpi-client.http.maxConnectionsPerRoute";
+	public static final String PROP_HTTP_CONNECT_TIMEOUT = "mpi-client.http.connectTimeout";
+	public static final String PROP_HTTP_READ_TIMEOUT = "mpi-client.http.readTimeout";
+	public static final String PROP_HTTP_KEEP_ALIVE = "mpi-client.http.keepAlive";
+	public static final String PROP_FHIR_BATCH_SIZE = "mpi-client.fhir.batchSize";
+	public static final String PROP_FHIR_BUNDLE_TYPE = "mpi-client.fhir.bundleType";
+	public static final String PROP_HL7_MAX_CONNECTIONS = "mpi-client.hl7.maxConnections";
+	public static final String PROP_HL7_CONNECT_TIMEOUT = "mpi-client.hl7.connectTimeout";
+	public static final String PROP_HL7_IDLE_TIMEOUT = "mpi-client.hl7.idleTimeout";
+	public static final String PROP_HL7_RESPONSE_TIMEOUT = "mpi-client.hl7.responseTimeout";
+	public static final String PROP_HL7_MAX_IN_FLIGHT = "mpi-client.hl7.maxInFlight";
+	public static final String PROP_HL7_LISTENER_PORT = "mpi-client.hl7.listener.port";
+	public static final String PROP_HL7_LISTENER_POOL_SIZE = "mpi-client.hl7.listener.poolSize";
+	public static final String PROP_HL7_LISTENER_QUEUE_SIZE = "mpi-client.hl7.listener.queueSize";
+	public static final String PROP_HL7_LISTENER_BIND_ADDRESS = "mpi-client.hl7.listener.bindAddress";
+	public static final String PROP_HL7_LISTENER_ALLOWED_HOSTS = "mpi-client.hl7.listener.allowedHosts";
+	public static final String PROP_SYNC_POOL_SIZE = "mpi-client.sync.poolSize";
+	public static final String PROP_SYNC_QUEUE_SIZE = "mpi-client.sync.queueSize";
+	public static final String PROP_SYNC_LOCK_TIMEOUT = "mpi-client.sync.lockTimeout";
+	public static final String PROP_SYNC_SKIP_UNCHANGED = "mpi-client.sync.skipUnchanged";
+	public static final String PROP_OUTBOX_BATCH_SIZE = "mpi-client.outbox.batchSize";
+	public static final String PROP_OUTBOX_POLL_INTERVAL = "mpi-client.outbox.pollInterval";
+	public static final String PROP_OUTBOX_MAX_ATTEMPTS = "mpi-client.outbox.maxAttempts";
+	public static final String PROP_OUTBOX_RETRY_DELAY = "mpi-client.outbox.retryDelay";
+	public static final String PROP_OUTBOX_MAX_RETRY_DELAY = "mpi-client.outbox.maxRetryDelay";
+	public static final String PROP_OUTBOX_COALESCE_WINDOW = "mpi-client.outbox.coalesceWindow";
+	public static final String PROP_OUTBOX_ENCOUNTER_DELAY = "mpi-client.outbox.encounterDelay";
+	public static final String PROP_BACKFILL_THREADS = "mpi-client.backfill.threads";
+	public static final String PROP_BACKFILL_CHUNK_SIZE = "mpi-client.backfill.chunkSize";
+	public static final String PROP_RECONCILE_BATCH_SIZE = "mpi-client.reconcile.batchSize";
+	public static final String PROP_RECONCILE_RATE_LIMIT = "mpi-client.reconcile.rateLimit";
+	public static final String PROP_PULL_BATCH_SIZE = "mpi-client.pull.batchSize";
+	public static final String PROP_PULL_TIME_BUDGET = "mpi-client.pull.timeBudget";
+	public static final String PROP_PULL_MAX_ATTEMPTS = "mpi-client.pull.maxAttempts";
+	public static final String PROP_SUBSCRIPTION_ENDPOINT = "mpi-client.subscription.endpoint";
+	public static final String PROP_SUBSCRIPTION_SECRET = "mpi-client.subscription.secret";
+	public static final String PROP_MATCH_LOCAL_INDEX = "mpi-client.match.localIndex";
+	public static final String PROP_MATCH_THRESHOLD = "mpi-client.match.threshold";
 	public static final String PROP_AUTH_TYPE = "mpi-client.security.authType";
 
-	private Map<String, Object> m_cachedProperties = new HashMap<String, Object>();
+	public static final String PROP_DEBUG_NO_CACHE = "mpi-client.debug.disableConfigurationCache";
+
+	// Prefix of all properties which are loaded into the snapshot
+	private static final String PROP_PREFIX = "mpi-client.";
+
+	// The current snapshot of properties
+	private volatile Snapshot m_snapshot = null;
 
+	// Incremented whenever a global property is saved
+	private final AtomicLong m_generation = new AtomicLong();
+
+	// Supplies the service the global properties are read from
+	private final Supplier<AdministrationService> m_administrationService;
+
+	/**
+	 * An immutable copy of the module's global properties. Values are converted to the type
+	 * requested by the getter the first time they are read.
+	 */
+	private static final class Snapshot {
+
+		private final long m_generation;
+		private final Map<String, String> m_values;
+		private final boolean m_bypass;
+		private final Map<String, Object> m_converted = new ConcurrentHashMap<String, Object>();
+
+		Snapshot(long generation, Map<String, String> values) {
+			this.m_generation = generation;
+			this.m_values = Collections.unmodifiableMap(values);
+			this.m_bypass = Boolean.parseBoolean(values.get(PROP_DEBUG_NO_CACHE));
+		}
+	}
+
+	/**
+	 * Get the current snapshot of properties, loading it if the properties have changed
+	 */
+	private Snapshot getSnapshot() {
+		Snapshot retVal = this.m_snapshot;
+		if (retVal == null || retVal.m_generation != this.m_generation.get()) {
+			synchronized (s_lockObject) {
+				retVal = this.m_snapshot;
+				long generation = this.m_generation.get();
+				if (retVal == null || retVal.m_generation != generation) {
+					Map<String, String> values = new HashMap<String, String>();
+					for (GlobalProperty gp : this.m_administrationService.get().getGlobalPropertiesByPrefix(PROP_PREFIX))
+						values.put(gp.getProperty(), gp.getPropertyValue());
+					retVal = new Snapshot(generation, values);
+					this.m_snapshot = retVal;
+					this.log.info(String.format("Loaded %s MPI properties", values.size()));
+				}
+			}
+		}
+		return retVal;
+	}
 
 	/**
 	 * Read a global property
 	 */
 	private <T> T getOrCreateGlobalProperty(String propertyName, T defaultValue)
 	{
-		// For debugging purposes caching of properties disabled
-		//Object retVal = this.m_cachedProperties.get(propertyName);
+		Snapshot snapshot = this.getSnapshot();
 
-		//if(retVal != null)
-		//	return (T)retVal;
-		//else
-		//{
+		String propertyValue;
+		if (snapshot.m_bypass) {
+			propertyValue = this.m_administrationService.get().getGlobalProperty(propertyName);
+			this.log.info(String.format("Loaded MPI property %s: %s", propertyName, propertyValue));
+		}
+		else {
+			Object retVal = snapshot.m_converted.get(propertyName);
+			if (retVal != null)
+				return (T)retVal;
+			propertyValue = snapshot.m_values.get(propertyName);
+		}
 
-		String propertyValue = Context.getAdministrationService().getGlobalProperty(propertyName);
-		this.log.info(String.format("Loaded MPI property: %s", propertyValue));
+		T value;
 		if(propertyValue != null && !propertyValue.isEmpty())
-		{
-			T value = (T)FormatterUtil.fromWireFormat(propertyValue, defaultValue.getClass());
-			synchronized (s_lockObject) {
-				this.m_cachedProperties.put(propertyName, value);
-			}
-			return value;
-		}
+			value = (T)FormatterUtil.fromWireFormat(propertyValue, defaultValue.getClass());
 		else
 		{
-			Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(propertyName, defaultValue.toString()));
-			synchronized (s_lockObject) {
-				this.m_cachedProperties.put(propertyName, defaultValue);
-			}
-			return defaultValue;
+			// Only write the default if it changes the stored value, since each save invalidates the snapshot
+			if(propertyValue == null || !defaultValue.toString().isEmpty())
+				this.m_administrationService.get().saveGlobalProperty(new GlobalProperty(propertyName, defaultValue.toString()));
+			value = defaultValue;
+		}
+
+		if (!snapshot.m_bypass)
+			snapshot.m_converted.put(propertyName, value);
+		return value;
+	}
+
+	/**
+	 * Get a value which is derived from one or more properties, computing it once per snapshot
+	 */
+	private <T> T getDerivedProperty(String key, Supplier<T> factory)
+	{
+		Snapshot snapshot = this.getSnapshot();
+		if (snapshot.m_bypass)
+			return factory.get();
+		Object retVal = snapshot.m_converted.get(key);
+		if (retVal == null) {
+			retVal = factory.get();
+			snapshot.m_converted.put(key, retVal);
 		}
-		//}
+		return (T)retVal;
 	}
 
 
@@ -132,7 +249,14 @@ public class MpiClientConfiguration {
 	 * HIE configuration utility
 	 */
 	MpiClientConfiguration() {
+		this(() -> Context.getAdministrationService());
+	}
 
+	/**
+	 * Configuration read from the specified service
+	 */
+	MpiClientConfiguration(Supplier<AdministrationService> administrationService) {
+		this.m_administrationService = administrationService;
 	}
 
 	/**
@@ -153,7 +277,7 @@ public class MpiClientConfiguration {
 	 * Clears cached properties
 	 */
 	public void clearCache() {
-		this.m_cachedProperties.clear();
+		this.m_generation.incrementAndGet();
 	}
 
 	/**
@@ -164,6 +288,325 @@ public class MpiClientConfiguration {
 		return this.getOrCreateGlobalProperty(PROP_HTTP_PROXY, "");
 	}
 
+	/**
+	 * Gets the maximum number of pooled HTTP connections
+	 * @return
+	 */
+	public Integer getHttpMaxConnections() {
+		return this.getOrCreateGlobalProperty(PROP_HTTP_MAX_CONNECTIONS, 20);
+	}
+
+	/**
+	 * Gets the maximum number of pooled HTTP connections to a single host
+	 * @return
+	 */
+	public Integer getHttpMaxConnectionsPerRoute() {
+		return this.getOrCreateGlobalProperty(PROP_HTTP_MAX_CONNECTIONS_PER_ROUTE, 10);
+	}
+
+	/**
+	 * Gets the HTTP connect timeout (in milliseconds)
+	 * @return
+	 */
+	public Integer getHttpConnectTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_HTTP_CONNECT_TIMEOUT, 10000);
+	}
+
+	/**
+	 * Gets the HTTP read timeout (in milliseconds)
+	 * @return
+	 */
+	public Integer getHttpReadTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_HTTP_READ_TIMEOUT, 30000);
+	}
+
+	/**
+	 * Gets how long an idle HTTP connection is kept alive (in milliseconds)
+	 * @return
+	 */
+	public Integer getHttpKeepAlive() {
+		return this.getOrCreateGlobalProperty(PROP_HTTP_KEEP_ALIVE, 60000);
+	}
+
+	/**
+	 * Gets the number of patients sent in each bundle of a batch export
+	 * @return
+	 */
+	public Integer getFhirBatchSize() {
+		return this.getOrCreateGlobalProperty(PROP_FHIR_BATCH_SIZE, 50);
+	}
+
+	/**
+	 * Gets the type of bundle used for batch exports (batch or transaction)
+	 * @return
+	 */
+	public String getFhirBundleType() {
+		return this.getOrCreateGlobalProperty(PROP_FHIR_BUNDLE_TYPE, "batch");
+	}
+
+	/**
+	 * Gets the maximum number of MLLP connections to a single HL7 endpoint
+	 * @return
+	 */
+	public Integer getHl7MaxConnections() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_MAX_CONNECTIONS, 4);
+	}
+
+	/**
+	 * Gets the MLLP connect timeout (in milliseconds)
+	 * @return
+	 */
+	public Integer getHl7ConnectTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_CONNECT_TIMEOUT, 10000);
+	}
+
+	/**
+	 * Gets how long an idle MLLP connection is kept open (in milliseconds)
+	 * @return
+	 */
+	public Integer getHl7IdleTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_IDLE_TIMEOUT, 60000);
+	}
+
+	/**
+	 * Gets the time to wait for a response to an HL7 message (in milliseconds)
+	 * @return
+	 */
+	public Integer getHl7ResponseTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_RESPONSE_TIMEOUT, 20000);
+	}
+
+	/**
+	 * Gets the maximum number of pipelined HL7 messages awaiting a response on one connection
+	 * @return
+	 */
+	public Integer getHl7MaxInFlight() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_MAX_IN_FLIGHT, 32);
+	}
+
+	/**
+	 * Gets the port on which update and merge notifications from the MPI are received (0 to not listen)
+	 * @return
+	 */
+	public Integer getHl7ListenerPort() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_LISTENER_PORT, 0);
+	}
+
+	/**
+	 * Gets the number of threads which apply the notifications received from the MPI
+	 * @return
+	 */
+	public Integer getHl7ListenerPoolSize() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_LISTENER_POOL_SIZE, 2);
+	}
+
+	/**
+	 * Gets the number of received notifications which may wait to be applied
+	 * @return
+	 */
+	public Integer getHl7ListenerQueueSize() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_LISTENER_QUEUE_SIZE, 1000);
+	}
+
+	/**
+	 * Gets the address on which notifications from the MPI are received
+	 * @return
+	 */
+	public String getHl7ListenerBindAddress() {
+		return this.getOrCreateGlobalProperty(PROP_HL7_LISTENER_BIND_ADDRESS, "127.0.0.1");
+	}
+
+	/**
+	 * Gets the hosts which may send notifications (empty if any host may)
+	 * @return
+	 */
+	public List<String> getHl7ListenerAllowedHosts() {
+		return this.getDerivedProperty("#" + PROP_HL7_LISTENER_ALLOWED_HOSTS, () -> {
+			String propertyData = this.getOrCreateGlobalProperty(PROP_HL7_LISTENER_ALLOWED_HOSTS, "127.0.0.1");
+			List<String> retVal = new ArrayList<String>();
+			for(String host : propertyData.split(","))
+				if(!host.trim().isEmpty())
+					retVal.add(host.trim());
+			return Collections.unmodifiableList(retVal);
+		});
+	}
+
+	/**
+	 * Gets the number of threads which synchronize patients in the background
+	 * @return
+	 */
+	public Integer getSyncPoolSize() {
+		return this.getOrCreateGlobalProperty(PROP_SYNC_POOL_SIZE, 4);
+	}
+
+	/**
+	 * Gets the maximum number of synchronization tasks waiting for a thread
+	 * @return
+	 */
+	public Integer getSyncQueueSize() {
+		return this.getOrCreateGlobalProperty(PROP_SYNC_QUEUE_SIZE, 1000);
+	}
+
+	/**
+	 * Gets how long to wait for other work on the same patient to finish before re-queuing (in milliseconds)
+	 * @return
+	 */
+	public Integer getSyncLockTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_SYNC_LOCK_TIMEOUT, 2000);
+	}
+
+	/**
+	 * Gets whether exports of patients whose exported data has not changed since the last export are skipped
+	 * @return
+	 */
+	public Boolean getSyncSkipUnchanged() {
+		return this.getOrCreateGlobalProperty(PROP_SYNC_SKIP_UNCHANGED, true);
+	}
+
+	/**
+	 * Gets the number of queued exports which are claimed from the outbox at one time
+	 * @return
+	 */
+	public Integer getOutboxBatchSize() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_BATCH_SIZE, 50);
+	}
+
+	/**
+	 * Gets how often the outbox is checked for exports which are due (in milliseconds)
+	 * @return
+	 */
+	public Integer getOutboxPollInterval() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_POLL_INTERVAL, 5000);
+	}
+
+	/**
+	 * Gets the number of times an export is attempted before it is marked as failed
+	 * @return
+	 */
+	public Integer getOutboxMaxAttempts() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_MAX_ATTEMPTS, 10);
+	}
+
+	/**
+	 * Gets the delay before the first retry of a failed export (in milliseconds), doubled on each further retry
+	 * @return
+	 */
+	public Integer getOutboxRetryDelay() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_RETRY_DELAY, 30000);
+	}
+
+	/**
+	 * Gets the longest delay between retries of a failed export (in milliseconds)
+	 * @return
+	 */
+	public Integer getOutboxMaxRetryDelay() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_MAX_RETRY_DELAY, 3600000);
+	}
+
+	/**
+	 * Gets how long a queued export waits for further saves of the same patient before it is sent (in milliseconds)
+	 * @return
+	 */
+	public Integer getOutboxCoalesceWindow() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_COALESCE_WINDOW, 2000);
+	}
+
+	/**
+	 * Gets the additional time an export queued by an encounter save waits before it is sent (in milliseconds)
+	 * @return
+	 */
+	public Integer getOutboxEncounterDelay() {
+		return this.getOrCreateGlobalProperty(PROP_OUTBOX_ENCOUNTER_DELAY, 0);
+	}
+
+	/**
+	 * Gets the number of threads which export patients in parallel during a backfill
+	 * @return
+	 */
+	public Integer getBackfillThreads() {
+		return this.getOrCreateGlobalProperty(PROP_BACKFILL_THREADS, 4);
+	}
+
+	/**
+	 * Gets the number of patients each backfill thread exports in one batch
+	 * @return
+	 */
+	public Integer getBackfillChunkSize() {
+		return this.getOrCreateGlobalProperty(PROP_BACKFILL_CHUNK_SIZE, 50);
+	}
+
+	/**
+	 * Gets the number of patients whose identifiers are looked up on the MPI at one time during a reconciliation
+	 * @return
+	 */
+	public Integer getReconcileBatchSize() {
+		return this.getOrCreateGlobalProperty(PROP_RECONCILE_BATCH_SIZE, 50);
+	}
+
+	/**
+	 * Gets the maximum number of patients per second which are looked up on the MPI during a reconciliation (0 for no limit)
+	 * @return
+	 */
+	public Integer getReconcileRateLimit() {
+		return this.getOrCreateGlobalProperty(PROP_RECONCILE_RATE_LIMIT, 20);
+	}
+
+	/**
+	 * Gets the number of changed patients which are read from the MPI and applied at one time by the incremental pull
+	 * @return
+	 */
+	public Integer getPullBatchSize() {
+		return this.getOrCreateGlobalProperty(PROP_PULL_BATCH_SIZE, 50);
+	}
+
+	/**
+	 * Gets the longest time (in milliseconds) one run of the incremental pull may take
+	 * @return
+	 */
+	public Integer getPullTimeBudget() {
+		return this.getOrCreateGlobalProperty(PROP_PULL_TIME_BUDGET, 240000);
+	}
+
+	/**
+	 * Gets the number of runs of the incremental pull in which a change may fail before it is skipped
+	 * @return
+	 */
+	public Integer getPullMaxAttempts() {
+		return this.getOrCreateGlobalProperty(PROP_PULL_MAX_ATTEMPTS, 5);
+	}
+
+	/**
+	 * Gets the address of this instance's subscription notification endpoint, which is registered with the MPI
+	 * @return
+	 */
+	public String getSubscriptionEndpoint() {
+		return this.getOrCreateGlobalProperty(PROP_SUBSCRIPTION_ENDPOINT, "");
+	}
+
+	/**
+	 * Gets the secret the MPI sends with subscription notifications
+	 * @return
+	 */
+	public String getSubscriptionSecret() {
+		return this.getOrCreateGlobalProperty(PROP_SUBSCRIPTION_SECRET, "");
+	}
+
+	/**
+	 * Gets whether an in-memory index of local patients is kept to find probable local duplicates
+	 * @return
+	 */
+	public Boolean getMatchLocalIndex() {
+		return this.getOrCreateGlobalProperty(PROP_MATCH_LOCAL_INDEX, false);
+	}
+
+	/**
+	 * Gets the lowest score (in percent) at which a local patient is a probable duplicate
+	 * @return
+	 */
+	public Integer getMatchThreshold() {
+		return this.getOrCreateGlobalProperty(PROP_MATCH_THRESHOLD, 85);
+	}
+
 	/**
 	 * Gets the message format
 	 * @return
@@ -237,25 +680,25 @@ public class MpiClientConfiguration {
 	}
 
 	/**
-	 * Get the enterprise patient identifier root
+	 * Get the map of local identifier type names to MPI identity domains (read only, as it is shared)
 	 * @return
 	 */
-	public HashMap<String, String> getLocalPatientIdentifierTypeMap() {
+	public Map<String, String> getLocalPatientIdentifierTypeMap() {
 
-		if(this.m_localIdentifierMap == null) {
+		return this.getDerivedProperty("#" + PROP_NAME_ID_EXPORT_TYPE, () -> {
 			String exportType = this.getOrCreateGlobalProperty(PROP_NAME_ID_EXPORT_TYPE, "");
-			this.m_localIdentifierMap = new HashMap<>();
+			HashMap<String, String> retVal = new HashMap<>();
 			if(exportType != null && !exportType.isEmpty())
 				for(String st : exportType.split(","))
 				{
 					String[] dat = st.split("=");
 					this.log.info(String.format("MPI Identifier Mapping: %s = %s", dat[0], dat[1]));
-					this.m_localIdentifierMap.put(dat[0], dat[1]);
+					retVal.put(dat[0], dat[1]);
 				}
 			else
 				this.log.warn("No MPI identifier maps found");
-		}
-		return this.m_localIdentifierMap;
+			return Collections.unmodifiableMap(retVal);
+		});
 	}
 
 	/**
@@ -289,6 +732,14 @@ public class MpiClientConfiguration {
 		return this.getOrCreateGlobalProperty(PROP_SEARCH_DATE_FUZZ, 0);
 	}
 
+	/**
+	 * Gets whether golden records should be requested in the same FHIR search as the source records
+	 * @return
+	 */
+	public Boolean getSearchIncludeGoldenRecords() {
+		return this.getOrCreateGlobalProperty(PROP_SEARCH_INCLUDE_GOLDEN, true);
+	}
+
 	/**
 	 * Get the PIX Endpoint
 	 * @return
@@ -305,6 +756,14 @@ public class MpiClientConfiguration {
 		return this.getOrCreateGlobalProperty(PROP_NAME_PIX_EP_PORT, 2100);
 	}
 
+	/**
+	 * Get the Client Registry endpoint
+	 * @return
+	 */
+	public String getClientRegistryEndpoint() {
+		return this.getOrCreateGlobalProperty(PROP_NAME_CR_EP, "");
+	}
+
 	/**
 	 * Get the XDS Registry endpoint
 	 * @return
@@ -374,19 +833,36 @@ public class MpiClientConfiguration {
 	public String getRemoteFacility() { return this.getOrCreateGlobalProperty(PROP_NAME_RCV_FAC, "NATION_ID"); }
 
 	/**
-	 * Gets the name of the patient attribute which is the mother's name (to go in the PID segment)
+	 * Gets the index of identity domains to patient identifier types, which is rebuilt
+	 * whenever the configuration or the identifier types change
+	 * @return
 	 */
-	public HashMap<String, String> getExtensionMap() {
-		String propertyData = this.getOrCreateGlobalProperty(PROP_NAME_EXTMAP, "");
-		HashMap<String, String> retVal = new HashMap<String, String>();
-		if(!propertyData.isEmpty()) {
-			for(String kv : propertyData.split(","))
-			{
-				String[] key = kv.split(":");
-				retVal.put(key[0], key[1]);
+	public IdentifierDomainIndex getIdentifierDomainIndex() {
+		return this.getDerivedProperty("#identifierDomainIndex", () -> {
+			// The index outlives the loading session and is shared between threads
+			List<PatientIdentifierType> identifierTypes = Context.getPatientService().getAllPatientIdentifierTypes(true);
+			for(PatientIdentifierType pit : identifierTypes)
+				Context.evictFromSession(pit);
+			return new IdentifierDomainIndex(this.getLocalPatientIdentifierTypeMap(), identifierTypes);
+		});
+	}
+
+	/**
+	 * Gets the map of patient attribute names to PID extensions (read only, as it is shared)
+	 */
+	public Map<String, String> getExtensionMap() {
+		return this.getDerivedProperty("#" + PROP_NAME_EXTMAP, () -> {
+			String propertyData = this.getOrCreateGlobalProperty(PROP_NAME_EXTMAP, "");
+			HashMap<String, String> retVal = new HashMap<String, String>();
+			if(!propertyData.isEmpty()) {
+				for(String kv : propertyData.split(","))
+				{
+					String[] key = kv.split(":");
+					retVal.put(key[0], key[1]);
+				}
 			}
-		}
-		return retVal;
+			return Collections.unmodifiableMap(retVal);
+		});
 	}
 	/**
 	 * Gets the fathers name patient attribute to be sent in a NK1 segment
@@ -451,6 +927,28 @@ public class MpiClientConfiguration {
 		return this.getOrCreateGlobalProperty(PROP_NAME_BIRTHPLACE_CONCEPT, "165194AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
 	}
 
+	/**
+	 * Gets the ids of the concepts whose (top level) obs are sent to the MPI with the patient
+	 */
+	public Set<Integer> getExportedObsConcepts() {
+		return this.getDerivedProperty("#" + PROP_NAME_EXPORTED_OBS_CONCEPTS, () -> {
+			String propertyData = this.getOrCreateGlobalProperty(PROP_NAME_EXPORTED_OBS_CONCEPTS, "165194,165210,165212,165213");
+			Set<Integer> retVal = new HashSet<Integer>();
+			for(String conceptId : propertyData.split(","))
+			{
+				if(conceptId.trim().isEmpty())
+					continue;
+				try {
+					retVal.add(Integer.parseInt(conceptId.trim()));
+				}
+				catch(NumberFormatException e) {
+					this.log.warn(String.format("Ignoring exported obs concept %s which is not a concept id", conceptId));
+				}
+			}
+			return Collections.unmodifiableSet(retVal);
+		});
+	}
+
 	public String getPatientTelephoneAttribute() {
 		return this.getOrCreateGlobalProperty(PROP_NAME_PATIENT_TELEPHONE_ATTRIBUTE_NAME, "Telephone Number");
 	}
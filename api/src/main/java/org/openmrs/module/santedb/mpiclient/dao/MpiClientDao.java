@@ -16,8 +16,21 @@
  */
 package org.openmrs.module.santedb.mpiclient.dao;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import org.openmrs.Encounter;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.openmrs.module.santedb.mpiclient.model.MpiPullState;
+import org.openmrs.module.santedb.mpiclient.model.MpiReconcileState;
+import org.openmrs.module.santedb.mpiclient.model.MpiSyncState;
 
 /**
  * A DAO that is used by the HIE to assist in the maintenance of OpenMRS
@@ -29,5 +42,138 @@ public interface MpiClientDao {
 	 * Get a patient by identifier, throws a multiple exception when there are multiple / conflicting patients with the specified identifier
 	 */
 	public Patient getPatientByIdentifier(String idNumber, PatientIdentifierType idType);
-	
+
+	/**
+	 * Get the patients of several identifiers with one query. Identifiers which belong to no patient (or have no
+	 * type) are absent from the result; when an identifier belongs to several patients the patient whose identifier
+	 * is not voided is returned
+	 */
+	public Map<Pair<String, PatientIdentifierType>, Patient> getPatientsByIdentifiers(Collection<Pair<String, PatientIdentifierType>> identifiers);
+
+	/**
+	 * Get the fields used by the local matcher of the next patients after the specified patient. Each row is the
+	 * patient id, family name, given name, birthdate, gender and city / village of one name and address of the
+	 * patient, preferred names and addresses first
+	 */
+	public List<Object[]> getPatientMatchRows(Integer afterPatientId, int count);
+
+	/**
+	 * Save an outbox entry
+	 */
+	public MpiOutboxEntry saveOutboxEntry(MpiOutboxEntry entry);
+
+	/**
+	 * Get an outbox entry by its identifier
+	 */
+	public MpiOutboxEntry getOutboxEntry(Integer outboxEntryId);
+
+	/**
+	 * Delete an outbox entry if it is still claimed with the entry's claim token, returning
+	 * false if the claim was released (and possibly taken by another worker) in the meantime
+	 */
+	public boolean deleteOutboxEntry(MpiOutboxEntry entry);
+
+	/**
+	 * Get the pending entries for the patient
+	 */
+	public List<MpiOutboxEntry> getPendingOutboxEntries(Patient patient);
+
+	/**
+	 * Claim up to batchSize pending entries which are due at the specified time, marking them
+	 * as in progress with the claim token so they are not claimed by another worker. Entries
+	 * for patients which already have an entry in progress are not claimed.
+	 */
+	public List<MpiOutboxEntry> claimOutboxEntries(String claimToken, Date now, int batchSize);
+
+	/**
+	 * Return entries which were claimed before the specified time (by a worker which has since
+	 * stopped) to pending, returning the number of entries released
+	 */
+	public int releaseOutboxEntries(Date claimedBefore);
+
+	/**
+	 * Count the outbox entries with the specified status
+	 */
+	public long getOutboxEntryCount(String status);
+
+	/**
+	 * Get the state of the last export of the patient (null if the patient has not been exported)
+	 */
+	public MpiSyncState getSyncState(Patient patient);
+
+	/**
+	 * Get the state of the last export of each of the patients which have been exported
+	 */
+	public List<MpiSyncState> getSyncStates(Collection<Patient> patients);
+
+	/**
+	 * Save the state of the last export of a patient
+	 */
+	public MpiSyncState saveSyncState(MpiSyncState syncState);
+
+	/**
+	 * Get the ids (in order) of up to count patients which are not voided and whose id is
+	 * greater than afterPatientId and no greater than maxPatientId
+	 */
+	public List<Integer> getPatientIds(Integer afterPatientId, Integer maxPatientId, int count);
+
+	/**
+	 * Count the patients which are not voided and whose id is greater than afterPatientId and
+	 * no greater than maxPatientId
+	 */
+	public long getPatientCount(Integer afterPatientId, Integer maxPatientId);
+
+	/**
+	 * Get the highest patient id (0 if there are no patients)
+	 */
+	public Integer getMaxPatientId();
+
+	/**
+	 * Get the patients with the specified ids, read-only
+	 */
+	public List<Patient> getPatients(Collection<Integer> patientIds);
+
+	/**
+	 * Get the patients with the specified ids so they can be changed
+	 */
+	public List<Patient> getPatientsForUpdate(Collection<Integer> patientIds);
+
+	/**
+	 * Get the state of the latest backfill (null if no backfill has been run)
+	 */
+	public MpiBackfillState getBackfillState();
+
+	/**
+	 * Save the state of a backfill
+	 */
+	public MpiBackfillState saveBackfillState(MpiBackfillState backfillState);
+
+	/**
+	 * Get the ids (in order) of up to count patients which are not voided, whose id is greater
+	 * than afterPatientId and no greater than maxPatientId, and which are missing an identifier
+	 * of at least one of the identifier types
+	 */
+	public List<Integer> getPatientIdsMissingIdentifiers(Integer afterPatientId, Integer maxPatientId,
+			Collection<PatientIdentifierType> identifierTypes, int count);
+
+	/**
+	 * Get the state of the latest reconciliation (null if none has been run)
+	 */
+	public MpiReconcileState getReconcileState();
+
+	/**
+	 * Save the state of a reconciliation
+	 */
+	public MpiReconcileState saveReconcileState(MpiReconcileState reconcileState);
+
+	/**
+	 * Get the state of the incremental pull (null if no pull has been run)
+	 */
+	public MpiPullState getPullState();
+
+	/**
+	 * Save the state of the incremental pull
+	 */
+	public MpiPullState savePullState(MpiPullState pullState);
+
 }
@@ -16,13 +16,31 @@
  */
 package org.openmrs.module.santedb.mpiclient.dao.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+
 import org.hibernate.Criteria;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.santedb.mpiclient.dao.MpiClientDao;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.openmrs.module.santedb.mpiclient.model.MpiPullState;
+import org.openmrs.module.santedb.mpiclient.model.MpiReconcileState;
+import org.openmrs.module.santedb.mpiclient.model.MpiSyncState;
 
 /**
  * Implementation of the HIE client DAO for hibernate
@@ -66,4 +84,309 @@ public class HibernateMpiClientDao implements
 		return pid.getPatient();
 	}
 
+	/**
+	 * Get the patients of several identifiers with one query
+	 */
+	public Map<Pair<String, PatientIdentifierType>, Patient> getPatientsByIdentifiers(Collection<Pair<String, PatientIdentifierType>> identifiers) {
+		Map<Pair<String, PatientIdentifierType>, Patient> retVal = new HashMap<Pair<String, PatientIdentifierType>, Patient>();
+		Set<String> idNumbers = new HashSet<String>();
+		Set<PatientIdentifierType> idTypes = new HashSet<PatientIdentifierType>();
+		for(Pair<String, PatientIdentifierType> identifier : identifiers)
+			if(identifier.getLeft() != null && identifier.getRight() != null) {
+				idNumbers.add(identifier.getLeft());
+				idTypes.add(identifier.getRight());
+			}
+		if(idNumbers.isEmpty()) return retVal;
+
+		// The query may also return identifiers whose number was requested with another type, these are filtered out below
+		List<PatientIdentifier> pids = this.sessionFactory.getCurrentSession().createQuery("select pi from PatientIdentifier pi join fetch pi.patient "
+				+ "where pi.identifier in (:identifiers) and pi.identifierType in (:types) order by pi.voided")
+				.setParameterList("identifiers", idNumbers)
+				.setParameterList("types", idTypes)
+				.list();
+		Map<String, List<PatientIdentifier>> pidsByNumber = new HashMap<String, List<PatientIdentifier>>();
+		for(PatientIdentifier pid : pids) {
+			if(!pidsByNumber.containsKey(pid.getIdentifier()))
+				pidsByNumber.put(pid.getIdentifier(), new ArrayList<PatientIdentifier>());
+			pidsByNumber.get(pid.getIdentifier()).add(pid);
+		}
+
+		for(Pair<String, PatientIdentifierType> identifier : identifiers) {
+			if(identifier.getLeft() == null || identifier.getRight() == null || !pidsByNumber.containsKey(identifier.getLeft()))
+				continue;
+			for(PatientIdentifier pid : pidsByNumber.get(identifier.getLeft()))
+				if(pid.getIdentifierType().getId().equals(identifier.getRight().getId())) {
+					retVal.put(identifier, pid.getPatient());
+					break;
+				}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Get the fields used by the local matcher of the next patients
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object[]> getPatientMatchRows(Integer afterPatientId, int count) {
+		List<Integer> patientIds = this.sessionFactory.getCurrentSession().createQuery("select p.patientId from Patient p where p.patientId > :after and p.voided = false order by p.patientId")
+				.setParameter("after", afterPatientId)
+				.setMaxResults(count)
+				.list();
+		if(patientIds.isEmpty()) return Collections.emptyList();
+		return this.sessionFactory.getCurrentSession().createQuery("select p.patientId, pn.familyName, pn.givenName, p.birthdate, p.gender, pa.cityVillage "
+				+ "from Patient p join p.names pn left join p.addresses pa with pa.voided = false "
+				+ "where p.patientId in (:ids) and pn.voided = false order by p.patientId, pn.preferred desc, pa.preferred desc")
+				.setParameterList("ids", patientIds)
+				.list();
+	}
+
+	/**
+	 * Save an outbox entry
+	 */
+	public MpiOutboxEntry saveOutboxEntry(MpiOutboxEntry entry) {
+		this.sessionFactory.getCurrentSession().saveOrUpdate(entry);
+		return entry;
+	}
+
+	/**
+	 * Get an outbox entry
+	 */
+	public MpiOutboxEntry getOutboxEntry(Integer outboxEntryId) {
+		return (MpiOutboxEntry)this.sessionFactory.getCurrentSession().get(MpiOutboxEntry.class, outboxEntryId);
+	}
+
+	/**
+	 * Delete an outbox entry which is still claimed by the caller. The delete is a single
+	 * conditional statement so an entry which was released and claimed again is kept.
+	 */
+	public boolean deleteOutboxEntry(MpiOutboxEntry entry) {
+		if(entry.getClaimToken() == null) return false;
+		Session session = this.sessionFactory.getCurrentSession();
+		int deleted = session.createQuery("delete from MpiOutboxEntry where outboxEntryId = :id and claimToken = :token and status = :inProgress")
+				.setParameter("id", entry.getOutboxEntryId())
+				.setParameter("token", entry.getClaimToken())
+				.setParameter("inProgress", MpiOutboxEntry.STATUS_IN_PROGRESS)
+				.executeUpdate();
+		if(session.contains(entry))
+			session.evict(entry);
+		return deleted != 0;
+	}
+
+	/**
+	 * Get pending entries for the patient
+	 */
+	@SuppressWarnings("unchecked")
+	public List<MpiOutboxEntry> getPendingOutboxEntries(Patient patient) {
+		return this.sessionFactory.getCurrentSession().createQuery("from MpiOutboxEntry e where e.patient = :patient and e.status = :pending order by e.outboxEntryId")
+				.setParameter("patient", patient)
+				.setParameter("pending", MpiOutboxEntry.STATUS_PENDING)
+				.list();
+	}
+
+	/**
+	 * Claim a batch of due entries. The claim is a single conditional update so entries which
+	 * another worker claimed first are not returned.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<MpiOutboxEntry> claimOutboxEntries(String claimToken, Date now, int batchSize) {
+		Session session = this.sessionFactory.getCurrentSession();
+		List<Integer> due = session.createQuery("select e.outboxEntryId from MpiOutboxEntry e where e.status = :pending and e.nextAttempt <= :now and e.patient not in (select i.patient from MpiOutboxEntry i where i.status = :inProgress) order by e.nextAttempt, e.outboxEntryId")
+				.setParameter("pending", MpiOutboxEntry.STATUS_PENDING)
+				.setParameter("inProgress", MpiOutboxEntry.STATUS_IN_PROGRESS)
+				.setParameter("now", now)
+				.setMaxResults(batchSize)
+				.list();
+		if(due.isEmpty()) return Collections.emptyList();
+
+		int claimed = session.createQuery("update MpiOutboxEntry set status = :inProgress, claimToken = :token, dateClaimed = :now where outboxEntryId in (:ids) and status = :pending")
+				.setParameter("inProgress", MpiOutboxEntry.STATUS_IN_PROGRESS)
+				.setParameter("token", claimToken)
+				.setParameter("now", now)
+				.setParameterList("ids", due)
+				.setParameter("pending", MpiOutboxEntry.STATUS_PENDING)
+				.executeUpdate();
+		if(claimed == 0) return Collections.emptyList();
+
+		return session.createQuery("from MpiOutboxEntry e where e.claimToken = :token and e.status = :inProgress order by e.outboxEntryId")
+				.setParameter("token", claimToken)
+				.setParameter("inProgress", MpiOutboxEntry.STATUS_IN_PROGRESS)
+				.list();
+	}
+
+	/**
+	 * Release entries whose claim has expired
+	 */
+	public int releaseOutboxEntries(Date claimedBefore) {
+		return this.sessionFactory.getCurrentSession().createQuery("update MpiOutboxEntry set status = :pending, claimToken = null where status = :inProgress and dateClaimed < :before")
+				.setParameter("pending", MpiOutboxEntry.STATUS_PENDING)
+				.setParameter("inProgress", MpiOutboxEntry.STATUS_IN_PROGRESS)
+				.setParameter("before", claimedBefore)
+				.executeUpdate();
+	}
+
+	/**
+	 * Count outbox entries by status
+	 */
+	public long getOutboxEntryCount(String status) {
+		return (Long)this.sessionFactory.getCurrentSession().createQuery("select count(e) from MpiOutboxEntry e where e.status = :status")
+				.setParameter("status", status)
+				.uniqueResult();
+	}
+
+	/**
+	 * Get the sync state of the patient
+	 */
+	public MpiSyncState getSyncState(Patient patient) {
+		return (MpiSyncState)this.sessionFactory.getCurrentSession().createQuery("from MpiSyncState s where s.patient = :patient")
+				.setParameter("patient", patient)
+				.uniqueResult();
+	}
+
+	/**
+	 * Get the sync states of the patients in one query
+	 */
+	@SuppressWarnings("unchecked")
+	public List<MpiSyncState> getSyncStates(Collection<Patient> patients) {
+		if(patients.isEmpty()) return Collections.emptyList();
+		return this.sessionFactory.getCurrentSession().createQuery("from MpiSyncState s where s.patient in (:patients)")
+				.setParameterList("patients", patients)
+				.list();
+	}
+
+	/**
+	 * Save a sync state
+	 */
+	public MpiSyncState saveSyncState(MpiSyncState syncState) {
+		this.sessionFactory.getCurrentSession().saveOrUpdate(syncState);
+		return syncState;
+	}
+
+	/**
+	 * Get the ids of the next patients after the specified patient id
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getPatientIds(Integer afterPatientId, Integer maxPatientId, int count) {
+		return this.sessionFactory.getCurrentSession().createQuery("select p.patientId from Patient p where p.patientId > :after and p.patientId <= :max and p.voided = false order by p.patientId")
+				.setParameter("after", afterPatientId)
+				.setParameter("max", maxPatientId)
+				.setMaxResults(count)
+				.list();
+	}
+
+	/**
+	 * Count the patients between the specified patient ids
+	 */
+	public long getPatientCount(Integer afterPatientId, Integer maxPatientId) {
+		return (Long)this.sessionFactory.getCurrentSession().createQuery("select count(p) from Patient p where p.patientId > :after and p.patientId <= :max and p.voided = false")
+				.setParameter("after", afterPatientId)
+				.setParameter("max", maxPatientId)
+				.uniqueResult();
+	}
+
+	/**
+	 * Get the highest patient id
+	 */
+	public Integer getMaxPatientId() {
+		Integer retVal = (Integer)this.sessionFactory.getCurrentSession().createQuery("select max(p.patientId) from Patient p")
+				.uniqueResult();
+		return retVal == null ? 0 : retVal;
+	}
+
+	/**
+	 * Get patients by id. The patients are loaded read-only so the session does not keep a
+	 * snapshot of each one to check for changes.
+	 */
+	public List<Patient> getPatients(Collection<Integer> patientIds) {
+		return this.getPatients(patientIds, true);
+	}
+
+	/**
+	 * Get patients by id so that changes to them are written when the session is flushed
+	 */
+	public List<Patient> getPatientsForUpdate(Collection<Integer> patientIds) {
+		return this.getPatients(patientIds, false);
+	}
+
+	/**
+	 * Get patients by id
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Patient> getPatients(Collection<Integer> patientIds, boolean readOnly) {
+		if(patientIds.isEmpty()) return Collections.emptyList();
+		return this.sessionFactory.getCurrentSession().createQuery("from Patient p where p.patientId in (:ids) order by p.patientId")
+				.setParameterList("ids", patientIds)
+				.setReadOnly(readOnly)
+				.list();
+	}
+
+	/**
+	 * Get the latest backfill state
+	 */
+	public MpiBackfillState getBackfillState() {
+		return (MpiBackfillState)this.sessionFactory.getCurrentSession().createQuery("from MpiBackfillState s order by s.backfillStateId desc")
+				.setMaxResults(1)
+				.uniqueResult();
+	}
+
+	/**
+	 * Save the backfill state
+	 */
+	public MpiBackfillState saveBackfillState(MpiBackfillState backfillState) {
+		this.sessionFactory.getCurrentSession().saveOrUpdate(backfillState);
+		return backfillState;
+	}
+
+	/**
+	 * Get the ids of the next patients after the specified patient id which do not have an
+	 * identifier of every one of the identifier types
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getPatientIdsMissingIdentifiers(Integer afterPatientId, Integer maxPatientId,
+			Collection<PatientIdentifierType> identifierTypes, int count) {
+		if(identifierTypes.isEmpty()) return Collections.emptyList();
+		return this.sessionFactory.getCurrentSession().createQuery("select p.patientId from Patient p where p.patientId > :after and p.patientId <= :max and p.voided = false "
+				+ "and (select count(distinct pi.identifierType) from PatientIdentifier pi where pi.patient = p and pi.voided = false and pi.identifierType in (:types)) < :typeCount "
+				+ "order by p.patientId")
+				.setParameter("after", afterPatientId)
+				.setParameter("max", maxPatientId)
+				.setParameterList("types", identifierTypes)
+				.setParameter("typeCount", (long)new HashSet<PatientIdentifierType>(identifierTypes).size())
+				.setMaxResults(count)
+				.list();
+	}
+
+	/**
+	 * Get the latest reconciliation state
+	 */
+	public MpiReconcileState getReconcileState() {
+		return (MpiReconcileState)this.sessionFactory.getCurrentSession().createQuery("from MpiReconcileState s order by s.reconcileStateId desc")
+				.setMaxResults(1)
+				.uniqueResult();
+	}
+
+	/**
+	 * Save the reconciliation state
+	 */
+	public MpiReconcileState saveReconcileState(MpiReconcileState reconcileState) {
+		this.sessionFactory.getCurrentSession().saveOrUpdate(reconcileState);
+		return reconcileState;
+	}
+
+	/**
+	 * Get the incremental pull state
+	 */
+	public MpiPullState getPullState() {
+		return (MpiPullState)this.sessionFactory.getCurrentSession().createQuery("from MpiPullState s order by s.pullStateId desc")
+				.setMaxResults(1)
+				.uniqueResult();
+	}
+
+	/**
+	 * Save the incremental pull state
+	 */
+	public MpiPullState savePullState(MpiPullState pullState) {
+		this.sessionFactory.getCurrentSession().saveOrUpdate(pullState);
+		return pullState;
+	}
+
 }
@@ -0,0 +1,132 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.model;
+
+import java.util.Date;
+
+/**
+ * The checkpoint of a bulk export (backfill) of existing patients to the MPI. Patients are
+ * exported in order of their id, so the checkpoint is the id of the last patient whose
+ * page was completely sent. A backfill which is interrupted (or the server restarted)
+ * resumes after the checkpoint; at most one page is sent again.
+ */
+public class MpiBackfillState {
+
+	// Exporting patients
+	public static final String STATUS_RUNNING = "RUNNING";
+
+	// Stopped by an administrator before all patients were exported
+	public static final String STATUS_STOPPED = "STOPPED";
+
+	// All patients up to the last patient id have been exported
+	public static final String STATUS_COMPLETED = "COMPLETED";
+
+	private Integer backfillStateId;
+	private String status = STATUS_RUNNING;
+	private Integer lastPatientId = 0;
+	private Integer maxPatientId = 0;
+	private Long totalPatients = 0L;
+	private Long exported = 0L;
+	private Long failed = 0L;
+	private Date dateStarted;
+	private Date dateCheckpointed;
+
+	public MpiBackfillState() {
+	}
+
+	/**
+	 * Creates the state of a new backfill
+	 *
+	 * @param maxPatientId The id of the last patient which is exported
+	 * @param totalPatients The number of patients which are exported
+	 */
+	public MpiBackfillState(Integer maxPatientId, Long totalPatients) {
+		this.maxPatientId = maxPatientId;
+		this.totalPatients = totalPatients;
+		this.dateStarted = new Date();
+		this.dateCheckpointed = this.dateStarted;
+	}
+
+	public Integer getBackfillStateId() {
+		return backfillStateId;
+	}
+
+	public void setBackfillStateId(Integer backfillStateId) {
+		this.backfillStateId = backfillStateId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Integer getLastPatientId() {
+		return lastPatientId;
+	}
+
+	public void setLastPatientId(Integer lastPatientId) {
+		this.lastPatientId = lastPatientId;
+	}
+
+	public Integer getMaxPatientId() {
+		return maxPatientId;
+	}
+
+	public void setMaxPatientId(Integer maxPatientId) {
+		this.maxPatientId = maxPatientId;
+	}
+
+	public Long getTotalPatients() {
+		return totalPatients;
+	}
+
+	public void setTotalPatients(Long totalPatients) {
+		this.totalPatients = totalPatients;
+	}
+
+	public Long getExported() {
+		return exported;
+	}
+
+	public void setExported(Long exported) {
+		this.exported = exported;
+	}
+
+	public Long getFailed() {
+		return failed;
+	}
+
+	public void setFailed(Long failed) {
+		this.failed = failed;
+	}
+
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+
+	public void setDateStarted(Date dateStarted) {
+		this.dateStarted = dateStarted;
+	}
+
+	public Date getDateCheckpointed() {
+		return dateCheckpointed;
+	}
+
+	public void setDateCheckpointed(Date dateCheckpointed) {
+		this.dateCheckpointed = dateCheckpointed;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you 
+ * may not use this file except in compliance with the License. You may 
+ * obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.model;
+
+import java.util.Date;
+
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+
+/**
+ * A patient export which is waiting to be sent to the MPI. Entries are written in the same
+ * transaction as the patient (or encounter) they refer to, so an export is not lost if the
+ * server stops before it is sent. Entries are removed once the export succeeds. Each export
+ * sends the state of the patient when it is sent, so further saves of a patient with a
+ * pending entry are merged into that entry.
+ */
+public class MpiOutboxEntry {
+
+	// Waiting to be claimed
+	public static final String STATUS_PENDING = "PENDING";
+
+	// Claimed by a worker
+	public static final String STATUS_IN_PROGRESS = "IN_PROGRESS";
+
+	// Gave up after the maximum number of attempts
+	public static final String STATUS_FAILED = "FAILED";
+
+	private Integer outboxEntryId;
+	private Patient patient;
+	private Encounter encounter;
+	private String status = STATUS_PENDING;
+	private Integer attempts = 0;
+	private Date nextAttempt;
+	private String claimToken;
+	private Date dateClaimed;
+	private String lastError;
+	private Date dateCreated;
+
+	public MpiOutboxEntry() {
+	}
+
+	/**
+	 * Creates a pending entry
+	 *
+	 * @param patient The patient to export
+	 * @param encounter The encounter whose observations are exported with the patient (optional)
+	 * @param nextAttempt When the export is due
+	 */
+	public MpiOutboxEntry(Patient patient, Encounter encounter, Date nextAttempt) {
+		this.patient = patient;
+		this.encounter = encounter;
+		this.dateCreated = new Date();
+		this.nextAttempt = nextAttempt;
+	}
+
+	public Integer getOutboxEntryId() {
+		return outboxEntryId;
+	}
+
+	public void setOutboxEntryId(Integer outboxEntryId) {
+		this.outboxEntryId = outboxEntryId;
+	}
+
+	public Patient getPatient() {
+		return patient;
+	}
+
+	public void setPatient(Patient patient) {
+		this.patient = patient;
+	}
+
+	public Encounter getEncounter() {
+		return encounter;
+	}
+
+	public void setEncounter(Encounter encounter) {
+		this.encounter = encounter;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Integer getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(Integer attempts) {
+		this.attempts = attempts;
+	}
+
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+
+	public void setNextAttempt(Date nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+
+	public String getClaimToken() {
+		return claimToken;
+	}
+
+	public void setClaimToken(String claimToken) {
+		this.claimToken = claimToken;
+	}
+
+	public Date getDateClaimed() {
+		return dateClaimed;
+	}
+
+	public void setDateClaimed(Date dateClaimed) {
+		this.dateClaimed = dateClaimed;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+}
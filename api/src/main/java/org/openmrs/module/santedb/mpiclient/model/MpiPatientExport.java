@@ -20,6 +20,8 @@ public class MpiPatientExport implements Serializable {
     private PersonAttribute mothersMaidenName;
     private PersonAttribute patientTelephone;
     private Set<Obs> patientObs;
+    // True if the MPI already has the patient, so it is sent as an update
+    private boolean update;
 
     public MpiPatientExport(Patient patient, List<Relationship> relationships, Location birthPlace, PersonAttribute mothersMaidenName, Set<Obs> patientObs) {
         this.patient = patient;
@@ -88,6 +90,10 @@ public class MpiPatientExport implements Serializable {
         this.mothersMaidenName = mothersMaidenName;
     }
 
+    public void setPatientTelephone(PersonAttribute patientTelephone) {
+        this.patientTelephone = patientTelephone;
+    }
+
     public Set<Obs> getPatientObs() {
         if (patientObs != null && patientObs.size() > 0) {
             return patientObs;
@@ -100,4 +106,39 @@ public class MpiPatientExport implements Serializable {
     public void setPatientObs(Set<Obs> patientObs) {
         this.patientObs = patientObs;
     }
+
+    /**
+     * Gets the obs of the patient which are sent to the MPI
+     *
+     * @param exportedConcepts The ids of the exported concepts (mpi-client.reg.exportedObsConcepts)
+     */
+    public Set<Obs> getExportedObs(Set<Integer> exportedConcepts) {
+        return getExportedObs(this.getPatientObs(), exportedConcepts);
+    }
+
+    /**
+     * Filters the obs to those which are sent to the MPI, the obs of the exported concepts
+     *
+     * @param obs The obs to filter (optional)
+     * @param exportedConcepts The ids of the exported concepts (mpi-client.reg.exportedObsConcepts)
+     */
+    public static Set<Obs> getExportedObs(Collection<Obs> obs, Set<Integer> exportedConcepts) {
+        Set<Obs> retVal = new LinkedHashSet<>();
+        if (obs != null) {
+            for (Obs ob : obs) {
+                if (ob.getConcept() != null && exportedConcepts.contains(ob.getConcept().getConceptId())) {
+                    retVal.add(ob);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    public boolean isUpdate() {
+        return update;
+    }
+
+    public void setUpdate(boolean update) {
+        this.update = update;
+    }
 }
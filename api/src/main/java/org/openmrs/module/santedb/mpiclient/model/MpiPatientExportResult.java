@@ -0,0 +1,51 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you 
+ * may not use this file except in compliance with the License. You may 
+ * obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations under 
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.model;
+
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+
+/**
+ * The outcome of exporting one patient as part of a batch export
+ */
+public class MpiPatientExportResult {
+
+	private final MpiPatientExport patientExport;
+	private final MpiClientException error;
+
+	/**
+	 * Creates a new result
+	 *
+	 * @param patientExport The export this is the outcome of
+	 * @param error The reason the export failed, or null if it succeeded
+	 */
+	public MpiPatientExportResult(MpiPatientExport patientExport, MpiClientException error) {
+		this.patientExport = patientExport;
+		this.error = error;
+	}
+
+	public MpiPatientExport getPatientExport() {
+		return patientExport;
+	}
+
+	public MpiClientException getError() {
+		return error;
+	}
+
+	/**
+	 * True if the MPI accepted the patient
+	 */
+	public boolean isSuccessful() {
+		return error == null;
+	}
+}
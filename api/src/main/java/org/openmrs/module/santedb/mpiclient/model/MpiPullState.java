@@ -0,0 +1,119 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.model;
+
+import java.util.Date;
+
+/**
+ * The state of the incremental pull of changed patients from the MPI. The watermark is the
+ * MPI's last updated time of the newest change which has been applied, so the next pull only
+ * asks for patients changed after it. A change which cannot be applied is tried again by the
+ * following runs, and skipped once it has failed the maximum number of times.
+ */
+public class MpiPullState {
+
+	private Integer pullStateId;
+	// Epoch milliseconds, as a datetime column drops the milliseconds on some databases
+	private Long watermark;
+	private Long checked = 0L;
+	private Long applied = 0L;
+	private Long skipped = 0L;
+	private String failedChange;
+	private Integer failedAttempts = 0;
+	private Date dateLastRun;
+
+	public Integer getPullStateId() {
+		return pullStateId;
+	}
+
+	public void setPullStateId(Integer pullStateId) {
+		this.pullStateId = pullStateId;
+	}
+
+	/**
+	 * Gets the last updated time of the newest change which has been applied (null if no
+	 * pull has completed a batch yet)
+	 */
+	public Date getWatermark() {
+		return watermark == null ? null : new Date(watermark);
+	}
+
+	public void setWatermark(Date watermark) {
+		this.watermark = watermark == null ? null : watermark.getTime();
+	}
+
+	/**
+	 * Gets the number of changed patients which have been read from the MPI
+	 */
+	public Long getChecked() {
+		return checked;
+	}
+
+	public void setChecked(Long checked) {
+		this.checked = checked;
+	}
+
+	/**
+	 * Gets the number of local patients which have been updated
+	 */
+	public Long getApplied() {
+		return applied;
+	}
+
+	public void setApplied(Long applied) {
+		this.applied = applied;
+	}
+
+	/**
+	 * Gets the number of changes which were skipped after failing the maximum number of times
+	 */
+	public Long getSkipped() {
+		return skipped;
+	}
+
+	public void setSkipped(Long skipped) {
+		this.skipped = skipped;
+	}
+
+	/**
+	 * Gets the uuid of the MPI patient whose change the pull stopped at (null if the last run
+	 * did not stop at a failed change)
+	 */
+	public String getFailedChange() {
+		return failedChange;
+	}
+
+	public void setFailedChange(String failedChange) {
+		this.failedChange = failedChange;
+	}
+
+	/**
+	 * Gets the number of runs in a row in which the failed change could not be applied
+	 */
+	public Integer getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	public void setFailedAttempts(Integer failedAttempts) {
+		this.failedAttempts = failedAttempts;
+	}
+
+	public Date getDateLastRun() {
+		return dateLastRun;
+	}
+
+	public void setDateLastRun(Date dateLastRun) {
+		this.dateLastRun = dateLastRun;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.model;
+
+import java.util.Date;
+
+/**
+ * The checkpoint of a bulk cross reference (reconciliation) of existing patients with the
+ * MPI, which adds the identifiers the MPI has for patients who are missing identifiers in
+ * the automatic cross reference domains. Patients are reconciled in order of their id, so
+ * the checkpoint is the id of the last patient whose batch was completely processed.
+ */
+public class MpiReconcileState {
+
+	// Reconciling patients
+	public static final String STATUS_RUNNING = "RUNNING";
+
+	// Stopped by an administrator before all patients were reconciled
+	public static final String STATUS_STOPPED = "STOPPED";
+
+	// All patients up to the last patient id have been reconciled
+	public static final String STATUS_COMPLETED = "COMPLETED";
+
+	private Integer reconcileStateId;
+	private String status = STATUS_RUNNING;
+	private Integer lastPatientId = 0;
+	private Integer maxPatientId = 0;
+	private Long checked = 0L;
+	private Long resolved = 0L;
+	private Long failed = 0L;
+	private Date dateStarted;
+	private Date dateCheckpointed;
+
+	public MpiReconcileState() {
+	}
+
+	/**
+	 * Creates the state of a new reconciliation
+	 *
+	 * @param maxPatientId The id of the last patient which is reconciled
+	 */
+	public MpiReconcileState(Integer maxPatientId) {
+		this.maxPatientId = maxPatientId;
+		this.dateStarted = new Date();
+		this.dateCheckpointed = this.dateStarted;
+	}
+
+	public Integer getReconcileStateId() {
+		return reconcileStateId;
+	}
+
+	public void setReconcileStateId(Integer reconcileStateId) {
+		this.reconcileStateId = reconcileStateId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Integer getLastPatientId() {
+		return lastPatientId;
+	}
+
+	public void setLastPatientId(Integer lastPatientId) {
+		this.lastPatientId = lastPatientId;
+	}
+
+	public Integer getMaxPatientId() {
+		return maxPatientId;
+	}
+
+	public void setMaxPatientId(Integer maxPatientId) {
+		this.maxPatientId = maxPatientId;
+	}
+
+	/**
+	 * Gets the number of patients which were looked up on the MPI
+	 */
+	public Long getChecked() {
+		return checked;
+	}
+
+	public void setChecked(Long checked) {
+		this.checked = checked;
+	}
+
+	/**
+	 * Gets the number of identifiers which were added to patients
+	 */
+	public Long getResolved() {
+		return resolved;
+	}
+
+	public void setResolved(Long resolved) {
+		this.resolved = resolved;
+	}
+
+	/**
+	 * Gets the number of patients whose lookup failed
+	 */
+	public Long getFailed() {
+		return failed;
+	}
+
+	public void setFailed(Long failed) {
+		this.failed = failed;
+	}
+
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+
+	public void setDateStarted(Date dateStarted) {
+		this.dateStarted = dateStarted;
+	}
+
+	public Date getDateCheckpointed() {
+		return dateCheckpointed;
+	}
+
+	public void setDateCheckpointed(Date dateCheckpointed) {
+		this.dateCheckpointed = dateCheckpointed;
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.model;
+
+import java.util.Date;
+
+import org.openmrs.Patient;
+
+/**
+ * The last successful export of a patient to the MPI. The hash of the exported demographics
+ * is kept so that an export of a patient whose demographics have not changed since (and
+ * which carries no obs) can be skipped.
+ */
+public class MpiSyncState {
+
+	private Integer syncStateId;
+	private Patient patient;
+	private String exportHash;
+	private Date dateExported;
+
+	public MpiSyncState() {
+	}
+
+	/**
+	 * Creates the sync state of a patient
+	 *
+	 * @param patient The patient which was exported
+	 */
+	public MpiSyncState(Patient patient) {
+		this.patient = patient;
+	}
+
+	public Integer getSyncStateId() {
+		return syncStateId;
+	}
+
+	public void setSyncStateId(Integer syncStateId) {
+		this.syncStateId = syncStateId;
+	}
+
+	public Patient getPatient() {
+		return patient;
+	}
+
+	public void setPatient(Patient patient) {
+		this.patient = patient;
+	}
+
+	public String getExportHash() {
+		return exportHash;
+	}
+
+	public void setExportHash(String exportHash) {
+		this.exportHash = exportHash;
+	}
+
+	public Date getDateExported() {
+		return dateExported;
+	}
+
+	public void setDateExported(Date dateExported) {
+		this.dateExported = dateExported;
+	}
+}
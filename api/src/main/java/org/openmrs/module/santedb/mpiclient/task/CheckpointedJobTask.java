@@ -0,0 +1,68 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.santedb.mpiclient.util.CheckpointedJob;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduler task which runs a checkpointed job. The task starts (or resumes from its
+ * checkpoint) the job and waits for it to finish; if the job is already running, for
+ * example from an administration page, the task waits for that run.
+ */
+public abstract class CheckpointedJobTask extends AbstractTask {
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Gets the job which the task runs
+	 */
+	protected abstract CheckpointedJob getJob();
+
+	/**
+	 * Run the job
+	 */
+	@Override
+	public void execute() {
+		if (this.isExecuting)
+			return;
+
+		this.startExecuting();
+		try {
+			CheckpointedJob job = this.getJob();
+			if (!job.start(false))
+				this.log.info(String.format("%s is already running, waiting for it to finish", job.getName()));
+			job.awaitCompletion();
+			this.log.info(String.format("%s task finished: %s", job.getName(), job.getStatistics()));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			this.stopExecuting();
+		}
+	}
+
+	/**
+	 * Stop the job when the task is stopped (including when the server stops). The job is
+	 * not marked as stopped, so it resumes from its checkpoint when the module next starts.
+	 */
+	@Override
+	public void shutdown() {
+		this.getJob().shutdown();
+		super.shutdown();
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.task;
+
+import org.openmrs.module.santedb.mpiclient.util.CheckpointedJob;
+import org.openmrs.module.santedb.mpiclient.util.MpiBackfillJob;
+
+/**
+ * Scheduler task which exports the existing patients to the MPI. The task starts (or
+ * resumes from its checkpoint) the backfill and waits for it to finish; if the backfill is
+ * already running, for example from the MPI backfill page, the task waits for that one.
+ */
+public class MpiBackfillTask extends CheckpointedJobTask {
+
+	/**
+	 * Gets the backfill job
+	 */
+	@Override
+	protected CheckpointedJob getJob() {
+		return MpiBackfillJob.getInstance();
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.task;
+
+import org.openmrs.module.santedb.mpiclient.util.CheckpointedJob;
+import org.openmrs.module.santedb.mpiclient.util.MpiPullSynchronizer;
+
+/**
+ * Scheduler task which pulls the patients changed on the MPI since the last run and applies
+ * the changes to the matching local patients. Each run is limited by the pull time budget,
+ * so the task should be scheduled more often than the budget.
+ */
+public class MpiPullSyncTask extends CheckpointedJobTask {
+
+	/**
+	 * Gets the pull synchronizer
+	 */
+	@Override
+	protected CheckpointedJob getJob() {
+		return MpiPullSynchronizer.getInstance();
+	}
+}
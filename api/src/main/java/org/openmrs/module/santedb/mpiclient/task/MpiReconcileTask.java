@@ -0,0 +1,33 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.task;
+
+import org.openmrs.module.santedb.mpiclient.util.CheckpointedJob;
+import org.openmrs.module.santedb.mpiclient.util.MpiReconcileJob;
+
+/**
+ * Scheduler task which cross references the existing patients with the MPI. The task starts (or
+ * resumes from its checkpoint) the reconciliation and waits for it to finish; if it is
+ * already running the task waits for the running one.
+ */
+public class MpiReconcileTask extends CheckpointedJobTask {
+
+	/**
+	 * Gets the reconciliation job
+	 */
+	@Override
+	protected CheckpointedJob getJob() {
+		return MpiReconcileJob.getInstance();
+	}
+}
@@ -247,7 +247,7 @@ public class AuditUtil {
 				
 				String domain = null;
 				if(res.getPatientIdentifier().getIdentifierType() != null)
-					domain = this.m_configuration.getLocalPatientIdentifierTypeMap().get(res.getPatientIdentifier().getIdentifierType().getName());
+					domain = this.m_configuration.getIdentifierDomainIndex().getDomain(res.getPatientIdentifier().getIdentifierType());
 				else 
 					domain = this.m_configuration.getEnterprisePatientIdRoot();
 				
@@ -316,7 +316,7 @@ public class AuditUtil {
 					
 					String domain = null;
 					if(res.getPatientIdentifier().getIdentifierType() != null)
-						domain = this.m_configuration.getLocalPatientIdentifierTypeMap().get(res.getPatientIdentifier().getIdentifierType().getName());
+						domain = this.m_configuration.getIdentifierDomainIndex().getDomain(res.getPatientIdentifier().getIdentifierType());
 					else 
 						domain = this.m_configuration.getEnterprisePatientIdRoot();
 					
@@ -0,0 +1,317 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+/**
+ * A background job which works through patients in batches and saves a checkpoint after
+ * each batch, such as the backfill, the reconciliation and the pull. The job runs on its own
+ * thread as the daemon user, so the changes it saves have a creator. It can be stopped after
+ * the current batch, and it continues from its checkpoint when it is next started. Batches
+ * which fail are retried with the outbox retry delays.
+ */
+public abstract class CheckpointedJob {
+
+	// How long to wait for the current batch to finish when the module stops
+	private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	protected final MpiClientConfiguration m_configuration;
+
+	// The name of the job in log messages
+	private final String m_name;
+
+	// The name of the thread which runs the job
+	private final String m_threadName;
+
+	// Privileges needed by the job outside of its run
+	private final String[] m_privileges;
+
+	// Guards starting the thread
+	private final Object m_lockObject = new Object();
+
+	// Runs the job
+	private volatile Thread m_thread = null;
+
+	// Set to stop the job after the current batch
+	private volatile boolean m_stopRequested = false;
+
+	// True if the job should be marked as stopped (not resumed when the module starts)
+	private volatile boolean m_stopByUser = false;
+
+	/**
+	 * Creates a new job
+	 *
+	 * @param configuration The module configuration
+	 * @param name The name of the job in log messages
+	 * @param threadName The name of the thread which runs the job
+	 * @param privileges The proxy privileges of the sessions opened with {@link #openSession()}
+	 */
+	protected CheckpointedJob(MpiClientConfiguration configuration, String name, String threadName, String... privileges) {
+		this.m_configuration = configuration;
+		this.m_name = name;
+		this.m_threadName = threadName;
+		this.m_privileges = privileges;
+	}
+
+	/**
+	 * Gets the name of the job
+	 */
+	public String getName() {
+		return this.m_name;
+	}
+
+	/**
+	 * Gets the progress of the job
+	 */
+	public abstract String getStatistics();
+
+	/**
+	 * Start the job in the background. A job which was stopped (or interrupted) continues
+	 * from its checkpoint, otherwise a new run is started.
+	 *
+	 * @param restart Start a new run even if the previous one did not complete
+	 * @return False if the job is already running
+	 */
+	public boolean start(final boolean restart) {
+		synchronized (this.m_lockObject) {
+			if (this.m_thread != null)
+				return false;
+
+			this.m_stopRequested = false;
+			this.m_stopByUser = false;
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						runInSession(restart);
+					}
+					finally {
+						synchronized (m_lockObject) {
+							m_thread = null;
+						}
+					}
+				}
+			}, this.m_threadName);
+			thread.setDaemon(true);
+			this.m_thread = thread;
+			thread.start();
+			return true;
+		}
+	}
+
+	/**
+	 * Resume a run which was interrupted when the module stopped
+	 */
+	public void resume() {
+		this.openSession();
+		try {
+			String checkpoint = this.getInterruptedCheckpoint();
+			if (checkpoint != null) {
+				this.log.info(String.format("Resuming %s after %s", this.m_name, checkpoint));
+				this.start(false);
+			}
+		}
+		catch (Exception e) {
+			this.log.error(String.format("Error resuming the %s", this.m_name), e);
+		}
+		finally {
+			this.closeSession();
+		}
+	}
+
+	/**
+	 * Stop the job once the current batch has been processed. The job continues from its
+	 * checkpoint when it is next started.
+	 */
+	public void stop() {
+		this.m_stopByUser = true;
+		this.m_stopRequested = true;
+	}
+
+	/**
+	 * Wait for the running job (if any) to stop
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		Thread thread = this.m_thread;
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * True if the job is running
+	 */
+	public boolean isRunning() {
+		return this.m_thread != null;
+	}
+
+	/**
+	 * Stop the job without marking it as stopped, so it resumes when the module starts
+	 */
+	public void shutdown() {
+		Thread thread;
+		synchronized (this.m_lockObject) {
+			thread = this.m_thread;
+			this.m_stopRequested = true;
+		}
+		if (thread == null)
+			return;
+		try {
+			thread.join(SHUTDOWN_WAIT_SECONDS * 1000);
+			if (thread.isAlive()) {
+				this.log.warn(String.format("%s did not stop in time, it continues from its last checkpoint", this.m_name));
+				thread.interrupt();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Process batches until there are none left or the job is stopped. Runs in a session as
+	 * the daemon user.
+	 *
+	 * @param restart Start a new run even if the previous one did not complete
+	 */
+	protected abstract void run(boolean restart) throws Exception;
+
+	/**
+	 * Gets a description of the checkpoint of a run which was interrupted when the module
+	 * stopped and should be resumed, or null if there is none
+	 */
+	protected String getInterruptedCheckpoint() {
+		return null;
+	}
+
+	/**
+	 * True once the job has been asked to stop
+	 */
+	protected boolean isStopRequested() {
+		return this.m_stopRequested;
+	}
+
+	/**
+	 * True if the job was stopped by the user (or gave up), rather than by the module stopping
+	 */
+	protected boolean isStoppedByUser() {
+		return this.m_stopByUser;
+	}
+
+	/**
+	 * Gets the status to show for a checkpoint; a checkpoint which is still running when the
+	 * job is not was interrupted
+	 */
+	protected String getStatus(String status, String runningStatus) {
+		return !this.isRunning() && runningStatus.equals(status) ? "INTERRUPTED" : status;
+	}
+
+	/**
+	 * Gets how long to wait before trying a batch again after it has failed the specified
+	 * number of times in a row
+	 *
+	 * @return The delay in milliseconds, or -1 if the outbox maximum attempts have been made
+	 */
+	protected long getRetryDelay(int failures) {
+		if (failures >= this.m_configuration.getOutboxMaxAttempts())
+			return -1;
+		return Math.min((long) this.m_configuration.getOutboxRetryDelay() << Math.min(failures - 1, 20),
+				this.m_configuration.getOutboxMaxRetryDelay());
+	}
+
+	/**
+	 * Wait, stopping early if the job is stopped
+	 */
+	protected void sleep(long delay) throws InterruptedException {
+		long until = System.currentTimeMillis() + delay;
+		while (!this.m_stopRequested && System.currentTimeMillis() < until)
+			Thread.sleep(Math.min(1000, until - System.currentTimeMillis()));
+	}
+
+	/**
+	 * Run work as the daemon user in a session of its own
+	 */
+	protected void runAsDaemon(MpiDaemon.Work work) throws Exception {
+		MpiDaemon.run(work);
+	}
+
+	/**
+	 * Open a session with the privileges needed by the job, for work done outside of
+	 * {@link #run(boolean)}
+	 */
+	protected void openSession() {
+		Context.openSession();
+		for (String privilege : this.m_privileges)
+			Context.addProxyPrivilege(privilege);
+	}
+
+	/**
+	 * Get the MPI client service
+	 */
+	protected MpiClientService getService() {
+		return Context.getService(MpiClientService.class);
+	}
+
+	/**
+	 * Write the changes of the session and release the objects it has loaded, once a batch
+	 * has been checkpointed
+	 */
+	protected void clearSession() {
+		Context.flushSession();
+		Context.clearSession();
+	}
+
+	/**
+	 * Close a session opened with {@link #openSession()}
+	 */
+	protected void closeSession() {
+		try {
+			for (String privilege : this.m_privileges)
+				Context.removeProxyPrivilege(privilege);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+
+	/**
+	 * Run the job as the daemon user, logging any error
+	 */
+	private void runInSession(final boolean restart) {
+		try {
+			this.runAsDaemon(new MpiDaemon.Work() {
+
+				@Override
+				public void run() throws Exception {
+					CheckpointedJob.this.run(restart);
+				}
+			});
+		}
+		catch (InterruptedException e) {
+			this.log.warn(String.format("%s interrupted, it continues from its last checkpoint", this.m_name));
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			this.log.error(String.format("Error running the %s, it continues from its last checkpoint", this.m_name), e);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+
+/**
+ * Owns the single FHIR context used by the module and hands out cached REST clients
+ * per endpoint and authentication mode. All clients share the pooled HTTP client from the
+ * {@link HttpClientManager}. The cache is rebuilt whenever the configuration which was
+ * used to construct the clients changes.
+ */
+public final class FhirClientFactory {
+
+	/**
+	 * Identifies the logical endpoint a client is being requested for
+	 */
+	public enum Endpoint {
+		PDQ,
+		PIX,
+		CR
+	}
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static FhirClientFactory s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration;
+
+	// Supplies the pooled HTTP client
+	private final HttpClientManager m_httpClientManager;
+
+	// The FHIR context (expensive to create so we only ever create one)
+	private final FhirContext m_context;
+
+	// Clients keyed by endpoint and authentication mode
+	private final Map<String, IGenericClient> m_clients = new ConcurrentHashMap<String, IGenericClient>();
+
+	// The configuration the current clients were constructed with
+	private volatile String m_configurationKey = null;
+
+	// The HTTP client the current clients were constructed with
+	private volatile CloseableHttpClient m_httpClient = null;
+
+	/**
+	 * Creates a new client factory
+	 */
+	private FhirClientFactory() {
+		this(MpiClientConfiguration.getInstance(), HttpClientManager.getInstance());
+	}
+
+	/**
+	 * Creates a new client factory with the specified configuration and HTTP clients
+	 */
+	FhirClientFactory(MpiClientConfiguration configuration, HttpClientManager httpClientManager) {
+		this.m_configuration = configuration;
+		this.m_httpClientManager = httpClientManager;
+		this.m_context = FhirContext.forR4();
+		this.m_context.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+	}
+
+	/**
+	 * Get an instance of the client factory
+	 */
+	public static FhirClientFactory getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new FhirClientFactory();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Gets the shared FHIR context
+	 */
+	public FhirContext getFhirContext() {
+		return this.m_context;
+	}
+
+	/**
+	 * Get a client for the specified endpoint, constructing it if it has not yet been
+	 * constructed for the current configuration
+	 *
+	 * @param endpoint The endpoint to get a client for
+	 * @return The generic client
+	 */
+	public IGenericClient getClient(Endpoint endpoint) throws MpiClientException {
+
+		String configurationKey = this.getConfigurationKey();
+		CloseableHttpClient httpClient = this.m_httpClientManager.getHttpClient();
+		if (!configurationKey.equals(this.m_configurationKey) || httpClient != this.m_httpClient) {
+			synchronized (s_lockObject) {
+				if (!configurationKey.equals(this.m_configurationKey) || httpClient != this.m_httpClient) {
+					this.log.info("MPI configuration has changed, rebuilding FHIR clients");
+					this.m_context.getRestfulClientFactory().setHttpClient(httpClient);
+					this.m_clients.clear();
+					this.m_httpClient = httpClient;
+					this.m_configurationKey = configurationKey;
+				}
+			}
+		}
+
+		final String endpointUrl = this.getEndpointUrl(endpoint);
+		final String authMode = this.m_configuration.getAuthenticationMode();
+		if (endpointUrl == null || endpointUrl.isEmpty())
+			throw new MpiClientException(String.format("No address is configured for the %s endpoint", endpoint));
+
+		String clientKey = String.format("%s|%s", endpointUrl, authMode);
+		IGenericClient retVal = this.m_clients.get(clientKey);
+		if (retVal == null) {
+			synchronized (s_lockObject) {
+				retVal = this.m_clients.get(clientKey);
+				if (retVal == null) {
+					retVal = this.createClient(endpointUrl, authMode);
+					this.m_clients.put(clientKey, retVal);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Forces the clients to be rebuilt on next use
+	 */
+	public void invalidate() {
+		this.m_configurationKey = null;
+	}
+
+	/**
+	 * Construct a new client for the endpoint
+	 */
+	private IGenericClient createClient(String endpointUrl, String authMode) {
+		IGenericClient client = this.m_context.newRestfulGenericClient(endpointUrl);
+		client.setEncoding(EncodingEnum.JSON);
+
+		// Is an IDP provided?
+		if ("oauth".equals(authMode) && this.m_configuration.getIdentityProviderUrl() != null
+				&& !this.m_configuration.getIdentityProviderUrl().isEmpty()) {
+			client.registerInterceptor(new OAuthClientCredentialsInterceptor());
+		}
+		// Basic Auth
+		else if ("basic".equals(authMode)) {
+			client.registerInterceptor(new BasicAuthInterceptor(this.m_configuration.getLocalApplication(),
+					this.m_configuration.getMsh8Security()));
+		}
+		return client;
+	}
+
+	/**
+	 * Get the address of the specified endpoint
+	 */
+	private String getEndpointUrl(Endpoint endpoint) {
+		switch (endpoint) {
+			case PDQ:
+				return this.m_configuration.getPdqEndpoint();
+			case PIX:
+				return this.m_configuration.getPixEndpoint();
+			default:
+				return this.m_configuration.getClientRegistryEndpoint();
+		}
+	}
+
+	/**
+	 * Gets a key representing all configuration values which affect the constructed clients
+	 */
+	private String getConfigurationKey() {
+		return String.format("%s|%s|%s|%s|%s|%s|%s|%s", this.m_configuration.getAuthenticationMode(), this.m_configuration.getIdentityProviderUrl(),
+				this.m_configuration.getLocalApplication(), this.m_configuration.getLocalFacility(),
+				this.m_configuration.getMsh8Security(), this.m_configuration.getPdqEndpoint(),
+				this.m_configuration.getPixEndpoint(), this.m_configuration.getClientRegistryEndpoint());
+	}
+}
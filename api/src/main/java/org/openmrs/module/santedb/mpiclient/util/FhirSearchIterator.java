@@ -0,0 +1,129 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.api.APIException;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * Iterates over the patients in a FHIR search result, following the Bundle's next link
+ * to read further pages only once the current page has been consumed. Each patient is
+ * translated as it is returned rather than when the page is read.
+ */
+public class FhirSearchIterator implements Iterator<MpiPatient> {
+
+	/**
+	 * Reads the patients which should be returned from a page of search results
+	 */
+	public interface PageReader {
+
+		/**
+		 * Get the patients to return from the page
+		 */
+		List<Patient> read(Bundle page) throws MpiClientException;
+	}
+
+	// The client used to fetch further pages
+	private final IGenericClient m_client;
+
+	// Reads patients from each page
+	private final PageReader m_reader;
+
+	// Translates each patient
+	private final Function<Patient, MpiPatient> m_parser;
+
+	// The page currently being read
+	private Bundle m_page;
+
+	// The patients remaining on the current page
+	private Iterator<Patient> m_current = null;
+
+	// Number of results which may still be returned
+	private int m_remaining;
+
+	/**
+	 * Creates a new search iterator
+	 *
+	 * @param client The client which executed the search
+	 * @param firstPage The first page of results
+	 * @param reader Reads the patients from each page
+	 * @param parser Translates each patient
+	 * @param maxResults The maximum number of results to return (0 for no limit)
+	 */
+	public FhirSearchIterator(IGenericClient client, Bundle firstPage, PageReader reader,
+			Function<Patient, MpiPatient> parser, int maxResults) {
+		this.m_client = client;
+		this.m_page = firstPage;
+		this.m_reader = reader;
+		this.m_parser = parser;
+		this.m_remaining = maxResults > 0 ? maxResults : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Wrap the iterator in a sequential stream
+	 */
+	public Stream<MpiPatient> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * True if there are more results, reading the next page if required
+	 */
+	@Override
+	public boolean hasNext() {
+		if (this.m_remaining <= 0)
+			return false;
+
+		try {
+			while (this.m_current == null || !this.m_current.hasNext()) {
+				if (this.m_current != null) {
+					if (this.m_page.getLink(Bundle.LINK_NEXT) == null)
+						return false;
+					this.m_page = this.m_client.loadPage().next(this.m_page).execute();
+				}
+				this.m_current = this.m_reader.read(this.m_page).iterator();
+			}
+			return true;
+		}
+		catch (MpiClientException e) {
+			throw new APIException("Could not read MPI search results", e);
+		}
+	}
+
+	/**
+	 * Get the next result
+	 */
+	@Override
+	public MpiPatient next() {
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+		this.m_remaining--;
+		return this.m_parser.apply(this.m_current.next());
+	}
+}
@@ -19,7 +19,6 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -53,6 +52,7 @@ import org.openmrs.PersonName;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.module.santedb.mpiclient.configuration.IdentifierDomainIndex;
 import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
 import org.springframework.beans.BeansException;
@@ -158,26 +158,13 @@ public class FhirUtil implements ApplicationContextAware {
 	 */
 	private PatientIdentifier interpretFhirId(Identifier id) {
 
-		PatientIdentifierType pit = null;
-		HashMap<String, String> authorityMaps = this.m_configuration.getLocalPatientIdentifierTypeMap();
-
 		// Get the domain we're lookng for
 		String domain = id.getSystem();
 		if (domain == null)
 			return null;
 
-		for (String key : authorityMaps.keySet()) {
-			if (domain.equals(authorityMaps.get(key))) {
-				pit = Context.getPatientService().getPatientIdentifierTypeByName(key);
-				if (pit == null)
-					this.log.warn(String.format("%s is mapped to %s but cannot find %s", domain, key, key));
-			}
-		}
-
-		// No map, so we should try lookup by the original system provided 
-		if (pit == null) {
-			pit = Context.getPatientService().getPatientIdentifierTypeByName(domain);
-		}
+		// Falls back to a lookup by the original system provided if there is no map
+		PatientIdentifierType pit = this.m_configuration.getIdentifierDomainIndex().getIdentifierType(domain);
 
 		if (pit == null) {
 			this.log.warn(String.format("ID domain %s has no known mapping to a Patient ID type",
@@ -295,7 +282,7 @@ public class FhirUtil implements ApplicationContextAware {
 			throws HL7Exception {
 
 		// Update the PID information
-		HashMap<String, String> exportIdentifiers = this.m_configuration.getLocalPatientIdentifierTypeMap();
+		IdentifierDomainIndex exportIdentifiers = this.m_configuration.getIdentifierDomainIndex();
 
 		// Patient
 		org.hl7.fhir.r4.model.Patient retVal = new org.hl7.fhir.r4.model.Patient();
@@ -310,7 +297,7 @@ public class FhirUtil implements ApplicationContextAware {
 						"Cannot determine update correlation id, please set a preferred correlation identity domain");
 			else {
 				for (PatientIdentifier patIdentifier : patient.getIdentifiers()) {
-					String thisDomain = exportIdentifiers.get(patIdentifier.getIdentifierType().getName());
+					String thisDomain = exportIdentifiers.getDomain(patIdentifier.getIdentifierType());
 					if (domain.equals(thisDomain)) {
 						this.updateFhirId(retVal.addIdentifier(), patIdentifier.getIdentifier(), domain);
 					}
@@ -327,7 +314,7 @@ public class FhirUtil implements ApplicationContextAware {
 
 				// Export IDs
 				for (PatientIdentifier patIdentifier : patient.getIdentifiers()) {
-					String domain = exportIdentifiers.get(patIdentifier.getIdentifierType().getName());
+					String domain = exportIdentifiers.getDomain(patIdentifier.getIdentifierType());
 					if (domain != null) {
 						this.updateFhirId(retVal.addIdentifier(), patIdentifier.getIdentifier(), domain);
 					} else
@@ -0,0 +1,305 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+
+/**
+ * Owns the pooled Apache HTTP client which is shared by all HTTP traffic to the MPI and
+ * the identity provider so that connections (and their TLS sessions) are re-used between
+ * requests. The client is rebuilt whenever the HTTP settings change; the replaced client
+ * is kept open for the requests which are still using it and closed once none of its
+ * connections are leased, or on shutdown.
+ */
+public final class HttpClientManager {
+
+	// How long a replaced client is kept before it is closed, so callers which just obtained it can use it
+	static final long RETIRE_GRACE_MILLIS = 5000;
+
+	// A replaced client is closed after this long even if its connections are still leased
+	static final long RETIRE_MAX_MILLIS = 600000;
+
+	// How often replaced clients are checked
+	private static final long RETIRE_INTERVAL_MILLIS = 1000;
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static HttpClientManager s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration;
+
+	// The current client
+	private volatile CloseableHttpClient m_client = null;
+
+	// The connection pool of the current client
+	private PoolingHttpClientConnectionManager m_connectionManager = null;
+
+	// The configuration the current client was constructed with
+	private volatile String m_configurationKey = null;
+
+	// Clients which have been replaced but may still be in use
+	private final Queue<RetiredClient> m_retired = new ConcurrentLinkedQueue<RetiredClient>();
+
+	// Closes replaced clients
+	private volatile ScheduledExecutorService m_closer = null;
+
+	/**
+	 * A client which has been replaced by a client with new settings
+	 */
+	private static class RetiredClient {
+
+		private final CloseableHttpClient m_client;
+		private final PoolingHttpClientConnectionManager m_connectionManager;
+		private final long m_retired;
+
+		RetiredClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager, long retired) {
+			this.m_client = client;
+			this.m_connectionManager = connectionManager;
+			this.m_retired = retired;
+		}
+	}
+
+	/**
+	 * Creates a new client manager
+	 */
+	private HttpClientManager() {
+		this(MpiClientConfiguration.getInstance());
+	}
+
+	/**
+	 * Creates a new client manager with the specified configuration
+	 */
+	HttpClientManager(MpiClientConfiguration configuration) {
+		this.m_configuration = configuration;
+	}
+
+	/**
+	 * Get an instance of the client manager
+	 */
+	public static HttpClientManager getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new HttpClientManager();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Gets the shared HTTP client, constructing it if the HTTP settings have changed
+	 *
+	 * @return The pooled HTTP client
+	 */
+	public CloseableHttpClient getHttpClient() throws MpiClientException {
+		String configurationKey = this.getConfigurationKey();
+		if (!configurationKey.equals(this.m_configurationKey)) {
+			synchronized (s_lockObject) {
+				if (!configurationKey.equals(this.m_configurationKey)) {
+					CloseableHttpClient previous = this.m_client;
+					PoolingHttpClientConnectionManager previousConnectionManager = this.m_connectionManager;
+					this.m_client = this.createClient();
+					this.m_configurationKey = configurationKey;
+					// Other threads may still be sending requests with the previous client
+					if (previous != null) {
+						this.m_retired.add(new RetiredClient(previous, previousConnectionManager, System.currentTimeMillis()));
+						this.startCloser();
+					}
+				}
+			}
+		}
+		return this.m_client;
+	}
+
+	/**
+	 * Gets the number of connections which are leased or available in the pool
+	 */
+	public String getPoolStatistics() {
+		PoolingHttpClientConnectionManager connectionManager = this.m_connectionManager;
+		if (connectionManager == null)
+			return "not started";
+		return connectionManager.getTotalStats().toString();
+	}
+
+	/**
+	 * Closes the client, any replaced clients and all pooled connections
+	 */
+	public void shutdown() {
+		synchronized (s_lockObject) {
+			if (this.m_closer != null) {
+				this.m_closer.shutdownNow();
+				this.m_closer = null;
+			}
+			this.closeRetired(Long.MAX_VALUE);
+			this.close(this.m_client);
+			this.m_client = null;
+			this.m_connectionManager = null;
+			this.m_configurationKey = null;
+		}
+	}
+
+	/**
+	 * Gets the number of replaced clients which have not yet been closed
+	 */
+	int getRetiredCount() {
+		return this.m_retired.size();
+	}
+
+	/**
+	 * Close the replaced clients which have no leased connections and have been replaced for
+	 * longer than the grace period, or which have been replaced for longer than the maximum
+	 *
+	 * @param now The current time
+	 */
+	void closeRetired(long now) {
+		for (RetiredClient retired : this.m_retired) {
+			long age = now - retired.m_retired;
+			boolean idle = retired.m_connectionManager == null
+					|| retired.m_connectionManager.getTotalStats().getLeased() == 0;
+			if ((age >= RETIRE_GRACE_MILLIS && idle || age >= RETIRE_MAX_MILLIS) && this.m_retired.remove(retired)) {
+				this.log.debug("Closing replaced HTTP connection pool");
+				this.close(retired.m_client);
+			}
+		}
+	}
+
+	/**
+	 * Start the thread which closes replaced clients
+	 */
+	private void startCloser() {
+		if (this.m_closer != null)
+			return;
+
+		synchronized (s_lockObject) {
+			if (this.m_closer != null)
+				return;
+			this.m_closer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread retVal = new Thread(r, "mpi-client-http-closer");
+					retVal.setDaemon(true);
+					return retVal;
+				}
+			});
+			this.m_closer.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					closeRetired(System.currentTimeMillis());
+				}
+			}, RETIRE_INTERVAL_MILLIS, RETIRE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Construct the pooled client from the current configuration
+	 */
+	private CloseableHttpClient createClient() throws MpiClientException {
+
+		final long keepAlive = this.m_configuration.getHttpKeepAlive();
+
+		// Connections in use are not given a time to live, the keep-alive only closes idle connections
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(this.m_configuration.getHttpMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(this.m_configuration.getHttpMaxConnectionsPerRoute());
+		// Check connections which have been idle for a while before they are leased again
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(this.m_configuration.getHttpConnectTimeout())
+				.setConnectionRequestTimeout(this.m_configuration.getHttpConnectTimeout())
+				.setSocketTimeout(this.m_configuration.getHttpReadTimeout()).build();
+
+		// Honour the server's keep-alive header but never keep a connection longer than configured
+		ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long serverKeepAlive = super.getKeepAliveDuration(response, context);
+				if (serverKeepAlive > 0 && serverKeepAlive < keepAlive)
+					return serverKeepAlive;
+				return keepAlive;
+			}
+		};
+
+		HttpClientBuilder builder = HttpClientBuilder.create().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAliveStrategy).evictExpiredConnections()
+				.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+
+		String proxy = this.m_configuration.getProxy();
+		if (proxy != null && !proxy.isEmpty()) {
+			String[] proxyData = proxy.split(":");
+			try {
+				builder.setProxy(new HttpHost(proxyData[0], Integer.parseInt(proxyData[1])));
+			}
+			catch (RuntimeException e) {
+				throw new MpiClientException(String.format("Proxy address %s is not in the format host:port", proxy), e);
+			}
+		}
+
+		this.log.info(String.format("Creating HTTP connection pool (max %s, %s per host)", connectionManager.getMaxTotal(),
+				connectionManager.getDefaultMaxPerRoute()));
+		this.m_connectionManager = connectionManager;
+		return builder.build();
+	}
+
+	/**
+	 * Close the specified client
+	 */
+	private void close(CloseableHttpClient client) {
+		if (client == null)
+			return;
+		try {
+			client.close();
+		}
+		catch (IOException e) {
+			this.log.warn("Error closing HTTP connection pool", e);
+		}
+	}
+
+	/**
+	 * Gets a key representing all configuration values which affect the constructed client
+	 */
+	private String getConfigurationKey() {
+		return String.format("%s|%s|%s|%s|%s|%s", this.m_configuration.getProxy(),
+				this.m_configuration.getHttpMaxConnections(), this.m_configuration.getHttpMaxConnectionsPerRoute(),
+				this.m_configuration.getHttpConnectTimeout(), this.m_configuration.getHttpReadTimeout(),
+				this.m_configuration.getHttpKeepAlive());
+	}
+}
@@ -0,0 +1,628 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+/**
+ * Finds probable local duplicates of a patient without asking the MPI. The family name,
+ * given name, birthdate, gender and commune (city / village) of every local patient are
+ * kept in memory and grouped into blocks by phonetic family name, birth year, gender and
+ * commune, so that only the patients which share a block with the patient are scored. Each
+ * candidate is scored with Jaro-Winkler on the names and the distance between birthdates.
+ * The index is built in the background when the module starts and kept up to date as
+ * patients are saved, voided and merged.
+ */
+public final class LocalPatientMatcher {
+
+	/**
+	 * A local patient which probably matches
+	 */
+	public static final class Match {
+
+		private final int m_patientId;
+
+		private final double m_score;
+
+		Match(int patientId, double score) {
+			this.m_patientId = patientId;
+			this.m_score = score;
+		}
+
+		/**
+		 * Gets the id of the local patient
+		 */
+		public int getPatientId() {
+			return this.m_patientId;
+		}
+
+		/**
+		 * Gets the score between 0 and 1
+		 */
+		public double getScore() {
+			return this.m_score;
+		}
+	}
+
+	/**
+	 * The normalized fields of one patient
+	 */
+	static final class Record {
+
+		private final int m_patientId;
+		private final String m_familyName;
+		private final String m_givenName;
+		private final int m_birthDay;
+		private final String m_gender;
+		private final String m_commune;
+
+		Record(int patientId, String familyName, String givenName, int birthDay, String gender, String commune) {
+			this.m_patientId = patientId;
+			this.m_familyName = familyName;
+			this.m_givenName = givenName;
+			this.m_birthDay = birthDay;
+			this.m_gender = gender;
+			this.m_commune = commune;
+		}
+	}
+
+	/**
+	 * The patients in one block
+	 */
+	private static final class Block {
+
+		private Record[] m_records = new Record[4];
+		private int m_size = 0;
+
+		void add(Record record) {
+			if (this.m_size == this.m_records.length)
+				this.m_records = Arrays.copyOf(this.m_records, this.m_size * 2);
+			this.m_records[this.m_size++] = record;
+		}
+
+		void remove(int patientId) {
+			for (int i = 0; i < this.m_size; i++)
+				if (this.m_records[i].m_patientId == patientId) {
+					this.m_records[i] = this.m_records[--this.m_size];
+					this.m_records[this.m_size] = null;
+					return;
+				}
+		}
+	}
+
+	// A birthdate which is not known
+	private static final int NO_DATE = Integer.MIN_VALUE;
+
+	// Weights of each field in the score
+	private static final double FAMILY_NAME_WEIGHT = 0.35;
+	private static final double GIVEN_NAME_WEIGHT = 0.25;
+	private static final double BIRTHDATE_WEIGHT = 0.25;
+	private static final double COMMUNE_WEIGHT = 0.10;
+	private static final double GENDER_WEIGHT = 0.05;
+
+	// Most matches returned
+	private static final int MAX_MATCHES = 5;
+
+	// Patients read from the database at one time when building the index
+	private static final int PAGE_SIZE = 5000;
+
+	// Privileges needed to read the patients
+	private static final String[] PRIVILEGES = { "Get Patients", "Get People" };
+
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{M}");
+	private static final Pattern NOT_LETTERS = Pattern.compile("[^A-Z]+");
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static LocalPatientMatcher s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	private final DoubleMetaphone m_phonetic = new DoubleMetaphone();
+
+	// Patients by id
+	private final Map<Integer, Record> m_records = new HashMap<Integer, Record>();
+
+	// Patient ids by blocking key
+	private final Map<String, Block> m_blocks = new HashMap<String, Block>();
+
+	// Interned communes
+	private final Map<String, String> m_communes = new HashMap<String, String>();
+
+	private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+	// True once the index is started and kept up to date
+	private volatile boolean m_enabled = false;
+
+	// True once all patients have been read
+	private volatile boolean m_ready = false;
+
+	// Patients changed while the index is being built, guarded by the write lock
+	private Set<Integer> m_changedDuringBuild = null;
+
+	// Builds the index
+	private volatile Thread m_thread = null;
+
+	/**
+	 * Creates a new matcher
+	 */
+	LocalPatientMatcher() {
+	}
+
+	/**
+	 * Get an instance of the matcher
+	 */
+	public static LocalPatientMatcher getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new LocalPatientMatcher();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * True once all local patients are in the index
+	 */
+	public boolean isReady() {
+		return this.m_ready;
+	}
+
+	/**
+	 * Gets the number of patients in the index
+	 */
+	public int size() {
+		this.m_lock.readLock().lock();
+		try {
+			return this.m_records.size();
+		}
+		finally {
+			this.m_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Start building the index in the background if the local index is enabled
+	 */
+	public void start() {
+		synchronized (s_lockObject) {
+			if (this.m_thread != null || !MpiClientConfiguration.getInstance().getMatchLocalIndex())
+				return;
+			this.beginBuild();
+			this.m_thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					build();
+				}
+			}, "mpi-client-match-index");
+			this.m_thread.setDaemon(true);
+			this.m_thread.start();
+		}
+	}
+
+	/**
+	 * Stop building the index and discard it
+	 */
+	public void shutdown() {
+		Thread thread;
+		synchronized (s_lockObject) {
+			thread = this.m_thread;
+			this.m_thread = null;
+			this.m_enabled = false;
+			this.m_ready = false;
+		}
+		if (thread == null)
+			return;
+		thread.interrupt();
+		try {
+			thread.join(10000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.m_lock.writeLock().lock();
+		try {
+			this.m_records.clear();
+			this.m_blocks.clear();
+			this.m_communes.clear();
+			this.m_changedDuringBuild = null;
+		}
+		finally {
+			this.m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace the saved patient in the index, or remove it if it is voided
+	 */
+	public void update(Patient patient) {
+		if (!this.m_enabled || patient == null || patient.getPatientId() == null)
+			return;
+		if (Boolean.TRUE.equals(patient.getVoided())) {
+			this.remove(patient.getPatientId());
+			return;
+		}
+		PersonName name = patient.getPersonName();
+		PersonAddress address = patient.getPersonAddress();
+		this.put(patient.getPatientId(), name == null ? null : name.getFamilyName(),
+				name == null ? null : name.getGivenName(), patient.getBirthdate(), patient.getGender(),
+				address == null ? null : address.getCityVillage());
+	}
+
+	/**
+	 * Remove the patient from the index
+	 */
+	public void remove(Integer patientId) {
+		if (!this.m_enabled || patientId == null)
+			return;
+		this.m_lock.writeLock().lock();
+		try {
+			if (this.m_changedDuringBuild != null)
+				this.m_changedDuringBuild.add(patientId);
+			this.unindex(patientId);
+		}
+		finally {
+			this.m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the local patients which probably match the patient, best first. The patient
+	 * itself is not returned if it is a local patient.
+	 *
+	 * @return The probable matches or an empty list if the index is not ready
+	 */
+	public List<Match> findMatches(Patient patient) {
+		if (!this.m_ready)
+			return Collections.emptyList();
+		PersonName name = patient.getPersonName();
+		PersonAddress address = patient.getPersonAddress();
+		return this.findMatches(this.createRecord(patient.getPatientId() == null ? 0 : patient.getPatientId(),
+				name == null ? null : name.getFamilyName(), name == null ? null : name.getGivenName(),
+				patient.getBirthdate(), patient.getGender(), address == null ? null : address.getCityVillage()),
+				MpiClientConfiguration.getInstance().getMatchThreshold() / 100.0, MAX_MATCHES);
+	}
+
+	/**
+	 * Add or replace a patient in the index
+	 */
+	void put(int patientId, String familyName, String givenName, Date birthdate, String gender, String commune) {
+		this.put(this.createRecord(patientId, familyName, givenName, birthdate, gender, commune), false);
+	}
+
+	/**
+	 * Add a patient read by the build, unless the patient has been changed since the build
+	 * started (the row may have been read before the change)
+	 */
+	void putFromBuild(int patientId, String familyName, String givenName, Date birthdate, String gender,
+			String commune) {
+		this.put(this.createRecord(patientId, familyName, givenName, birthdate, gender, commune), true);
+	}
+
+	/**
+	 * Start keeping the index up to date and recording the patients which are changed until
+	 * the build finishes
+	 */
+	void beginBuild() {
+		this.m_lock.writeLock().lock();
+		try {
+			this.m_changedDuringBuild = new HashSet<Integer>();
+			this.m_enabled = true;
+		}
+		finally {
+			this.m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Mark the index as ready once all patients have been read
+	 */
+	void finishBuild() {
+		this.m_lock.writeLock().lock();
+		try {
+			this.m_changedDuringBuild = null;
+			this.m_ready = true;
+		}
+		finally {
+			this.m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace a patient in the index
+	 */
+	private void put(Record record, boolean fromBuild) {
+		int patientId = record.m_patientId;
+		this.m_lock.writeLock().lock();
+		try {
+			if (this.m_changedDuringBuild != null) {
+				if (fromBuild && this.m_changedDuringBuild.contains(patientId))
+					return;
+				else if (!fromBuild)
+					this.m_changedDuringBuild.add(patientId);
+			}
+			this.unindex(patientId);
+			// Communes are shared by many patients
+			if (record.m_commune != null) {
+				String shared = this.m_communes.putIfAbsent(record.m_commune, record.m_commune);
+				if (shared != null)
+					record = new Record(patientId, record.m_familyName, record.m_givenName, record.m_birthDay,
+							record.m_gender, shared);
+			}
+			this.m_records.put(patientId, record);
+			for (String key : this.getKeys(record)) {
+				Block block = this.m_blocks.get(key);
+				if (block == null) {
+					block = new Block();
+					this.m_blocks.put(key, block);
+				}
+				block.add(record);
+			}
+		}
+		finally {
+			this.m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the patient from the records and blocks, the write lock must be held
+	 */
+	private void unindex(int patientId) {
+		Record existing = this.m_records.remove(patientId);
+		if (existing == null)
+			return;
+		for (String key : this.getKeys(existing)) {
+			Block block = this.m_blocks.get(key);
+			if (block == null)
+				continue;
+			block.remove(patientId);
+			if (block.m_size == 0)
+				this.m_blocks.remove(key);
+		}
+	}
+
+	/**
+	 * Normalize the fields of a patient
+	 */
+	Record createRecord(int patientId, String familyName, String givenName, Date birthdate, String gender,
+			String commune) {
+		// java.sql.Date does not support toInstant()
+		int birthDay = birthdate == null ? NO_DATE
+				: (int) new Date(birthdate.getTime()).toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+		return new Record(patientId, this.normalize(familyName), this.normalize(givenName), birthDay,
+				"M".equals(gender) || "F".equals(gender) ? gender : null, this.normalize(commune));
+	}
+
+	/**
+	 * Score the patients which share a block with the query
+	 */
+	List<Match> findMatches(Record query, double threshold, int count) {
+		List<Match> retVal = new ArrayList<Match>();
+		Set<Integer> matched = new HashSet<Integer>();
+		this.m_lock.readLock().lock();
+		try {
+			// A patient can be in more than one of the blocks but is only returned once
+			for (String key : this.getKeys(query)) {
+				Block block = this.m_blocks.get(key);
+				if (block == null)
+					continue;
+				for (int i = 0; i < block.m_size; i++) {
+					Record record = block.m_records[i];
+					if (record.m_patientId == query.m_patientId)
+						continue;
+					double score = this.score(query, record, threshold);
+					if (score > 0 && matched.add(record.m_patientId))
+						retVal.add(new Match(record.m_patientId, score));
+				}
+			}
+		}
+		finally {
+			this.m_lock.readLock().unlock();
+		}
+
+		Collections.sort(retVal, (a, b) -> Double.compare(b.m_score, a.m_score));
+		return retVal.size() > count ? new ArrayList<Match>(retVal.subList(0, count)) : retVal;
+	}
+
+	/**
+	 * Score how well two patients match between 0 and 1. The birthdate, commune and gender
+	 * are scored first, and the names are only compared when the patients could still reach
+	 * the threshold.
+	 *
+	 * @return The score, or 0 if it is below the threshold
+	 */
+	double score(Record a, Record b, double threshold) {
+		double retVal = BIRTHDATE_WEIGHT * dateScore(a.m_birthDay, b.m_birthDay)
+				+ COMMUNE_WEIGHT * (a.m_commune == null || b.m_commune == null ? 0.5 : a.m_commune.equals(b.m_commune) ? 1 : 0)
+				+ GENDER_WEIGHT * (a.m_gender == null || b.m_gender == null ? 0.5 : a.m_gender.equals(b.m_gender) ? 1 : 0);
+		if (retVal + FAMILY_NAME_WEIGHT + GIVEN_NAME_WEIGHT < threshold)
+			return 0;
+		retVal += FAMILY_NAME_WEIGHT * jaroWinkler(a.m_familyName, b.m_familyName);
+		if (retVal + GIVEN_NAME_WEIGHT < threshold)
+			return 0;
+		retVal += GIVEN_NAME_WEIGHT * jaroWinkler(a.m_givenName, b.m_givenName);
+		return retVal < threshold ? 0 : retVal;
+	}
+
+	/**
+	 * The Jaro-Winkler similarity of two strings between 0 and 1
+	 */
+	static double jaroWinkler(String a, String b) {
+		if (a == null || b == null)
+			return 0;
+		else if (a.equals(b))
+			return 1;
+
+		int range = Math.max(0, Math.max(a.length(), b.length()) / 2 - 1), matches = 0;
+		boolean[] aMatched = new boolean[a.length()], bMatched = new boolean[b.length()];
+		for (int i = 0; i < a.length(); i++)
+			for (int j = Math.max(0, i - range); j < Math.min(b.length(), i + range + 1); j++)
+				if (!bMatched[j] && a.charAt(i) == b.charAt(j)) {
+					aMatched[i] = bMatched[j] = true;
+					matches++;
+					break;
+				}
+		if (matches == 0)
+			return 0;
+
+		int transpositions = 0;
+		for (int i = 0, j = 0; i < a.length(); i++)
+			if (aMatched[i]) {
+				while (!bMatched[j])
+					j++;
+				if (a.charAt(i) != b.charAt(j))
+					transpositions++;
+				j++;
+			}
+		double jaro = ((double) matches / a.length() + (double) matches / b.length()
+				+ (matches - transpositions / 2.0) / matches) / 3;
+
+		int prefix = 0;
+		while (prefix < Math.min(4, Math.min(a.length(), b.length())) && a.charAt(prefix) == b.charAt(prefix))
+			prefix++;
+		return jaro + prefix * 0.1 * (1 - jaro);
+	}
+
+	/**
+	 * Score how close two birthdates are between 0 and 1, a birthdate with the day and
+	 * month swapped is close
+	 */
+	static double dateScore(int a, int b) {
+		if (a == NO_DATE || b == NO_DATE)
+			return 0.5;
+		else if (a == b)
+			return 1;
+		else if (Math.abs(a - b) > 365)
+			return 0;
+		LocalDate da = LocalDate.ofEpochDay(a), db = LocalDate.ofEpochDay(b);
+		if (da.getYear() == db.getYear() && da.getMonthValue() == db.getDayOfMonth()
+				&& da.getDayOfMonth() == db.getMonthValue())
+			return 0.9;
+		return Math.max(0, 1 - Math.abs(a - b) / 365.0);
+	}
+
+	/**
+	 * Get the blocks the patient belongs to; a block is skipped when one of its fields is
+	 * not known
+	 */
+	private List<String> getKeys(Record record) {
+		List<String> retVal = new ArrayList<String>(3);
+		String family = this.getPhonetic(record.m_familyName), given = this.getPhonetic(record.m_givenName),
+				year = record.m_birthDay == NO_DATE ? null : String.valueOf(LocalDate.ofEpochDay(record.m_birthDay).getYear());
+		if (family != null && year != null && record.m_gender != null)
+			retVal.add(String.format("F|%s|%s|%s", family, year, record.m_gender));
+		if (family != null && record.m_commune != null && record.m_gender != null)
+			retVal.add(String.format("C|%s|%s|%s", family, record.m_commune, record.m_gender));
+		// Catches misspelled family names
+		if (given != null && year != null && record.m_commune != null)
+			retVal.add(String.format("G|%s|%s|%s", given, year, record.m_commune));
+		return retVal;
+	}
+
+	/**
+	 * Get the phonetic code of a normalized name
+	 */
+	private String getPhonetic(String name) {
+		if (name == null)
+			return null;
+		String retVal = this.m_phonetic.doubleMetaphone(name);
+		return retVal == null || retVal.isEmpty() ? null : retVal;
+	}
+
+	/**
+	 * Upper case the value without accents or anything but letters
+	 */
+	private String normalize(String value) {
+		if (value == null)
+			return null;
+		String retVal = DIACRITICS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("");
+		retVal = NOT_LETTERS.matcher(retVal.toUpperCase(Locale.ROOT)).replaceAll(" ").trim();
+		// Names which the MPI does not know are sent as (NULL)
+		return retVal.isEmpty() || "NULL".equals(retVal) ? null : retVal;
+	}
+
+	/**
+	 * Read all local patients into the index
+	 */
+	private void build() {
+		long start = System.currentTimeMillis();
+		Context.openSession();
+		for (String privilege : PRIVILEGES)
+			Context.addProxyPrivilege(privilege);
+		try {
+			MpiClientService hieService = Context.getService(MpiClientService.class);
+			int lastPatientId = 0;
+			while (!Thread.currentThread().isInterrupted()) {
+				List<Object[]> rows = hieService.getPatientMatchRows(lastPatientId, PAGE_SIZE);
+				if (rows.isEmpty())
+					break;
+				// Only the first (preferred) name and address of each patient is indexed
+				for (Object[] row : rows) {
+					int patientId = (Integer) row[0];
+					if (patientId == lastPatientId)
+						continue;
+					this.putFromBuild(patientId, (String) row[1], (String) row[2], (Date) row[3], (String) row[4],
+							(String) row[5]);
+					lastPatientId = patientId;
+				}
+				Context.clearSession();
+			}
+			if (!Thread.currentThread().isInterrupted()) {
+				this.finishBuild();
+				this.log.info(String.format("Indexed %s local patients for matching in %s ms", this.size(),
+						System.currentTimeMillis() - start));
+			}
+		}
+		catch (Exception e) {
+			this.log.error("Could not build the local patient match index", e);
+		}
+		finally {
+			try {
+				for (String privilege : PRIVILEGES)
+					Context.removeProxyPrivilege(privilege);
+			}
+			finally {
+				Context.closeSession();
+			}
+		}
+	}
+}
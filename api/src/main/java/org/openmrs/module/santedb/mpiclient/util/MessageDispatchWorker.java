@@ -36,7 +36,7 @@ import ca.uhn.hl7v2.util.Terser;
  * @author Justin Fyfe
  *
  */
-public class MessageDispatchWorker extends Thread {
+public class MessageDispatchWorker implements Runnable {
 
 	// The message to be dispatch
 	private Message m_message;
@@ -21,13 +21,15 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.r4.model.Address;
@@ -53,16 +55,16 @@ import org.openmrs.PersonName;
 import org.openmrs.Relationship;
 import org.openmrs.RelationshipType;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.IdentifierDomainIndex;
 import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+import org.openmrs.module.santedb.mpiclient.util.MllpConnectionPool.PooledConnection;
 
 import ca.uhn.hl7v2.HL7Exception;
-import ca.uhn.hl7v2.app.Connection;
-import ca.uhn.hl7v2.app.ConnectionHub;
 import ca.uhn.hl7v2.app.Initiator;
 import ca.uhn.hl7v2.llp.LLPException;
-import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
 import ca.uhn.hl7v2.model.AbstractPrimitive;
 import ca.uhn.hl7v2.model.Composite;
 import ca.uhn.hl7v2.model.DataTypeException;
@@ -76,6 +78,7 @@ import ca.uhn.hl7v2.model.v25.datatype.XAD;
 import ca.uhn.hl7v2.model.v25.datatype.XPN;
 import ca.uhn.hl7v2.model.v25.message.ADT_A01;
 import ca.uhn.hl7v2.model.v25.message.QBP_Q21;
+import ca.uhn.hl7v2.model.v25.segment.MRG;
 import ca.uhn.hl7v2.model.v25.segment.MSH;
 import ca.uhn.hl7v2.model.v25.segment.NK1;
 import ca.uhn.hl7v2.model.v25.segment.PID;
@@ -100,12 +103,24 @@ public final class MessageUtil {
 	private static MessageUtil s_instance = null;
 
 	// Get the HIE config
-	private MpiClientConfiguration m_configuration = MpiClientConfiguration.getInstance();
+	private final MpiClientConfiguration m_configuration;
+
+	// Connections to the PIX and PDQ endpoints
+	private final MllpConnectionPool m_connectionPool;
 
 	/**
 	 * Creates a new message utility
 	 */
 	private MessageUtil() {
+		this(MpiClientConfiguration.getInstance(), MllpConnectionPool.getInstance());
+	}
+
+	/**
+	 * Creates a new message utility with the specified configuration and connection pool
+	 */
+	MessageUtil(MpiClientConfiguration configuration, MllpConnectionPool connectionPool) {
+		this.m_configuration = configuration;
+		this.m_connectionPool = connectionPool;
 	}
 
 	/**
@@ -130,26 +145,71 @@ public final class MessageUtil {
 	public Message sendMessage(Message request, String endpoint, int port)
 			throws HL7Exception, LLPException, IOException {
 		PipeParser parser = new PipeParser();
-		ConnectionHub hub = ConnectionHub.getInstance();
-		Connection connection = null;
-		try {
-			if (log.isInfoEnabled())
-				log.info(String.format("Sending to %s:%s : %s", endpoint, port, parser.encode(request)));
+		MllpConnectionPool pool = this.m_connectionPool;
 
-			connection = hub.attach(endpoint, port, parser, MinLowerLayerProtocol.class);
+		if (log.isInfoEnabled())
+			log.info(String.format("Sending to %s:%s : %s", endpoint, port, parser.encode(request)));
 
-			Initiator initiator = connection.getInitiator();
-			initiator.setTimeoutMillis(20000);
-			Message response = initiator.sendAndReceive(request);
+		while (true) {
+			PooledConnection connection = pool.acquire(endpoint, port);
+			long framesWritten = connection.getFramesWritten();
+			boolean reusable = false;
+			try {
+				Initiator initiator = connection.getConnection().getInitiator();
+				initiator.setTimeoutMillis(this.m_configuration.getHl7ResponseTimeout());
+				Message response = initiator.sendAndReceive(request);
+				reusable = true;
 
-			if (log.isInfoEnabled())
-				log.info(String.format("Response from %s:%s : %s", endpoint, port, parser.encode(response)));
+				if (log.isInfoEnabled())
+					log.info(String.format("Response from %s:%s : %s", endpoint, port, parser.encode(response)));
 
-			return response;
-		} finally {
-			if (connection != null)
-				hub.discard(connection);
+				return response;
+			}
+			catch (IOException | LLPException e) {
+				// A pooled connection may have been closed by the remote end while it was idle, in
+				// which case the message could not be written and is sent again on a new connection.
+				// Once the whole frame has been written the remote end may have processed it, and
+				// since ADT messages are not idempotent it is never sent again.
+				if (!connection.isReused() || connection.getFramesWritten() != framesWritten)
+					throw e;
+				log.warn(String.format("Pooled connection to %s:%s failed, reconnecting", endpoint, port), e);
+			}
+			finally {
+				if (reusable)
+					pool.release(connection);
+				else
+					pool.discard(connection);
+			}
+		}
+	}
+
+	/**
+	 * Send a HAPI message to the server without waiting for the response, so that several
+	 * messages can be in flight on the same connection
+	 * 
+	 * @return A future which completes with the response
+	 */
+	public CompletableFuture<Message> sendMessageAsync(Message request, String endpoint, int port) {
+		final PipeParser parser = new PipeParser();
+		try {
+			if (log.isInfoEnabled())
+				log.info(String.format("Sending to %s:%s : %s", endpoint, port, parser.encode(request)));
 		}
+		catch (HL7Exception e) {
+			log.warn("Could not encode message for logging", e);
+		}
+
+		CompletableFuture<Message> retVal = MllpPipelinedSender.getInstance().send(request, endpoint, port);
+		if (log.isInfoEnabled())
+			retVal.thenAccept(response -> {
+				try {
+					log.info(String.format("Response from %s:%s : %s", endpoint, port, parser.encode(response)));
+				}
+				catch (HL7Exception e) {
+					log.warn("Could not encode response for logging", e);
+				}
+			});
+		return retVal;
 	}
 
 	/**
@@ -274,7 +334,7 @@ public final class MessageUtil {
 	private void updatePID(PID pid, Patient patient, boolean localIdOnly) throws HL7Exception, MpiClientException {
 
 		// Update the pid segment with data in the patient
-		HashMap<String, String> exportIdentifiers = this.m_configuration.getLocalPatientIdentifierTypeMap();
+		IdentifierDomainIndex exportIdentifiers = this.m_configuration.getIdentifierDomainIndex();
 
 		// PID-3
 		if ("-".equals(this.m_configuration.getLocalPatientIdRoot())) {
@@ -289,7 +349,7 @@ public final class MessageUtil {
 				CX cx = pid.getPatientIdentifierList(pid.getPatientIdentifierList().length);
 
 				for (PatientIdentifier patIdentifier : patient.getIdentifiers()) {
-					String thisDomain = exportIdentifiers.get(patIdentifier.getIdentifierType().getName());
+					String thisDomain = exportIdentifiers.getDomain(patIdentifier.getIdentifierType());
 					if (domain.equals(thisDomain)) {
 						this.updateCX(cx, patIdentifier, domain);
 					}
@@ -312,7 +372,7 @@ public final class MessageUtil {
 
 				// Export IDs
 				for (PatientIdentifier patIdentifier : patient.getIdentifiers()) {
-					String domain = exportIdentifiers.get(patIdentifier.getIdentifierType().getName());
+					String domain = exportIdentifiers.getDomain(patIdentifier.getIdentifierType());
 					if (domain != null) {
 						CX cx = pid.getPatientIdentifierList(pid.getPatientIdentifierList().length);
 						this.updateCX(cx, patIdentifier, domain);
@@ -422,12 +482,12 @@ public final class MessageUtil {
 		// Other identifiers
 		if (!localIdOnly && relationship.getPersonB().isPatient()) {
 
-			HashMap<String, String> exportIdentifiers = this.m_configuration.getLocalPatientIdentifierTypeMap();
+			IdentifierDomainIndex exportIdentifiers = this.m_configuration.getIdentifierDomainIndex();
 
 			// Get the person as a patient
 			Patient patient = Context.getPatientService().getPatient(relationship.getPersonB().getId());
 			for (PatientIdentifier patIdentifier : patient.getIdentifiers()) {
-				String domain = exportIdentifiers.get(patIdentifier.getIdentifierType().getName());
+				String domain = exportIdentifiers.getDomain(patIdentifier.getIdentifierType());
 				if (domain != null) {
 					CX cx = nk1.getNextOfKinAssociatedPartySIdentifiers(
 							nk1.getNextOfKinAssociatedPartySIdentifiers().length);
@@ -613,16 +673,22 @@ public final class MessageUtil {
 		List<MpiPatient> retVal = new ArrayList<MpiPatient>();
 
 		Terser terser = new Terser(response);
+		List<String> responseNames = Arrays.asList(response.getNames());
 		// Check for AA and OK in QAK
-		if (terser.get("/MSA-1") != null && terser.get("/MSA-1").equals("AE"))
+		if (responseNames.contains("MSA") && terser.get("/MSA-1") != null && terser.get("/MSA-1").equals("AE"))
 			throw new MpiClientException("Server Error");
-		else if (terser.get("/QAK-2") != null && terser.get("/QAK-2").equals("NF"))
+		else if (responseNames.contains("QAK") && terser.get("/QAK-2") != null && terser.get("/QAK-2").equals("NF"))
 			return retVal;
 
 		Location defaultLocation = Context.getLocationService().getDefaultLocation();
 
-		Structure[] responseGroups = response.getAll("QUERY_RESPONSE");
-		HashMap<String, String> extensions = this.m_configuration.getExtensionMap();
+		// Query responses group each patient, merges (A40) group each PID with its MRG and
+		// updates (A08, A31) carry the PID in the message itself
+		String groupName = responseNames.contains("QUERY_RESPONSE") ? "QUERY_RESPONSE"
+				: responseNames.contains("PATIENT") ? "PATIENT" : null;
+		Structure[] responseGroups = groupName == null ? new Structure[] { response } : response.getAll(groupName);
+		Map<Pair<String, PatientIdentifierType>, Patient> correlatedPatients = this.getCorrelatedPatients(responseGroups);
+		Map<String, String> extensions = this.m_configuration.getExtensionMap();
 		// Iterate over segments
 		for (int i = 0; i < responseGroups.length; i++) {
 			Structure queryResponseStruct = responseGroups[i];
@@ -658,12 +724,12 @@ public final class MessageUtil {
 											.equals(id.getAssigningAuthority().getUniversalID().getValue()))) {
 
 						PatientIdentifier patientIdentifier = this.interpretCx(id);
-						List<PatientIdentifierType> identifierTypes = new ArrayList<PatientIdentifierType>();
-						identifierTypes.add(patientIdentifier.getIdentifierType());
-						// HACK: The old method of fetching patient by ID seems to no longer work in OMRS2 - So we'll use this method instead
-						List<PatientIdentifier> matchPatientIds = Context.getPatientService().getPatientIdentifiers(patientIdentifier.getIdentifier(), identifierTypes, null, null, null);
-						if (matchPatientIds != null && matchPatientIds.size() > 0)
-							patient.setId(matchPatientIds.get(0).getPatient().getId());
+						if (patientIdentifier == null)
+							continue;
+						Patient correlatedPatient = correlatedPatients
+								.get(Pair.of(patientIdentifier.getIdentifier(), patientIdentifier.getIdentifierType()));
+						if (correlatedPatient != null)
+							patient.setId(correlatedPatient.getId());
 						patient.addIdentifier(patientIdentifier);
 					} else {
 						PatientIdentifier patId = this.interpretCx(id);
@@ -796,7 +862,7 @@ public final class MessageUtil {
 						continue;
 					}
 					// Attempt
-					String terse = String.format("/QUERY_RESPONSE(%s)", i);
+					String terse = groupName == null ? "" : String.format("/%s(%s)", groupName, i);
 					String filter = extensions.get(extName);
 					String[] filterData = filter.split("\\?"); // ? is used as a filter for example: Father's
 																// Name:NK1-2?NK1-3=MTH
@@ -832,6 +898,67 @@ public final class MessageUtil {
 		return retVal;
 	}
 
+	/**
+	 * Get the local patients of the identifiers in the preferred correlation domain of all
+	 * PID segments with one query
+	 */
+	private Map<Pair<String, PatientIdentifierType>, Patient> getCorrelatedPatients(Structure[] responseGroups)
+			throws HL7Exception {
+		String correlationDomain = this.m_configuration.getPreferredCorrelationDomain();
+		if (correlationDomain == null || correlationDomain.isEmpty())
+			return Collections.emptyMap();
+
+		List<Pair<String, PatientIdentifierType>> identifiers = new ArrayList<Pair<String, PatientIdentifierType>>();
+		for (Structure responseGroup : responseGroups)
+			for (Structure pidStruct : ((Group) responseGroup).getAll("PID"))
+				for (CX id : ((PID) pidStruct).getPatientIdentifierList())
+					if (correlationDomain.equals(id.getAssigningAuthority().getNamespaceID().getValue())
+							|| correlationDomain.equals(id.getAssigningAuthority().getUniversalID().getValue())) {
+						PatientIdentifier patientIdentifier = this.interpretCx(id);
+						if (patientIdentifier != null)
+							identifiers.add(Pair.of(patientIdentifier.getIdentifier(), patientIdentifier.getIdentifierType()));
+					}
+		if (identifiers.isEmpty())
+			return Collections.emptyMap();
+		return Context.getService(MpiClientService.class).getPatientsByIdentifiers(identifiers);
+	}
+
+	/**
+	 * Interpret the MRG segments of a merge (A40), in the same order as the PID segments
+	 * returned by {@link #interpretPIDSegments(Message)}
+	 * 
+	 * @param message The merge message
+	 * @return The merged (no longer used) patients, identified only by their prior identifiers
+	 * @throws HL7Exception
+	 */
+	public List<MpiPatient> interpretMRGSegments(Message message) throws HL7Exception {
+		List<MpiPatient> retVal = new ArrayList<MpiPatient>();
+
+		for (Structure patientStruct : message.getAll("PATIENT")) {
+			MpiPatient patient = new MpiPatient();
+			for (Structure mrgStruct : ((Group) patientStruct).getAll("MRG")) {
+				MRG mrg = (MRG) mrgStruct;
+				for (CX id : mrg.getPriorPatientIdentifierList()) {
+					// ID is a local identifier
+					if (this.m_configuration.getLocalPatientIdRoot()
+							.equals(id.getAssigningAuthority().getNamespaceID().getValue())
+							|| this.m_configuration.getLocalPatientIdRoot()
+									.equals(id.getAssigningAuthority().getUniversalID().getValue())) {
+						if (StringUtils.isNumeric(id.getIDNumber().getValue()))
+							patient.setId(Integer.parseInt(id.getIDNumber().getValue()));
+					} else {
+						PatientIdentifier patId = this.interpretCx(id);
+						if (patId != null)
+							patient.addIdentifier(patId);
+					}
+				}
+			}
+			retVal.add(patient);
+		}
+
+		return retVal;
+	}
+
 	/**
 	 * Interpret the XAD as a person address
 	 * 
@@ -894,41 +1021,21 @@ public final class MessageUtil {
 	 */
 	private PatientIdentifier interpretCx(CX id) {
 
-		PatientIdentifierType pit = null;
-		HashMap<String, String> authorityMaps = this.m_configuration.getLocalPatientIdentifierTypeMap();
-
-		// Get the domain we're lookng for
-		String[] domains = new String[] { id.getAssigningAuthority().getNamespaceID().getValue(),
-				id.getAssigningAuthority().getUniversalID().getValue() };
-
-		// Is there a map for this object?
-		for (String domain : domains) {
-
-			if (domain == null)
-				continue;
-
-			for (String key : authorityMaps.keySet()) {
-				if (domain.equals(authorityMaps.get(key))) {
-					pit = Context.getPatientService().getPatientIdentifierTypeByName(key);
-					if (pit == null)
-						this.log.warn(String.format("%s is mapped to %s but cannot find %s", domain, key, key));
-				}
-			}
-
-			// No map, so we should try to fa
-			if (pit == null) {
-				pit = Context.getPatientService().getPatientIdentifierTypeByName(domain);
-				if (pit == null)
-					pit = Context.getPatientService().getPatientIdentifierTypeByUuid(domain);
-				if (pit != null && !pit.getUuid().equals(id.getAssigningAuthority().getUniversalID().getValue())
-						&& this.m_configuration.getAutoUpdateLocalPatientIdentifierTypes()) // fix the UUID
-				{
-					log.debug(String.format("Updating %s to have UUID %s", pit.getName(),
-							id.getAssigningAuthority().getUniversalID().getValue()));
-					pit.setUuid(id.getAssigningAuthority().getUniversalID().getValue());
-					Context.getPatientService().savePatientIdentifierType(pit);
-				}
-			}
+		IdentifierDomainIndex identifierDomains = this.m_configuration.getIdentifierDomainIndex();
+		String universalId = id.getAssigningAuthority().getUniversalID().getValue();
+
+		// Mapped by namespace or OID, or else found by name or UUID
+		PatientIdentifierType pit = identifierDomains.getIdentifierType(id.getAssigningAuthority().getNamespaceID().getValue(),
+				universalId);
+
+		// Not mapped, so give the type the OID as its UUID
+		if (pit != null && universalId != null && !universalId.equals(pit.getUuid()) && identifierDomains.getDomain(pit) == null
+				&& this.m_configuration.getAutoUpdateLocalPatientIdentifierTypes()) {
+			log.debug(String.format("Updating %s to have UUID %s", pit.getName(), universalId));
+			// The indexed type is shared, so the change is made to a copy in this session
+			pit = Context.getPatientService().getPatientIdentifierType(pit.getId());
+			pit.setUuid(universalId);
+			Context.getPatientService().savePatientIdentifierType(pit);
 		}
 
 		if (pit == null && !this.m_configuration.getEnterprisePatientIdRoot()
@@ -964,8 +1071,7 @@ public final class MessageUtil {
 
 			// Affix the patient's preferred correlation domain identifier
 			for (PatientIdentifier pid : patient.getIdentifiers()) {
-				String domainName = this.m_configuration.getLocalPatientIdentifierTypeMap()
-						.get(pid.getIdentifierType().getName());
+				String domainName = this.m_configuration.getIdentifierDomainIndex().getDomain(pid.getIdentifierType());
 
 				if (this.m_configuration.getPreferredCorrelationDomain().equals(domainName)) // This is the identifier
 																								// we want
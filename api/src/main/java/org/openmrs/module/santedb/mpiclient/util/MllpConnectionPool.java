@@ -0,0 +1,401 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+import ca.uhn.hl7v2.app.Connection;
+import ca.uhn.hl7v2.llp.LLPException;
+import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/**
+ * Keeps long lived MLLP connections to each HL7 endpoint so that PIX and PDQ messages
+ * do not pay for a new TCP connection each time. Each endpoint has a bounded number of
+ * connections, which also limits the number of requests in flight to that endpoint.
+ * Connections which have been idle longer than the configured idle timeout, or which
+ * the remote end has closed, are discarded rather than re-used.
+ */
+public final class MllpConnectionPool {
+
+	// How often idle connections are checked for expiry
+	private static final long EVICTION_INTERVAL_MILLIS = 10000;
+
+	// MLLP end of message
+	private static final byte END_BLOCK = 0x1c;
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MllpConnectionPool s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration;
+
+	// Pools by host:port
+	private final Map<String, Endpoint> m_endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+	// Closes expired idle connections
+	private volatile ScheduledExecutorService m_evictor = null;
+
+	/**
+	 * A connection which has been leased from the pool
+	 */
+	public static class PooledConnection {
+
+		private final Endpoint m_endpoint;
+		private final Connection m_connection;
+		private final FrameCountingSocket m_socket;
+		private long m_lastUsed;
+		private boolean m_reused;
+
+		PooledConnection(Endpoint endpoint, Connection connection, FrameCountingSocket socket) {
+			this.m_endpoint = endpoint;
+			this.m_connection = connection;
+			this.m_socket = socket;
+			this.m_lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Gets the number of messages which have been completely written to the connection
+		 * (including the end of message), after which the remote end may have received them
+		 */
+		public long getFramesWritten() {
+			return this.m_socket.m_framesWritten.get();
+		}
+
+		/**
+		 * Gets the underlying HAPI connection
+		 */
+		public Connection getConnection() {
+			return this.m_connection;
+		}
+
+		/**
+		 * True if the connection was used for a previous message
+		 */
+		public boolean isReused() {
+			return this.m_reused;
+		}
+	}
+
+	/**
+	 * A socket which counts the MLLP frames which have been completely written to it
+	 */
+	private static class FrameCountingSocket extends Socket {
+
+		private final AtomicLong m_framesWritten = new AtomicLong();
+		private OutputStream m_output;
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (this.m_output == null)
+				this.m_output = new FilterOutputStream(super.getOutputStream()) {
+
+					@Override
+					public void write(int b) throws IOException {
+						this.out.write(b);
+						if (b == END_BLOCK)
+							m_framesWritten.incrementAndGet();
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						// Only counted once the bytes have been written
+						this.out.write(b, off, len);
+						for (int i = off; i < off + len; i++)
+							if (b[i] == END_BLOCK)
+								m_framesWritten.incrementAndGet();
+					}
+				};
+			return this.m_output;
+		}
+	}
+
+	/**
+	 * The connections to a single host and port
+	 */
+	private static class Endpoint {
+
+		private final String m_host;
+		private final int m_port;
+		private final int m_maxConnections;
+		private final Semaphore m_permits;
+		private final LinkedBlockingDeque<PooledConnection> m_idle = new LinkedBlockingDeque<PooledConnection>();
+		private final AtomicLong m_opened = new AtomicLong();
+		private final AtomicLong m_reused = new AtomicLong();
+		private volatile long m_idleTimeout;
+
+		Endpoint(String host, int port, int maxConnections) {
+			this.m_host = host;
+			this.m_port = port;
+			this.m_maxConnections = maxConnections;
+			this.m_permits = new Semaphore(maxConnections, true);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s:%s", this.m_host, this.m_port);
+		}
+	}
+
+	/**
+	 * Creates a new connection pool
+	 */
+	private MllpConnectionPool() {
+		this(MpiClientConfiguration.getInstance());
+	}
+
+	/**
+	 * Creates a new connection pool with the specified configuration
+	 */
+	MllpConnectionPool(MpiClientConfiguration configuration) {
+		this.m_configuration = configuration;
+	}
+
+	/**
+	 * Get an instance of the connection pool
+	 */
+	public static MllpConnectionPool getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new MllpConnectionPool();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Lease a connection to the specified endpoint, waiting up to the connect timeout if
+	 * all connections to the endpoint are in use. The connection must be given back with
+	 * {@link #release(PooledConnection)} or {@link #discard(PooledConnection)}.
+	 *
+	 * @param host The host to connect to
+	 * @param port The port to connect to
+	 * @return A connected MLLP connection
+	 */
+	public PooledConnection acquire(String host, int port) throws IOException, LLPException {
+
+		int connectTimeout = this.m_configuration.getHl7ConnectTimeout();
+		Endpoint endpoint = this.getEndpoint(host, port);
+		endpoint.m_idleTimeout = this.m_configuration.getHl7IdleTimeout();
+
+		try {
+			if (!endpoint.m_permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS))
+				throw new IOException(String.format("Timed out waiting for a connection to %s", endpoint));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Interrupted waiting for a connection to %s", endpoint));
+		}
+
+		try {
+			PooledConnection retVal;
+			while ((retVal = endpoint.m_idle.pollFirst()) != null) {
+				if (this.isHealthy(retVal)) {
+					retVal.m_reused = true;
+					endpoint.m_reused.incrementAndGet();
+					return retVal;
+				}
+				this.close(retVal);
+			}
+			return this.open(endpoint, connectTimeout);
+		}
+		catch (IOException | LLPException | RuntimeException e) {
+			endpoint.m_permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return a connection to the pool so it can be re-used
+	 */
+	public void release(PooledConnection connection) {
+		Endpoint endpoint = connection.m_endpoint;
+		try {
+			if (connection.m_connection.isOpen() && this.m_endpoints.get(endpoint.toString()) == endpoint) {
+				connection.m_lastUsed = System.currentTimeMillis();
+				endpoint.m_idle.offerFirst(connection);
+			} else
+				this.close(connection);
+		}
+		finally {
+			endpoint.m_permits.release();
+		}
+	}
+
+	/**
+	 * Close a connection which should not be re-used (for example after an error)
+	 */
+	public void discard(PooledConnection connection) {
+		try {
+			this.close(connection);
+		}
+		finally {
+			connection.m_endpoint.m_permits.release();
+		}
+	}
+
+	/**
+	 * Gets the number of connections which are open, in use and re-used for each endpoint
+	 */
+	public String getPoolStatistics() {
+		StringBuilder retVal = new StringBuilder();
+		for (Endpoint endpoint : this.m_endpoints.values()) {
+			retVal.append(String.format("%s [idle: %s; leased: %s; max: %s; opened: %s; reused: %s] ", endpoint,
+					endpoint.m_idle.size(), endpoint.m_maxConnections - endpoint.m_permits.availablePermits(),
+					endpoint.m_maxConnections, endpoint.m_opened.get(), endpoint.m_reused.get()));
+		}
+		return retVal.toString().trim();
+	}
+
+	/**
+	 * Closes all idle connections and stops the eviction thread. Connections which are in
+	 * use are closed when they are released.
+	 */
+	public void shutdown() {
+		synchronized (s_lockObject) {
+			if (this.m_evictor != null) {
+				this.m_evictor.shutdownNow();
+				this.m_evictor = null;
+			}
+			for (Endpoint endpoint : this.m_endpoints.values())
+				this.closeIdle(endpoint, true);
+			this.m_endpoints.clear();
+		}
+	}
+
+	/**
+	 * Get the pool for the host and port, replacing it if the maximum number of connections
+	 * has been changed
+	 */
+	private Endpoint getEndpoint(String host, int port) {
+		final int maxConnections = Math.max(1, this.m_configuration.getHl7MaxConnections());
+		String key = String.format("%s:%s", host, port);
+		Endpoint retVal = this.m_endpoints.get(key);
+		if (retVal == null || retVal.m_maxConnections != maxConnections) {
+			Endpoint previous = retVal;
+			retVal = this.m_endpoints.compute(key, (k, v) -> v == null || v.m_maxConnections != maxConnections
+					? new Endpoint(host, port, maxConnections) : v);
+			if (previous != null && previous != retVal)
+				this.closeIdle(previous, true);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Open a new connection to the endpoint
+	 */
+	private PooledConnection open(Endpoint endpoint, int connectTimeout) throws IOException, LLPException {
+		FrameCountingSocket socket = new FrameCountingSocket();
+		try {
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(endpoint.m_host, endpoint.m_port), connectTimeout);
+			Connection connection = new Connection(new PipeParser(), new MinLowerLayerProtocol(), socket);
+			connection.activate();
+			endpoint.m_opened.incrementAndGet();
+			this.startEvictor();
+			this.log.debug(String.format("Opened MLLP connection to %s", endpoint));
+			return new PooledConnection(endpoint, connection, socket);
+		}
+		catch (IOException | LLPException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * True if the connection can be used for another message
+	 */
+	private boolean isHealthy(PooledConnection connection) {
+		return connection.m_connection.isOpen()
+				&& System.currentTimeMillis() - connection.m_lastUsed < connection.m_endpoint.m_idleTimeout;
+	}
+
+	/**
+	 * Close the idle connections to the endpoint which have expired (or all of them)
+	 */
+	private void closeIdle(Endpoint endpoint, boolean all) {
+		for (PooledConnection connection : endpoint.m_idle) {
+			// Only close the connection if it has not just been leased
+			if ((all || !this.isHealthy(connection)) && endpoint.m_idle.remove(connection))
+				this.close(connection);
+		}
+	}
+
+	/**
+	 * Close the specified connection
+	 */
+	private void close(PooledConnection connection) {
+		try {
+			connection.m_connection.close();
+			this.log.debug(String.format("Closed MLLP connection to %s", connection.m_endpoint));
+		}
+		catch (RuntimeException e) {
+			this.log.warn(String.format("Error closing MLLP connection to %s", connection.m_endpoint), e);
+		}
+	}
+
+	/**
+	 * Start the thread which closes expired idle connections
+	 */
+	private void startEvictor() {
+		if (this.m_evictor != null)
+			return;
+
+		synchronized (s_lockObject) {
+			if (this.m_evictor != null)
+				return;
+			this.m_evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread retVal = new Thread(r, "mpi-client-mllp-evictor");
+					retVal.setDaemon(true);
+					return retVal;
+				}
+			});
+			this.m_evictor.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					for (Endpoint endpoint : m_endpoints.values())
+						closeIdle(endpoint, false);
+				}
+			}, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,585 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.app.DefaultApplication;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+
+/**
+ * Receives update (A08, A31) and merge (A40) notifications from the MPI over MLLP. One
+ * thread serves all connections with non-blocking IO: each message is parsed and
+ * acknowledged as soon as it is read, and applying it to the local patients is queued on one
+ * of a fixed number of single-threaded lanes. The lane is chosen by the first patient
+ * identifier (PID-3) of the message, so the messages of one patient are applied one at a time
+ * in the order they were received, while other patients are applied in parallel. Messages are
+ * rejected (AR) when they cannot be parsed or are not a supported event, and refused (AE)
+ * when the lane's queue is full so that the MPI sends them again. Only the allowed hosts may
+ * send messages, and the sending application and facility (MSH-3, MSH-4) must be the MPI;
+ * other messages are rejected (AR) before anything is applied.
+ */
+public final class MllpListener implements Runnable {
+
+	/**
+	 * Applies a received message
+	 */
+	public interface MessageHandler {
+
+		/**
+		 * Apply the message
+		 */
+		void apply(Message message) throws Exception;
+	}
+
+	// MLLP framing
+	private static final byte START_BLOCK = 0x0b;
+	private static final byte END_BLOCK = 0x1c;
+	private static final byte CARRIAGE_RETURN = 0x0d;
+
+	// Largest message which is read, larger messages close the connection
+	private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+	// Trigger events which are applied
+	private static final Set<String> SUPPORTED_EVENTS = new HashSet<String>(Arrays.asList("A08", "A31", "A40"));
+
+	// How long to wait for queued messages to be applied when stopping
+	private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MllpListener s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Listener settings
+	private final String m_bindAddress;
+	private final int m_port;
+	private final int m_poolSize;
+	private final int m_queueSize;
+
+	// Allowed senders
+	private final Collection<String> m_allowedHosts;
+	private final String m_sendingApplication;
+	private final String m_sendingFacility;
+
+	// The allowed hosts resolved when the listener starts
+	private volatile Set<InetAddress> m_allowedAddresses = Collections.emptySet();
+
+	// Applies the messages
+	private final MessageHandler m_handler;
+
+	// Parses messages and encodes acknowledgements on the listener thread
+	private final PipeParser m_parser = new PipeParser();
+
+	// Buffer for reads on the listener thread
+	private final ByteBuffer m_readBuffer = ByteBuffer.allocate(16 * 1024);
+
+	// Listener state
+	private volatile Selector m_selector = null;
+	private volatile ServerSocketChannel m_server = null;
+	private volatile Thread m_thread = null;
+	private volatile ThreadPoolExecutor[] m_lanes = null;
+
+	// Statistics
+	private final AtomicLong m_received = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final AtomicLong m_applied = new AtomicLong();
+	private final AtomicLong m_failed = new AtomicLong();
+
+	/**
+	 * The state of one connection
+	 */
+	private static class Connection {
+
+		// The host which connected
+		private final InetAddress m_remoteAddress;
+
+		// The message being read
+		private final ByteArrayOutputStream m_message = new ByteArrayOutputStream();
+
+		// True if the start of a message has been read
+		private boolean m_inMessage = false;
+
+		// Acknowledgements not yet written
+		private final Deque<ByteBuffer> m_pending = new ArrayDeque<ByteBuffer>();
+
+		Connection(InetAddress remoteAddress) {
+			this.m_remoteAddress = remoteAddress;
+		}
+	}
+
+	/**
+	 * Creates a new listener
+	 *
+	 * @param bindAddress The address to listen on
+	 * @param port The port to listen on (0 for any free port)
+	 * @param poolSize The number of lanes (threads) which apply messages
+	 * @param queueSize The number of messages which may wait to be applied, divided between the lanes
+	 * @param allowedHosts The hosts which may send messages (empty if any host may)
+	 * @param sendingApplication The MSH-3 which messages must have (null to not check)
+	 * @param sendingFacility The MSH-4 which messages must have (null to not check)
+	 * @param handler Applies the messages
+	 */
+	MllpListener(String bindAddress, int port, int poolSize, int queueSize, Collection<String> allowedHosts,
+			String sendingApplication, String sendingFacility, MessageHandler handler) {
+		this.m_bindAddress = bindAddress;
+		this.m_port = port;
+		this.m_poolSize = Math.max(1, poolSize);
+		this.m_queueSize = Math.max(1, queueSize);
+		this.m_allowedHosts = allowedHosts;
+		this.m_sendingApplication = sendingApplication;
+		this.m_sendingFacility = sendingFacility;
+		this.m_handler = handler;
+	}
+
+	/**
+	 * Get an instance of the listener
+	 */
+	public static MllpListener getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null) {
+					MpiClientConfiguration configuration = MpiClientConfiguration.getInstance();
+					s_instance = new MllpListener(configuration.getHl7ListenerBindAddress(),
+							configuration.getHl7ListenerPort(), configuration.getHl7ListenerPoolSize(),
+							configuration.getHl7ListenerQueueSize(), configuration.getHl7ListenerAllowedHosts(),
+							configuration.getRemoteApplication(), configuration.getRemoteFacility(), null);
+				}
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Start listening
+	 *
+	 * @return False if the listener is already started
+	 */
+	public boolean start() throws IOException {
+		synchronized (s_lockObject) {
+			if (this.m_thread != null)
+				return false;
+
+			// Hosts which cannot be resolved are not allowed
+			Set<InetAddress> allowedAddresses = new HashSet<InetAddress>();
+			for (String host : this.m_allowedHosts)
+				try {
+					allowedAddresses.addAll(Arrays.asList(InetAddress.getAllByName(host)));
+				}
+				catch (IOException e) {
+					this.log.warn(String.format("Cannot resolve allowed MLLP sender %s", host), e);
+				}
+			if (!this.m_allowedHosts.isEmpty() && allowedAddresses.isEmpty())
+				throw new IOException("None of the allowed MLLP senders can be resolved");
+			this.m_allowedAddresses = allowedAddresses;
+
+			final AtomicInteger threadNumber = new AtomicInteger();
+			ThreadFactory threadFactory = new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread retVal = new Thread(r, String.format("mpi-client-mllp-worker-%s", threadNumber.incrementAndGet()));
+					retVal.setDaemon(true);
+					return retVal;
+				}
+			};
+			int laneQueueSize = Math.max(1, this.m_queueSize / this.m_poolSize);
+			ThreadPoolExecutor[] lanes = new ThreadPoolExecutor[this.m_poolSize];
+			for (int i = 0; i < lanes.length; i++)
+				lanes[i] = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(laneQueueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+
+			Selector selector = Selector.open();
+			ServerSocketChannel server = ServerSocketChannel.open();
+			try {
+				server.configureBlocking(false);
+				server.socket().setReuseAddress(true);
+				server.socket().bind(new InetSocketAddress(InetAddress.getByName(this.m_bindAddress), this.m_port));
+				server.register(selector, SelectionKey.OP_ACCEPT);
+			}
+			catch (IOException e) {
+				server.close();
+				selector.close();
+				for (ThreadPoolExecutor lane : lanes)
+					lane.shutdownNow();
+				throw e;
+			}
+
+			this.m_lanes = lanes;
+			this.m_selector = selector;
+			this.m_server = server;
+			this.m_thread = new Thread(this, "mpi-client-mllp-listener");
+			this.m_thread.setDaemon(true);
+			this.m_thread.start();
+			this.log.info(String.format("Listening for MPI notifications on %s:%s with %s lanes and %s queued messages",
+					this.m_bindAddress, this.getLocalPort(), this.m_poolSize, this.m_queueSize));
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the port the listener is bound to or -1 if it is not listening
+	 */
+	public int getLocalPort() {
+		ServerSocketChannel server = this.m_server;
+		return server == null ? -1 : server.socket().getLocalPort();
+	}
+
+	/**
+	 * Gets the number of messages received, rejected, applied and failed
+	 */
+	public String getStatistics() {
+		ThreadPoolExecutor[] lanes = this.m_lanes;
+		int queued = 0;
+		if (lanes != null)
+			for (ThreadPoolExecutor lane : lanes)
+				queued += lane.getQueue().size();
+		return String.format("received: %s; rejected: %s; queued: %s; applied: %s; failed: %s", this.m_received.get(),
+				this.m_rejected.get(), queued, this.m_applied.get(), this.m_failed.get());
+	}
+
+	/**
+	 * Stop listening and wait for queued messages to be applied
+	 */
+	public void shutdown() {
+		Thread thread;
+		ThreadPoolExecutor[] lanes;
+		synchronized (s_lockObject) {
+			thread = this.m_thread;
+			lanes = this.m_lanes;
+			this.m_thread = null;
+			this.m_lanes = null;
+		}
+		if (thread == null)
+			return;
+
+		try {
+			// The listener thread closes the connections as it exits
+			thread.interrupt();
+			thread.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_WAIT_SECONDS));
+			for (ThreadPoolExecutor lane : lanes)
+				lane.shutdown();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_WAIT_SECONDS);
+			int abandoned = 0;
+			for (ThreadPoolExecutor lane : lanes)
+				if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+					abandoned += lane.shutdownNow().size();
+			if (abandoned > 0)
+				this.log.warn(String.format("MLLP listener did not stop in time, %s queued messages abandoned", abandoned));
+		}
+		catch (InterruptedException e) {
+			for (ThreadPoolExecutor lane : lanes)
+				lane.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Accept connections and read messages until interrupted
+	 */
+	@Override
+	public void run() {
+		Selector selector = this.m_selector;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						else if (key.isAcceptable())
+							this.accept(selector);
+						else {
+							if (key.isReadable())
+								this.read(key);
+							if (key.isValid() && key.isWritable())
+								this.write(key);
+						}
+					}
+					catch (IOException e) {
+						this.log.warn("MLLP connection closed", e);
+						this.close(key);
+					}
+				}
+			}
+		}
+		catch (IOException | ClosedSelectorException e) {
+			this.log.error("MLLP listener stopped", e);
+		}
+		finally {
+			try {
+				for (SelectionKey key : selector.keys())
+					this.close(key);
+				selector.close();
+			}
+			catch (IOException | ClosedSelectorException e) {
+				this.log.warn("Error closing MLLP listener", e);
+			}
+			this.m_server = null;
+		}
+	}
+
+	/**
+	 * Accept a new connection
+	 */
+	private void accept(Selector selector) throws IOException {
+		SocketChannel channel = this.m_server.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel.socket().getInetAddress()));
+		this.log.debug(String.format("Accepted MLLP connection from %s", channel.getRemoteAddress()));
+	}
+
+	/**
+	 * Read from the connection and acknowledge each complete message
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+
+		this.m_readBuffer.clear();
+		if (channel.read(this.m_readBuffer) < 0) {
+			this.close(key);
+			return;
+		}
+		this.m_readBuffer.flip();
+
+		// The carriage return after the end block and anything between messages is ignored
+		while (this.m_readBuffer.hasRemaining()) {
+			byte b = this.m_readBuffer.get();
+			if (b == START_BLOCK) {
+				connection.m_message.reset();
+				connection.m_inMessage = true;
+			}
+			else if (b == END_BLOCK && connection.m_inMessage) {
+				connection.m_inMessage = false;
+				String ack = this.receive(new String(connection.m_message.toByteArray(), StandardCharsets.UTF_8),
+						connection.m_remoteAddress);
+				if (ack != null) {
+					byte[] encoded = ack.getBytes(StandardCharsets.UTF_8);
+					ByteBuffer frame = ByteBuffer.allocate(encoded.length + 3);
+					frame.put(START_BLOCK).put(encoded).put(END_BLOCK).put(CARRIAGE_RETURN).flip();
+					connection.m_pending.add(frame);
+				}
+			}
+			else if (connection.m_inMessage) {
+				if (connection.m_message.size() >= MAX_MESSAGE_SIZE)
+					throw new IOException(String.format("MLLP message is larger than %s bytes", MAX_MESSAGE_SIZE));
+				connection.m_message.write(b);
+			}
+		}
+
+		if (!connection.m_pending.isEmpty())
+			this.write(key);
+	}
+
+	/**
+	 * Write pending acknowledgements, waiting for the connection to be writable if they do
+	 * not fit
+	 */
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		while (!connection.m_pending.isEmpty()) {
+			ByteBuffer frame = connection.m_pending.peek();
+			channel.write(frame);
+			if (frame.hasRemaining())
+				break;
+			connection.m_pending.poll();
+		}
+		key.interestOps(connection.m_pending.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Close the connection
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		}
+		catch (IOException e) {
+			this.log.warn("Error closing MLLP connection", e);
+		}
+	}
+
+	/**
+	 * Parse the message and queue it to be applied
+	 *
+	 * @param payload The message
+	 * @param sender The host which sent the message
+	 * @return The encoded acknowledgement or null if none can be made
+	 */
+	String receive(String payload, InetAddress sender) {
+		this.m_received.incrementAndGet();
+
+		final Message message;
+		try {
+			message = this.m_parser.parse(payload);
+		}
+		catch (HL7Exception e) {
+			this.log.warn("Rejecting MLLP message which cannot be parsed", e);
+			this.m_rejected.incrementAndGet();
+			try {
+				Message ack = DefaultApplication.makeACK(this.m_parser.getCriticalResponseData(payload));
+				Terser terser = new Terser(ack);
+				terser.set("/MSA-1", "AR");
+				terser.set("/MSA-3", e.getMessage());
+				return this.m_parser.encode(ack);
+			}
+			catch (HL7Exception | IOException e2) {
+				this.log.error("Cannot acknowledge MLLP message", e2);
+				return null;
+			}
+		}
+
+		try {
+			Terser terser = new Terser(message);
+			String event = terser.get("/MSH-9-2");
+			if (!this.isAllowedSender(sender, terser.get("/MSH-3-1"), terser.get("/MSH-4-1"))) {
+				this.log.warn(String.format("Rejecting %s notification from %s (%s/%s) which is not an allowed sender", event,
+						sender, terser.get("/MSH-3-1"), terser.get("/MSH-4-1")));
+				this.m_rejected.incrementAndGet();
+				return this.m_parser.encode(message.generateACK("AR", new HL7Exception("Sender is not allowed")));
+			}
+			else if (!"2.5".equals(message.getVersion()) || !SUPPORTED_EVENTS.contains(event)) {
+				this.m_rejected.incrementAndGet();
+				return this.m_parser.encode(message.generateACK("AR",
+						new HL7Exception(String.format("%s version %s is not supported", event, message.getVersion()))));
+			}
+
+			try {
+				// Messages about the same patient go to the same lane, so they are applied in order
+				this.getLane(terser).execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							if (m_handler == null)
+								applyMessage(message);
+							else
+								m_handler.apply(message);
+							m_applied.incrementAndGet();
+						}
+						catch (Exception e) {
+							m_failed.incrementAndGet();
+							log.error(String.format("Error applying %s notification from the MPI", event), e);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				this.log.warn(String.format("MLLP notification queue is full, refusing %s notification", event));
+				this.m_rejected.incrementAndGet();
+				return this.m_parser.encode(message.generateACK("AE", new HL7Exception("Notification queue is full")));
+			}
+			return this.m_parser.encode(message.generateACK());
+		}
+		catch (HL7Exception | IOException e) {
+			this.log.error("Cannot acknowledge MLLP message", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the lane which applies the messages of the patient identified by the first PID-3
+	 * (identifier and assigning authority) of the message
+	 */
+	private ThreadPoolExecutor getLane(Terser terser) throws HL7Exception {
+		ThreadPoolExecutor[] lanes = this.m_lanes;
+		if (lanes == null)
+			throw new RejectedExecutionException("The listener is stopping");
+		String key = String.format("%s^%s", terser.get("/.PID-3-1"), terser.get("/.PID-3-4-1"));
+		return lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+	}
+
+	/**
+	 * True if the host is allowed and the sending application and facility are the MPI
+	 */
+	private boolean isAllowedSender(InetAddress sender, String sendingApplication, String sendingFacility) {
+		Set<InetAddress> allowedAddresses = this.m_allowedAddresses;
+		return (this.m_allowedHosts.isEmpty() || allowedAddresses.contains(sender))
+				&& (this.m_sendingApplication == null || this.m_sendingApplication.equalsIgnoreCase(sendingApplication))
+				&& (this.m_sendingFacility == null || this.m_sendingFacility.equalsIgnoreCase(sendingFacility));
+	}
+
+	/**
+	 * Apply the update or merge to the local patients, as the daemon user so the changes have
+	 * a creator
+	 */
+	void applyMessage(final Message message) throws Exception {
+		MpiDaemon.run(new MpiDaemon.Work() {
+
+			@Override
+			public void run() throws Exception {
+				MpiClientService hieService = Context.getService(MpiClientService.class);
+				List<MpiPatient> patients = MessageUtil.getInstance().interpretPIDSegments(message);
+				if ("A40".equals(new Terser(message).get("/MSH-9-2"))) {
+					List<MpiPatient> mergedPatients = MessageUtil.getInstance().interpretMRGSegments(message);
+					for (int i = 0; i < patients.size() && i < mergedPatients.size(); i++)
+						if (!hieService.applyPatientMerge(patients.get(i), mergedPatients.get(i)))
+							log.debug("MPI merge did not change a local patient");
+				}
+				else
+					for (MpiPatient patient : patients)
+						if (!hieService.applyPatientUpdate(patient))
+							log.debug("MPI update did not change a local patient");
+			}
+		});
+	}
+}
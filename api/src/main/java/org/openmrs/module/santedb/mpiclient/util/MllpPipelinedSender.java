@@ -0,0 +1,327 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.llp.HL7Reader;
+import ca.uhn.hl7v2.llp.HL7Writer;
+import ca.uhn.hl7v2.llp.LLPException;
+import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+
+/**
+ * Sends HL7 messages over a single MLLP connection per endpoint without waiting for the
+ * previous message to be acknowledged. Responses are matched to their requests by the
+ * acknowledged control id (MSA-2 against MSH-10), so several messages can be in flight on
+ * one socket. Requests which are not answered within the response timeout fail with a
+ * {@link TimeoutException}; if the connection is lost all outstanding requests fail and
+ * the next message opens a new connection.
+ */
+public final class MllpPipelinedSender {
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MllpPipelinedSender s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration;
+
+	// Connections by host:port
+	private final Map<String, Channel> m_channels = new ConcurrentHashMap<String, Channel>();
+
+	// Fails requests which are not answered in time
+	private volatile ScheduledThreadPoolExecutor m_timer = null;
+
+	// Statistics
+	private final AtomicLong m_sent = new AtomicLong();
+	private final AtomicLong m_timeouts = new AtomicLong();
+
+	/**
+	 * A pipelined connection to a single endpoint
+	 */
+	private class Channel implements Runnable {
+
+		private final String m_key;
+		private final Socket m_socket;
+		private final HL7Writer m_writer;
+		private final HL7Reader m_reader;
+		private final PipeParser m_parser = new PipeParser();
+		private final Semaphore m_inFlight;
+		private final Map<String, CompletableFuture<Message>> m_pending = new ConcurrentHashMap<String, CompletableFuture<Message>>();
+		private volatile boolean m_closed = false;
+
+		Channel(String key, String host, int port, int maxInFlight, int connectTimeout) throws IOException, LLPException {
+			this.m_key = key;
+			this.m_inFlight = new Semaphore(maxInFlight);
+			this.m_socket = new Socket();
+			try {
+				this.m_socket.setKeepAlive(true);
+				this.m_socket.setTcpNoDelay(true);
+				this.m_socket.connect(new InetSocketAddress(host, port), connectTimeout);
+				MinLowerLayerProtocol llp = new MinLowerLayerProtocol();
+				this.m_writer = llp.getWriter(this.m_socket.getOutputStream());
+				this.m_reader = llp.getReader(this.m_socket.getInputStream());
+			}
+			catch (IOException | LLPException | RuntimeException e) {
+				this.m_socket.close();
+				throw e;
+			}
+
+			Thread reader = new Thread(this, String.format("mpi-client-mllp-reader-%s", key));
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Write the message and register for its response
+		 */
+		CompletableFuture<Message> send(Message request, int connectTimeout, int responseTimeout) {
+			final CompletableFuture<Message> retVal = new CompletableFuture<Message>();
+			try {
+				if (!this.m_inFlight.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS))
+					throw new TimeoutException(String.format("Too many messages awaiting a response from %s", this.m_key));
+
+				final String controlId = new Terser(request).get("/MSH-10");
+				if (controlId == null || this.m_pending.putIfAbsent(controlId, retVal) != null) {
+					this.m_inFlight.release();
+					throw new HL7Exception(String.format("Message control id %s is missing or already in flight", controlId));
+				}
+				retVal.whenComplete((r, e) -> {
+					this.m_pending.remove(controlId, retVal);
+					this.m_inFlight.release();
+				});
+
+				String encoded = this.m_parser.encode(request);
+				synchronized (this.m_writer) {
+					if (this.m_closed)
+						throw new IOException(String.format("Connection to %s is closed", this.m_key));
+					this.m_writer.writeMessage(encoded);
+				}
+				m_sent.incrementAndGet();
+
+				final ScheduledFuture<?> timeout = getTimer().schedule(() -> {
+					if (retVal.completeExceptionally(new TimeoutException(String.format(
+							"No response to message %s from %s after %s ms", controlId, this.m_key, responseTimeout))))
+						m_timeouts.incrementAndGet();
+				}, responseTimeout, TimeUnit.MILLISECONDS);
+				retVal.whenComplete((r, e) -> timeout.cancel(false));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				retVal.completeExceptionally(e);
+			}
+			catch (IOException | LLPException e) {
+				retVal.completeExceptionally(e);
+				this.close(e);
+			}
+			catch (Exception e) {
+				retVal.completeExceptionally(e);
+			}
+			return retVal;
+		}
+
+		/**
+		 * Read responses and complete the matching requests
+		 */
+		@Override
+		public void run() {
+			try {
+				String response;
+				while (!this.m_closed && (response = this.m_reader.getMessage()) != null) {
+					String ackId = this.m_parser.getAckID(response);
+					CompletableFuture<Message> pending = ackId == null ? null : this.m_pending.get(ackId);
+					if (pending == null) {
+						log.warn(String.format("Discarding response from %s to unknown message %s", this.m_key, ackId));
+						continue;
+					}
+					try {
+						pending.complete(this.m_parser.parse(response));
+					}
+					catch (HL7Exception e) {
+						pending.completeExceptionally(e);
+					}
+				}
+				this.close(new IOException(String.format("Connection closed by %s", this.m_key)));
+			}
+			catch (IOException | LLPException | RuntimeException e) {
+				this.close(e);
+			}
+		}
+
+		/**
+		 * Close the connection and fail any outstanding requests
+		 */
+		void close(Exception cause) {
+			synchronized (this.m_writer) {
+				if (this.m_closed)
+					return;
+				this.m_closed = true;
+			}
+			m_channels.remove(this.m_key, this);
+			if (!this.m_pending.isEmpty())
+				log.warn(String.format("Connection to %s lost with %s messages awaiting a response", this.m_key,
+						this.m_pending.size()), cause);
+			for (CompletableFuture<Message> pending : this.m_pending.values())
+				pending.completeExceptionally(cause);
+			try {
+				this.m_socket.close();
+			}
+			catch (IOException e) {
+				log.warn(String.format("Error closing connection to %s", this.m_key), e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new pipelined sender
+	 */
+	private MllpPipelinedSender() {
+		this(MpiClientConfiguration.getInstance());
+	}
+
+	/**
+	 * Creates a new pipelined sender with the specified configuration
+	 */
+	MllpPipelinedSender(MpiClientConfiguration configuration) {
+		this.m_configuration = configuration;
+	}
+
+	/**
+	 * Get an instance of the pipelined sender
+	 */
+	public static MllpPipelinedSender getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new MllpPipelinedSender();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Send a message to the endpoint without waiting for earlier messages to be answered
+	 *
+	 * @param request The message to send (its MSH-10 must be unique among messages in flight)
+	 * @param host The host to send the message to
+	 * @param port The port to send the message to
+	 * @return A future which completes with the response
+	 */
+	public CompletableFuture<Message> send(Message request, String host, int port) {
+		int connectTimeout = this.m_configuration.getHl7ConnectTimeout(),
+				responseTimeout = this.m_configuration.getHl7ResponseTimeout();
+		try {
+			return this.getChannel(host, port, connectTimeout).send(request, connectTimeout, responseTimeout);
+		}
+		catch (IOException | LLPException e) {
+			CompletableFuture<Message> retVal = new CompletableFuture<Message>();
+			retVal.completeExceptionally(e);
+			return retVal;
+		}
+	}
+
+	/**
+	 * Gets the number of messages sent, awaiting a response and timed out
+	 */
+	public String getStatistics() {
+		int inFlight = 0;
+		for (Channel channel : this.m_channels.values())
+			inFlight += channel.m_pending.size();
+		return String.format("connections: %s; sent: %s; in flight: %s; timed out: %s", this.m_channels.size(),
+				this.m_sent.get(), inFlight, this.m_timeouts.get());
+	}
+
+	/**
+	 * Close all connections, failing any outstanding requests
+	 */
+	public void shutdown() {
+		synchronized (s_lockObject) {
+			for (Channel channel : this.m_channels.values())
+				channel.close(new IOException("MLLP sender has been shut down"));
+			this.m_channels.clear();
+			if (this.m_timer != null) {
+				this.m_timer.shutdownNow();
+				this.m_timer = null;
+			}
+		}
+	}
+
+	/**
+	 * Get the open channel to the endpoint, connecting if required
+	 */
+	private Channel getChannel(String host, int port, int connectTimeout) throws IOException, LLPException {
+		String key = String.format("%s:%s", host, port);
+		Channel retVal = this.m_channels.get(key);
+		if (retVal == null || retVal.m_closed) {
+			synchronized (s_lockObject) {
+				retVal = this.m_channels.get(key);
+				if (retVal == null || retVal.m_closed) {
+					retVal = new Channel(key, host, port, Math.max(1, this.m_configuration.getHl7MaxInFlight()),
+							connectTimeout);
+					this.m_channels.put(key, retVal);
+					this.log.debug(String.format("Opened pipelined MLLP connection to %s", key));
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Get the timer used to expire requests
+	 */
+	private ScheduledExecutorService getTimer() {
+		if (this.m_timer == null)
+			synchronized (s_lockObject) {
+				if (this.m_timer == null) {
+					ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread retVal = new Thread(r, "mpi-client-mllp-timeout");
+							retVal.setDaemon(true);
+							return retVal;
+						}
+					});
+					// Most requests are answered long before they time out
+					timer.setRemoveOnCancelPolicy(true);
+					this.m_timer = timer;
+				}
+			}
+		return this.m_timer;
+	}
+}
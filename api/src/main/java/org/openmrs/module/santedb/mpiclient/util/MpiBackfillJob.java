@@ -0,0 +1,296 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+
+/**
+ * Exports the existing patients to the MPI, for example when a facility goes live. Patients
+ * are read in pages by id; each page is split into chunks which are sent in parallel
+ * through the batch export, and the checkpoint is saved once the whole page has been sent.
+ * A backfill which is running when the module stops resumes from its checkpoint when the
+ * module starts again. Patients whose export fails are queued in the outbox to be retried;
+ * if a whole page fails (for example because the MPI is down) the page is retried after the
+ * outbox retry delay instead, and the backfill stops after the outbox maximum attempts.
+ */
+public class MpiBackfillJob extends CheckpointedJob {
+
+	// Privileges needed to read and export patients
+	private static final String[] PRIVILEGES = { "Get Patients", "Get Identifier Types", "Get Patient Identifiers",
+			"Get People", "Get Relationships", "Get Person Attribute Types", "Get Locations", "Get Concepts",
+			"Get Observations" };
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MpiBackfillJob s_instance = null;
+
+	// The last checkpoint
+	private volatile MpiBackfillState m_state = null;
+
+	// Statistics of the current run (since the backfill was started or resumed)
+	private volatile long m_runStarted = 0;
+	private volatile long m_runProcessed = 0;
+
+	/**
+	 * Creates a new backfill job
+	 */
+	private MpiBackfillJob() {
+		this(MpiClientConfiguration.getInstance());
+	}
+
+	/**
+	 * Creates a new backfill job with the specified configuration
+	 */
+	MpiBackfillJob(MpiClientConfiguration configuration) {
+		super(configuration, "MPI backfill", "mpi-client-backfill", PRIVILEGES);
+	}
+
+	/**
+	 * Get an instance of the backfill job
+	 */
+	public static MpiBackfillJob getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new MpiBackfillJob();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Gets the last checkpoint of the backfill which is running (or ran last), or null if it
+	 * has not been loaded
+	 */
+	public MpiBackfillState getState() {
+		return this.m_state;
+	}
+
+	/**
+	 * Gets the number of patients exported per second since the backfill was started or resumed
+	 */
+	public double getThroughput() {
+		long elapsed = System.currentTimeMillis() - this.m_runStarted;
+		if (this.m_runStarted == 0 || elapsed <= 0)
+			return 0;
+		return this.m_runProcessed * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Gets the estimated time (in seconds) until the backfill is complete, or null if it is
+	 * not running or no patients have been exported yet
+	 */
+	public Long getEstimatedSecondsRemaining() {
+		MpiBackfillState state = this.m_state;
+		double throughput = this.getThroughput();
+		if (!this.isRunning() || state == null || throughput <= 0)
+			return null;
+		long remaining = Math.max(0, state.getTotalPatients() - state.getExported() - state.getFailed());
+		return (long) Math.ceil(remaining / throughput);
+	}
+
+	/**
+	 * Gets the progress of the backfill
+	 */
+	@Override
+	public String getStatistics() {
+		MpiBackfillState state = this.m_state;
+		if (state == null)
+			return "not started";
+		Long eta = this.getEstimatedSecondsRemaining();
+		return String.format("%s; exported: %s of %s; failed: %s; last patient: %s of %s; %.1f patients/s; ETA: %s",
+				this.getStatus(state.getStatus(), MpiBackfillState.STATUS_RUNNING), state.getExported(),
+				state.getTotalPatients(), state.getFailed(), state.getLastPatientId(), state.getMaxPatientId(),
+				this.getThroughput(), eta == null ? "unknown"
+						: String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+	}
+
+	/**
+	 * Gets the checkpoint of a backfill which was running when the module stopped
+	 */
+	@Override
+	protected String getInterruptedCheckpoint() {
+		MpiBackfillState state = this.getService().getBackfillState();
+		if (state != null && MpiBackfillState.STATUS_RUNNING.equals(state.getStatus()))
+			return String.format("patient %s", state.getLastPatientId());
+		return null;
+	}
+
+	/**
+	 * Export pages of patients until all have been exported or the backfill is stopped
+	 */
+	@Override
+	protected void run(boolean restart) throws Exception {
+		String crEndpoint = this.m_configuration.getClientRegistryEndpoint();
+		if (crEndpoint == null || crEndpoint.trim().isEmpty()) {
+			this.log.warn("No client registry endpoint is configured, the MPI backfill is not started");
+			return;
+		}
+
+		final int threads = Math.max(1, this.m_configuration.getBackfillThreads()),
+				chunkSize = Math.max(1, this.m_configuration.getBackfillChunkSize());
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread retVal = new Thread(r, String.format("mpi-client-backfill-%s", threadNumber.incrementAndGet()));
+				retVal.setDaemon(true);
+				return retVal;
+			}
+		});
+
+		try {
+			MpiClientService hieService = this.getService();
+			MpiBackfillState state = hieService.getBackfillState();
+			if (restart || state == null || MpiBackfillState.STATUS_COMPLETED.equals(state.getStatus()))
+				state = hieService.createBackfillState();
+			state.setStatus(MpiBackfillState.STATUS_RUNNING);
+			this.m_state = hieService.saveBackfillState(state);
+			this.m_runStarted = System.currentTimeMillis();
+			this.m_runProcessed = 0;
+			this.log.info(String.format("Exporting %s patients to the MPI after patient %s using %s threads",
+					state.getTotalPatients() - state.getExported() - state.getFailed(), state.getLastPatientId(), threads));
+
+			int failedPages = 0;
+			while (!this.isStopRequested()) {
+				List<Integer> page = hieService.getBackfillPatientIds(state, threads * chunkSize);
+				if (page.isEmpty()) {
+					state.setStatus(MpiBackfillState.STATUS_COMPLETED);
+					this.log.info(String.format("MPI backfill complete, %s patients exported and %s queued for retry",
+							state.getExported(), state.getFailed()));
+					break;
+				}
+
+				// Send the chunks in parallel
+				List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+				List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+				for (int i = 0; i < page.size(); i += chunkSize) {
+					List<Integer> chunk = new ArrayList<Integer>(page.subList(i, Math.min(page.size(), i + chunkSize)));
+					chunks.add(chunk);
+					results.add(workers.submit(new ChunkExport(chunk)));
+				}
+				List<Integer> failed = new ArrayList<Integer>();
+				for (int i = 0; i < chunks.size(); i++) {
+					try {
+						failed.addAll(results.get(i).get());
+					}
+					catch (ExecutionException e) {
+						this.log.error("Error exporting MPI backfill chunk", e.getCause());
+						failed.addAll(chunks.get(i));
+					}
+				}
+				int exported = page.size() - failed.size();
+
+				// Nothing got through, wait and try the page again
+				if (exported == 0) {
+					long delay = this.getRetryDelay(++failedPages);
+					if (delay < 0) {
+						this.log.error(String.format("Stopping MPI backfill after patient %s, %s attempts to export the next page failed",
+								state.getLastPatientId(), failedPages));
+						this.stop();
+						break;
+					}
+					this.log.warn(String.format("Export of MPI backfill page after patient %s failed, retrying in %s ms",
+							state.getLastPatientId(), delay));
+					this.sleep(delay);
+					continue;
+				}
+				failedPages = 0;
+
+				// Retry the patients which failed from the outbox
+				for (Integer patientId : failed)
+					hieService.queuePatientExport(this.getPatient(patientId), null);
+				if (!failed.isEmpty())
+					MpiOutboxDrainer.getInstance().wake();
+
+				// Save the checkpoint and release the patients of the page
+				state.setLastPatientId(page.get(page.size() - 1));
+				state.setExported(state.getExported() + exported);
+				state.setFailed(state.getFailed() + failed.size());
+				state.setDateCheckpointed(new Date());
+				this.m_state = hieService.saveBackfillState(state);
+				this.m_runProcessed += page.size();
+				this.clearSession();
+			}
+
+			if (this.isStoppedByUser() && !MpiBackfillState.STATUS_COMPLETED.equals(state.getStatus()))
+				state.setStatus(MpiBackfillState.STATUS_STOPPED);
+			state.setDateCheckpointed(new Date());
+			this.m_state = hieService.saveBackfillState(state);
+		}
+		finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Get the patient whose export is retried from the outbox
+	 */
+	protected Patient getPatient(Integer patientId) {
+		return Context.getPatientService().getPatient(patientId);
+	}
+
+	/**
+	 * Exports one chunk of a page in its own session
+	 */
+	private class ChunkExport implements Callable<List<Integer>> {
+
+		private final List<Integer> m_patientIds;
+
+		ChunkExport(List<Integer> patientIds) {
+			this.m_patientIds = patientIds;
+		}
+
+		/**
+		 * Export the patients
+		 *
+		 * @return The ids of the patients which could not be exported
+		 */
+		@Override
+		public List<Integer> call() throws Exception {
+			openSession();
+			try {
+				List<Integer> retVal = new ArrayList<Integer>();
+				for (MpiPatientExportResult result : getService().exportPatientsById(this.m_patientIds))
+					if (!result.isSuccessful()) {
+						log.warn(String.format("Backfill export of patient %s failed: %s",
+								result.getPatientExport().getPatient().getUuid(), result.getError().getMessage()));
+						retVal.add(result.getPatientExport().getPatient().getPatientId());
+					}
+				return retVal;
+			}
+			finally {
+				closeSession();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+
+/**
+ * Runs background work (the outbox workers, the jobs and the MPI notifications) as the
+ * OpenMRS daemon user. There is no user logged in on the module's own threads, so the
+ * identifiers, names and addresses they save would otherwise have no creator, and the
+ * names and addresses they void no voider.
+ */
+public final class MpiDaemon {
+
+	// The token given to the module when it is started
+	private static volatile DaemonToken s_daemonToken = null;
+
+	/**
+	 * Work which is run as the daemon user
+	 */
+	public interface Work {
+
+		/**
+		 * Do the work
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Utility class
+	 */
+	private MpiDaemon() {
+	}
+
+	/**
+	 * Set the token the module was given to run daemon threads
+	 */
+	public static void setDaemonToken(DaemonToken daemonToken) {
+		s_daemonToken = daemonToken;
+	}
+
+	/**
+	 * Run the work as the daemon user and wait for it to finish. The work runs on a daemon
+	 * thread in a session of its own, with all privileges, so it loads the objects it changes
+	 * itself rather than using objects of the caller's session.
+	 *
+	 * @param work The work to run
+	 * @throws Exception The exception the work failed with
+	 */
+	public static void run(final Work work) throws Exception {
+		DaemonToken daemonToken = s_daemonToken;
+		if (daemonToken == null)
+			throw new IllegalStateException("The MPI client module has not been given its daemon token");
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread thread = Daemon.runInDaemonThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					work.run();
+				}
+				catch (Throwable e) {
+					error.set(e);
+				}
+			}
+		}, daemonToken);
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			// Pass the interruption on, so stopping the caller stops the work
+			thread.interrupt();
+			throw e;
+		}
+
+		Throwable e = error.get();
+		if (e instanceof Exception)
+			throw (Exception) e;
+		else if (e instanceof Error)
+			throw (Error) e;
+	}
+}
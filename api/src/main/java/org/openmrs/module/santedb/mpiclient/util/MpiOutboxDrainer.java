@@ -0,0 +1,328 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.aop.PatientUpdateWorker;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Sends the exports queued in the outbox. Due exports are claimed in batches and handed to
+ * the {@link SynchronizationExecutor}; no more than one batch is in flight at a time, so the
+ * executor queue never overflows and the outbox (not memory) holds the backlog. Exports which
+ * cannot be queued are returned to the outbox rather than dropped. Saves request a drain
+ * once their transaction commits, the poll picks up anything else (such as retries).
+ */
+public class MpiOutboxDrainer {
+
+	// How long an export may stay claimed before it is assumed its worker has stopped
+	private static final long CLAIM_TIMEOUT_MILLIS = 15 * 60 * 1000;
+
+	// Requested drains are rounded up to this interval so a burst of saves runs one drain
+	private static final long WAKE_RESOLUTION_MILLIS = 250;
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MpiOutboxDrainer s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration;
+
+	// Runs the exports
+	private final SynchronizationExecutor m_executor;
+
+	// Runs the drain loop
+	private volatile ScheduledExecutorService m_timer = null;
+
+	// Times at which a requested drain is scheduled
+	private final Set<Long> m_scheduledWakes = new ConcurrentSkipListSet<Long>();
+
+	// Exports handed to the executor which have not finished
+	private final AtomicInteger m_inFlight = new AtomicInteger();
+
+	// Statistics
+	private final AtomicLong m_dispatched = new AtomicLong();
+	private final AtomicLong m_requeued = new AtomicLong();
+
+	/**
+	 * Creates a new drainer
+	 */
+	private MpiOutboxDrainer() {
+		this(MpiClientConfiguration.getInstance(), SynchronizationExecutor.getInstance());
+	}
+
+	/**
+	 * Creates a new drainer with the specified configuration and executor
+	 */
+	MpiOutboxDrainer(MpiClientConfiguration configuration, SynchronizationExecutor executor) {
+		this.m_configuration = configuration;
+		this.m_executor = executor;
+	}
+
+	/**
+	 * Get an instance of the drainer
+	 */
+	public static MpiOutboxDrainer getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new MpiOutboxDrainer();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Start draining the outbox. Exports claimed before the module started are returned to
+	 * the outbox first since their workers no longer exist.
+	 */
+	public void start() {
+		synchronized (s_lockObject) {
+			if (this.m_timer != null)
+				return;
+
+			final long started = System.currentTimeMillis();
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread retVal = new Thread(r, "mpi-client-outbox");
+					retVal.setDaemon(true);
+					return retVal;
+				}
+			});
+			timer.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					release(System.currentTimeMillis() - started);
+				}
+			});
+			long interval = Math.max(100, this.m_configuration.getOutboxPollInterval());
+			timer.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					poll();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+			this.m_timer = timer;
+		}
+	}
+
+	/**
+	 * Drain the outbox now rather than waiting for the next poll
+	 */
+	public void wake() {
+		this.wake(System.currentTimeMillis());
+	}
+
+	/**
+	 * Drain the outbox once the export queued in the current transaction is committed and
+	 * due, so it is sent without waiting for the next poll. Outside of a transaction the
+	 * drain is scheduled straight away.
+	 *
+	 * @param entry The export which was queued
+	 */
+	public void wakeAfterCommit(MpiOutboxEntry entry) {
+		final long due = entry.getNextAttempt() == null ? System.currentTimeMillis() : entry.getNextAttempt().getTime();
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCommit() {
+					wake(due);
+				}
+			});
+		else
+			this.wake(due);
+	}
+
+	/**
+	 * Schedule a drain at the specified time unless one is already scheduled then
+	 */
+	private void wake(long due) {
+		ScheduledExecutorService timer = this.m_timer;
+		if (timer == null)
+			return;
+
+		final long at = (due + WAKE_RESOLUTION_MILLIS - 1) / WAKE_RESOLUTION_MILLIS * WAKE_RESOLUTION_MILLIS;
+		if (!this.m_scheduledWakes.add(at))
+			return;
+		try {
+			timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					m_scheduledWakes.remove(at);
+					poll();
+				}
+			}, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (RuntimeException e) {
+			// Stopped while scheduling, the next start polls the outbox anyway
+			this.m_scheduledWakes.remove(at);
+		}
+	}
+
+	/**
+	 * Gets the state of the outbox drain
+	 */
+	public String getStatistics() {
+		return String.format("in flight: %s; dispatched: %s; requeued: %s", this.m_inFlight.get(),
+				this.m_dispatched.get(), this.m_requeued.get());
+	}
+
+	/**
+	 * Stop draining the outbox. Exports which are in flight finish (or are reclaimed when the
+	 * module next starts).
+	 */
+	public void shutdown() {
+		synchronized (s_lockObject) {
+			if (this.m_timer != null) {
+				this.m_timer.shutdownNow();
+				this.m_timer = null;
+			}
+			this.m_scheduledWakes.clear();
+		}
+	}
+
+	/**
+	 * Drain the outbox from the timer. Anything thrown out of a scheduled run cancels every
+	 * later poll, so nothing is let through.
+	 */
+	private void poll() {
+		try {
+			this.drain();
+		}
+		catch (Throwable e) {
+			this.log.error("Error draining the MPI outbox", e);
+		}
+	}
+
+	/**
+	 * Claim due exports and hand them to the executor until a batch is in flight
+	 */
+	void drain() {
+		Context.openSession();
+		try {
+			String crEndpoint = this.m_configuration.getClientRegistryEndpoint();
+			if (crEndpoint == null || crEndpoint.trim().isEmpty())
+				return;
+
+			this.drain(Context.getService(MpiClientService.class));
+		}
+		catch (Exception e) {
+			this.log.error("Error draining the MPI outbox", e);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+
+	/**
+	 * Claim due exports from the service and hand them to the executor until a batch is in
+	 * flight
+	 */
+	void drain(MpiClientService hieService) {
+		int released = hieService.releaseQueuedExports(CLAIM_TIMEOUT_MILLIS);
+		if (released > 0)
+			this.log.warn(String.format("Returned %s exports with expired claims to the outbox", released));
+
+		// Shutting down interrupts the drain
+		int batchSize = Math.max(1, this.m_configuration.getOutboxBatchSize());
+		int capacity;
+		while (!Thread.currentThread().isInterrupted() && (capacity = batchSize - this.m_inFlight.get()) > 0) {
+			List<MpiOutboxEntry> claimed = hieService.claimQueuedExports(capacity);
+			for (MpiOutboxEntry entry : claimed)
+				this.dispatch(hieService, entry, batchSize);
+			if (claimed.size() < capacity)
+				break;
+		}
+	}
+
+	/**
+	 * Create the worker which sends the claimed export
+	 */
+	Runnable createWorker(MpiOutboxEntry entry) {
+		return new PatientUpdateWorker(entry.getOutboxEntryId());
+	}
+
+	/**
+	 * Hand the export to the executor, returning it to the outbox if it cannot be queued
+	 */
+	private void dispatch(MpiClientService hieService, MpiOutboxEntry entry, final int batchSize) {
+		final Runnable worker = this.createWorker(entry);
+		this.m_inFlight.incrementAndGet();
+		boolean queued = this.m_executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					worker.run();
+				}
+				finally {
+					// Top up once half of the batch has been sent rather than waiting for the next poll
+					if (m_inFlight.decrementAndGet() == batchSize / 2)
+						wake();
+				}
+			}
+		}, String.format("export of patient %s from the outbox", entry.getPatient().getUuid()));
+
+		if (queued)
+			this.m_dispatched.incrementAndGet();
+		else {
+			this.m_inFlight.decrementAndGet();
+			this.m_requeued.incrementAndGet();
+			hieService.requeueQueuedExport(entry, this.m_configuration.getOutboxPollInterval());
+		}
+	}
+
+	/**
+	 * Return exports claimed longer ago than the specified age to the outbox
+	 */
+	void release(long claimedFor) {
+		Context.openSession();
+		try {
+			int released = Context.getService(MpiClientService.class).releaseQueuedExports(claimedFor);
+			if (released > 0)
+				this.log.info(String.format("Returned %s interrupted exports to the outbox", released));
+		}
+		catch (Exception e) {
+			this.log.error("Error releasing claimed exports in the MPI outbox", e);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
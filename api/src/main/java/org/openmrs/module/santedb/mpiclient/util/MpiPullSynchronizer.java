@@ -0,0 +1,194 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+import org.openmrs.module.santedb.mpiclient.model.MpiPullState;
+
+/**
+ * Pulls the patients which have changed on the MPI (for example merges into a golden record or
+ * demographic corrections made centrally) and applies the changes to the matching local
+ * patients. Only patients with an identifier in the local identity domain (or the
+ * correlation domain) are asked for, oldest change first. The changes are applied in batches;
+ * after each batch the session is flushed and cleared and the watermark (the MPI's last updated
+ * time of the newest change which was completely applied) is saved, so the next run continues
+ * from there. Each run stops once its time budget is spent, or at the first change which
+ * cannot be applied so that the change is read again by the next run. A change which has
+ * failed in the maximum number of runs in a row is logged and skipped, so that one bad record
+ * does not hold back every later change.
+ */
+public class MpiPullSynchronizer extends CheckpointedJob {
+
+	// Privileges needed to match and update patients
+	private static final String[] PRIVILEGES = { "Get Patients", "Edit Patients", "Get Identifier Types",
+			"Get Patient Identifiers", "Add Patient Identifiers", "Edit Patient Identifiers", "Get People",
+			"Edit People", "Get Person Attribute Types", "Get Locations", "Get Concepts" };
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MpiPullSynchronizer s_instance = null;
+
+	// The state after the last batch
+	private volatile MpiPullState m_state = null;
+
+	/**
+	 * Creates a new synchronizer
+	 */
+	private MpiPullSynchronizer() {
+		this(MpiClientConfiguration.getInstance());
+	}
+
+	/**
+	 * Creates a new synchronizer with the specified configuration
+	 */
+	MpiPullSynchronizer(MpiClientConfiguration configuration) {
+		super(configuration, "MPI pull", "mpi-client-pull", PRIVILEGES);
+	}
+
+	/**
+	 * Get an instance of the synchronizer
+	 */
+	public static MpiPullSynchronizer getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new MpiPullSynchronizer();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Gets the progress of the pull
+	 */
+	@Override
+	public String getStatistics() {
+		MpiPullState state = this.m_state;
+		if (state == null)
+			return "not run";
+		return String.format("%s; watermark: %s; checked: %s; applied: %s; skipped: %s", this.isRunning() ? "RUNNING" : "IDLE",
+				state.getWatermark(), state.getChecked(), state.getApplied(), state.getSkipped());
+	}
+
+	/**
+	 * Apply batches of changed patients until there are no more or the time budget is spent.
+	 * Every run continues from the last watermark.
+	 */
+	@Override
+	protected void run(boolean restart) throws Exception {
+		if (!"fhir".equals(this.m_configuration.getMessageFormat())) {
+			this.log.warn("Pulling changed patients from the MPI requires the FHIR message format, the MPI pull is not run");
+			return;
+		}
+
+		final int batchSize = Math.max(1, this.m_configuration.getPullBatchSize());
+		final long deadline = System.currentTimeMillis() + this.m_configuration.getPullTimeBudget();
+		final int maxAttempts = Math.max(1, this.m_configuration.getPullMaxAttempts());
+
+		// Patients with an identifier we assigned
+		Set<String> domains = new LinkedHashSet<String>();
+		domains.add(this.m_configuration.getLocalPatientIdRoot());
+		if (!this.m_configuration.getPreferredCorrelationDomain().isEmpty())
+			domains.add(this.m_configuration.getPreferredCorrelationDomain());
+
+		MpiClientService hieService = this.getService();
+		MpiPullState state = hieService.getPullState();
+		state.setDateLastRun(new Date());
+		this.m_state = state;
+		this.log.info(String.format("Pulling patients changed on the MPI after %s", state.getWatermark()));
+
+		Iterator<MpiPatient> changes = hieService.getUpdatedPatientStream(state.getWatermark(), domains, batchSize)
+				.iterator();
+
+		// Changes at the same time as the last one read may be on the next page, so the
+		// watermark only moves past a time once a later change has been read
+		Date pending = null, watermark = state.getWatermark();
+		long applied = 0;
+		boolean failed = false;
+		while (!failed && !this.isStopRequested() && System.currentTimeMillis() < deadline && changes.hasNext()) {
+			List<MpiPatient> batch = new ArrayList<MpiPatient>(batchSize);
+			while (batch.size() < batchSize && changes.hasNext())
+				batch.add(changes.next());
+
+			int checked = 0;
+			for (MpiPatient remotePatient : batch) {
+				Date lastUpdated = remotePatient.getDateChanged();
+				if (lastUpdated != null && (pending == null || lastUpdated.after(pending))) {
+					if (pending != null)
+						watermark = pending;
+					pending = lastUpdated;
+				}
+				try {
+					if (hieService.applyPatientUpdate(remotePatient))
+						applied++;
+					checked++;
+					if (remotePatient.getUuid() != null && remotePatient.getUuid().equals(state.getFailedChange()))
+						this.clearFailedChange(state);
+				}
+				catch (Exception e) {
+					int attempts = remotePatient.getUuid() != null && remotePatient.getUuid().equals(state.getFailedChange())
+							? state.getFailedAttempts() + 1 : 1;
+					if (attempts >= maxAttempts) {
+						// Give up on the change so the changes after it get through
+						this.log.error(String.format("Could not apply update of MPI patient %s (last updated %s) in %s runs, skipping it",
+								remotePatient.getUuid(), lastUpdated, attempts), e);
+						state.setSkipped(state.getSkipped() + 1);
+						this.clearFailedChange(state);
+						checked++;
+						continue;
+					}
+
+					// The watermark stays before the change, so the next run tries it again
+					this.log.error(String.format("Could not apply update of MPI patient %s (attempt %s of %s), stopping the pull until it can be applied",
+							remotePatient.getUuid(), attempts, maxAttempts), e);
+					state.setFailedChange(remotePatient.getUuid());
+					state.setFailedAttempts(attempts);
+					failed = true;
+					break;
+				}
+			}
+
+			// Save the watermark and release the patients of the batch
+			if (!failed && !changes.hasNext())
+				watermark = pending == null ? watermark : pending;
+			state.setWatermark(watermark);
+			state.setChecked(state.getChecked() + checked);
+			state.setApplied(state.getApplied() + applied);
+			applied = 0;
+			this.m_state = hieService.savePullState(state);
+			this.clearSession();
+		}
+
+		this.m_state = hieService.savePullState(state);
+		this.log.info(String.format("MPI pull finished: %s", this.getStatistics()));
+	}
+
+	/**
+	 * Forget the change the pull stopped at
+	 */
+	private void clearFailedChange(MpiPullState state) {
+		state.setFailedChange(null);
+		state.setFailedAttempts(0);
+	}
+}
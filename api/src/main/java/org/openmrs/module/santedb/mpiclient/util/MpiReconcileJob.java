@@ -0,0 +1,201 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiReconcileState;
+
+/**
+ * Cross references the existing patients which are missing identifiers in the automatic
+ * cross reference domains (for example the national health ID) with the MPI. Patients are
+ * read in batches by id and the identifiers of a whole batch are resolved with one FHIR
+ * search or pipelined PIX queries; the session is flushed and cleared and the checkpoint
+ * saved after each batch. The number of patients looked up per second is limited so the
+ * reconciliation does not crowd out the regular traffic to the MPI. A reconciliation which
+ * is running when the module stops resumes from its checkpoint when the module starts again.
+ */
+public final class MpiReconcileJob extends CheckpointedJob {
+
+	// Privileges needed to read patients and add identifiers
+	private static final String[] PRIVILEGES = { "Get Patients", "Get Identifier Types", "Get Patient Identifiers",
+			"Add Patient Identifiers", "Edit Patient Identifiers", "Get People", "Get Person Attribute Types",
+			"Get Locations" };
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MpiReconcileJob s_instance = null;
+
+	// The last checkpoint
+	private volatile MpiReconcileState m_state = null;
+
+	/**
+	 * Creates a new reconciliation job
+	 */
+	private MpiReconcileJob() {
+		super(MpiClientConfiguration.getInstance(), "MPI reconciliation", "mpi-client-reconcile", PRIVILEGES);
+	}
+
+	/**
+	 * Get an instance of the reconciliation job
+	 */
+	public static MpiReconcileJob getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new MpiReconcileJob();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Gets the last checkpoint of the reconciliation which is running (or ran last), or null
+	 * if it has not been loaded
+	 */
+	public MpiReconcileState getState() {
+		return this.m_state;
+	}
+
+	/**
+	 * Gets the progress of the reconciliation
+	 */
+	@Override
+	public String getStatistics() {
+		MpiReconcileState state = this.m_state;
+		if (state == null)
+			return "not started";
+		return String.format("%s; checked: %s; identifiers added: %s; failed: %s; last patient: %s of %s",
+				this.getStatus(state.getStatus(), MpiReconcileState.STATUS_RUNNING), state.getChecked(),
+				state.getResolved(), state.getFailed(), state.getLastPatientId(), state.getMaxPatientId());
+	}
+
+	/**
+	 * Gets the checkpoint of a reconciliation which was running when the module stopped
+	 */
+	@Override
+	protected String getInterruptedCheckpoint() {
+		MpiReconcileState state = this.getService().getReconcileState();
+		if (state != null && MpiReconcileState.STATUS_RUNNING.equals(state.getStatus()))
+			return String.format("patient %s", state.getLastPatientId());
+		return null;
+	}
+
+	/**
+	 * Reconcile batches of patients until all have been reconciled or the reconciliation is
+	 * stopped
+	 */
+	@Override
+	protected void run(boolean restart) throws Exception {
+		final int batchSize = Math.max(1, this.m_configuration.getReconcileBatchSize());
+
+		Map<String, PatientIdentifierType> domains = this.getDomains();
+		if (domains.isEmpty()) {
+			this.log.warn("No automatic cross reference domains are mapped to identifier types, the MPI reconciliation is not started");
+			return;
+		}
+
+		MpiClientService hieService = this.getService();
+		MpiReconcileState state = hieService.getReconcileState();
+		if (restart || state == null || MpiReconcileState.STATUS_COMPLETED.equals(state.getStatus()))
+			state = hieService.createReconcileState();
+		state.setStatus(MpiReconcileState.STATUS_RUNNING);
+		this.m_state = hieService.saveReconcileState(state);
+		this.log.info(String.format("Reconciling identifiers in %s with the MPI after patient %s", domains.keySet(),
+				state.getLastPatientId()));
+
+		int failedBatches = 0;
+		while (!this.isStopRequested()) {
+			long batchStarted = System.currentTimeMillis();
+			List<Integer> batch = hieService.getReconcilePatientIds(state, domains.values(), batchSize);
+			if (batch.isEmpty()) {
+				state.setStatus(MpiReconcileState.STATUS_COMPLETED);
+				this.log.info(String.format("MPI reconciliation complete, %s patients checked and %s identifiers added",
+						state.getChecked(), state.getResolved()));
+				break;
+			}
+
+			// The MPI could not be reached, wait and try the batch again
+			Map<Integer, Integer> added = null;
+			try {
+				added = hieService.reconcilePatientIdentifiers(batch, domains);
+			}
+			catch (MpiClientException e) {
+				this.log.error(String.format("Error reconciling patients after patient %s", state.getLastPatientId()), e);
+			}
+			if (added == null) {
+				long delay = this.getRetryDelay(++failedBatches);
+				if (delay < 0) {
+					this.log.error(String.format("Stopping MPI reconciliation after patient %s, %s attempts to reconcile the next batch failed",
+							state.getLastPatientId(), failedBatches));
+					this.stop();
+					break;
+				}
+				this.log.warn(String.format("Reconciliation of the batch after patient %s failed, retrying in %s ms",
+						state.getLastPatientId(), delay));
+				this.sleep(delay);
+				continue;
+			}
+			failedBatches = 0;
+
+			// Save the checkpoint and write and release the patients of the batch
+			long resolved = 0;
+			for (Integer count : added.values())
+				resolved += count;
+			state.setLastPatientId(batch.get(batch.size() - 1));
+			state.setChecked(state.getChecked() + batch.size());
+			state.setResolved(state.getResolved() + resolved);
+			state.setFailed(state.getFailed() + batch.size() - added.size());
+			state.setDateCheckpointed(new Date());
+			this.m_state = hieService.saveReconcileState(state);
+			this.clearSession();
+
+			// Keep to the rate limit
+			int rateLimit = this.m_configuration.getReconcileRateLimit();
+			if (rateLimit > 0)
+				this.sleep(batch.size() * 1000L / rateLimit - (System.currentTimeMillis() - batchStarted));
+		}
+
+		if (this.isStoppedByUser() && !MpiReconcileState.STATUS_COMPLETED.equals(state.getStatus()))
+			state.setStatus(MpiReconcileState.STATUS_STOPPED);
+		state.setDateCheckpointed(new Date());
+		this.m_state = hieService.saveReconcileState(state);
+	}
+
+	/**
+	 * Get the identifier type of each automatic cross reference domain
+	 */
+	private Map<String, PatientIdentifierType> getDomains() {
+		Map<String, PatientIdentifierType> retVal = new LinkedHashMap<String, PatientIdentifierType>();
+		String autoXref = this.m_configuration.getAutomaticCrossReferenceDomains();
+		String[] autoXrefDomains = autoXref == null || autoXref.trim().isEmpty()
+				? new String[] { this.m_configuration.getNationalPatientIdRoot() } : autoXref.split(",");
+		for (String xrefDomain : autoXrefDomains) {
+			PatientIdentifierType pit = this.m_configuration.getIdentifierDomainIndex().getMappedIdentifierType(xrefDomain);
+			if (pit == null)
+				this.log.warn(String.format("Identity domain %s has no local equivalent", xrefDomain));
+			else
+				retVal.put(xrefDomain, pit);
+		}
+		return retVal;
+	}
+}
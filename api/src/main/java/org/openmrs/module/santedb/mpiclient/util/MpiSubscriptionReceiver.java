@@ -0,0 +1,317 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * Receives the notifications of a FHIR R4 rest-hook Subscription on the MPI, so that changes
+ * made on the MPI are pushed to this instance instead of waiting for the next pull. The
+ * subscription (for patients with an identifier in the local domain) is registered with the
+ * MPI when the module starts. Each notification is checked against the shared secret and
+ * parsed when it arrives; the patients it carries are then applied to the matching local
+ * patients on the synchronization pool. Notifications without a payload (such as the
+ * handshake) are acknowledged and ignored.
+ */
+public class MpiSubscriptionReceiver {
+
+	/**
+	 * The outcome of receiving a notification
+	 */
+	public enum Outcome {
+		// The notification was queued (or had nothing to apply)
+		ACCEPTED,
+		// The notification did not carry the shared secret
+		UNAUTHORIZED,
+		// The payload is not a FHIR resource
+		INVALID,
+		// The synchronization queue is full, the MPI should send the notification again
+		BUSY
+	}
+
+	/**
+	 * Applies the patients carried by a notification
+	 */
+	public interface NotificationHandler {
+
+		/**
+		 * Apply the patients
+		 */
+		void apply(List<Patient> patients) throws Exception;
+	}
+
+	/**
+	 * Queues work to be run in the background
+	 */
+	public interface Dispatcher {
+
+		/**
+		 * Queue the work
+		 *
+		 * @return False if the work could not be queued
+		 */
+		boolean submit(Runnable task, String description);
+	}
+
+	// Privileges needed to read (and create the defaults of) the subscription settings
+	private static final String[] REGISTER_PRIVILEGES = { "Get Global Properties", "Manage Global Properties" };
+
+	// Reason given to the MPI for the subscription
+	private static final String SUBSCRIPTION_REASON = "OpenMRS MPI client patient updates";
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static MpiSubscriptionReceiver s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Parses the notifications
+	private final FhirContext m_context;
+
+	// The secret the MPI sends in the Authorization header
+	private final Supplier<String> m_secret;
+
+	// Applies the patients
+	private final NotificationHandler m_handler;
+
+	// Queues the work
+	private final Dispatcher m_dispatcher;
+
+	/**
+	 * Creates a new receiver
+	 *
+	 * @param context The FHIR context used to parse notifications
+	 * @param secret Supplies the shared secret
+	 * @param handler Applies the patients carried by notifications
+	 * @param dispatcher Queues the work of applying the patients
+	 */
+	public MpiSubscriptionReceiver(FhirContext context, Supplier<String> secret, NotificationHandler handler,
+			Dispatcher dispatcher) {
+		this.m_context = context;
+		this.m_secret = secret;
+		this.m_handler = handler;
+		this.m_dispatcher = dispatcher;
+	}
+
+	/**
+	 * Get an instance of the receiver
+	 */
+	public static MpiSubscriptionReceiver getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null) {
+					final MpiClientConfiguration configuration = MpiClientConfiguration.getInstance();
+					s_instance = new MpiSubscriptionReceiver(FhirClientFactory.getInstance().getFhirContext(),
+							() -> configuration.getSubscriptionSecret(), null, (task, description) -> SynchronizationExecutor
+									.getInstance().submit(task, description));
+				}
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Receive a notification
+	 *
+	 * @param authorization The Authorization header of the notification
+	 * @param payload The body of the notification
+	 * @return The outcome
+	 */
+	public Outcome receive(String authorization, String payload) {
+		if (!this.isAuthorized(authorization)) {
+			this.log.warn("Rejecting MPI subscription notification which does not carry the subscription secret");
+			return Outcome.UNAUTHORIZED;
+		}
+		if (payload == null || payload.trim().isEmpty())
+			return Outcome.ACCEPTED;
+
+		final List<Patient> patients;
+		try {
+			patients = this.getPatients(payload.trim().startsWith("<") ? this.m_context.newXmlParser().parseResource(payload)
+					: this.m_context.newJsonParser().parseResource(payload));
+		}
+		catch (DataFormatException e) {
+			this.log.warn("Rejecting MPI subscription notification which is not a FHIR resource", e);
+			return Outcome.INVALID;
+		}
+		if (patients.isEmpty())
+			return Outcome.ACCEPTED;
+
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (m_handler == null)
+						applyPatients(patients);
+					else
+						m_handler.apply(patients);
+				}
+				catch (Exception e) {
+					log.error("Error applying MPI subscription notification", e);
+				}
+			}
+		};
+		if (!this.m_dispatcher.submit(task, String.format("MPI notification of %s patients", patients.size())))
+			return Outcome.BUSY;
+		return Outcome.ACCEPTED;
+	}
+
+	/**
+	 * Register the subscription with the MPI unless it is already registered. Nothing is
+	 * registered unless both the notification endpoint and the secret are configured. Runs
+	 * in its own session, since it is called in the background when the module starts.
+	 */
+	public void register() {
+		Context.openSession();
+		for (String privilege : REGISTER_PRIVILEGES)
+			Context.addProxyPrivilege(privilege);
+		try {
+			this.registerSubscription();
+		}
+		finally {
+			try {
+				for (String privilege : REGISTER_PRIVILEGES)
+					Context.removeProxyPrivilege(privilege);
+			}
+			finally {
+				Context.closeSession();
+			}
+		}
+	}
+
+	/**
+	 * Register the subscription unless it is already registered
+	 */
+	private void registerSubscription() {
+		MpiClientConfiguration configuration = MpiClientConfiguration.getInstance();
+		String endpoint = configuration.getSubscriptionEndpoint(), secret = this.m_secret.get();
+		if (!"fhir".equals(configuration.getMessageFormat()) || endpoint == null || endpoint.isEmpty())
+			return;
+		if (secret == null || secret.isEmpty()) {
+			this.log.warn("No MPI subscription secret is configured, the MPI subscription is not registered");
+			return;
+		}
+
+		String criteria = String.format("Patient?identifier=%s|", configuration.getLocalPatientIdRoot());
+		try {
+			IGenericClient client = FhirClientFactory.getInstance().getClient(FhirClientFactory.Endpoint.PIX);
+
+			// Already registered?
+			Bundle existing = client.search().forResource(Subscription.class)
+					.where(Subscription.URL.matches().value(endpoint)).returnBundle(Bundle.class).execute();
+			for (BundleEntryComponent entry : existing.getEntry()) {
+				Subscription subscription = (Subscription) entry.getResource();
+				if (criteria.equals(subscription.getCriteria()) && endpoint.equals(subscription.getChannel().getEndpoint())
+						&& (subscription.getStatus() == SubscriptionStatus.ACTIVE
+								|| subscription.getStatus() == SubscriptionStatus.REQUESTED)) {
+					this.log.info(String.format("MPI subscription %s is already registered",
+							subscription.getIdElement().getIdPart()));
+					return;
+				}
+			}
+
+			Subscription subscription = new Subscription();
+			subscription.setStatus(SubscriptionStatus.REQUESTED);
+			subscription.setReason(SUBSCRIPTION_REASON);
+			subscription.setCriteria(criteria);
+			subscription.getChannel().setType(SubscriptionChannelType.RESTHOOK).setEndpoint(endpoint)
+					.setPayload("application/fhir+json").addHeader(String.format("Authorization: Bearer %s", secret));
+			this.log.info(String.format("Registered MPI subscription %s for %s",
+					client.create().resource(subscription).execute().getId().getIdPart(), criteria));
+		}
+		catch (Exception e) {
+			this.log.error("Could not register the MPI subscription, changes are only received by the MPI pull", e);
+		}
+	}
+
+	/**
+	 * True if the Authorization header carries the shared secret
+	 */
+	private boolean isAuthorized(String authorization) {
+		String secret = this.m_secret.get();
+		if (secret == null || secret.isEmpty() || authorization == null)
+			return false;
+		if (authorization.regionMatches(true, 0, "Bearer ", 0, 7))
+			authorization = authorization.substring(7).trim();
+		return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+				authorization.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get the patients carried by the notification, directly or in a bundle
+	 */
+	private List<Patient> getPatients(IBaseResource resource) {
+		List<Patient> retVal = new ArrayList<Patient>();
+		if (resource instanceof Patient)
+			retVal.add((Patient) resource);
+		else if (resource instanceof Bundle)
+			for (BundleEntryComponent entry : ((Bundle) resource).getEntry())
+				if (entry.getResource() instanceof Patient)
+					retVal.add((Patient) entry.getResource());
+		return retVal;
+	}
+
+	/**
+	 * Apply the patients to the matching local patients, as the daemon user so the changes
+	 * have a creator
+	 */
+	private void applyPatients(final List<Patient> patients) throws Exception {
+		MpiDaemon.run(new MpiDaemon.Work() {
+
+			@Override
+			public void run() {
+				FhirUtil fhirUtil = Context.getRegisteredComponents(FhirUtil.class).get(0);
+				PatientTranslator patientTranslator = Context.getRegisteredComponents(PatientTranslator.class).get(0);
+				MpiClientService hieService = Context.getService(MpiClientService.class);
+				for (Patient pat : patients) {
+					try {
+						MpiPatient remotePatient = fhirUtil.parseFhirPatient(pat, patientTranslator.toOpenmrsType(pat));
+						if (!hieService.applyPatientUpdate(remotePatient))
+							log.debug(String.format("MPI patient %s did not change a local patient",
+									pat.getIdElement().getIdPart()));
+					}
+					catch (Exception e) {
+						log.error(String.format("Could not apply MPI notification of patient %s",
+								pat.getIdElement().getIdPart()), e);
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpStatus;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+
+/**
+ * Client interceptor which attaches an OAuth bearer token obtained via the
+ * {@link OAuthTokenManager} to each request. Since FHIR clients are shared, the token is
+ * obtained at request time rather than when the client is constructed.
+ */
+public class OAuthClientCredentialsInterceptor implements IClientInterceptor {
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Attach the bearer token to the outbound request
+	 */
+	@Override
+	public void interceptRequest(IHttpRequest request) {
+		try {
+			request.addHeader("Authorization",
+					String.format("Bearer %s", OAuthTokenManager.getInstance().getAccessToken()));
+		}
+		catch (MpiClientException e) {
+			this.log.error("Error authenticating with the identity provider", e);
+			throw new FhirClientConnectionException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Discard the cached token if the server did not accept it
+	 */
+	@Override
+	public void interceptResponse(IHttpResponse response) throws IOException {
+		if (response.getStatus() == HttpStatus.SC_UNAUTHORIZED)
+			OAuthTokenManager.getInstance().invalidate();
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+
+import com.google.common.io.CharStreams;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Obtains and caches OAuth access tokens from the configured identity provider.
+ * <p>
+ * Tokens are reused until shortly before they expire. Once a token has used most of its
+ * lifetime the next caller triggers a refresh in the background and keeps using the current
+ * token; only one background refresh is scheduled at a time. When no usable token exists
+ * only one thread calls the identity provider while the others wait for its result.
+ */
+public final class OAuthTokenManager {
+
+	// Lifetime to assume when the IdP does not send expires_in
+	private static final long DEFAULT_LIFETIME_MILLIS = 60000;
+
+	// Never use a token within this margin of its expiry
+	private static final long MAX_EXPIRY_MARGIN_MILLIS = 30000;
+
+	// Fraction of the lifetime after which a background refresh is started
+	private static final double REFRESH_FRACTION = 0.75;
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static OAuthTokenManager s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Calls the identity provider
+	 */
+	interface TokenRequester {
+
+		/**
+		 * Obtain a new access token
+		 */
+		AccessToken request(String configurationKey) throws MpiClientException;
+	}
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration = MpiClientConfiguration.getInstance();
+
+	// Gets the key of the configuration tokens are issued under
+	private final Supplier<String> m_configurationKey;
+
+	// Calls the identity provider
+	private final TokenRequester m_requester;
+
+	// The current token
+	private volatile AccessToken m_token = null;
+
+	// The fetch which is currently in progress (if any)
+	private final AtomicReference<FutureTask<AccessToken>> m_pendingFetch = new AtomicReference<FutureTask<AccessToken>>();
+
+	// True from when a background refresh is scheduled until it has finished
+	private final AtomicBoolean m_refreshScheduled = new AtomicBoolean();
+
+	// Background refresh thread
+	private ExecutorService m_refreshExecutor = null;
+
+	// Statistics
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_refreshes = new AtomicLong();
+	private final AtomicLong m_failures = new AtomicLong();
+
+	/**
+	 * Represents an access token obtained from the IdP
+	 */
+	static class AccessToken {
+
+		private final String m_value;
+		private final String m_configurationKey;
+		private final long m_refreshAt;
+		private final long m_expiresAt;
+
+		AccessToken(String value, String configurationKey, long issuedAt, long lifetimeMillis) {
+			this.m_value = value;
+			this.m_configurationKey = configurationKey;
+			this.m_refreshAt = issuedAt + (long) (lifetimeMillis * REFRESH_FRACTION);
+			this.m_expiresAt = issuedAt + lifetimeMillis - Math.min(MAX_EXPIRY_MARGIN_MILLIS, lifetimeMillis / 10);
+		}
+	}
+
+	/**
+	 * Creates a new token manager
+	 */
+	private OAuthTokenManager() {
+		this.m_configurationKey = this::getConfigurationKey;
+		this.m_requester = this::requestToken;
+	}
+
+	/**
+	 * Creates a new token manager which obtains tokens from the requester
+	 */
+	OAuthTokenManager(Supplier<String> configurationKey, TokenRequester requester) {
+		this.m_configurationKey = configurationKey;
+		this.m_requester = requester;
+	}
+
+	/**
+	 * Get an instance of the token manager
+	 */
+	public static OAuthTokenManager getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new OAuthTokenManager();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Gets a valid access token, fetching one from the IdP if required
+	 *
+	 * @return The access token
+	 */
+	public String getAccessToken() throws MpiClientException {
+
+		final String configurationKey = this.m_configurationKey.get();
+		AccessToken token = this.m_token;
+		long now = System.currentTimeMillis();
+
+		if (token != null && now < token.m_expiresAt && configurationKey.equals(token.m_configurationKey)) {
+			this.m_hits.incrementAndGet();
+			if (now >= token.m_refreshAt)
+				this.refreshInBackground(configurationKey);
+			return token.m_value;
+		}
+
+		this.m_misses.incrementAndGet();
+		return this.fetch(configurationKey).m_value;
+	}
+
+	/**
+	 * Discards the current token (for example when the server rejects it)
+	 */
+	public void invalidate() {
+		this.m_token = null;
+	}
+
+	/**
+	 * Gets the number of requests which were served from the cache
+	 */
+	public long getHitCount() {
+		return this.m_hits.get();
+	}
+
+	/**
+	 * Gets the number of requests which had to wait for a token from the IdP
+	 */
+	public long getMissCount() {
+		return this.m_misses.get();
+	}
+
+	/**
+	 * Gets the number of tokens which have been fetched from the IdP
+	 */
+	public long getRefreshCount() {
+		return this.m_refreshes.get();
+	}
+
+	/**
+	 * Gets the number of failed calls to the IdP
+	 */
+	public long getFailureCount() {
+		return this.m_failures.get();
+	}
+
+	/**
+	 * Stops the background refresh thread
+	 */
+	public void shutdown() {
+		synchronized (s_lockObject) {
+			if (this.m_refreshExecutor != null) {
+				this.m_refreshExecutor.shutdownNow();
+				this.m_refreshExecutor = null;
+			}
+			this.m_refreshScheduled.set(false);
+			this.m_token = null;
+		}
+	}
+
+	/**
+	 * Start a refresh on the background thread unless one is already running
+	 */
+	private void refreshInBackground(final String configurationKey) {
+		// Claimed before the refresh is submitted so callers do not queue more refreshes
+		if (this.m_pendingFetch.get() != null || !this.m_refreshScheduled.compareAndSet(false, true))
+			return;
+
+		synchronized (s_lockObject) {
+			if (this.m_refreshExecutor == null)
+				this.m_refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread retVal = new Thread(r, "mpi-client-oauth-refresh");
+						retVal.setDaemon(true);
+						return retVal;
+					}
+				});
+			try {
+				this.m_refreshExecutor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							// Another thread may have fetched a token since this refresh was scheduled
+							AccessToken token = m_token;
+							if (token == null || System.currentTimeMillis() >= token.m_refreshAt
+									|| !configurationKey.equals(token.m_configurationKey))
+								fetch(configurationKey);
+						}
+						catch (MpiClientException e) {
+							log.warn("Background refresh of access token failed, the current token will be used until it expires", e);
+						}
+						finally {
+							m_refreshScheduled.set(false);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				this.m_refreshScheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Fetch a new token from the IdP, or wait for the fetch which is already in progress
+	 */
+	private AccessToken fetch(final String configurationKey) throws MpiClientException {
+		while (true) {
+			FutureTask<AccessToken> pending = this.m_pendingFetch.get();
+			if (pending == null) {
+				FutureTask<AccessToken> task = new FutureTask<AccessToken>(() -> {
+					try {
+						AccessToken retVal = this.m_requester.request(configurationKey);
+						this.m_token = retVal;
+						this.m_refreshes.incrementAndGet();
+						return retVal;
+					}
+					catch (MpiClientException e) {
+						this.m_failures.incrementAndGet();
+						throw e;
+					}
+				});
+				if (!this.m_pendingFetch.compareAndSet(null, task))
+					continue;
+				try {
+					task.run();
+				}
+				finally {
+					this.m_pendingFetch.compareAndSet(task, null);
+				}
+				pending = task;
+			}
+
+			try {
+				return pending.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MpiClientException("Interrupted while waiting for access token", e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof MpiClientException)
+					throw (MpiClientException) e.getCause();
+				throw new MpiClientException("Could not obtain access token", e);
+			}
+		}
+	}
+
+	/**
+	 * Call the IDP and obtain an access token
+	 */
+	private AccessToken requestToken(String configurationKey) throws MpiClientException {
+
+		try {
+			CloseableHttpClient oauthClientCredentialsClient = HttpClientManager.getInstance().getHttpClient();
+			HttpPost post = new HttpPost(this.m_configuration.getIdentityProviderUrl());
+			post.addHeader("Content-Type", "application/x-www-form-urlencoded");
+
+			// HACK: SanteMPI requires either X.509 node authentication (configured via JKS)
+			// but can also use the X-Device-Authorization header
+			// Since the JKS / X.509 node authentication is not supported, we'll have to use
+			// the X-DeviceAuthorization
+			String clientSecret = this.m_configuration.getMsh8Security(), deviceSecret = null;
+			if (clientSecret.contains("+")) {
+				String[] clientParts = clientSecret.split("\\+");
+				clientSecret = clientParts[1];
+				deviceSecret = clientParts[0];
+
+				// Now append the proper header for device authentication
+				post.addHeader("X-Device-Authorization",
+						String.format("basic %s",
+								Base64.getEncoder()
+										.encodeToString(String
+												.format("%s|%s:%s", this.m_configuration.getLocalApplication(),
+														this.m_configuration.getLocalFacility(), deviceSecret)
+												.getBytes())));
+			}
+
+			post.setEntity(new StringEntity(
+					String.format("client_id=%s&client_secret=%s&grant_type=client_credentials&scope=*",
+							this.m_configuration.getLocalApplication(), clientSecret)));
+
+			long issuedAt = System.currentTimeMillis();
+			CloseableHttpResponse response = oauthClientCredentialsClient.execute(post);
+			try {
+				if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+					Reader reader = new InputStreamReader(response.getEntity().getContent());
+					String jsonText = CharStreams.toString(reader);
+					JsonObject oauthResponse = new JsonParser().parse(jsonText).getAsJsonObject();
+
+					long lifetime = DEFAULT_LIFETIME_MILLIS;
+					if (oauthResponse.has("expires_in"))
+						lifetime = oauthResponse.get("expires_in").getAsLong() * 1000;
+
+					AccessToken retVal = new AccessToken(oauthResponse.get("access_token").getAsString(),
+							configurationKey, issuedAt, lifetime);
+					this.log.debug(String.format("Obtained access token valid for %s ms", lifetime));
+					return retVal;
+				} else
+					throw new MpiClientException(String.format("Identity provider responded with %s",
+							response.getStatusLine().getStatusCode()));
+			}
+			finally {
+				// Consume whatever is left so the connection can go back to the pool
+				EntityUtils.consumeQuietly(response.getEntity());
+				response.close();
+			}
+		}
+		catch (MpiClientException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new MpiClientException(
+					String.format("Could not authenticate client %s", this.m_configuration.getLocalApplication()), e);
+		}
+	}
+
+	/**
+	 * Gets a key representing the configuration the token was issued under
+	 */
+	private String getConfigurationKey() {
+		return String.format("%s|%s|%s|%s", this.m_configuration.getIdentityProviderUrl(),
+				this.m_configuration.getLocalApplication(), this.m_configuration.getLocalFacility(),
+				this.m_configuration.getMsh8Security());
+	}
+}
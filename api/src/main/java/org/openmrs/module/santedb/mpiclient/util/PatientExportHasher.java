@@ -0,0 +1,173 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.Relationship;
+
+/**
+ * Computes a hash of the parts of a patient which are sent to the MPI: names, identifiers,
+ * addresses, gender, birth and death, person attributes (telephone, mother's name and the
+ * extension map), relationships and the observations exported with the patient. Audit
+ * fields and voided data are not part of the hash, so saves which only change those give
+ * the same hash as the last export. Collections are sorted before they are hashed, so the
+ * hash does not depend on the order in which Hibernate loads them.
+ */
+public final class PatientExportHasher {
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static PatientExportHasher s_instance = null;
+
+	/**
+	 * Creates a new hasher
+	 */
+	private PatientExportHasher() {
+	}
+
+	/**
+	 * Get an instance of the hasher
+	 */
+	public static PatientExportHasher getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new PatientExportHasher();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Hash the exported projection of the patient
+	 *
+	 * @param patient The patient being exported
+	 * @param patientObs The observations exported with the patient, already filtered to the
+	 *            exported concepts (optional)
+	 * @param relationships The relationships of the patient (optional)
+	 * @return The SHA-256 hash of the projection as hex
+	 */
+	public String hash(Patient patient, Collection<Obs> patientObs, Collection<Relationship> relationships) {
+		StringBuilder projection = new StringBuilder();
+		this.append(projection, "P", patient.getGender(), patient.getBirthdate(), patient.getBirthdateEstimated(),
+				patient.getDead(), patient.getDeathDate());
+
+		List<String> lines = new ArrayList<String>();
+		if (patient.getNames() != null)
+			for (PersonName name : patient.getNames())
+				if (!Boolean.TRUE.equals(name.getVoided()))
+					lines.add(this.line("N", name.getPreferred(), name.getPrefix(), name.getGivenName(),
+							name.getMiddleName(), name.getFamilyNamePrefix(), name.getFamilyName(), name.getFamilyName2(),
+							name.getFamilyNameSuffix(), name.getDegree()));
+		if (patient.getIdentifiers() != null)
+			for (PatientIdentifier pid : patient.getIdentifiers())
+				if (!Boolean.TRUE.equals(pid.getVoided()))
+					lines.add(this.line("I", pid.getPreferred(),
+							pid.getIdentifierType() == null ? null : pid.getIdentifierType().getUuid(), pid.getIdentifier()));
+		if (patient.getAddresses() != null)
+			for (PersonAddress pa : patient.getAddresses())
+				if (!Boolean.TRUE.equals(pa.getVoided()))
+					lines.add(this.line("A", pa.getPreferred(), pa.getAddress1(), pa.getAddress2(), pa.getAddress3(),
+							pa.getAddress4(), pa.getAddress5(), pa.getAddress6(), pa.getCityVillage(),
+							pa.getCountyDistrict(), pa.getStateProvince(), pa.getCountry(), pa.getPostalCode()));
+		if (patient.getAttributes() != null)
+			for (PersonAttribute pat : patient.getAttributes())
+				if (!Boolean.TRUE.equals(pat.getVoided()))
+					lines.add(this.line("T", pat.getAttributeType() == null ? null : pat.getAttributeType().getUuid(),
+							pat.getValue()));
+		if (relationships != null)
+			for (Relationship rel : relationships)
+				if (!Boolean.TRUE.equals(rel.getVoided()))
+					lines.add(this.line("R",
+							rel.getRelationshipType() == null ? null : rel.getRelationshipType().getUuid(),
+							rel.getPersonA() == null ? null : rel.getPersonA().getUuid(),
+							rel.getPersonB() == null ? null : rel.getPersonB().getUuid()));
+		if (patientObs != null)
+			for (Obs obs : patientObs)
+				this.addObs(lines, "O", obs);
+
+		Collections.sort(lines);
+		for (String line : lines)
+			projection.append(line);
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(projection.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder retVal = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				retVal.append(String.format("%02x", b));
+			return retVal.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Add the observation and its group members (which hold the exported address and
+	 * contact) to the projection
+	 */
+	private void addObs(List<String> lines, String path, Obs obs) {
+		if (Boolean.TRUE.equals(obs.getVoided()))
+			return;
+		path = String.format("%s/%s", path, obs.getConcept() == null ? null : obs.getConcept().getConceptId());
+		lines.add(this.line(path, obs.getValueCoded() == null ? null : obs.getValueCoded().getConceptId(),
+				obs.getValueText(), obs.getValueNumeric(), obs.getValueDatetime(),
+				obs.getLocation() == null ? null : obs.getLocation().getUuid()));
+		if (obs.getGroupMembers() != null)
+			for (Obs member : obs.getGroupMembers())
+				this.addObs(lines, path, member);
+	}
+
+	/**
+	 * Format one line of the projection
+	 */
+	private String line(String type, Object... values) {
+		StringBuilder retVal = new StringBuilder();
+		this.append(retVal, type, values);
+		return retVal.toString();
+	}
+
+	/**
+	 * Append the values, escaping the separators so that different values cannot give the
+	 * same text
+	 */
+	private void append(StringBuilder builder, String type, Object... values) {
+		builder.append(type);
+		for (Object value : values) {
+			builder.append('|');
+			if (value instanceof Date)
+				builder.append(((Date) value).getTime());
+			else if (value != null)
+				builder.append(value.toString().replace("\\", "\\\\").replace("|", "\\|").replace("\n", "\\n"));
+			else
+				builder.append("\\0");
+		}
+		builder.append('\n');
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes work on a single patient (exports, cross referencing and imports) without a
+ * global monitor. Each patient key has its own lock which only exists while it is held or
+ * waited for, so work on different patients never contends. Callers which cannot get the
+ * lock in time should re-queue their work rather than drop it.
+ */
+public final class PatientLockRegistry {
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static PatientLockRegistry s_instance = null;
+
+	// Locks by patient key
+	private final Map<String, PatientLock> m_locks = new ConcurrentHashMap<String, PatientLock>();
+
+	// Statistics
+	private final AtomicLong m_acquired = new AtomicLong();
+	private final AtomicLong m_contended = new AtomicLong();
+	private final AtomicLong m_timedOut = new AtomicLong();
+	private final AtomicLong m_waitNanos = new AtomicLong();
+
+	/**
+	 * The lock for one patient, with the number of threads holding or waiting for it
+	 */
+	private static class PatientLock {
+
+		private final ReentrantLock m_lock = new ReentrantLock();
+		private int m_users;
+	}
+
+	/**
+	 * Creates a new lock registry
+	 */
+	private PatientLockRegistry() {
+	}
+
+	/**
+	 * Get an instance of the lock registry
+	 */
+	public static PatientLockRegistry getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new PatientLockRegistry();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Lock the patient if no other thread holds its lock
+	 *
+	 * @param key The patient UUID (or other key identifying the patient)
+	 * @return True if the lock was acquired and must be released with {@link #unlock(String)}
+	 */
+	public boolean tryLock(String key) {
+		return this.tryLock(key, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Lock the patient, waiting up to the timeout for another thread to release it
+	 *
+	 * @param key The patient UUID (or other key identifying the patient)
+	 * @param timeout How long to wait
+	 * @param unit The unit of the timeout
+	 * @return True if the lock was acquired and must be released with {@link #unlock(String)}
+	 */
+	public boolean tryLock(String key, long timeout, TimeUnit unit) {
+		PatientLock patientLock = this.m_locks.compute(key, (k, v) -> {
+			if (v == null)
+				v = new PatientLock();
+			v.m_users++;
+			return v;
+		});
+
+		boolean locked = patientLock.m_lock.tryLock();
+		if (!locked) {
+			this.m_contended.incrementAndGet();
+			if (timeout > 0) {
+				long started = System.nanoTime();
+				try {
+					locked = patientLock.m_lock.tryLock(timeout, unit);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				this.m_waitNanos.addAndGet(System.nanoTime() - started);
+			}
+		}
+
+		if (locked)
+			this.m_acquired.incrementAndGet();
+		else {
+			this.m_timedOut.incrementAndGet();
+			this.release(key);
+		}
+		return locked;
+	}
+
+	/**
+	 * Release the patient's lock (which must be held by the current thread)
+	 */
+	public void unlock(String key) {
+		PatientLock patientLock = this.m_locks.get(key);
+		if (patientLock == null || !patientLock.m_lock.isHeldByCurrentThread())
+			throw new IllegalMonitorStateException(String.format("Lock for patient %s is not held", key));
+		patientLock.m_lock.unlock();
+		this.release(key);
+	}
+
+	/**
+	 * True if any thread holds the patient's lock
+	 */
+	public boolean isLocked(String key) {
+		PatientLock patientLock = this.m_locks.get(key);
+		return patientLock != null && patientLock.m_lock.isLocked();
+	}
+
+	/**
+	 * Gets the number of locks held and how often threads had to wait for (or gave up on) a lock
+	 */
+	public String getStatistics() {
+		return String.format("patients locked: %s; acquired: %s; contended: %s; timed out: %s; waited: %s ms",
+				this.m_locks.size(), this.m_acquired.get(), this.m_contended.get(), this.m_timedOut.get(),
+				TimeUnit.NANOSECONDS.toMillis(this.m_waitNanos.get()));
+	}
+
+	/**
+	 * Forget the patient's lock once nobody holds or waits for it
+	 */
+	private void release(String key) {
+		this.m_locks.computeIfPresent(key, (k, v) -> --v.m_users == 0 ? null : v);
+	}
+}
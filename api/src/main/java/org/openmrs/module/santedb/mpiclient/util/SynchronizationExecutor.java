@@ -0,0 +1,179 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+/**
+ * Runs background synchronization work (patient exports and message dispatch) on a fixed
+ * pool of threads owned by the module, instead of starting a new thread for each save.
+ * Work is queued up to a configured limit. Submitting never blocks the caller: when the
+ * queue is full the work is refused and the caller keeps it, for instance in the outbox.
+ */
+public final class SynchronizationExecutor {
+
+	// How long to wait for queued work to finish when stopping
+	private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+	// locking object
+	private final static Object s_lockObject = new Object();
+
+	// Instance
+	private static SynchronizationExecutor s_instance = null;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Get the HIE config
+	private final MpiClientConfiguration m_configuration;
+
+	// The worker pool
+	private volatile ThreadPoolExecutor m_executor = null;
+
+	// Statistics
+	private final AtomicLong m_submitted = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+
+	/**
+	 * Creates a new executor
+	 */
+	private SynchronizationExecutor() {
+		this(MpiClientConfiguration.getInstance());
+	}
+
+	/**
+	 * Creates a new executor with the specified configuration
+	 */
+	SynchronizationExecutor(MpiClientConfiguration configuration) {
+		this.m_configuration = configuration;
+	}
+
+	/**
+	 * Get an instance of the executor
+	 */
+	public static SynchronizationExecutor getInstance() {
+		if (s_instance == null)
+			synchronized (s_lockObject) {
+				if (s_instance == null)
+					s_instance = new SynchronizationExecutor();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Start the worker pool
+	 */
+	public void start() {
+		synchronized (s_lockObject) {
+			if (this.m_executor != null)
+				return;
+
+			int poolSize = Math.max(1, this.m_configuration.getSyncPoolSize()),
+					queueSize = Math.max(1, this.m_configuration.getSyncQueueSize());
+			final AtomicInteger threadNumber = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread retVal = new Thread(r, String.format("mpi-client-sync-%s", threadNumber.incrementAndGet()));
+							retVal.setDaemon(true);
+							return retVal;
+						}
+					}, new ThreadPoolExecutor.AbortPolicy());
+			this.m_executor = executor;
+			this.log.info(String.format("Started synchronization executor with %s threads and %s queued tasks", poolSize,
+					queueSize));
+		}
+	}
+
+	/**
+	 * Queue work to be run in the background. Returns straight away, so it is safe to call
+	 * from a save or request thread.
+	 *
+	 * @param task The work to run
+	 * @param description Describes the work in log messages
+	 * @return True if the work was queued, false if the queue is full or the executor is not running (the module
+	 *         has stopped) and the caller must keep the work
+	 */
+	public boolean submit(Runnable task, String description) {
+		// A stopped pool is only started again with the module
+		ThreadPoolExecutor executor = this.m_executor;
+		if (executor == null) {
+			this.m_rejected.incrementAndGet();
+			this.log.warn(String.format("Synchronization executor is not running, %s was not queued", description));
+			return false;
+		}
+
+		try {
+			executor.execute(task);
+			this.m_submitted.incrementAndGet();
+			return true;
+		}
+		catch (RejectedExecutionException e) {
+			// Queue is full (or the pool is shutting down)
+			this.m_rejected.incrementAndGet();
+			this.log.warn(String.format("Synchronization queue is full, %s was not queued", description));
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the state of the pool and queue
+	 */
+	public String getStatistics() {
+		ThreadPoolExecutor executor = this.m_executor;
+		if (executor == null)
+			return "not started";
+		return String.format("active: %s; queued: %s; submitted: %s; completed: %s; rejected: %s",
+				executor.getActiveCount(), executor.getQueue().size(), this.m_submitted.get(),
+				executor.getCompletedTaskCount(), this.m_rejected.get());
+	}
+
+	/**
+	 * Stop accepting work and wait for queued work to finish
+	 */
+	public void shutdown() {
+		ThreadPoolExecutor executor;
+		synchronized (s_lockObject) {
+			executor = this.m_executor;
+			this.m_executor = null;
+		}
+		if (executor == null)
+			return;
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				List<Runnable> abandoned = executor.shutdownNow();
+				this.log.warn(String.format("Synchronization executor did not stop in time, %s queued tasks abandoned",
+						abandoned.size()));
+			}
+		}
+		catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
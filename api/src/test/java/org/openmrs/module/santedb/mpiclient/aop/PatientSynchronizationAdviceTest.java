@@ -0,0 +1,69 @@
+package org.openmrs.module.santedb.mpiclient.aop;
+
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.GlobalProperty;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+public class PatientSynchronizationAdviceTest {
+
+	private MpiClientConfiguration configuration;
+
+	private PatientSynchronizationAdvice advice;
+
+	private Method saveGlobalProperty;
+
+	private Method savePatientIdentifierType;
+
+	@Before
+	public void setup() throws Exception {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		advice = new PatientSynchronizationAdvice(configuration, () -> Mockito.mock(MpiClientService.class));
+		saveGlobalProperty = AdministrationService.class.getMethod("saveGlobalProperty", GlobalProperty.class);
+		savePatientIdentifierType = PatientService.class.getMethod("savePatientIdentifierType", PatientIdentifierType.class);
+	}
+
+	@After
+	public void teardown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.clearSynchronization();
+	}
+
+	@Test
+	public void testAfterReturning_shouldClearCacheAfterCommit() throws Throwable {
+		TransactionSynchronizationManager.initSynchronization();
+		advice.afterReturning(null, saveGlobalProperty, new Object[1], Mockito.mock(AdministrationService.class));
+		advice.afterReturning(null, savePatientIdentifierType, new Object[1], Mockito.mock(PatientService.class));
+		Mockito.verify(configuration, Mockito.never()).clearCache();
+
+		TransactionSynchronizationUtils.triggerAfterCommit();
+		Mockito.verify(configuration, Mockito.times(2)).clearCache();
+	}
+
+	@Test
+	public void testAfterReturning_shouldNotClearCacheAfterRollback() throws Throwable {
+		TransactionSynchronizationManager.initSynchronization();
+		advice.afterReturning(null, saveGlobalProperty, new Object[1], Mockito.mock(AdministrationService.class));
+
+		TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+		Mockito.verify(configuration, Mockito.never()).clearCache();
+	}
+
+	@Test
+	public void testAfterReturning_shouldClearCacheOutsideTransaction() throws Throwable {
+		advice.afterReturning(null, saveGlobalProperty, new Object[1], Mockito.mock(AdministrationService.class));
+
+		Mockito.verify(configuration).clearCache();
+	}
+}
@@ -0,0 +1,112 @@
+package org.openmrs.module.santedb.mpiclient.aop;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PatientIdentifierType.LocationBehavior;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.api.impl.MpiClientServiceImpl;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+import org.openmrs.module.santedb.mpiclient.util.MpiDaemon;
+import org.openmrs.module.santedb.mpiclient.util.TestDaemonToken;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+public class PatientUpdateWorkerTest extends BaseModuleContextSensitiveTest {
+
+	private static final String DAEMON_USER_UUID = "A4F30A1B-5EB9-11DF-A648-37A07F9C90FB";
+
+	private static final String NATIONAL_ID_TYPE = "MPI National Health ID";
+
+	/**
+	 * The service with the MPI answered locally, as an MPI which accepts the export of patient 7
+	 * and has a national health ID for it would
+	 */
+	private static class CrossReferencingService extends MpiClientServiceImpl {
+
+		private boolean completed;
+
+		@Override
+		public MpiOutboxEntry getQueuedExport(Integer outboxEntryId) {
+			return new MpiOutboxEntry(Context.getPatientService().getPatient(7), null, new Date());
+		}
+
+		@Override
+		public List<MpiPatientExportResult> exportPatients(Collection<MpiPatientExport> patientExports) {
+			return Collections.singletonList(new MpiPatientExportResult(patientExports.iterator().next(), null));
+		}
+
+		@Override
+		public void completeQueuedExport(MpiOutboxEntry entry) {
+			this.completed = true;
+		}
+
+		@Override
+		public Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient, Set<String> toAssigningAuthorities) {
+			PatientIdentifierType identifierType = Context.getPatientService().getPatientIdentifierTypeByName(NATIONAL_ID_TYPE);
+			return Collections.singletonMap("NAT_HEALTH_ID", new PatientIdentifier("NHID-7", identifierType, null));
+		}
+	}
+
+	private PatientIdentifierType identifierType;
+
+	@Before
+	public void setup() throws Exception {
+		MpiDaemon.setDaemonToken(TestDaemonToken.create());
+
+		// The worker runs in its own transaction on a daemon thread, so it only sees committed data
+		identifierType = new PatientIdentifierType();
+		identifierType.setName(NATIONAL_ID_TYPE);
+		identifierType.setDescription("National health ID from the MPI");
+		identifierType.setLocationBehavior(LocationBehavior.NOT_USED);
+		Context.getPatientService().savePatientIdentifierType(identifierType);
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(
+				MpiClientConfiguration.PROP_NAME_ID_EXPORT_TYPE, NATIONAL_ID_TYPE + "=NAT_HEALTH_ID"));
+		Context.flushSession();
+		getConnection().commit();
+		MpiClientConfiguration.getInstance().clearCache();
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		// Remove what was committed, so the other tests start from the standard data again
+		deleteAllData();
+		MpiClientConfiguration.getInstance().clearCache();
+		MpiDaemon.setDaemonToken(null);
+	}
+
+	@Test
+	public void testRun_shouldSaveCrossReferencedIdentifierAsDaemonUser() {
+		final CrossReferencingService service = new CrossReferencingService();
+		new PatientUpdateWorker(1) {
+
+			@Override
+			MpiClientService getService() {
+				return service;
+			}
+		}.run();
+
+		Assert.assertTrue(service.completed);
+		List<PatientIdentifier> identifiers = Context.getPatientService().getPatientIdentifiers("NHID-7",
+				Collections.singletonList(identifierType), null, null, null);
+		Assert.assertEquals(1, identifiers.size());
+		Assert.assertEquals(Integer.valueOf(7), identifiers.get(0).getPatient().getPatientId());
+		Assert.assertNotNull(identifiers.get(0).getCreator());
+		Assert.assertEquals(DAEMON_USER_UUID, identifiers.get(0).getCreator().getUuid());
+	}
+}
@@ -1,12 +1,197 @@
 package org.openmrs.module.santedb.mpiclient.api.impl;
 
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PersonAttribute;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+
+import com.sun.net.httpserver.HttpServer;
 
 public class FhirMpiClientServiceImplTest {
-	// TODO: Implement tests for the FhirMpiClientServiceImpl Class
+
+	private static final FhirContext CONTEXT = FhirContext.forR4();
+
+	private MpiClientConfiguration configuration;
+
+	private FhirMpiClientServiceImpl service;
+
+	private HttpServer server;
+
+	private List<Bundle> received;
+
 	@Before
 	public void setUp() throws Exception {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getFhirBatchSize()).thenReturn(2);
+		Mockito.when(configuration.getFhirBundleType()).thenReturn("batch");
+		Mockito.when(configuration.getExportedObsConcepts()).thenReturn(Collections.<Integer> emptySet());
+
+		// The family name of the resource is the patient's uuid, patients named "invalid" cannot be translated
+		PatientTranslator translator = Mockito.mock(PatientTranslator.class);
+		Mockito.when(translator.toFhirResource(Matchers.any(Patient.class))).thenAnswer(invocation -> {
+			Patient patient = (Patient) invocation.getArguments()[0];
+			if ("invalid".equals(patient.getUuid()))
+				throw new IllegalArgumentException("Cannot translate patient");
+			org.hl7.fhir.r4.model.Patient retVal = new org.hl7.fhir.r4.model.Patient();
+			retVal.addName().setFamily(patient.getUuid());
+			return retVal;
+		});
+
+		// Rejects the patients named "rejected"
+		received = new CopyOnWriteArrayList<Bundle>();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fhir", exchange -> {
+			Bundle request;
+			try (Scanner input = new Scanner(exchange.getRequestBody(), "UTF-8")) {
+				request = CONTEXT.newJsonParser().parseResource(Bundle.class, input.useDelimiter("\\A").next());
+			}
+			received.add(request);
+			Bundle response = new Bundle();
+			response.setType(Bundle.BundleType.BATCHRESPONSE);
+			for (BundleEntryComponent entry : request.getEntry()) {
+				String family = ((org.hl7.fhir.r4.model.Patient) entry.getResource()).getNameFirstRep().getFamily();
+				response.addEntry().getResponse().setStatus(family.startsWith("rejected") ? "400 Bad Request" : "201 Created");
+			}
+			byte[] body = CONTEXT.newJsonParser().encodeResourceToString(response).getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		server.start();
+
+		CONTEXT.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		final IGenericClient client = CONTEXT.newRestfulGenericClient(String.format("http://127.0.0.1:%s/fhir", server.getAddress().getPort()));
+		service = new FhirMpiClientServiceImpl(configuration, translator) {
+
+			@Override
+			IGenericClient getClient(boolean isSearch) {
+				return client;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private static MpiPatientExport createExport(String uuid) {
+		Patient patient = new Patient();
+		patient.setUuid(uuid);
+		MpiPatientExport retVal = new MpiPatientExport(patient, null, null, new PersonAttribute(), null);
+		retVal.setPatientTelephone(new PersonAttribute());
+		return retVal;
+	}
+
+	private static Obs createObs(int conceptId) {
+		Concept concept = new Concept();
+		concept.setConceptId(conceptId);
+		Obs retVal = new Obs();
+		retVal.setConcept(concept);
+		return retVal;
+	}
+
+	@Test
+	public void exportPatients_shouldSendBundlesOfBatchSize() {
+		List<MpiPatientExport> exports = new ArrayList<MpiPatientExport>();
+		for (int i = 0; i < 5; i++)
+			exports.add(createExport("patient-" + i));
+
+		List<MpiPatientExportResult> results = service.exportPatients(exports);
+
+		Assert.assertEquals(3, received.size());
+		Assert.assertEquals(Arrays.asList(2, 2, 1),
+				Arrays.asList(received.get(0).getEntry().size(), received.get(1).getEntry().size(), received.get(2).getEntry().size()));
+		Assert.assertEquals(Bundle.BundleType.BATCH, received.get(0).getType());
+		Assert.assertEquals(5, results.size());
+		for (int i = 0; i < 5; i++) {
+			Assert.assertSame(exports.get(i), results.get(i).getPatientExport());
+			Assert.assertTrue(results.get(i).isSuccessful());
+		}
+	}
+
+	@Test
+	public void exportPatients_shouldMapEntryFailuresToTheirPatients() {
+		List<MpiPatientExport> exports = Arrays.asList(createExport("patient-0"), createExport("rejected-1"),
+				createExport("invalid"), createExport("patient-3"), createExport("rejected-4"));
+
+		List<MpiPatientExportResult> results = service.exportPatients(exports);
+
+		// The patient which could not be translated is not sent, the others keep their positions
+		Assert.assertEquals(1, received.get(1).getEntry().size());
+		Assert.assertEquals(5, results.size());
+		Assert.assertTrue(results.get(0).isSuccessful());
+		Assert.assertFalse(results.get(1).isSuccessful());
+		Assert.assertTrue(results.get(1).getError().getMessage().contains("400"));
+		Assert.assertFalse(results.get(2).isSuccessful());
+		Assert.assertTrue(results.get(3).isSuccessful());
+		Assert.assertFalse(results.get(4).isSuccessful());
+		for (int i = 0; i < 5; i++)
+			Assert.assertSame(exports.get(i), results.get(i).getPatientExport());
+	}
+
+	@Test
+	public void exportPatients_shouldFailWholeBundleWhenServerUnavailable() {
+		server.stop(0);
+		List<MpiPatientExport> exports = Arrays.asList(createExport("patient-0"), createExport("patient-1"));
+
+		List<MpiPatientExportResult> results = service.exportPatients(exports);
+
+		Assert.assertFalse(results.get(0).isSuccessful());
+		Assert.assertFalse(results.get(1).isSuccessful());
+	}
+
+	@Test
+	public void exportPatients_shouldOnlySendExportedObs() {
+		Mockito.when(configuration.getExportedObsConcepts()).thenReturn(Collections.singleton(165194));
+		Obs country = createObs(165198);
+		country.setValueText("Haiti");
+		Obs birthPlace = createObs(165194);
+		birthPlace.setGroupMembers(new HashSet<Obs>(Collections.singleton(country)));
+		MpiPatientExport export = createExport("patient-0");
+		// The contact is not exported, translating it would fail as its concept has no name
+		export.setPatientObs(new HashSet<Obs>(Arrays.asList(birthPlace, createObs(165210))));
+
+		List<MpiPatientExportResult> results = service.exportPatients(Collections.singletonList(export));
+
+		Assert.assertTrue(results.get(0).isSuccessful());
+		org.hl7.fhir.r4.model.Patient sent = (org.hl7.fhir.r4.model.Patient) received.get(0).getEntryFirstRep().getResource();
+		Assert.assertEquals("Haiti", ((org.hl7.fhir.r4.model.Address) sent
+				.getExtensionByUrl("http://hl7.org/fhir/StructureDefinition/patient-birthPlace").getValue()).getCountry());
+		Assert.assertFalse(sent.hasContact());
 	}
 
 	@Test
@@ -30,4 +215,36 @@ public class FhirMpiClientServiceImplTest {
 	@Test
 	public void updatePatient() {
 	}
+
+	@Test
+	public void isIncludeRejected_shouldOnlyDowngradeForNotSupportedIssues() {
+		// A localized message is recognised by its issue code
+		Assert.assertTrue(FhirMpiClientServiceImpl.isIncludeRejected(new InvalidRequestException(
+				"HTTP 400 Bad Request: Valeur _include inconnue", createOutcome(IssueType.NOTSUPPORTED))));
+		Assert.assertTrue(FhirMpiClientServiceImpl.isIncludeRejected(new NotImplementedOperationException("Not implemented")));
+		// Mentioning an included parameter is not enough
+		Assert.assertFalse(FhirMpiClientServiceImpl.isIncludeRejected(new InvalidRequestException(
+				"HTTP 400 Bad Request: Invalid reference in included Patient:link", createOutcome(IssueType.INVALID))));
+		Assert.assertFalse(FhirMpiClientServiceImpl.isIncludeRejected(
+				new InvalidRequestException("HTTP 400 Bad Request: Unknown _include parameter value Patient:link")));
+	}
+
+	private static OperationOutcome createOutcome(IssueType code) {
+		OperationOutcome retVal = new OperationOutcome();
+		retVal.addIssue().setSeverity(IssueSeverity.ERROR).setCode(code);
+		return retVal;
+	}
+
+	@Test
+	public void isIncludeSupported_shouldTryIncludeAgainAfterRetryDelay() {
+		String endpoint = "http://127.0.0.1:8080/fhir";
+		Assert.assertTrue(service.isIncludeSupported(endpoint));
+
+		service.markIncludeUnsupported(endpoint, 60000);
+		Assert.assertFalse(service.isIncludeSupported(endpoint));
+		Assert.assertTrue(service.isIncludeSupported("http://127.0.0.1:8081/fhir"));
+
+		service.markIncludeUnsupported(endpoint, -1);
+		Assert.assertTrue(service.isIncludeSupported(endpoint));
+	}
 }
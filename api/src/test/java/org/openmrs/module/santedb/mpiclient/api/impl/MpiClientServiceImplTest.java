@@ -0,0 +1,421 @@
+package org.openmrs.module.santedb.mpiclient.api.impl;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.api.PatientService;
+import org.openmrs.module.santedb.mpiclient.aop.PatientSynchronizationAdvice;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.IdentifierDomainIndex;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.dao.MpiClientDao;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiSyncState;
+
+public class MpiClientServiceImplTest {
+
+	private static final Date BIRTHDATE = new Date(454032000000L);
+
+	private MpiClientServiceImpl service;
+
+	private MpiClientDao dao;
+
+	private MpiClientConfiguration configuration;
+
+	private Patient patient;
+
+	private PersonName name;
+
+	private PersonAddress address;
+
+	private static PersonName createName(String givenName, String familyName) {
+		PersonName retVal = new PersonName();
+		retVal.setGivenName(givenName);
+		retVal.setFamilyName(familyName);
+		return retVal;
+	}
+
+	private static PersonAddress createAddress(String cityVillage) {
+		PersonAddress retVal = new PersonAddress();
+		retVal.setCityVillage(cityVillage);
+		return retVal;
+	}
+
+	@Before
+	public void setup() {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getOutboxCoalesceWindow()).thenReturn(2000);
+		service = new MpiClientServiceImpl(configuration);
+		dao = Mockito.mock(MpiClientDao.class);
+		Mockito.when(dao.saveOutboxEntry(Matchers.any(MpiOutboxEntry.class))).thenAnswer(invocation -> invocation.getArguments()[0]);
+		service.setDao(dao);
+		patient = new Patient();
+		name = createName("Marie", "Jean-Baptiste");
+		address = createAddress("Hinche");
+		patient.addName(name);
+		patient.addAddress(address);
+		patient.setBirthdate(BIRTHDATE);
+		patient.setBirthdateEstimated(false);
+		patient.setGender("F");
+	}
+
+	@Test
+	public void testCopyDemographics_shouldKeepLocalDataMissingFromSparseRecord() {
+		MpiPatient remotePatient = new MpiPatient();
+
+		Assert.assertFalse(service.copyDemographics(patient, remotePatient));
+		Assert.assertEquals(BIRTHDATE, patient.getBirthdate());
+		Assert.assertEquals("F", patient.getGender());
+		Assert.assertFalse(patient.getDead());
+		Assert.assertFalse(name.getVoided() != null && name.getVoided());
+		Assert.assertFalse(address.getVoided() != null && address.getVoided());
+	}
+
+	@Test
+	public void testCopyDemographics_shouldCopyOnlyFieldsTheMpiSends() {
+		MpiPatient remotePatient = new MpiPatient();
+		remotePatient.setGender("M");
+		remotePatient.setDeathDate(new Date(1600000000000L));
+
+		Assert.assertTrue(service.copyDemographics(patient, remotePatient));
+		Assert.assertEquals("M", patient.getGender());
+		Assert.assertEquals(BIRTHDATE, patient.getBirthdate());
+		Assert.assertTrue(patient.getDead());
+		Assert.assertEquals(new Date(1600000000000L), patient.getDeathDate());
+	}
+
+	@Test
+	public void testCopyDemographics_shouldVoidReplacedNamesAndAddresses() {
+		MpiPatient remotePatient = new MpiPatient();
+		remotePatient.addName(createName("Marie", "Jean-Baptiste"));
+		remotePatient.addName(createName("Marie", "Joseph"));
+		remotePatient.addAddress(createAddress("Jacmel"));
+
+		Assert.assertTrue(service.copyDemographics(patient, remotePatient));
+
+		// The unchanged name is kept, the new name is added
+		Assert.assertFalse(Boolean.TRUE.equals(name.getVoided()));
+		Assert.assertEquals(2, patient.getNames().size());
+
+		// The old address is voided, not removed
+		Assert.assertEquals(2, patient.getAddresses().size());
+		Assert.assertTrue(address.getVoided());
+		Assert.assertNotNull(address.getVoidReason());
+		Assert.assertNotNull(address.getDateVoided());
+		Assert.assertEquals("Jacmel", patient.getPersonAddress().getCityVillage());
+
+		// Applying the same record again changes nothing
+		Assert.assertFalse(service.copyDemographics(patient, remotePatient));
+	}
+
+	private static Encounter createEncounter(String uuid) {
+		Encounter retVal = new Encounter();
+		retVal.setUuid(uuid);
+		return retVal;
+	}
+
+	@Test
+	public void testQueuePatientExport_shouldDelayNewExportByCoalesceWindow() {
+		Mockito.when(dao.getPendingOutboxEntries(patient)).thenReturn(Collections.<MpiOutboxEntry> emptyList());
+		long before = System.currentTimeMillis();
+
+		MpiOutboxEntry queued = service.queuePatientExport(patient, null);
+
+		Mockito.verify(dao).saveOutboxEntry(queued);
+		Assert.assertSame(patient, queued.getPatient());
+		Assert.assertTrue(queued.getNextAttempt().getTime() >= before + 2000);
+	}
+
+	@Test
+	public void testQueuePatientExport_shouldMergeSaveIntoPendingExport() {
+		Encounter encounter = createEncounter("encounter-1");
+		MpiOutboxEntry pending = new MpiOutboxEntry(patient, encounter, new Date());
+		Mockito.when(dao.getPendingOutboxEntries(patient)).thenReturn(Arrays.asList(pending));
+
+		// A patient save is covered by any pending export, which reads the current demographics
+		Assert.assertSame(pending, service.queuePatientExport(patient, null));
+		Assert.assertSame(pending, service.queuePatientExport(patient, encounter));
+		Assert.assertSame(encounter, pending.getEncounter());
+	}
+
+	@Test
+	public void testQueuePatientExport_shouldAddEncounterToPendingPatientExport() {
+		MpiOutboxEntry pending = new MpiOutboxEntry(patient, null, new Date());
+		Mockito.when(dao.getPendingOutboxEntries(patient)).thenReturn(Arrays.asList(pending));
+		Encounter encounter = createEncounter("encounter-1");
+
+		Assert.assertSame(pending, service.queuePatientExport(patient, encounter));
+		Assert.assertSame(encounter, pending.getEncounter());
+		Mockito.verify(dao).saveOutboxEntry(pending);
+	}
+
+	@Test
+	public void testQueuePatientExport_shouldQueueOtherEncounterSeparately() {
+		MpiOutboxEntry pending = new MpiOutboxEntry(patient, createEncounter("encounter-1"), new Date());
+		Mockito.when(dao.getPendingOutboxEntries(patient)).thenReturn(Arrays.asList(pending));
+		Encounter encounter = createEncounter("encounter-2");
+
+		MpiOutboxEntry queued = service.queuePatientExport(patient, encounter);
+
+		Assert.assertNotSame(pending, queued);
+		Assert.assertSame(encounter, queued.getEncounter());
+		Assert.assertEquals("encounter-1", pending.getEncounter().getUuid());
+	}
+
+	@Test
+	public void testQueuePatientExport_shouldDelayEncounterExportsByEncounterDelay() {
+		Mockito.when(configuration.getOutboxEncounterDelay()).thenReturn(5000);
+		MpiOutboxEntry pending = new MpiOutboxEntry(patient, null, new Date());
+		Mockito.when(dao.getPendingOutboxEntries(patient)).thenReturn(Arrays.asList(pending));
+		long before = System.currentTimeMillis();
+
+		// The pending patient export waits for the obs of the encounter
+		Assert.assertSame(pending, service.queuePatientExport(patient, createEncounter("encounter-1")));
+		Assert.assertTrue(pending.getNextAttempt().getTime() >= before + 7000);
+
+		// Later patient saves do not bring it forward
+		Date due = pending.getNextAttempt();
+		service.queuePatientExport(patient, null);
+		Assert.assertEquals(due, pending.getNextAttempt());
+	}
+
+	@Test
+	public void testApplyPatientUpdate_shouldNotQueueExportOfAppliedUpdate() throws Exception {
+		MpiClientConfiguration adviceConfiguration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(adviceConfiguration.getClientRegistryEndpoint()).thenReturn("mllp://mpi.example.org:2100");
+		final MpiClientService mpiService = Mockito.mock(MpiClientService.class);
+		Mockito.when(mpiService.queuePatientExport(Matchers.any(Patient.class), Matchers.any(Encounter.class)))
+				.thenAnswer(invocation -> new MpiOutboxEntry((Patient)invocation.getArguments()[0], null, new Date()));
+		final PatientSynchronizationAdvice advice = new PatientSynchronizationAdvice(adviceConfiguration, () -> mpiService);
+		final PatientService patientService = Mockito.mock(PatientService.class);
+		final Method savePatient = PatientService.class.getMethod("savePatient", Patient.class);
+		Mockito.when(patientService.savePatient(Matchers.any(Patient.class))).thenAnswer(invocation -> {
+			advice.afterReturning(invocation.getArguments()[0], savePatient, invocation.getArguments(), patientService);
+			return invocation.getArguments()[0];
+		});
+		service = new MpiClientServiceImpl(configuration) {
+
+			@Override
+			PatientService getPatientService() {
+				return patientService;
+			}
+		};
+		service.setDao(dao);
+		patient.setUuid("patient-1");
+		MpiPatient remotePatient = new MpiPatient();
+		remotePatient.addName(createName("Marie", "Joseph"));
+
+		Assert.assertTrue(service.applyPatientUpdate(patient, remotePatient));
+		Mockito.verify(patientService).savePatient(patient);
+		Mockito.verify(mpiService, Mockito.never()).queuePatientExport(Matchers.any(Patient.class), Matchers.any(Encounter.class));
+		Assert.assertFalse(PatientSynchronizationAdvice.SUPPRESS.get());
+
+		// A local save outside of the update is still exported
+		patientService.savePatient(patient);
+		Mockito.verify(mpiService).queuePatientExport(patient, null);
+	}
+
+	@Test
+	public void testExportPatient_shouldSendFromOutboxWhenUsingBackgroundThreads() throws Exception {
+		Mockito.when(configuration.getMessageFormat()).thenReturn("hl7");
+		Mockito.when(configuration.getUseBackgroundThreads()).thenReturn(true);
+		patient.setPatientId(1);
+		patient.setUuid("patient-1");
+
+		service.exportPatient(new MpiPatientExport(patient, null, null, null, null));
+
+		// The sync state is recorded by the outbox once the MPI has acknowledged the export
+		ArgumentCaptor<MpiOutboxEntry> queued = ArgumentCaptor.forClass(MpiOutboxEntry.class);
+		Mockito.verify(dao).saveOutboxEntry(queued.capture());
+		Assert.assertSame(patient, queued.getValue().getPatient());
+		Assert.assertNull(queued.getValue().getEncounter());
+		Mockito.verify(dao, Mockito.never()).saveSyncState(Matchers.any(MpiSyncState.class));
+	}
+
+	private static PatientIdentifierType createType(Integer id, String name) {
+		PatientIdentifierType retVal = new PatientIdentifierType();
+		retVal.setId(id);
+		retVal.setName(name);
+		retVal.setUuid(name);
+		return retVal;
+	}
+
+	@Test
+	public void testCrossReferencePatient_shouldResolveOnlyMissingDomainsInOneQuery() throws Exception {
+		PatientIdentifierType nationalId = createType(1, "National Health ID");
+		PatientIdentifierType matricule = createType(2, "Matricule");
+		PatientIdentifierType dossier = createType(3, "Dossier");
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("National Health ID", "NHID");
+		map.put("Matricule", "MATRICULE");
+		map.put("Dossier", "DOSSIER");
+		Constructor<IdentifierDomainIndex> constructor = IdentifierDomainIndex.class.getDeclaredConstructor(Map.class, Collection.class);
+		constructor.setAccessible(true);
+		Mockito.when(configuration.getIdentifierDomainIndex())
+				.thenReturn(constructor.newInstance(map, Arrays.asList(nationalId, matricule, dossier)));
+		Mockito.when(configuration.getAutomaticCrossReferenceDomains()).thenReturn("NHID,MATRICULE,DOSSIER");
+
+		final PatientService patientService = Mockito.mock(PatientService.class);
+		final PatientIdentifier nhid = new PatientIdentifier("NH-1", nationalId, null);
+		final PatientIdentifier existing = new PatientIdentifier("MA-1", matricule, null);
+		final Set<String> requested = new HashSet<String>();
+		Mockito.when(patientService.getPatientIdentifiers(Matchers.eq("MA-1"), Matchers.anyListOf(PatientIdentifierType.class),
+				Matchers.anyListOf(Location.class), Matchers.anyListOf(Patient.class), Matchers.anyBoolean()))
+				.thenReturn(Collections.singletonList(existing));
+		service = new MpiClientServiceImpl(configuration) {
+
+			@Override
+			PatientService getPatientService() {
+				return patientService;
+			}
+
+			@Override
+			public Map<String, PatientIdentifier> resolvePatientIdentifiers(Patient patient, Set<String> toAssigningAuthorities) {
+				requested.addAll(toAssigningAuthorities);
+				Map<String, PatientIdentifier> retVal = new HashMap<String, PatientIdentifier>();
+				retVal.put("NHID", nhid);
+				retVal.put("MATRICULE", new PatientIdentifier("MA-1", matricule, null));
+				return retVal;
+			}
+		};
+		patient.addIdentifier(new PatientIdentifier("D-1", dossier, null));
+
+		service.crossReferencePatient(patient);
+
+		// The patient already has a dossier number, and the matricule belongs to another patient
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("NHID", "MATRICULE")), requested);
+		Mockito.verify(patientService).savePatientIdentifier(nhid);
+		Mockito.verify(patientService, Mockito.times(1)).savePatientIdentifier(Matchers.any(PatientIdentifier.class));
+		Assert.assertSame(patient, nhid.getPatient());
+	}
+
+	@Test
+	public void testReconcilePatientIdentifiers_shouldSaveMissingIdentifiersThroughPatientService() throws Exception {
+		final PatientIdentifierType nationalId = createType(1, "National Health ID");
+		final PatientIdentifierType matricule = createType(2, "Matricule");
+		Map<String, PatientIdentifierType> domains = new HashMap<String, PatientIdentifierType>();
+		domains.put("NHID", nationalId);
+		domains.put("MATRICULE", matricule);
+		patient.setPatientId(5);
+		patient.setUuid("patient-5");
+		Mockito.when(dao.getPatientsForUpdate(Matchers.anyCollectionOf(Integer.class))).thenReturn(Collections.singletonList(patient));
+
+		final PatientService patientService = Mockito.mock(PatientService.class);
+		final PatientIdentifier nhid = new PatientIdentifier("NH-5", nationalId, null);
+		Mockito.when(patientService.getPatientIdentifiers(Matchers.eq("MA-5"), Matchers.anyListOf(PatientIdentifierType.class),
+				Matchers.anyListOf(Location.class), Matchers.anyListOf(Patient.class), Matchers.anyBoolean()))
+				.thenReturn(Collections.singletonList(new PatientIdentifier("MA-5", matricule, null)));
+		service = new MpiClientServiceImpl(configuration) {
+
+			@Override
+			PatientService getPatientService() {
+				return patientService;
+			}
+
+			@Override
+			public Map<Integer, Map<String, PatientIdentifier>> resolvePatientIdentifiers(Collection<Patient> patients,
+					Set<String> toAssigningAuthorities) {
+				Map<String, PatientIdentifier> retVal = new HashMap<String, PatientIdentifier>();
+				retVal.put("NHID", nhid);
+				retVal.put("MATRICULE", new PatientIdentifier("MA-5", matricule, null));
+				return Collections.singletonMap(5, retVal);
+			}
+		};
+		service.setDao(dao);
+
+		Map<Integer, Integer> added = service.reconcilePatientIdentifiers(Collections.singletonList(5), domains);
+
+		// The matricule belongs to another patient
+		Assert.assertEquals(Integer.valueOf(1), added.get(5));
+		Mockito.verify(patientService).savePatientIdentifier(nhid);
+		Mockito.verify(patientService, Mockito.times(1)).savePatientIdentifier(Matchers.any(PatientIdentifier.class));
+		Assert.assertSame(patient, nhid.getPatient());
+	}
+
+	@Test
+	public void testMatchWithExistingPatients_shouldLoadLocalPatientsInOneQuery() {
+		Patient local = new Patient();
+		local.setPatientId(5);
+		Mockito.when(dao.getPatientsForUpdate(Matchers.anyCollectionOf(Integer.class))).thenReturn(Collections.singletonList(local));
+		Patient first = new Patient();
+		first.setPatientId(5);
+		Patient second = new Patient();
+		second.setPatientId(7);
+		Patient third = new Patient();
+
+		Assert.assertEquals(Arrays.asList(local, null, null), service.matchWithExistingPatients(Arrays.asList(first, second, third)));
+		Mockito.verify(dao, Mockito.times(1)).getPatientsForUpdate(new HashSet<Integer>(Arrays.asList(5, 7)));
+	}
+
+	@Test
+	public void testImportPatient_shouldNotImportProbableLocalDuplicate() {
+		service = new MpiClientServiceImpl(configuration) {
+
+			@Override
+			public Integer getProbableLocalDuplicate(Patient patient) {
+				return 42;
+			}
+		};
+		service.setDao(dao);
+		MpiPatient remotePatient = new MpiPatient();
+		remotePatient.addName(createName("Marie", "Jean-Baptiste"));
+
+		try {
+			service.importPatient(remotePatient);
+			Assert.fail("A probable local duplicate was imported");
+		}
+		catch (MpiClientException e) {
+			Assert.assertTrue(e.getMessage().contains("42"));
+		}
+		Mockito.verify(configuration, Mockito.never()).getMessageFormat();
+	}
+
+	@Test
+	public void testImportPatient_shouldImportConfirmedProbableLocalDuplicate() throws Exception {
+		service = new MpiClientServiceImpl(configuration) {
+
+			@Override
+			public Integer getProbableLocalDuplicate(Patient patient) {
+				return 42;
+			}
+		};
+		service.setDao(dao);
+		FhirMpiClientServiceImpl fhirService = Mockito.mock(FhirMpiClientServiceImpl.class);
+		Field fhirServiceField = MpiClientServiceImpl.class.getDeclaredField("m_fhirService");
+		fhirServiceField.setAccessible(true);
+		fhirServiceField.set(service, fhirService);
+		Mockito.when(configuration.getMessageFormat()).thenReturn("fhir");
+		MpiPatient remotePatient = new MpiPatient();
+		remotePatient.addName(createName("Marie", "Jean-Baptiste"));
+		Mockito.when(fhirService.importPatient(remotePatient)).thenReturn(patient);
+
+		// A twin scores as a duplicate, but the user has confirmed it is another person
+		Assert.assertSame(patient, service.importPatient(remotePatient, true));
+		Mockito.verify(fhirService).importPatient(remotePatient);
+	}
+}
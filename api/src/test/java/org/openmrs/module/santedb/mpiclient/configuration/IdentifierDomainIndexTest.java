@@ -0,0 +1,77 @@
+package org.openmrs.module.santedb.mpiclient.configuration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.PatientIdentifierType;
+
+public class IdentifierDomainIndexTest {
+
+	private PatientIdentifierType nationalId;
+
+	private PatientIdentifierType localId;
+
+	private PatientIdentifierType matricule;
+
+	private IdentifierDomainIndex index;
+
+	private PatientIdentifierType createType(Integer id, String name, String uuid) {
+		PatientIdentifierType retVal = new PatientIdentifierType();
+		retVal.setId(id);
+		retVal.setName(name);
+		retVal.setUuid(uuid);
+		return retVal;
+	}
+
+	@Before
+	public void setup() {
+		nationalId = createType(1, "National Health ID", "b5d0a5a2-1c1f-4d2b-9d6c-5a3e6c1a1f01");
+		localId = createType(2, "Code National", "0d3a6c2e-5f54-4b55-8a4c-7e0f0c4b3e02");
+		matricule = createType(3, "Matricule", "6f1e2d3c-4b5a-4968-8776-a5b4c3d2e104");
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("National Health ID", "http://mpi-project/identity/mohs/nhid");
+		map.put("Missing Type", "http://mpi-project/identity/missing");
+		map.put("Matricule", "MATRICULE");
+		index = new IdentifierDomainIndex(map, Arrays.asList(nationalId, localId, matricule));
+	}
+
+	@Test
+	public void testIndex_shouldResolveMappedDomain() {
+		Assert.assertEquals(nationalId.getUuid(), index.getMappedIdentifierType("http://mpi-project/identity/mohs/nhid").getUuid());
+		Assert.assertEquals(nationalId.getUuid(), index.getIdentifierType("http://mpi-project/identity/mohs/nhid").getUuid());
+		Assert.assertEquals("http://mpi-project/identity/mohs/nhid", index.getDomain(nationalId));
+		Assert.assertNull(index.getMappedIdentifierType("http://mpi-project/identity/missing"));
+	}
+
+	@Test
+	public void testIndex_shouldFallBackToNameOrUuid() {
+		Assert.assertNull(index.getMappedIdentifierType("Code National"));
+		Assert.assertEquals(localId.getUuid(), index.getIdentifierType("Code National").getUuid());
+		Assert.assertEquals(localId.getUuid(), index.getIdentifierType("0d3a6c2e-5f54-4b55-8a4c-7e0f0c4b3e02").getUuid());
+		Assert.assertNull(index.getDomain(localId));
+		Assert.assertNull(index.getIdentifierType(null));
+	}
+
+	@Test
+	public void testIndex_shouldResolveWithoutLoading() {
+		Assert.assertSame(localId, index.getIdentifierType("Code National"));
+		Assert.assertSame(localId, index.getIdentifierType("Code National"));
+		Assert.assertSame(nationalId, index.getMappedIdentifierType("http://mpi-project/identity/mohs/nhid"));
+	}
+
+	@Test
+	public void testIndex_shouldResolveNamespaceOrUniversalId() {
+		// Mapped by namespace or by OID
+		Assert.assertSame(matricule, index.getIdentifierType("MATRICULE", "1.3.6.1.4.1.12559.11.1.2"));
+		Assert.assertSame(nationalId, index.getIdentifierType("NHID", "http://mpi-project/identity/mohs/nhid"));
+		// A mapped domain wins over a type whose name matches
+		Assert.assertSame(matricule, index.getIdentifierType("National Health ID", "MATRICULE"));
+		// Not mapped, found by UUID
+		Assert.assertSame(localId, index.getIdentifierType(null, "0d3a6c2e-5f54-4b55-8a4c-7e0f0c4b3e02"));
+		Assert.assertNull(index.getIdentifierType("UNKNOWN", "1.2.3"));
+	}
+}
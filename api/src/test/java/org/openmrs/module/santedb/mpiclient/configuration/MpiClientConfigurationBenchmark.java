@@ -0,0 +1,87 @@
+package org.openmrs.module.santedb.mpiclient.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+
+/**
+ * Measures the cost of reading configuration values from the cached snapshot against
+ * reading each one from the database (as when the cache is disabled for debugging). The
+ * database is a mock which waits a fixed time for each query. Log output of the
+ * configuration is turned off so only the reads are measured. Run with
+ * {@code java ... MpiClientConfigurationBenchmark [reads] [queryMicros]}.
+ */
+public class MpiClientConfigurationBenchmark {
+
+	private static final Logger LOG = Logger.getLogger(MpiClientConfiguration.class.getName());
+
+	public static void main(String[] args) throws Exception {
+		int reads = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final long queryNanos = (args.length > 1 ? Long.parseLong(args[1]) : 100) * 1000;
+		LOG.setLevel(Level.OFF);
+
+		for (boolean bypass : new boolean[] { true, false }) {
+			final Map<String, String> values = new ConcurrentHashMap<String, String>();
+			values.put(MpiClientConfiguration.PROP_DEBUG_NO_CACHE, String.valueOf(bypass));
+			values.put(MpiClientConfiguration.PROP_NAME_PIX_EP_PORT, "2100");
+			values.put(MpiClientConfiguration.PROP_NAME_ENT_ID, "ENTID");
+			values.put(MpiClientConfiguration.PROP_NAME_MESSAGE_FORMAT, "fhir");
+			values.put(MpiClientConfiguration.PROP_NAME_USE_THREADS, "true");
+
+			AdministrationService administrationService = Mockito.mock(AdministrationService.class);
+			Mockito.when(administrationService.getGlobalPropertiesByPrefix(Matchers.anyString())).thenAnswer(invocation -> {
+				List<GlobalProperty> retVal = new ArrayList<GlobalProperty>();
+				for (Map.Entry<String, String> value : values.entrySet())
+					retVal.add(new GlobalProperty(value.getKey(), value.getValue()));
+				return retVal;
+			});
+			Mockito.when(administrationService.getGlobalProperty(Matchers.anyString())).thenAnswer(invocation -> {
+				query(queryNanos);
+				return values.get(invocation.getArguments()[0]);
+			});
+			Mockito.when(administrationService.saveGlobalProperty(Matchers.any(GlobalProperty.class))).thenAnswer(invocation -> {
+				GlobalProperty property = (GlobalProperty) invocation.getArguments()[0];
+				values.put(property.getProperty(), property.getPropertyValue());
+				return property;
+			});
+			MpiClientConfiguration configuration = new MpiClientConfiguration(() -> administrationService);
+
+			// Reads as a hot path does, several getters per patient
+			int count = bypass ? Math.max(1, reads / 100) : reads;
+			long checksum = read(configuration, count / 10);
+			long start = System.nanoTime();
+			checksum += read(configuration, count);
+			double perRead = (System.nanoTime() - start) / (count * 4.0);
+			System.out.println(String.format("%s: %.1f ns per getter (%s reads, %s)",
+					bypass ? "cache disabled" : "cached snapshot", perRead, count * 4, checksum));
+		}
+	}
+
+	private static long read(MpiClientConfiguration configuration, int count) {
+		long retVal = 0;
+		for (int i = 0; i < count; i++) {
+			retVal += configuration.getPixPort();
+			retVal += configuration.getEnterprisePatientIdRoot().length();
+			retVal += configuration.getMessageFormat().length();
+			retVal += configuration.getUseBackgroundThreads() ? 1 : 0;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Wait as long as a database query takes
+	 */
+	private static void query(long nanos) {
+		long until = System.nanoTime() + nanos;
+		while (System.nanoTime() < until)
+			;
+	}
+}
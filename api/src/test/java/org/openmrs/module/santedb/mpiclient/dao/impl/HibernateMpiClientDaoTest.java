@@ -0,0 +1,123 @@
+package org.openmrs.module.santedb.mpiclient.dao.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+
+public class HibernateMpiClientDaoTest {
+
+	private HibernateMpiClientDao dao;
+
+	private Session session;
+
+	private Query query;
+
+	private PatientIdentifierType nationalId;
+
+	private PatientIdentifierType codeNational;
+
+	private static PatientIdentifierType createType(Integer id, String name) {
+		PatientIdentifierType retVal = new PatientIdentifierType();
+		retVal.setId(id);
+		retVal.setName(name);
+		return retVal;
+	}
+
+	private static PatientIdentifier createIdentifier(String identifier, PatientIdentifierType type, Integer patientId,
+			boolean voided) {
+		Patient patient = new Patient();
+		patient.setPatientId(patientId);
+		PatientIdentifier retVal = new PatientIdentifier();
+		retVal.setIdentifier(identifier);
+		// The query loads its own copy of the type
+		retVal.setIdentifierType(createType(type.getId(), type.getName()));
+		retVal.setPatient(patient);
+		retVal.setVoided(voided);
+		return retVal;
+	}
+
+	@Before
+	public void setup() {
+		nationalId = createType(1, "National Health ID");
+		codeNational = createType(2, "Code National");
+		query = Mockito.mock(Query.class);
+		Mockito.when(query.setParameterList(Matchers.anyString(), Matchers.anyCollection())).thenReturn(query);
+		Mockito.when(query.setParameter(Matchers.anyString(), Matchers.any())).thenReturn(query);
+		session = Mockito.mock(Session.class);
+		Mockito.when(session.createQuery(Matchers.anyString())).thenReturn(query);
+		SessionFactory sessionFactory = Mockito.mock(SessionFactory.class);
+		Mockito.when(sessionFactory.getCurrentSession()).thenReturn(session);
+		dao = new HibernateMpiClientDao();
+		dao.setSessionFactory(sessionFactory);
+	}
+
+	@Test
+	public void testGetPatientsByIdentifiers_shouldLookUpAllIdentifiersWithOneQuery() {
+		Pair<String, PatientIdentifierType> matched = Pair.of("100", nationalId), otherType = Pair.of("200", codeNational),
+				unknown = Pair.of("300", nationalId);
+		// Ordered by voided, as the query is; 200 is a national health id, not a code national
+		Mockito.when(query.list()).thenReturn(Arrays.asList(createIdentifier("100", nationalId, 1, false),
+				createIdentifier("200", nationalId, 2, false), createIdentifier("100", nationalId, 3, true)));
+
+		Map<Pair<String, PatientIdentifierType>, Patient> patients = dao.getPatientsByIdentifiers(Arrays.asList(matched,
+				otherType, unknown, Pair.of((String) null, nationalId), Pair.of("400", (PatientIdentifierType) null)));
+
+		Mockito.verify(session, Mockito.times(1)).createQuery(Matchers.anyString());
+		Mockito.verify(query).setParameterList("identifiers", new HashSet<String>(Arrays.asList("100", "200", "300")));
+		Mockito.verify(query).setParameterList("types", new HashSet<PatientIdentifierType>(Arrays.asList(nationalId, codeNational)));
+		Assert.assertEquals(Collections.singleton(matched), patients.keySet());
+		// The patient of the identifier which is not voided
+		Assert.assertEquals(Integer.valueOf(1), patients.get(matched).getPatientId());
+	}
+
+	@Test
+	public void testGetPatientsByIdentifiers_shouldNotQueryWithoutIdentifiers() {
+		List<Pair<String, PatientIdentifierType>> identifiers = Collections.singletonList(Pair.of("100", (PatientIdentifierType) null));
+
+		Assert.assertTrue(dao.getPatientsByIdentifiers(identifiers).isEmpty());
+		Mockito.verify(session, Mockito.never()).createQuery(Matchers.anyString());
+	}
+
+	@Test
+	public void testDeleteOutboxEntry_shouldOnlyDeleteEntryStillClaimedWithItsToken() {
+		MpiOutboxEntry entry = new MpiOutboxEntry();
+		entry.setOutboxEntryId(10);
+		entry.setClaimToken("claim-1");
+		Mockito.when(query.executeUpdate()).thenReturn(1);
+
+		Assert.assertTrue(dao.deleteOutboxEntry(entry));
+		Mockito.verify(query).setParameter("id", 10);
+		Mockito.verify(query).setParameter("token", "claim-1");
+		Mockito.verify(query).setParameter("inProgress", MpiOutboxEntry.STATUS_IN_PROGRESS);
+		Mockito.verify(session, Mockito.never()).delete(entry);
+
+		// Released and claimed again by another worker
+		Mockito.when(query.executeUpdate()).thenReturn(0);
+		Assert.assertFalse(dao.deleteOutboxEntry(entry));
+	}
+
+	@Test
+	public void testDeleteOutboxEntry_shouldNotDeleteReleasedEntry() {
+		MpiOutboxEntry entry = new MpiOutboxEntry();
+		entry.setOutboxEntryId(10);
+
+		Assert.assertFalse(dao.deleteOutboxEntry(entry));
+		Mockito.verify(session, Mockito.never()).createQuery(Matchers.anyString());
+	}
+}
@@ -0,0 +1,121 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+public class CheckpointedJobTest {
+
+	private MpiClientConfiguration configuration;
+
+	/**
+	 * Processes batches until it is stopped, without a database session
+	 */
+	private class TestJob extends CheckpointedJob {
+
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final AtomicInteger batches = new AtomicInteger();
+
+		final AtomicInteger sessions = new AtomicInteger();
+
+		volatile boolean stoppedByUser;
+
+		TestJob() {
+			super(configuration, "test job", "mpi-client-test");
+		}
+
+		@Override
+		public String getStatistics() {
+			return String.format("batches: %s", this.batches.get());
+		}
+
+		@Override
+		protected void run(boolean restart) throws Exception {
+			while (!this.isStopRequested()) {
+				this.batches.incrementAndGet();
+				this.started.countDown();
+				this.sleep(60000);
+			}
+			this.stoppedByUser = this.isStoppedByUser();
+		}
+
+		@Override
+		protected void runAsDaemon(MpiDaemon.Work work) throws Exception {
+			this.sessions.incrementAndGet();
+			try {
+				work.run();
+			}
+			finally {
+				this.sessions.decrementAndGet();
+			}
+		}
+
+		@Override
+		protected void openSession() {
+			this.sessions.incrementAndGet();
+		}
+
+		@Override
+		protected void closeSession() {
+			this.sessions.decrementAndGet();
+		}
+	}
+
+	@Before
+	public void setup() {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getOutboxMaxAttempts()).thenReturn(5);
+		Mockito.when(configuration.getOutboxRetryDelay()).thenReturn(1000);
+		Mockito.when(configuration.getOutboxMaxRetryDelay()).thenReturn(5000);
+	}
+
+	@Test
+	public void testStart_shouldRunOnceUntilStopped() throws Exception {
+		TestJob job = new TestJob();
+		Assert.assertTrue(job.start(false));
+		Assert.assertTrue(job.started.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(job.isRunning());
+		Assert.assertFalse(job.start(false));
+
+		job.stop();
+		job.awaitCompletion();
+
+		Assert.assertFalse(job.isRunning());
+		Assert.assertTrue(job.stoppedByUser);
+		Assert.assertEquals(1, job.batches.get());
+		Assert.assertEquals(0, job.sessions.get());
+	}
+
+	@Test
+	public void testShutdown_shouldStopWithoutMarkingStopped() throws Exception {
+		TestJob job = new TestJob();
+		job.start(false);
+		Assert.assertTrue(job.started.await(5, TimeUnit.SECONDS));
+
+		long start = System.currentTimeMillis();
+		job.shutdown();
+
+		Assert.assertFalse(job.isRunning());
+		Assert.assertFalse(job.stoppedByUser);
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		Assert.assertEquals("INTERRUPTED", job.getStatus("RUNNING", "RUNNING"));
+		Assert.assertEquals("COMPLETED", job.getStatus("COMPLETED", "RUNNING"));
+	}
+
+	@Test
+	public void testGetRetryDelay_shouldBackOffUntilMaxAttempts() {
+		TestJob job = new TestJob();
+		Assert.assertEquals(1000, job.getRetryDelay(1));
+		Assert.assertEquals(2000, job.getRetryDelay(2));
+		Assert.assertEquals(4000, job.getRetryDelay(3));
+		Assert.assertEquals(5000, job.getRetryDelay(4));
+		Assert.assertEquals(-1, job.getRetryDelay(5));
+	}
+}
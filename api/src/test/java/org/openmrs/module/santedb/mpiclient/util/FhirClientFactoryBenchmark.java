@@ -0,0 +1,71 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.util.FhirClientFactory.Endpoint;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+
+/**
+ * Measures the cost of getting a FHIR client for a call, building a new FHIR context and
+ * client each time (as every search and export used to) against the cached clients of the
+ * {@link FhirClientFactory}. Each client is used to encode a patient so the model classes
+ * are scanned as they are for a real call. The configuration is a mock, which adds a little
+ * to the cost of the cached clients. Run with
+ * {@code java ... FhirClientFactoryBenchmark [uncachedCalls] [cachedCalls]}.
+ */
+public class FhirClientFactoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int uncachedCalls = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int cachedCalls = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getHttpMaxConnections()).thenReturn(20);
+		Mockito.when(configuration.getHttpMaxConnectionsPerRoute()).thenReturn(10);
+		Mockito.when(configuration.getHttpConnectTimeout()).thenReturn(10000);
+		Mockito.when(configuration.getHttpReadTimeout()).thenReturn(30000);
+		Mockito.when(configuration.getHttpKeepAlive()).thenReturn(60000);
+		Mockito.when(configuration.getAuthenticationMode()).thenReturn("none");
+		Mockito.when(configuration.getPdqEndpoint()).thenReturn("http://127.0.0.1:8080/fhir");
+		HttpClientManager httpClientManager = new HttpClientManager(configuration);
+		FhirClientFactory factory = new FhirClientFactory(configuration, httpClientManager);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("JOSEPH").addGiven("MARIE");
+
+		// The first context pays for loading the classes, so it is not counted
+		encode(createClient(), patient);
+		long start = System.nanoTime();
+		for (int i = 0; i < uncachedCalls; i++)
+			encode(createClient(), patient);
+		double uncached = (System.nanoTime() - start) / 1e3 / uncachedCalls;
+
+		for (int i = 0; i < cachedCalls; i++)
+			encode(factory.getClient(Endpoint.PDQ), patient);
+		start = System.nanoTime();
+		for (int i = 0; i < cachedCalls; i++)
+			encode(factory.getClient(Endpoint.PDQ), patient);
+		double cached = (System.nanoTime() - start) / 1e3 / cachedCalls;
+
+		System.out.println(String.format("new context per call: %.1f us per call (%s calls)", uncached, uncachedCalls));
+		System.out.println(String.format("cached client: %.1f us per call (%s calls)", cached, cachedCalls));
+		httpClientManager.shutdown();
+	}
+
+	/**
+	 * Build a client as each call did before the clients were cached
+	 */
+	private static IGenericClient createClient() {
+		FhirContext context = FhirContext.forR4();
+		context.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		return context.newRestfulGenericClient("http://127.0.0.1:8080/fhir");
+	}
+
+	private static int encode(IGenericClient client, Patient patient) {
+		return client.getFhirContext().newJsonParser().encodeResourceToString(patient).length();
+	}
+}
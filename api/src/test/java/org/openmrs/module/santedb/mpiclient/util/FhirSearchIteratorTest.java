@@ -0,0 +1,97 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IGetPage;
+import ca.uhn.fhir.rest.gclient.IGetPageTyped;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FhirSearchIteratorTest {
+
+	@Mock
+	private IGenericClient client;
+
+	@Mock
+	private IGetPage getPage;
+
+	@Mock
+	private IGetPageTyped<Bundle> nextPage;
+
+	@Before
+	public void setup() {
+		when(client.loadPage()).thenReturn(getPage);
+	}
+
+	private Bundle createPage(String... ids) {
+		Bundle retVal = new Bundle();
+		for (String id : ids) {
+			retVal.addEntry().setResource(new Patient().setId(id));
+		}
+		return retVal;
+	}
+
+	private MpiPatient parse(Patient patient) {
+		MpiPatient retVal = new MpiPatient();
+		retVal.setUuid(patient.getIdElement().getIdPart());
+		return retVal;
+	}
+
+	private FhirSearchIterator createIterator(Bundle firstPage, int maxResults) {
+		return new FhirSearchIterator(client, firstPage,
+				page -> page.getEntry().stream().map(e -> (Patient) e.getResource()).collect(Collectors.toList()),
+				this::parse, maxResults);
+	}
+
+	@Test
+	public void testIterator_shouldFollowNextLink() {
+		Bundle first = createPage("1", "2");
+		first.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://cr/fhir?page=2");
+		Bundle second = createPage("3");
+		when(getPage.next(first)).thenReturn(nextPage);
+		when(nextPage.execute()).thenReturn(second);
+
+		List<String> result = createIterator(first, 0).stream().map(MpiPatient::getUuid).collect(Collectors.toList());
+
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals("3", result.get(2));
+	}
+
+	@Test
+	public void testIterator_shouldNotReadNextPageUntilRequired() {
+		Bundle first = createPage("1", "2");
+		first.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://cr/fhir?page=2");
+
+		FhirSearchIterator iterator = createIterator(first, 0);
+		iterator.next();
+		iterator.next();
+
+		verify(getPage, never()).next(first);
+	}
+
+	@Test
+	public void testIterator_shouldStopAtMaxResults() {
+		Bundle first = createPage("1", "2");
+		first.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://cr/fhir?page=2");
+
+		long count = createIterator(first, 2).stream().count();
+
+		Assert.assertEquals(2, count);
+		verify(getPage, never()).next(first);
+	}
+}
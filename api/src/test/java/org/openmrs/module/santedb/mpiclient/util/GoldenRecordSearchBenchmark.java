@@ -0,0 +1,167 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.util.FhirClientFactory.Endpoint;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the end to end latency of a patient search which resolves the golden records of
+ * the matched source records, fetching them with a second query (the two-step search)
+ * against including them in the search with _include / _revinclude on Patient:link. The
+ * stub client registry adds a fixed delay to each request to stand in for the network and
+ * its own query. Run with
+ * {@code java ... GoldenRecordSearchBenchmark [searches] [matches] [requestDelayMillis]}.
+ */
+public class GoldenRecordSearchBenchmark {
+
+	private static final String GOLDEN_RECORD_TAG = "5c827da5-4858-4f3d-a50c-62ece001efea";
+
+	public static void main(String[] args) throws Exception {
+		int searches = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int matches = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final int requestDelay = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		// Each match is a source record linked to its own golden record, which links to a second source
+		final List<Resource> sources = new ArrayList<Resource>(), goldenRecords = new ArrayList<Resource>(),
+				linkedSources = new ArrayList<Resource>();
+		for (int i = 0; i < matches; i++) {
+			Patient source = createPatient("S" + i, "JOSEPH"), linked = createPatient("L" + i, "JOSEF"),
+					goldenRecord = createPatient("G" + i, "JOSEPH");
+			goldenRecord.getMeta().addTag().setCode(GOLDEN_RECORD_TAG);
+			source.addLink().setOther(new Reference("Patient/G" + i));
+			goldenRecord.addLink().setOther(new Reference("Patient/S" + i));
+			goldenRecord.addLink().setOther(new Reference("Patient/L" + i));
+			sources.add(source);
+			goldenRecords.add(goldenRecord);
+			linkedSources.add(linked);
+		}
+
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getHttpMaxConnections()).thenReturn(20);
+		Mockito.when(configuration.getHttpMaxConnectionsPerRoute()).thenReturn(10);
+		Mockito.when(configuration.getHttpConnectTimeout()).thenReturn(10000);
+		Mockito.when(configuration.getHttpReadTimeout()).thenReturn(30000);
+		Mockito.when(configuration.getHttpKeepAlive()).thenReturn(60000);
+		Mockito.when(configuration.getAuthenticationMode()).thenReturn("none");
+		HttpClientManager httpClientManager = new HttpClientManager(configuration);
+		final FhirClientFactory factory = new FhirClientFactory(configuration, httpClientManager);
+
+		final String searchResults = encode(factory, sources), includedResults = encode(factory, sources, goldenRecords,
+				linkedSources), goldenRecordResults = encode(factory, goldenRecords, sources, linkedSources);
+		// Otherwise small responses wait for the delayed acknowledgement of the previous packet
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/fhir/Patient", exchange -> {
+			String query = exchange.getRequestURI().getRawQuery();
+			String body = query.contains("_id=") ? goldenRecordResults
+					: query.contains("_include") ? includedResults : searchResults;
+			try {
+				Thread.sleep(requestDelay);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(bytes);
+			}
+		});
+		server.start();
+		Mockito.when(configuration.getPdqEndpoint())
+				.thenReturn(String.format("http://127.0.0.1:%s/fhir", server.getAddress().getPort()));
+
+		try {
+			IGenericClient client = factory.getClient(Endpoint.PDQ);
+			for (boolean include : new boolean[] { false, true, false, true }) {
+				long[] times = new long[searches];
+				int found = 0;
+				for (int i = 0; i < searches; i++) {
+					long start = System.nanoTime();
+					found += search(client, include);
+					times[i] = System.nanoTime() - start;
+				}
+				Arrays.sort(times);
+				System.out.println(String.format("%s: p50 %.2f ms, p99 %.2f ms (%s searches, %s source records)",
+						include ? "_include" : "two-step", times[searches / 2] / 1e6, times[searches * 99 / 100] / 1e6,
+						searches, found));
+			}
+		}
+		finally {
+			server.stop(0);
+			httpClientManager.shutdown();
+		}
+	}
+
+	/**
+	 * Search as the FHIR MPI client does, fetching the golden records which were not included
+	 *
+	 * @return The number of source records linked to the golden records found
+	 */
+	private static int search(IGenericClient client, boolean include) {
+		IQuery<?> query = client.search().forResource(Patient.class)
+				.where(Patient.FAMILY.contains().value("JOSEPH"));
+		if (include)
+			query = query.include(new Include("Patient:link")).revInclude(new Include("Patient:link"));
+		Bundle results = query.returnBundle(Bundle.class).execute();
+
+		Set<String> goldenRecordIds = new LinkedHashSet<String>(), resolved = new LinkedHashSet<String>();
+		for (Bundle.BundleEntryComponent entry : results.getEntry()) {
+			Patient patient = (Patient) entry.getResource();
+			if (patient.getMeta().hasTag())
+				resolved.add(patient.getIdElement().getIdPart());
+			else if (patient.hasLink())
+				goldenRecordIds.add(patient.getLinkFirstRep().getOther().getReferenceElement().getIdPart());
+		}
+		goldenRecordIds.removeAll(resolved);
+		if (!goldenRecordIds.isEmpty()) {
+			results = client.search().byUrl("Patient?_id=" + String.join(",", goldenRecordIds) + "&_include=Patient:link")
+					.returnBundle(Bundle.class).execute();
+			for (Bundle.BundleEntryComponent entry : results.getEntry())
+				if (((Patient) entry.getResource()).getMeta().hasTag())
+					resolved.add(entry.getResource().getIdElement().getIdPart());
+		}
+		return resolved.size() * 2;
+	}
+
+	private static Patient createPatient(String id, String family) {
+		Patient retVal = new Patient();
+		retVal.setId(id);
+		retVal.addName().setFamily(family).addGiven("MARIE");
+		retVal.addIdentifier().setSystem("http://mpi-project/identity/openmrs/clinic").setValue(id);
+		return retVal;
+	}
+
+	@SafeVarargs
+	private static String encode(FhirClientFactory factory, List<Resource>... resources) throws IOException {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.SEARCHSET);
+		for (List<Resource> list : resources)
+			for (Resource resource : list)
+				bundle.addEntry().setFullUrl("Patient/" + resource.getIdElement().getIdPart()).setResource(resource);
+		return factory.getFhirContext().newJsonParser().encodeResourceToString(bundle);
+	}
+}
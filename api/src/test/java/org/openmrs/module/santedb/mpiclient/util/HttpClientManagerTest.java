@@ -0,0 +1,141 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpClientManagerTest {
+
+	private MpiClientConfiguration configuration;
+
+	private HttpClientManager manager;
+
+	private HttpServer server;
+
+	private CountDownLatch requestReceived;
+
+	private CountDownLatch respond;
+
+	@Before
+	public void setup() throws IOException {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getHttpMaxConnections()).thenReturn(10);
+		Mockito.when(configuration.getHttpMaxConnectionsPerRoute()).thenReturn(5);
+		Mockito.when(configuration.getHttpConnectTimeout()).thenReturn(2000);
+		Mockito.when(configuration.getHttpReadTimeout()).thenReturn(10000);
+		Mockito.when(configuration.getHttpKeepAlive()).thenReturn(60000);
+		manager = new HttpClientManager(configuration);
+
+		requestReceived = new CountDownLatch(1);
+		respond = new CountDownLatch(0);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			requestReceived.countDown();
+			try {
+				respond.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] body = "ok".getBytes();
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void teardown() {
+		manager.shutdown();
+		server.stop(0);
+	}
+
+	private String get(CloseableHttpClient client) throws IOException {
+		try (CloseableHttpResponse response = client
+				.execute(new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/"))) {
+			return EntityUtils.toString(response.getEntity());
+		}
+	}
+
+	@Test
+	public void testGetHttpClient_shouldReuseClientWhileSettingsUnchanged() throws Exception {
+		CloseableHttpClient client = manager.getHttpClient();
+		Assert.assertSame(client, manager.getHttpClient());
+		Assert.assertEquals(0, manager.getRetiredCount());
+	}
+
+	@Test
+	public void testGetHttpClient_shouldKeepReplacedClientOpenForRequestInFlight() throws Exception {
+		final CloseableHttpClient previous = manager.getHttpClient();
+		requestReceived = new CountDownLatch(1);
+		respond = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> inFlight = executor.submit(() -> get(previous));
+			Assert.assertTrue(requestReceived.await(5, TimeUnit.SECONDS));
+
+			Mockito.when(configuration.getHttpMaxConnections()).thenReturn(20);
+			CloseableHttpClient current = manager.getHttpClient();
+			Assert.assertNotSame(previous, current);
+			Assert.assertEquals(1, manager.getRetiredCount());
+
+			// A connection is still leased so the replaced client stays open past the grace period
+			manager.closeRetired(System.currentTimeMillis() + HttpClientManager.RETIRE_GRACE_MILLIS);
+			Assert.assertEquals(1, manager.getRetiredCount());
+
+			respond.countDown();
+			Assert.assertEquals("ok", inFlight.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals("ok", get(current));
+
+			// Not closed until the grace period has passed
+			manager.closeRetired(System.currentTimeMillis());
+			Assert.assertEquals(1, manager.getRetiredCount());
+			manager.closeRetired(System.currentTimeMillis() + HttpClientManager.RETIRE_GRACE_MILLIS);
+			Assert.assertEquals(0, manager.getRetiredCount());
+		}
+		finally {
+			respond.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testShutdown_shouldCloseReplacedClients() throws Exception {
+		CloseableHttpClient previous = manager.getHttpClient();
+		Mockito.when(configuration.getHttpReadTimeout()).thenReturn(20000);
+		manager.getHttpClient();
+		Assert.assertEquals(1, manager.getRetiredCount());
+
+		manager.shutdown();
+
+		Assert.assertEquals(0, manager.getRetiredCount());
+		try {
+			get(previous);
+			Assert.fail("Expected the replaced client to be closed");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Measures how long the local patient matcher takes to index synthetic patients and to
+ * find the matches of a patient. Family names, given names and communes are drawn with a
+ * skew so that common names form large blocks, as they do in a real registry. Run with
+ * {@code java -Xmx2g ... LocalPatientMatcherBenchmark [patients] [queries]}.
+ */
+public class LocalPatientMatcherBenchmark {
+
+	private static final String[] SYLLABLES = { "JO", "SE", "PH", "PI", "ER", "RE", "LOU", "IS", "MA", "RI", "E", "JEAN",
+			"BAP", "TIS", "TE", "AU", "GUS", "TIN", "CHAR", "LES", "DOR", "VAL", "NE", "LUS", "DE", "SI", "LA", "MOU", "ZIN" };
+
+	public static void main(String[] args) throws Exception {
+		int patients = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		Random random = new Random(42);
+		String[] familyNames = createNames(random, 20000), givenNames = createNames(random, 3000),
+				communes = new String[140];
+		for (int i = 0; i < communes.length; i++)
+			communes[i] = "COMMUNE " + i;
+
+		LocalPatientMatcher matcher = new LocalPatientMatcher();
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long memory = runtime.totalMemory() - runtime.freeMemory();
+		long start = System.nanoTime();
+		for (int i = 1; i <= patients; i++)
+			matcher.put(i, pick(random, familyNames), pick(random, givenNames), randomDate(random),
+					random.nextBoolean() ? "M" : "F", pick(random, communes));
+		long built = System.nanoTime();
+		System.gc();
+		memory = runtime.totalMemory() - runtime.freeMemory() - memory;
+		System.out.println(String.format("indexed %s patients in %s ms, about %s bytes per patient", matcher.size(),
+				(built - start) / 1000000, memory / patients));
+
+		// Queries are misspelled copies of indexed patients, warmed up first
+		LocalPatientMatcher.Record[] records = new LocalPatientMatcher.Record[queries];
+		for (int i = 0; i < queries; i++)
+			records[i] = matcher.createRecord(0, misspell(random, pick(random, familyNames)), pick(random, givenNames),
+					randomDate(random), random.nextBoolean() ? "M" : "F", pick(random, communes));
+		long found = 0;
+		for (int i = 0; i < queries; i++)
+			found += matcher.findMatches(records[i], 0.85, 5).size();
+
+		long[] times = new long[queries];
+		for (int i = 0; i < queries; i++) {
+			long queryStart = System.nanoTime();
+			found += matcher.findMatches(records[i], 0.85, 5).size();
+			times[i] = System.nanoTime() - queryStart;
+		}
+		Arrays.sort(times);
+		System.out.println(String.format("%s queries: p50 %.3f ms, p99 %.3f ms, max %.3f ms (%s matches)", queries,
+				times[queries / 2] / 1e6, times[queries * 99 / 100] / 1e6, times[queries - 1] / 1e6, found));
+	}
+
+	/**
+	 * Create names of two or three syllables
+	 */
+	private static String[] createNames(Random random, int count) {
+		String[] retVal = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder name = new StringBuilder();
+			for (int s = 2 + random.nextInt(2); s > 0; s--)
+				name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			retVal[i] = name.toString();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Pick a value, favouring the start of the array
+	 */
+	private static String pick(Random random, String[] values) {
+		double skew = random.nextDouble();
+		return values[(int) (skew * skew * skew * values.length)];
+	}
+
+	/**
+	 * A birthdate in the last 90 years
+	 */
+	private static Date randomDate(Random random) {
+		LocalDate date = LocalDate.now().minusDays(random.nextInt(90 * 365));
+		return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	/**
+	 * Swap two letters of the name
+	 */
+	private static String misspell(Random random, String name) {
+		char[] letters = name.toCharArray();
+		int i = random.nextInt(letters.length - 1);
+		char letter = letters[i];
+		letters[i] = letters[i + 1];
+		letters[i + 1] = letter;
+		return new String(letters);
+	}
+}
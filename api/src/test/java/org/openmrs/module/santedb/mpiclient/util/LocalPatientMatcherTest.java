@@ -0,0 +1,101 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalPatientMatcherTest {
+
+	private LocalPatientMatcher matcher;
+
+	private static Date date(int year, int month, int day) {
+		return Date.from(LocalDate.of(year, month, day).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	private List<LocalPatientMatcher.Match> find(String familyName, String givenName, Date birthdate, String gender,
+			String commune) {
+		return matcher.findMatches(matcher.createRecord(0, familyName, givenName, birthdate, gender, commune), 0.85, 5);
+	}
+
+	@Before
+	public void setup() {
+		matcher = new LocalPatientMatcher();
+		matcher.put(1, "Jean-Baptiste", "Marie", date(1984, 3, 7), "F", "Hinche");
+		matcher.put(2, "Joseph", "Pierre", date(1990, 11, 21), "M", "Cap-Haïtien");
+		matcher.put(3, "Joseph", "Paul", date(1962, 5, 2), "M", "Jacmel");
+	}
+
+	@Test
+	public void testJaroWinkler_shouldScoreKnownPairs() {
+		Assert.assertEquals(0.961, LocalPatientMatcher.jaroWinkler("MARTHA", "MARHTA"), 0.001);
+		Assert.assertEquals(0.840, LocalPatientMatcher.jaroWinkler("DWAYNE", "DUANE"), 0.001);
+		Assert.assertEquals(1.0, LocalPatientMatcher.jaroWinkler("JOSEPH", "JOSEPH"), 0.0);
+		Assert.assertEquals(0.0, LocalPatientMatcher.jaroWinkler("ABC", "XYZ"), 0.0);
+	}
+
+	@Test
+	public void testDateScore_shouldScoreSwappedDayAndMonth() {
+		int day = (int) LocalDate.of(1984, 3, 7).toEpochDay();
+		Assert.assertEquals(1.0, LocalPatientMatcher.dateScore(day, day), 0.0);
+		Assert.assertEquals(0.9, LocalPatientMatcher.dateScore(day, (int) LocalDate.of(1984, 7, 3).toEpochDay()), 0.0);
+		Assert.assertEquals(0.0, LocalPatientMatcher.dateScore(day, (int) LocalDate.of(1990, 3, 7).toEpochDay()), 0.0);
+	}
+
+	@Test
+	public void testFindMatches_shouldFindMisspelledPatient() {
+		List<LocalPatientMatcher.Match> matches = find("JEAN BAPTISTE", "Marei", date(1984, 7, 3), "F", "hinche");
+		Assert.assertEquals(1, matches.size());
+		Assert.assertEquals(1, matches.get(0).getPatientId());
+
+		// Accents are ignored
+		matches = find("Joseph", "Pierre", date(1990, 11, 21), "M", "Cap Haitien");
+		Assert.assertEquals(2, matches.get(0).getPatientId());
+		Assert.assertEquals(1.0, matches.get(0).getScore(), 0.0001);
+	}
+
+	@Test
+	public void testFindMatches_shouldNotMatchRelative() {
+		// Same family and commune as patient 2, but another given name and birth
+		Assert.assertTrue(find("Joseph", "Paul", date(1988, 2, 14), "M", "Cap-Haïtien").isEmpty());
+	}
+
+	@Test
+	public void testPut_shouldReplacePatient() {
+		matcher.put(2, "Joseph", "Pierre", date(1990, 11, 21), "M", "Cap-Haïtien");
+		Assert.assertEquals(1, find("Joseph", "Pierre", date(1990, 11, 21), "M", "Cap-Haïtien").size());
+		Assert.assertEquals(3, matcher.size());
+
+		// Replaced patients are only in their new blocks
+		matcher.put(2, "Louis", "Pierre", date(1991, 1, 1), "M", "Jacmel");
+		Assert.assertTrue(find("Joseph", "Pierre", date(1990, 11, 21), "M", "Cap-Haïtien").isEmpty());
+		Assert.assertEquals(3, matcher.size());
+	}
+
+	@Test
+	public void testBuild_shouldKeepPatientsChangedDuringBuild() {
+		matcher = new LocalPatientMatcher();
+		matcher.beginBuild();
+
+		// Saved while the build is reading older rows of the same patients
+		matcher.put(4, "Louis", "Anne", date(1975, 1, 15), "F", "Jacmel");
+		matcher.remove(3);
+		matcher.putFromBuild(4, "Louis", "Annette", date(1957, 1, 15), "F", "Hinche");
+		matcher.putFromBuild(3, "Joseph", "Paul", date(1962, 5, 2), "M", "Jacmel");
+		matcher.putFromBuild(2, "Joseph", "Pierre", date(1990, 11, 21), "M", "Cap-Haïtien");
+		matcher.finishBuild();
+
+		Assert.assertTrue(matcher.isReady());
+		Assert.assertEquals(2, matcher.size());
+		Assert.assertEquals(4, find("Louis", "Anne", date(1975, 1, 15), "F", "Jacmel").get(0).getPatientId());
+		Assert.assertTrue(find("Joseph", "Paul", date(1962, 5, 2), "M", "Jacmel").isEmpty());
+
+		// Once built, the index follows every change
+		matcher.put(4, "Louis", "Annette", date(1957, 1, 15), "F", "Hinche");
+		Assert.assertTrue(find("Louis", "Anne", date(1975, 1, 15), "F", "Jacmel").isEmpty());
+	}
+}
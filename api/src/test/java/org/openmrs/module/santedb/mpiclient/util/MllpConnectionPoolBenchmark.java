@@ -0,0 +1,76 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+/**
+ * Measures how many PIX/PDQ round trips per second are sent through the connection pool
+ * when connections are re-used, against opening a new connection for every message (an
+ * idle timeout of zero). Run with
+ * {@code java ... MllpConnectionPoolBenchmark [threads] [messagesPerThread] [maxConnections]}.
+ */
+public class MllpConnectionPoolBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		try (StubMllpServer server = new StubMllpServer(StubMllpServer::acknowledge)) {
+			// Warm up the parser
+			run(server, 1, 500, maxConnections, 60000);
+
+			for (int idleTimeout : new int[] { 0, 60000 }) {
+				long start = System.nanoTime();
+				String statistics = run(server, threads, messages, maxConnections, idleTimeout);
+				long elapsed = System.nanoTime() - start;
+				System.out.println(String.format("%s: %.0f msg/s with %s threads and %s connections",
+						idleTimeout == 0 ? "new connection per message" : "pooled", threads * messages / (elapsed / 1e9),
+						threads, maxConnections));
+				System.out.println(statistics);
+			}
+		}
+	}
+
+	/**
+	 * Send messages from each thread through a new pool and wait for all responses
+	 *
+	 * @return The pool statistics
+	 */
+	private static String run(final StubMllpServer server, int threads, final int messages, int maxConnections,
+			int idleTimeout) throws Exception {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getHl7MaxConnections()).thenReturn(maxConnections);
+		Mockito.when(configuration.getHl7ConnectTimeout()).thenReturn(10000);
+		Mockito.when(configuration.getHl7IdleTimeout()).thenReturn(idleTimeout);
+		Mockito.when(configuration.getHl7ResponseTimeout()).thenReturn(10000);
+		MllpConnectionPool pool = new MllpConnectionPool(configuration);
+		final MessageUtil messageUtil = new MessageUtil(configuration, pool);
+
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread sender = new Thread(() -> {
+				try {
+					for (int i = 0; i < messages; i++)
+						messageUtil.sendMessage(MllpConnectionPoolTest.createMessage(String.format("%s-%s", thread, i)),
+								"127.0.0.1", server.getPort());
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			sender.start();
+			senders.add(sender);
+		}
+		for (Thread sender : senders)
+			sender.join();
+
+		String retVal = pool.getPoolStatistics();
+		pool.shutdown();
+		return retVal;
+	}
+}
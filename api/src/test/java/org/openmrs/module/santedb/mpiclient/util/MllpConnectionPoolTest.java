@@ -0,0 +1,133 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.util.MllpConnectionPool.PooledConnection;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+
+public class MllpConnectionPoolTest {
+
+	private MpiClientConfiguration configuration;
+
+	private MllpConnectionPool pool;
+
+	private StubMllpServer server;
+
+	static Message createMessage(String controlId) throws HL7Exception {
+		return new PipeParser().parse(MllpListenerTest.createMessage("OMRS", "A04", "ADT_A01", controlId));
+	}
+
+	@Before
+	public void setup() {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getHl7MaxConnections()).thenReturn(1);
+		Mockito.when(configuration.getHl7ConnectTimeout()).thenReturn(500);
+		Mockito.when(configuration.getHl7IdleTimeout()).thenReturn(60000);
+		Mockito.when(configuration.getHl7ResponseTimeout()).thenReturn(1000);
+		pool = new MllpConnectionPool(configuration);
+	}
+
+	@After
+	public void teardown() throws IOException {
+		pool.shutdown();
+		if (server != null)
+			server.close();
+	}
+
+	@Test
+	public void testAcquire_shouldReuseReleasedConnection() throws Exception {
+		server = new StubMllpServer(StubMllpServer::acknowledge);
+
+		PooledConnection first = pool.acquire("127.0.0.1", server.getPort());
+		Assert.assertFalse(first.isReused());
+		first.getConnection().getInitiator().sendAndReceive(createMessage("1"));
+		pool.release(first);
+
+		PooledConnection second = pool.acquire("127.0.0.1", server.getPort());
+		Assert.assertTrue(second.isReused());
+		Assert.assertSame(first.getConnection(), second.getConnection());
+		Message response = second.getConnection().getInitiator().sendAndReceive(createMessage("2"));
+		pool.release(second);
+
+		Assert.assertEquals("2", new Terser(response).get("/MSA-2"));
+		Assert.assertTrue(server.awaitAccepted(1));
+		Assert.assertEquals(1, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testAcquire_shouldTimeOutWhenAllConnectionsLeased() throws Exception {
+		server = new StubMllpServer(StubMllpServer::acknowledge);
+
+		PooledConnection leased = pool.acquire("127.0.0.1", server.getPort());
+		try {
+			pool.acquire("127.0.0.1", server.getPort());
+			Assert.fail("Expected the second lease to time out");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		pool.release(leased);
+
+		pool.release(pool.acquire("127.0.0.1", server.getPort()));
+	}
+
+	@Test
+	public void testAcquire_shouldNotReuseConnectionClosedByRemote() throws Exception {
+		server = new StubMllpServer(StubMllpServer::acknowledge);
+
+		PooledConnection first = pool.acquire("127.0.0.1", server.getPort());
+		pool.release(first);
+		Assert.assertTrue(server.awaitAccepted(1));
+		server.closeConnections();
+		for (int i = 0; i < 100 && first.getConnection().isOpen(); i++)
+			Thread.sleep(20);
+
+		PooledConnection second = pool.acquire("127.0.0.1", server.getPort());
+		Assert.assertFalse(second.isReused());
+		Assert.assertNotSame(first.getConnection(), second.getConnection());
+		pool.release(second);
+		Assert.assertTrue(server.awaitAccepted(2));
+	}
+
+	@Test
+	public void testGetFramesWritten_shouldCountWrittenMessages() throws Exception {
+		server = new StubMllpServer(StubMllpServer::acknowledge);
+
+		PooledConnection connection = pool.acquire("127.0.0.1", server.getPort());
+		Assert.assertEquals(0, connection.getFramesWritten());
+		connection.getConnection().getInitiator().sendAndReceive(createMessage("1"));
+		connection.getConnection().getInitiator().sendAndReceive(createMessage("2"));
+		pool.release(connection);
+
+		Assert.assertEquals(2, connection.getFramesWritten());
+	}
+
+	@Test
+	public void testSendMessage_shouldNotResendWrittenMessage() throws Exception {
+		// Answer the first message and drop the connection after reading the second
+		server = new StubMllpServer(message -> message.contains("|1|P|") ? StubMllpServer.acknowledge(message) : null);
+		MessageUtil messageUtil = new MessageUtil(configuration, pool);
+
+		messageUtil.sendMessage(createMessage("1"), "127.0.0.1", server.getPort());
+		try {
+			messageUtil.sendMessage(createMessage("2"), "127.0.0.1", server.getPort());
+			Assert.fail("Expected the unanswered message to fail");
+		}
+		catch (HL7Exception | IOException e) {
+			// expected
+		}
+
+		Assert.assertEquals(2, server.getReceived().size());
+		Assert.assertEquals(1, server.getAcceptedCount());
+	}
+}
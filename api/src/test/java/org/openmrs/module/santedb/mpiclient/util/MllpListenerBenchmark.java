@@ -0,0 +1,91 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.hl7v2.llp.HL7Reader;
+import ca.uhn.hl7v2.llp.HL7Writer;
+import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
+
+/**
+ * Measures how many notifications per second the MLLP listener acknowledges and applies
+ * when local senders pipeline A08 messages to it. Run with
+ * {@code java ... MllpListenerBenchmark [connections] [messagesPerConnection] [poolSize]}.
+ */
+public class MllpListenerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+		final AtomicLong applied = new AtomicLong();
+		MllpListener listener = new MllpListener("127.0.0.1", 0, poolSize, connections * messages,
+				Arrays.asList("127.0.0.1"), "MPI", "NATIONAL", message -> applied.incrementAndGet());
+		listener.start();
+		final int port = listener.getLocalPort();
+
+		// Warm up the parser
+		runSenders(port, 1, 1000);
+		applied.set(0);
+
+		long start = System.nanoTime();
+		long acknowledged = runSenders(port, connections, messages);
+		long acked = System.nanoTime();
+		while (applied.get() < acknowledged)
+			Thread.sleep(1);
+		long done = System.nanoTime();
+
+		System.out.println(String.format("%s messages on %s connections with %s workers", acknowledged, connections,
+				poolSize));
+		System.out.println(String.format("acknowledged: %.0f msg/s", acknowledged / ((acked - start) / 1e9)));
+		System.out.println(String.format("applied: %.0f msg/s", acknowledged / ((done - start) / 1e9)));
+		System.out.println(listener.getStatistics());
+		listener.shutdown();
+	}
+
+	/**
+	 * Pipeline messages on each connection and wait for all acknowledgements
+	 *
+	 * @return The number of messages acknowledged
+	 */
+	private static long runSenders(final int port, int connections, final int messages) throws Exception {
+		final AtomicLong acknowledged = new AtomicLong();
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int c = 0; c < connections; c++) {
+			final int connection = c;
+			Thread sender = new Thread(() -> {
+				try (Socket socket = new Socket("127.0.0.1", port)) {
+					MinLowerLayerProtocol llp = new MinLowerLayerProtocol();
+					final HL7Writer writer = llp.getWriter(socket.getOutputStream());
+					HL7Reader reader = llp.getReader(socket.getInputStream());
+					Thread writerThread = new Thread(() -> {
+						try {
+							for (int i = 0; i < messages; i++)
+								writer.writeMessage(
+										MllpListenerTest.createMessage("A08", "ADT_A01", String.format("%s-%s", connection, i)));
+						}
+						catch (Exception e) {
+							e.printStackTrace();
+						}
+					});
+					writerThread.start();
+					for (int i = 0; i < messages && reader.getMessage() != null; i++)
+						acknowledged.incrementAndGet();
+					writerThread.join();
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			sender.start();
+			senders.add(sender);
+		}
+		for (Thread sender : senders)
+			sender.join();
+		return acknowledged.get();
+	}
+}
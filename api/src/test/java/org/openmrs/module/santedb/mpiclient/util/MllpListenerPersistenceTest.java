@@ -0,0 +1,66 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/**
+ * Applies MPI notifications to the test database, as the listener does once a message has
+ * been acknowledged
+ */
+public class MllpListenerPersistenceTest extends BaseModuleContextSensitiveTest {
+
+	private static final String DAEMON_USER_UUID = "A4F30A1B-5EB9-11DF-A648-37A07F9C90FB";
+
+	private MllpListener listener;
+
+	@Before
+	public void setup() throws Exception {
+		MpiDaemon.setDaemonToken(TestDaemonToken.create());
+		MpiClientConfiguration.getInstance().clearCache();
+		listener = new MllpListener("127.0.0.1", 0, 1, 10, Arrays.asList("127.0.0.1"), "MPI", "NATIONAL", null);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		// The notification is applied in its own transaction, so remove what it committed
+		deleteAllData();
+		MpiClientConfiguration.getInstance().clearCache();
+		MpiDaemon.setDaemonToken(null);
+	}
+
+	@Test
+	public void testApplyMessage_shouldSaveUpdateAsDaemonUser() throws Exception {
+		String message = "MSH|^~\\&|MPI|NATIONAL|OMRS|CLINIC|20261017120000||ADT^A08^ADT_A01|1|P|2.5\r"
+				+ "EVN|A08|20261017120000\r"
+				+ "PID|||7^^^LOCAL||JOSEPH^MARIE||19800101|F\r"
+				+ "PV1||N\r";
+
+		listener.applyMessage(new PipeParser().parse(message));
+
+		Context.clearSession();
+		Patient patient = Context.getPatientService().getPatient(7);
+		PersonName added = null, voided = null;
+		for (PersonName name : patient.getNames())
+			if (Boolean.TRUE.equals(name.getVoided()) && "Updated from the MPI".equals(name.getVoidReason()))
+				voided = name;
+			else if ("JOSEPH".equals(name.getFamilyName()) && "MARIE".equals(name.getGivenName()))
+				added = name;
+
+		// The MPI's name replaces the local one, which is voided rather than removed
+		Assert.assertNotNull(added);
+		Assert.assertEquals(DAEMON_USER_UUID, added.getCreator().getUuid());
+		Assert.assertNotNull(voided);
+		Assert.assertEquals(DAEMON_USER_UUID, voided.getVoidedBy().getUuid());
+	}
+}
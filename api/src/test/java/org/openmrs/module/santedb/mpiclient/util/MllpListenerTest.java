@@ -0,0 +1,186 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.uhn.hl7v2.llp.HL7Reader;
+import ca.uhn.hl7v2.llp.HL7Writer;
+import ca.uhn.hl7v2.llp.LLPException;
+import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+
+public class MllpListenerTest {
+
+	private MllpListener listener;
+
+	private Socket socket;
+
+	private HL7Writer writer;
+
+	private HL7Reader reader;
+
+	static String createMessage(String event, String structure, String controlId) {
+		return createMessage("MPI", event, structure, controlId);
+	}
+
+	static String createMessage(String sendingApplication, String event, String structure, String controlId) {
+		return createMessage(sendingApplication, event, structure, controlId, "101");
+	}
+
+	static String createMessage(String sendingApplication, String event, String structure, String controlId, String patientId) {
+		return "MSH|^~\\&|" + sendingApplication + "|NATIONAL|OMRS|CLINIC|20261017120000||ADT^" + event + "^" + structure + "|" + controlId
+				+ "|P|2.5\r" + "EVN|" + event + "|20261017120000\r"
+				+ "PID|||" + patientId + "^^^CLINIC_A&1.2.3.4&ISO||JOSEPH^JEAN||19800101|M\r" + "PV1||N\r";
+	}
+
+	private void start(int poolSize, int queueSize, MllpListener.MessageHandler handler) throws Exception {
+		start(Arrays.asList("127.0.0.1"), poolSize, queueSize, handler);
+	}
+
+	private void start(Collection<String> allowedHosts, int poolSize, int queueSize, MllpListener.MessageHandler handler)
+			throws Exception {
+		listener = new MllpListener("127.0.0.1", 0, poolSize, queueSize, allowedHosts, "MPI", "NATIONAL", handler);
+		Assert.assertTrue(listener.start());
+		socket = new Socket("127.0.0.1", listener.getLocalPort());
+		socket.setSoTimeout(10000);
+		MinLowerLayerProtocol llp = new MinLowerLayerProtocol();
+		writer = llp.getWriter(socket.getOutputStream());
+		reader = llp.getReader(socket.getInputStream());
+	}
+
+	private Terser send(String message) throws IOException, LLPException, Exception {
+		writer.writeMessage(message);
+		return new Terser(new PipeParser().parse(reader.getMessage()));
+	}
+
+	@After
+	public void teardown() throws IOException {
+		if (socket != null)
+			socket.close();
+		if (listener != null)
+			listener.shutdown();
+	}
+
+	@Test
+	public void testReceive_shouldAcknowledgeAndApplyUpdate() throws Exception {
+		final List<Message> applied = new CopyOnWriteArrayList<Message>();
+		final CountDownLatch latch = new CountDownLatch(2);
+		start(2, 10, message -> {
+			applied.add(message);
+			latch.countDown();
+		});
+
+		Terser ack = send(createMessage("A08", "ADT_A01", "MSG1"));
+		Assert.assertEquals("AA", ack.get("/MSA-1"));
+		Assert.assertEquals("MSG1", ack.get("/MSA-2"));
+		Assert.assertEquals("AA", send(createMessage("A31", "ADT_A05", "MSG2")).get("/MSA-1"));
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(2, applied.size());
+	}
+
+	@Test
+	public void testReceive_shouldAcknowledgePipelinedMessagesInOrder() throws Exception {
+		start(1, 100, message -> {
+		});
+		for (int i = 0; i < 20; i++)
+			writer.writeMessage(createMessage("A08", "ADT_A01", "MSG" + i));
+		for (int i = 0; i < 20; i++) {
+			Terser ack = new Terser(new PipeParser().parse(reader.getMessage()));
+			Assert.assertEquals("AA", ack.get("/MSA-1"));
+			Assert.assertEquals("MSG" + i, ack.get("/MSA-2"));
+		}
+	}
+
+	@Test
+	public void testReceive_shouldApplyMessagesOfOnePatientInOrder() throws Exception {
+		final Map<String, List<Integer>> applied = new ConcurrentHashMap<String, List<Integer>>();
+		final CountDownLatch latch = new CountDownLatch(60);
+		start(4, 100, message -> {
+			Terser terser = new Terser(message);
+			int sequence = Integer.parseInt(terser.get("/MSH-10"));
+			// Later messages are applied faster, so they would overtake earlier ones on a shared pool
+			Thread.sleep(sequence % 3 == 0 ? 10 : 0);
+			applied.computeIfAbsent(terser.get("/.PID-3-1"), k -> new CopyOnWriteArrayList<Integer>()).add(sequence);
+			latch.countDown();
+		});
+
+		for (int i = 0; i < 60; i++)
+			writer.writeMessage(createMessage("MPI", "A08", "ADT_A01", String.valueOf(i), "10" + (i % 6)));
+		for (int i = 0; i < 60; i++)
+			Assert.assertEquals("AA", new Terser(new PipeParser().parse(reader.getMessage())).get("/MSA-1"));
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(6, applied.size());
+		for (List<Integer> sequences : applied.values()) {
+			List<Integer> sorted = new ArrayList<Integer>(sequences);
+			Collections.sort(sorted);
+			Assert.assertEquals(sorted, sequences);
+		}
+	}
+
+	@Test
+	public void testReceive_shouldRejectUnsupportedEvent() throws Exception {
+		final List<Message> applied = new CopyOnWriteArrayList<Message>();
+		start(1, 10, message -> applied.add(message));
+
+		Terser ack = send(createMessage("A01", "ADT_A01", "MSG1"));
+		Assert.assertEquals("AR", ack.get("/MSA-1"));
+		Assert.assertEquals("MSG1", ack.get("/MSA-2"));
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testReceive_shouldRefuseWhenQueueFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		start(1, 1, message -> release.await());
+		try {
+			// The first message is being applied and the second is queued
+			Assert.assertEquals("AA", send(createMessage("A08", "ADT_A01", "MSG1")).get("/MSA-1"));
+			Assert.assertEquals("AA", send(createMessage("A08", "ADT_A01", "MSG2")).get("/MSA-1"));
+			Terser ack = send(createMessage("A08", "ADT_A01", "MSG3"));
+			Assert.assertEquals("AE", ack.get("/MSA-1"));
+			Assert.assertEquals("MSG3", ack.get("/MSA-2"));
+		}
+		finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testReceive_shouldRejectHostNotAllowed() throws Exception {
+		final List<Message> applied = new CopyOnWriteArrayList<Message>();
+		start(Arrays.asList("192.0.2.10"), 1, 10, message -> applied.add(message));
+
+		Terser ack = send(createMessage("A40", "ADT_A39", "MSG1"));
+		Assert.assertEquals("AR", ack.get("/MSA-1"));
+		Assert.assertEquals("MSG1", ack.get("/MSA-2"));
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testReceive_shouldRejectSendingApplicationNotAllowed() throws Exception {
+		final List<Message> applied = new CopyOnWriteArrayList<Message>();
+		start(1, 10, message -> applied.add(message));
+
+		Terser ack = send(createMessage("ROGUE", "A40", "ADT_A39", "MSG1"));
+		Assert.assertEquals("AR", ack.get("/MSA-1"));
+		Assert.assertTrue(applied.isEmpty());
+	}
+}
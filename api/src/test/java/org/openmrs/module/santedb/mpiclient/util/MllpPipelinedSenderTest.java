@@ -0,0 +1,119 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+
+public class MllpPipelinedSenderTest {
+
+	private MllpPipelinedSender sender;
+
+	private StubMllpServer server;
+
+	private CountDownLatch release;
+
+	@Before
+	public void setup() {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getHl7ConnectTimeout()).thenReturn(500);
+		Mockito.when(configuration.getHl7ResponseTimeout()).thenReturn(1000);
+		Mockito.when(configuration.getHl7MaxInFlight()).thenReturn(10);
+		sender = new MllpPipelinedSender(configuration);
+		release = new CountDownLatch(1);
+	}
+
+	@After
+	public void teardown() throws IOException {
+		release.countDown();
+		sender.shutdown();
+		if (server != null)
+			server.close();
+	}
+
+	private boolean awaitStatistics(String expected) throws InterruptedException {
+		for (int i = 0; i < 250 && !sender.getStatistics().contains(expected); i++)
+			Thread.sleep(20);
+		return sender.getStatistics().contains(expected);
+	}
+
+	@Test
+	public void testSend_shouldNotWaitForEarlierResponses() throws Exception {
+		// Nothing is answered until every message has been sent
+		server = new StubMllpServer(message -> {
+			release.await(5, TimeUnit.SECONDS);
+			return StubMllpServer.acknowledge(message);
+		});
+
+		List<CompletableFuture<Message>> responses = new ArrayList<CompletableFuture<Message>>();
+		for (int i = 0; i < 5; i++)
+			responses.add(sender.send(MllpConnectionPoolTest.createMessage(String.valueOf(i)), "127.0.0.1", server.getPort()));
+		for (CompletableFuture<Message> response : responses)
+			Assert.assertFalse(response.isDone());
+		Assert.assertTrue(sender.getStatistics().contains("in flight: 5"));
+
+		release.countDown();
+		for (int i = 0; i < 5; i++)
+			Assert.assertEquals(String.valueOf(i), new Terser(responses.get(i).get(5, TimeUnit.SECONDS)).get("/MSA-2"));
+		Assert.assertEquals(1, server.getAcceptedCount());
+		Assert.assertEquals(5, server.getReceived().size());
+	}
+
+	@Test
+	public void testSend_shouldTimeOutUnansweredMessage() throws Exception {
+		// Answers every message as if it were another, so no request is matched
+		server = new StubMllpServer(message -> {
+			PipeParser parser = new PipeParser();
+			Message ack = parser.parse(message).generateACK();
+			new Terser(ack).set("/MSA-2", "unknown");
+			return parser.encode(ack);
+		});
+
+		CompletableFuture<Message> response = sender.send(MllpConnectionPoolTest.createMessage("1"), "127.0.0.1",
+				server.getPort());
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			Assert.fail("Expected the message to time out");
+		}
+		catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		// The statistics are updated once the failure has been delivered
+		Assert.assertTrue(awaitStatistics("in flight: 0; timed out: 1"));
+	}
+
+	@Test
+	public void testSend_shouldReconnectAfterConnectionLost() throws Exception {
+		// Closes the connection on the first message without answering it
+		server = new StubMllpServer(message -> server.getReceived().size() == 1 ? null : StubMllpServer.acknowledge(message));
+
+		CompletableFuture<Message> lost = sender.send(MllpConnectionPoolTest.createMessage("1"), "127.0.0.1", server.getPort());
+		try {
+			lost.get(5, TimeUnit.SECONDS);
+			Assert.fail("Expected the message to fail with the connection");
+		}
+		catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+
+		Message response = sender.send(MllpConnectionPoolTest.createMessage("2"), "127.0.0.1", server.getPort()).get(5,
+				TimeUnit.SECONDS);
+		Assert.assertEquals("2", new Terser(response).get("/MSA-2"));
+		Assert.assertEquals(2, server.getAcceptedCount());
+	}
+}
@@ -0,0 +1,175 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExportResult;
+
+public class MpiBackfillJobTest {
+
+	private MpiClientConfiguration configuration;
+
+	private MpiClientService service;
+
+	private MpiBackfillJob job;
+
+	// The chunks sent to the MPI
+	private List<Collection<Integer>> chunks;
+
+	// The ids of the patients the MPI rejects
+	private List<Integer> rejected;
+
+	private static Patient createPatient(Integer patientId) {
+		Patient retVal = new Patient();
+		retVal.setPatientId(patientId);
+		retVal.setUuid("patient-" + patientId);
+		return retVal;
+	}
+
+	@Before
+	public void setup() {
+		configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getClientRegistryEndpoint()).thenReturn("http://127.0.0.1:8080/fhir");
+		Mockito.when(configuration.getBackfillThreads()).thenReturn(2);
+		Mockito.when(configuration.getBackfillChunkSize()).thenReturn(2);
+		Mockito.when(configuration.getOutboxMaxAttempts()).thenReturn(3);
+		Mockito.when(configuration.getOutboxRetryDelay()).thenReturn(10);
+		Mockito.when(configuration.getOutboxMaxRetryDelay()).thenReturn(20);
+
+		// Patients 1 to 5 are exported, in pages after the checkpoint
+		service = Mockito.mock(MpiClientService.class);
+		Mockito.when(service.createBackfillState()).thenReturn(new MpiBackfillState(5, 5L));
+		Mockito.when(service.saveBackfillState(Matchers.any(MpiBackfillState.class)))
+				.thenAnswer(invocation -> invocation.getArguments()[0]);
+		Mockito.when(service.getBackfillPatientIds(Matchers.any(MpiBackfillState.class), Matchers.anyInt()))
+				.thenAnswer(invocation -> {
+					MpiBackfillState state = (MpiBackfillState) invocation.getArguments()[0];
+					int count = (Integer) invocation.getArguments()[1];
+					List<Integer> retVal = new ArrayList<Integer>();
+					for (int id = state.getLastPatientId() + 1; id <= 5 && retVal.size() < count; id++)
+						retVal.add(id);
+					return retVal;
+				});
+		chunks = new CopyOnWriteArrayList<Collection<Integer>>();
+		rejected = new CopyOnWriteArrayList<Integer>();
+		Mockito.when(service.exportPatientsById(Matchers.anyCollectionOf(Integer.class))).thenAnswer(invocation -> {
+			@SuppressWarnings("unchecked")
+			Collection<Integer> patientIds = (Collection<Integer>) invocation.getArguments()[0];
+			chunks.add(patientIds);
+			List<MpiPatientExportResult> retVal = new ArrayList<MpiPatientExportResult>();
+			for (Integer patientId : patientIds)
+				retVal.add(new MpiPatientExportResult(new MpiPatientExport(createPatient(patientId), null, null, null, null),
+						rejected.contains(patientId) ? new MpiClientException("Rejected") : null));
+			return retVal;
+		});
+
+		job = new MpiBackfillJob(configuration) {
+
+			@Override
+			protected MpiClientService getService() {
+				return service;
+			}
+
+			@Override
+			protected Patient getPatient(Integer patientId) {
+				return createPatient(patientId);
+			}
+
+			@Override
+			protected void runAsDaemon(MpiDaemon.Work work) throws Exception {
+				work.run();
+			}
+
+			@Override
+			protected void openSession() {
+			}
+
+			@Override
+			protected void closeSession() {
+			}
+
+			@Override
+			protected void clearSession() {
+			}
+		};
+	}
+
+	private MpiBackfillState run(boolean restart) throws Exception {
+		Assert.assertTrue(job.start(restart));
+		job.awaitCompletion();
+		return job.getState();
+	}
+
+	@Test
+	public void testRun_shouldExportAllPatientsInChunks() throws Exception {
+		rejected.add(3);
+
+		MpiBackfillState state = run(false);
+
+		Assert.assertEquals(MpiBackfillState.STATUS_COMPLETED, state.getStatus());
+		Assert.assertEquals(Integer.valueOf(5), state.getLastPatientId());
+		Assert.assertEquals(Long.valueOf(4), state.getExported());
+		Assert.assertEquals(Long.valueOf(1), state.getFailed());
+		// A page of two chunks of two, then the last patient
+		Assert.assertEquals(3, chunks.size());
+		for (Collection<Integer> chunk : chunks)
+			Assert.assertTrue(chunk.size() <= 2);
+
+		// The rejected patient is retried from the outbox
+		ArgumentCaptor<Patient> retried = ArgumentCaptor.forClass(Patient.class);
+		Mockito.verify(service).queuePatientExport(retried.capture(), Matchers.isNull(Encounter.class));
+		Assert.assertEquals(Integer.valueOf(3), retried.getValue().getPatientId());
+	}
+
+	@Test
+	public void testRun_shouldResumeFromCheckpoint() throws Exception {
+		MpiBackfillState checkpoint = new MpiBackfillState(5, 5L);
+		checkpoint.setStatus(MpiBackfillState.STATUS_RUNNING);
+		checkpoint.setLastPatientId(2);
+		checkpoint.setExported(2L);
+		Mockito.when(service.getBackfillState()).thenReturn(checkpoint);
+
+		MpiBackfillState state = run(false);
+
+		Mockito.verify(service, Mockito.never()).createBackfillState();
+		Assert.assertSame(checkpoint, state);
+		Assert.assertEquals(MpiBackfillState.STATUS_COMPLETED, state.getStatus());
+		Assert.assertEquals(Long.valueOf(5), state.getExported());
+		List<Integer> sent = new ArrayList<Integer>();
+		for (Collection<Integer> chunk : chunks)
+			sent.addAll(chunk);
+		Collections.sort(sent);
+		Assert.assertEquals(Arrays.asList(3, 4, 5), sent);
+	}
+
+	@Test
+	public void testRun_shouldStopWhenPagesKeepFailing() throws Exception {
+		rejected.addAll(Arrays.asList(1, 2, 3, 4, 5));
+
+		MpiBackfillState state = run(false);
+
+		// The first page is attempted until the outbox maximum attempts, the checkpoint does not move
+		Assert.assertEquals(MpiBackfillState.STATUS_STOPPED, state.getStatus());
+		Assert.assertEquals(Integer.valueOf(0), state.getLastPatientId());
+		Assert.assertEquals(Long.valueOf(0), state.getExported());
+		Assert.assertEquals(6, chunks.size());
+		Mockito.verify(service, Mockito.never()).queuePatientExport(Matchers.any(Patient.class), Matchers.any(Encounter.class));
+	}
+}
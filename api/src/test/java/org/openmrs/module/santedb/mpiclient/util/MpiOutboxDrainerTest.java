@@ -0,0 +1,148 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.Patient;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+
+public class MpiOutboxDrainerTest {
+
+	private SynchronizationExecutor executor;
+
+	private MpiOutboxDrainer drainer;
+
+	private MpiClientService service;
+
+	private CountDownLatch release;
+
+	private List<MpiOutboxEntry> sent;
+
+	private static List<MpiOutboxEntry> createEntries(int first, int count) {
+		List<MpiOutboxEntry> retVal = new ArrayList<MpiOutboxEntry>();
+		for (int i = first; i < first + count; i++) {
+			Patient patient = new Patient();
+			patient.setUuid("patient-" + i);
+			MpiOutboxEntry entry = new MpiOutboxEntry(patient, null, null);
+			entry.setOutboxEntryId(i);
+			retVal.add(entry);
+		}
+		return retVal;
+	}
+
+	@Before
+	public void setup() {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getOutboxBatchSize()).thenReturn(4);
+		Mockito.when(configuration.getOutboxPollInterval()).thenReturn(1000);
+		Mockito.when(configuration.getSyncPoolSize()).thenReturn(4);
+		Mockito.when(configuration.getSyncQueueSize()).thenReturn(1);
+		executor = new SynchronizationExecutor(configuration);
+		executor.start();
+		service = Mockito.mock(MpiClientService.class);
+		release = new CountDownLatch(1);
+		sent = new CopyOnWriteArrayList<MpiOutboxEntry>();
+
+		// The exports are held until released rather than sent
+		drainer = new MpiOutboxDrainer(configuration, executor) {
+
+			@Override
+			Runnable createWorker(final MpiOutboxEntry entry) {
+				return () -> {
+					sent.add(entry);
+					await();
+				};
+			}
+		};
+	}
+
+	@After
+	public void teardown() {
+		release.countDown();
+		executor.shutdown();
+	}
+
+	private void await() {
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	public void testDrain_shouldKeepNoMoreThanOneBatchInFlight() throws Exception {
+		List<MpiOutboxEntry> outbox = createEntries(1, 5);
+		Mockito.when(service.claimQueuedExports(4)).thenReturn(outbox.subList(0, 4));
+
+		drainer.drain(service);
+		Assert.assertEquals("in flight: 4; dispatched: 4; requeued: 0", drainer.getStatistics());
+
+		// Nothing is claimed while the batch is in flight
+		drainer.drain(service);
+		Mockito.verify(service, Mockito.times(1)).claimQueuedExports(Matchers.anyInt());
+		Mockito.verify(service, Mockito.times(2)).releaseQueuedExports(15 * 60 * 1000L);
+
+		release.countDown();
+		executor.shutdown();
+		Assert.assertEquals(new HashSet<MpiOutboxEntry>(outbox.subList(0, 4)), new HashSet<MpiOutboxEntry>(sent));
+		Assert.assertEquals("in flight: 0; dispatched: 4; requeued: 0", drainer.getStatistics());
+	}
+
+	@Test
+	public void testDrain_shouldTopUpTheBatch() throws Exception {
+		List<MpiOutboxEntry> outbox = createEntries(1, 4);
+		Mockito.when(service.claimQueuedExports(4)).thenReturn(outbox.subList(0, 3));
+		Mockito.when(service.claimQueuedExports(1)).thenReturn(outbox.subList(3, 4));
+
+		// The outbox has fewer due exports than the batch, so the drain stops after one claim
+		drainer.drain(service);
+		Mockito.verify(service).claimQueuedExports(4);
+		Assert.assertEquals("in flight: 3; dispatched: 3; requeued: 0", drainer.getStatistics());
+
+		drainer.drain(service);
+		Mockito.verify(service).claimQueuedExports(1);
+		Assert.assertEquals("in flight: 4; dispatched: 4; requeued: 0", drainer.getStatistics());
+	}
+
+	@Test
+	public void testDrain_shouldRequeueExportsTheExecutorRefuses() throws Exception {
+		// Fill the pool and its queue
+		for (int i = 0; i < 5; i++)
+			Assert.assertTrue(executor.submit(this::await, "blocked"));
+		List<MpiOutboxEntry> outbox = createEntries(1, 2);
+		Mockito.when(service.claimQueuedExports(4)).thenReturn(outbox);
+
+		drainer.drain(service);
+
+		for (MpiOutboxEntry entry : outbox)
+			Mockito.verify(service).requeueQueuedExport(entry, 1000);
+		Assert.assertEquals("in flight: 0; dispatched: 0; requeued: 2", drainer.getStatistics());
+		Assert.assertTrue(sent.isEmpty());
+	}
+
+	@Test
+	public void testDrain_shouldClaimNothingWhenOutboxEmpty() throws Exception {
+		Mockito.when(service.claimQueuedExports(4)).thenReturn(Collections.<MpiOutboxEntry> emptyList());
+
+		drainer.drain(service);
+
+		Assert.assertEquals("in flight: 0; dispatched: 0; requeued: 0", drainer.getStatistics());
+		Mockito.verify(service, Mockito.never()).requeueQueuedExport(Matchers.any(MpiOutboxEntry.class), Matchers.anyLong());
+		Assert.assertTrue(sent.isEmpty());
+	}
+}
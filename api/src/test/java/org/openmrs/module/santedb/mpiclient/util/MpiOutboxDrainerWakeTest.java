@@ -0,0 +1,125 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.Patient;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.model.MpiOutboxEntry;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+public class MpiOutboxDrainerWakeTest {
+
+	private SynchronizationExecutor executor;
+
+	private MpiOutboxDrainer drainer;
+
+	private Semaphore drains;
+
+	private static MpiOutboxEntry createEntry(long delay) {
+		return new MpiOutboxEntry(new Patient(), null, new Date(System.currentTimeMillis() + delay));
+	}
+
+	@Before
+	public void setup() {
+		// The poll does not run during the test
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getOutboxPollInterval()).thenReturn(60000);
+		executor = new SynchronizationExecutor(configuration);
+		executor.start();
+		drains = new Semaphore(0);
+		drainer = new MpiOutboxDrainer(configuration, executor) {
+
+			@Override
+			void drain() {
+				drains.release();
+			}
+
+			@Override
+			void release(long claimedFor) {
+			}
+		};
+		drainer.start();
+	}
+
+	@After
+	public void teardown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.clearSynchronization();
+		drainer.shutdown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testWakeAfterCommit_shouldNotDrainBeforeCommit() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		drainer.wakeAfterCommit(createEntry(0));
+		Assert.assertFalse(drains.tryAcquire(500, TimeUnit.MILLISECONDS));
+
+		TransactionSynchronizationUtils.triggerAfterCommit();
+		Assert.assertTrue(drains.tryAcquire(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testWakeAfterCommit_shouldNotDrainAfterRollback() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		drainer.wakeAfterCommit(createEntry(0));
+
+		TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+		Assert.assertFalse(drains.tryAcquire(500, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testWakeAfterCommit_shouldDrainOnceWhenDue() throws Exception {
+		// Outside of a transaction, saves due at the same time share one drain
+		MpiOutboxEntry first = createEntry(600), second = new MpiOutboxEntry(new Patient(), null, first.getNextAttempt());
+		drainer.wakeAfterCommit(first);
+		drainer.wakeAfterCommit(second);
+
+		Assert.assertFalse(drains.tryAcquire(300, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(drains.tryAcquire(5, TimeUnit.SECONDS));
+		Assert.assertFalse(drains.tryAcquire(500, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testStart_shouldKeepPollingAfterDrainFails() throws Exception {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getOutboxPollInterval()).thenReturn(100);
+		final Semaphore polls = new Semaphore(0);
+		MpiOutboxDrainer failing = new MpiOutboxDrainer(configuration, executor) {
+
+			@Override
+			void drain() {
+				polls.release();
+				throw new LinkageError("drain failed");
+			}
+
+			@Override
+			void release(long claimedFor) {
+			}
+		};
+		failing.start();
+		try {
+			Assert.assertTrue(polls.tryAcquire(3, 5, TimeUnit.SECONDS));
+		}
+		finally {
+			failing.shutdown();
+		}
+	}
+
+	@Test
+	public void testDrain_shouldNotThrowWhenConfigurationFails() throws Exception {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getClientRegistryEndpoint()).thenThrow(new IllegalStateException("not configured"));
+
+		new MpiOutboxDrainer(configuration, executor).drain();
+	}
+}
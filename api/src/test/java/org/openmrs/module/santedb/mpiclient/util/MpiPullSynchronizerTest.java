@@ -0,0 +1,150 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+import org.openmrs.module.santedb.mpiclient.model.MpiPullState;
+
+public class MpiPullSynchronizerTest {
+
+	private MpiClientService service;
+
+	private MpiPullSynchronizer synchronizer;
+
+	private MpiPullState state;
+
+	private List<MpiPatient> changes;
+
+	private static MpiPatient createChange(String uuid, long lastUpdated) {
+		MpiPatient retVal = new MpiPatient();
+		retVal.setUuid(uuid);
+		retVal.setDateChanged(new Date(lastUpdated));
+		return retVal;
+	}
+
+	@Before
+	public void setup() throws Exception {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getMessageFormat()).thenReturn("fhir");
+		Mockito.when(configuration.getPullBatchSize()).thenReturn(2);
+		Mockito.when(configuration.getPullTimeBudget()).thenReturn(60000);
+		Mockito.when(configuration.getPullMaxAttempts()).thenReturn(3);
+		Mockito.when(configuration.getLocalPatientIdRoot()).thenReturn("LOCAL");
+		Mockito.when(configuration.getPreferredCorrelationDomain()).thenReturn("");
+
+		state = new MpiPullState();
+		state.setWatermark(new Date(1000));
+		changes = new ArrayList<MpiPatient>();
+		service = Mockito.mock(MpiClientService.class);
+		Mockito.when(service.getPullState()).thenReturn(state);
+		Mockito.when(service.savePullState(Matchers.any(MpiPullState.class))).thenAnswer(invocation -> invocation.getArguments()[0]);
+		Mockito.when(service.getUpdatedPatientStream(Matchers.any(Date.class), Matchers.anyCollectionOf(String.class), Matchers.anyInt()))
+				.thenAnswer(invocation -> changes.stream());
+		Mockito.when(service.applyPatientUpdate(Matchers.any(MpiPatient.class))).thenReturn(true);
+
+		synchronizer = new MpiPullSynchronizer(configuration) {
+
+			@Override
+			protected MpiClientService getService() {
+				return service;
+			}
+
+			@Override
+			protected void runAsDaemon(MpiDaemon.Work work) throws Exception {
+				work.run();
+			}
+
+			@Override
+			protected void openSession() {
+			}
+
+			@Override
+			protected void closeSession() {
+			}
+
+			@Override
+			protected void clearSession() {
+			}
+		};
+	}
+
+	private void run() throws Exception {
+		Assert.assertTrue(synchronizer.start(false));
+		synchronizer.awaitCompletion();
+	}
+
+	@Test
+	public void testRun_shouldAdvanceWatermarkToLastChange() throws Exception {
+		changes.add(createChange("patient-1", 2001));
+		changes.add(createChange("patient-2", 2002));
+		changes.add(createChange("patient-3", 2003));
+
+		run();
+
+		Assert.assertEquals(new Date(2003), state.getWatermark());
+		Assert.assertEquals(Long.valueOf(3), state.getChecked());
+		Assert.assertEquals(Long.valueOf(3), state.getApplied());
+	}
+
+	@Test
+	public void testRun_shouldStopBeforeFailedChange() throws Exception {
+		MpiPatient failing = createChange("patient-3", 2003);
+		changes.add(createChange("patient-1", 2001));
+		changes.add(createChange("patient-2", 2002));
+		changes.add(failing);
+		changes.add(createChange("patient-4", 2004));
+		Mockito.when(service.applyPatientUpdate(failing)).thenThrow(new MpiClientException("Patient is busy"));
+
+		run();
+
+		// The failed change and the ones after it are read again by the next run
+		Assert.assertEquals(new Date(2002), state.getWatermark());
+		Assert.assertEquals(Long.valueOf(2), state.getChecked());
+		Mockito.verify(service, Mockito.never()).applyPatientUpdate(changes.get(3));
+		Assert.assertEquals("patient-3", state.getFailedChange());
+		Assert.assertEquals(Integer.valueOf(1), state.getFailedAttempts());
+	}
+
+	@Test
+	public void testRun_shouldSkipChangeAfterMaxAttempts() throws Exception {
+		MpiPatient failing = createChange("patient-3", 2003);
+		changes.add(createChange("patient-1", 2001));
+		changes.add(createChange("patient-2", 2002));
+		changes.add(failing);
+		changes.add(createChange("patient-4", 2004));
+		Mockito.when(service.applyPatientUpdate(failing)).thenThrow(new MpiClientException("Identifier conflict"));
+
+		// Two runs stop at the change, the third skips it
+		run();
+		run();
+		Assert.assertEquals(new Date(2002), state.getWatermark());
+		Assert.assertEquals(Integer.valueOf(2), state.getFailedAttempts());
+		run();
+
+		Assert.assertEquals(new Date(2004), state.getWatermark());
+		Assert.assertEquals(Long.valueOf(1), state.getSkipped());
+		Assert.assertNull(state.getFailedChange());
+		Assert.assertEquals(Integer.valueOf(0), state.getFailedAttempts());
+		Mockito.verify(service, Mockito.times(1)).applyPatientUpdate(changes.get(3));
+	}
+
+	@Test
+	public void testWatermark_shouldKeepMilliseconds() {
+		MpiPullState pullState = new MpiPullState();
+		pullState.setWatermark(new Date(1508234567891L));
+
+		Assert.assertEquals(1508234567891L, pullState.getWatermark().getTime());
+		pullState.setWatermark(null);
+		Assert.assertNull(pullState.getWatermark());
+	}
+}
@@ -0,0 +1,102 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.santedb.mpiclient.util.MpiSubscriptionReceiver.Outcome;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class MpiSubscriptionReceiverTest {
+
+	private static final String LOCAL_DOMAIN = "http://mpi-project/identity/openmrs/clinic";
+
+	private static final FhirContext CONTEXT = FhirContext.forR4();
+
+	private List<Patient> applied;
+
+	private boolean queueFull;
+
+	private String secret;
+
+	private StubSubscriptionNotifier notifier;
+
+	@Before
+	public void setup() {
+		applied = new ArrayList<Patient>();
+		queueFull = false;
+		secret = "s3cret";
+		MpiSubscriptionReceiver receiver = new MpiSubscriptionReceiver(CONTEXT, () -> secret,
+				patients -> applied.addAll(patients), (task, description) -> {
+					if (queueFull)
+						return false;
+					task.run();
+					return true;
+				});
+		notifier = new StubSubscriptionNotifier(CONTEXT, receiver, "s3cret");
+	}
+
+	@Test
+	public void testReceive_shouldApplyPatient() {
+		Assert.assertEquals(Outcome.ACCEPTED,
+				notifier.notifyJson(StubSubscriptionNotifier.createPatient("Patient/1", LOCAL_DOMAIN, "101", "Joseph")));
+		Assert.assertEquals(1, applied.size());
+		Assert.assertEquals("Joseph", applied.get(0).getNameFirstRep().getFamily());
+		Assert.assertEquals("101", applied.get(0).getIdentifierFirstRep().getValue());
+	}
+
+	@Test
+	public void testReceive_shouldApplyXmlPatient() {
+		Assert.assertEquals(Outcome.ACCEPTED,
+				notifier.notifyXml(StubSubscriptionNotifier.createPatient("Patient/1", LOCAL_DOMAIN, "101", "Joseph")));
+		Assert.assertEquals(1, applied.size());
+	}
+
+	@Test
+	public void testReceive_shouldApplyBundlePatients() {
+		Assert.assertEquals(Outcome.ACCEPTED,
+				notifier.notifyJson(StubSubscriptionNotifier.createPatient("Patient/1", LOCAL_DOMAIN, "101", "Joseph"),
+						StubSubscriptionNotifier.createPatient("Patient/2", LOCAL_DOMAIN, "102", "Pierre")));
+		Assert.assertEquals(2, applied.size());
+	}
+
+	@Test
+	public void testReceive_shouldAcceptHandshake() {
+		Assert.assertEquals(Outcome.ACCEPTED, notifier.notifyWithoutPayload());
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testReceive_shouldRejectWrongSecret() {
+		Patient patient = StubSubscriptionNotifier.createPatient("Patient/1", LOCAL_DOMAIN, "101", "Joseph");
+		Assert.assertEquals(Outcome.UNAUTHORIZED, notifier.notifyWithSecret("guess", patient));
+		Assert.assertEquals(Outcome.UNAUTHORIZED, notifier.notifyWithSecret(null, patient));
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testReceive_shouldRejectWhenNoSecretConfigured() {
+		secret = "";
+		Assert.assertEquals(Outcome.UNAUTHORIZED,
+				notifier.notifyWithSecret("", StubSubscriptionNotifier.createPatient("Patient/1", LOCAL_DOMAIN, "101", "Joseph")));
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testReceive_shouldRejectInvalidPayload() {
+		Assert.assertEquals(Outcome.INVALID, notifier.notifyRaw("{ not fhir"));
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testReceive_shouldReportBusyWhenQueueFull() {
+		queueFull = true;
+		Assert.assertEquals(Outcome.BUSY,
+				notifier.notifyJson(StubSubscriptionNotifier.createPatient("Patient/1", LOCAL_DOMAIN, "101", "Joseph")));
+		Assert.assertTrue(applied.isEmpty());
+	}
+}
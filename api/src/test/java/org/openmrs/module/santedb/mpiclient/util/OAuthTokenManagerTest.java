@@ -0,0 +1,145 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
+
+public class OAuthTokenManagerTest {
+
+	private static final String CONFIGURATION_KEY = "http://idp|OMRS|CLINIC|secret";
+
+	private OAuthTokenManager manager;
+
+	@After
+	public void teardown() {
+		if (manager != null)
+			manager.shutdown();
+	}
+
+	/**
+	 * Wait in a token requester
+	 */
+	private static void await(CountDownLatch latch, long millis) throws MpiClientException {
+		try {
+			latch.await(millis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new MpiClientException("Interrupted", e);
+		}
+	}
+
+	/**
+	 * Run the calls on many threads at once and wait for them to finish
+	 */
+	private static void runConcurrently(int threads, final Runnable call) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> callers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread caller = new Thread(() -> {
+				try {
+					start.await();
+					call.run();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			caller.start();
+			callers.add(caller);
+		}
+		start.countDown();
+		for (Thread caller : callers)
+			caller.join(10000);
+	}
+
+	@Test
+	public void testGetAccessToken_shouldRequestOneTokenForConcurrentMisses() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		manager = new OAuthTokenManager(() -> CONFIGURATION_KEY, key -> {
+			requests.incrementAndGet();
+			await(new CountDownLatch(1), 100);
+			return new OAuthTokenManager.AccessToken("token", key, System.currentTimeMillis(), 3600000);
+		});
+
+		final AtomicInteger tokens = new AtomicInteger();
+		runConcurrently(20, () -> {
+			try {
+				if ("token".equals(manager.getAccessToken()))
+					tokens.incrementAndGet();
+			}
+			catch (MpiClientException e) {
+				Assert.fail(e.getMessage());
+			}
+		});
+
+		Assert.assertEquals(20, tokens.get());
+		Assert.assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testGetAccessToken_shouldRefreshOnceInRefreshWindow() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		manager = new OAuthTokenManager(() -> CONFIGURATION_KEY, key -> {
+			// The first token has used 80 of its 100 seconds, so it is in the refresh window
+			if (requests.incrementAndGet() == 1)
+				return new OAuthTokenManager.AccessToken("old", key, System.currentTimeMillis() - 80000, 100000);
+			await(release, 10000);
+			return new OAuthTokenManager.AccessToken("new", key, System.currentTimeMillis(), 100000);
+		});
+		Assert.assertEquals("old", manager.getAccessToken());
+
+		// Every caller keeps using the current token while the refresh waits
+		final AtomicInteger oldTokens = new AtomicInteger();
+		runConcurrently(20, () -> {
+			try {
+				for (int i = 0; i < 50; i++)
+					if ("old".equals(manager.getAccessToken()))
+						oldTokens.incrementAndGet();
+			}
+			catch (MpiClientException e) {
+				Assert.fail(e.getMessage());
+			}
+		});
+		Assert.assertEquals(1000, oldTokens.get());
+		release.countDown();
+
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (manager.getRefreshCount() < 2 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Thread.sleep(200);
+		Assert.assertEquals("new", manager.getAccessToken());
+		Assert.assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void testGetAccessToken_shouldShareFailureWithWaitingCallers() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		manager = new OAuthTokenManager(() -> CONFIGURATION_KEY, key -> {
+			requests.incrementAndGet();
+			await(new CountDownLatch(1), 100);
+			throw new MpiClientException("Identity provider responded with 401");
+		});
+
+		final AtomicInteger failures = new AtomicInteger();
+		runConcurrently(10, () -> {
+			try {
+				manager.getAccessToken();
+			}
+			catch (MpiClientException e) {
+				failures.incrementAndGet();
+			}
+		});
+
+		Assert.assertEquals(10, failures.get());
+		Assert.assertTrue(requests.get() < 10);
+		Assert.assertEquals(requests.get(), manager.getFailureCount());
+	}
+}
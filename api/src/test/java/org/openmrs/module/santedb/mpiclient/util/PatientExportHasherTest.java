@@ -0,0 +1,98 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PersonName;
+import org.openmrs.module.santedb.mpiclient.model.MpiPatientExport;
+
+public class PatientExportHasherTest {
+
+	private PatientExportHasher hasher;
+
+	private Patient createPatient(PersonName... names) {
+		Patient retVal = new Patient();
+		retVal.setGender("F");
+		retVal.setBirthdate(new Date(631152000000L));
+		retVal.setNames(new LinkedHashSet<PersonName>(Arrays.asList(names)));
+		return retVal;
+	}
+
+	private PersonName createName(String given, String family) {
+		PersonName retVal = new PersonName();
+		retVal.setGivenName(given);
+		retVal.setFamilyName(family);
+		return retVal;
+	}
+
+	private Obs createObs(int conceptId, String value) {
+		Concept concept = new Concept();
+		concept.setConceptId(conceptId);
+		Obs retVal = new Obs();
+		retVal.setConcept(concept);
+		retVal.setValueText(value);
+		return retVal;
+	}
+
+	@Before
+	public void setup() {
+		hasher = PatientExportHasher.getInstance();
+	}
+
+	@Test
+	public void testHash_shouldNotDependOnOrder() {
+		String first = hasher.hash(createPatient(createName("Marie", "Joseph"), createName("Marie", "Pierre")), null, null);
+		String second = hasher.hash(createPatient(createName("Marie", "Pierre"), createName("Marie", "Joseph")), null, null);
+		Assert.assertEquals(first, second);
+		Assert.assertEquals(64, first.length());
+	}
+
+	@Test
+	public void testHash_shouldIgnoreVoidedAndAuditData() {
+		String before = hasher.hash(createPatient(createName("Marie", "Joseph")), null, null);
+		PersonName voided = createName("Maria", "Josef");
+		voided.setVoided(true);
+		Patient patient = createPatient(createName("Marie", "Joseph"), voided);
+		patient.setDateChanged(new Date());
+		Assert.assertEquals(before, hasher.hash(patient, null, null));
+	}
+
+	@Test
+	public void testHash_shouldChangeWithExportedData() {
+		String before = hasher.hash(createPatient(createName("Marie", "Joseph")), null, null);
+		Assert.assertNotEquals(before, hasher.hash(createPatient(createName("Marie", "Josephe")), null, null));
+		Assert.assertNotEquals(before, hasher.hash(createPatient(createName("Marie|Joseph", null)), null, null));
+		Assert.assertNotEquals(before, hasher.hash(createPatient(createName("Marie", "Joseph")),
+				Collections.singleton(createObs(165210, "Jean Joseph")), null));
+	}
+
+	@Test
+	public void testHash_shouldIncludeObsGroupMembers() {
+		Obs contact = createObs(165210, null);
+		contact.setGroupMembers(new HashSet<Obs>(Arrays.asList(createObs(159635, "50912345678"))));
+		String before = hasher.hash(createPatient(createName("Marie", "Joseph")), Collections.singleton(contact), null);
+		contact.getGroupMembers().iterator().next().setValueText("50987654321");
+		Assert.assertNotEquals(before, hasher.hash(createPatient(createName("Marie", "Joseph")),
+				Collections.singleton(contact), null));
+	}
+
+	@Test
+	public void testHash_shouldIgnoreObsWhichAreNotExported() {
+		Set<Integer> exportedConcepts = Collections.singleton(165210);
+		String before = hasher.hash(createPatient(createName("Marie", "Joseph")),
+				MpiPatientExport.getExportedObs(Collections.singleton(createObs(165210, "Jean Joseph")), exportedConcepts), null);
+		Assert.assertEquals(before, hasher.hash(createPatient(createName("Marie", "Joseph")),
+				MpiPatientExport.getExportedObs(Arrays.asList(createObs(165210, "Jean Joseph"), createObs(5089, "70")),
+						exportedConcepts), null));
+	}
+}
@@ -0,0 +1,67 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PatientLockRegistryTest {
+
+	private final PatientLockRegistry registry = PatientLockRegistry.getInstance();
+
+	private final ExecutorService other = Executors.newSingleThreadExecutor();
+
+	@After
+	public void tearDown() {
+		other.shutdownNow();
+	}
+
+	@Test
+	public void testTryLock_shouldFailWhileAnotherThreadHoldsThePatient() throws Exception {
+		final String patient = UUID.randomUUID().toString();
+		Assert.assertTrue(registry.tryLock(patient));
+		try {
+			Assert.assertFalse(other.submit(() -> registry.tryLock(patient)).get());
+		}
+		finally {
+			registry.unlock(patient);
+		}
+		Assert.assertFalse(registry.isLocked(patient));
+		Assert.assertTrue(other.submit(() -> {
+			boolean locked = registry.tryLock(patient);
+			if (locked)
+				registry.unlock(patient);
+			return locked;
+		}).get());
+	}
+
+	@Test
+	public void testTryLock_shouldWaitForTheHolderToRelease() throws Exception {
+		final String patient = UUID.randomUUID().toString();
+		final CountDownLatch waiting = new CountDownLatch(1);
+		Assert.assertTrue(registry.tryLock(patient));
+		Future<Boolean> waiter = other.submit(() -> {
+			waiting.countDown();
+			boolean locked = registry.tryLock(patient, 5, TimeUnit.SECONDS);
+			if (locked)
+				registry.unlock(patient);
+			return locked;
+		});
+		waiting.await();
+		Thread.sleep(50);
+		registry.unlock(patient);
+		Assert.assertTrue(waiter.get());
+		Assert.assertFalse(registry.isLocked(patient));
+	}
+
+	@Test(expected = IllegalMonitorStateException.class)
+	public void testUnlock_shouldRejectLockNotHeld() {
+		registry.unlock(UUID.randomUUID().toString());
+	}
+}
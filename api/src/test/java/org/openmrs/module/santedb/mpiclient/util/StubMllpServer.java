@@ -0,0 +1,139 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.hl7v2.llp.HL7Reader;
+import ca.uhn.hl7v2.llp.HL7Writer;
+import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/**
+ * Stands in for a PIX/PDQ endpoint which answers MLLP messages on a local port
+ */
+public class StubMllpServer implements Closeable {
+
+	/**
+	 * Answers a message received by the server
+	 */
+	public interface Responder {
+
+		/**
+		 * @return The response to write, or null to close the connection without answering
+		 */
+		String respond(String message) throws Exception;
+	}
+
+	private final ServerSocket server;
+
+	private final Responder responder;
+
+	private final AtomicInteger accepted = new AtomicInteger();
+
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+
+	public StubMllpServer(Responder responder) throws IOException {
+		this.responder = responder;
+		this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(() -> {
+			try {
+				while (true) {
+					Socket socket = this.server.accept();
+					this.sockets.add(socket);
+					this.accepted.incrementAndGet();
+					Thread connection = new Thread(() -> this.serve(socket));
+					connection.setDaemon(true);
+					connection.start();
+				}
+			}
+			catch (IOException e) {
+				// closed
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Acknowledges the message with an AA
+	 */
+	public static String acknowledge(String message) throws Exception {
+		PipeParser parser = new PipeParser();
+		return parser.encode(parser.parse(message).generateACK());
+	}
+
+	private void serve(Socket socket) {
+		try {
+			MinLowerLayerProtocol llp = new MinLowerLayerProtocol();
+			HL7Reader reader = llp.getReader(socket.getInputStream());
+			HL7Writer writer = llp.getWriter(socket.getOutputStream());
+			String message;
+			while ((message = reader.getMessage()) != null) {
+				this.received.add(message);
+				String response = this.responder.respond(message);
+				if (response == null)
+					break;
+				writer.writeMessage(response);
+			}
+		}
+		catch (Exception e) {
+			// connection lost
+		}
+		finally {
+			this.close(socket);
+		}
+	}
+
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+
+	public int getAcceptedCount() {
+		return this.accepted.get();
+	}
+
+	/**
+	 * Waits until the server has accepted the specified number of connections
+	 */
+	public boolean awaitAccepted(int count) throws InterruptedException {
+		for (int i = 0; i < 250 && this.accepted.get() < count; i++)
+			Thread.sleep(20);
+		return this.accepted.get() >= count;
+	}
+
+	public List<String> getReceived() {
+		return this.received;
+	}
+
+	/**
+	 * Closes the connections which have been accepted, as an endpoint closing idle connections would
+	 */
+	public void closeConnections() {
+		for (Socket socket : this.sockets)
+			this.close(socket);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.server.close();
+		this.closeConnections();
+	}
+
+	private void close(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+		this.sockets.remove(socket);
+	}
+}
@@ -0,0 +1,65 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Patient;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Stands in for the MPI sending rest-hook notifications to the receiver
+ */
+public class StubSubscriptionNotifier {
+
+	private final FhirContext context;
+
+	private final MpiSubscriptionReceiver receiver;
+
+	private final String secret;
+
+	public StubSubscriptionNotifier(FhirContext context, MpiSubscriptionReceiver receiver, String secret) {
+		this.context = context;
+		this.receiver = receiver;
+		this.secret = secret;
+	}
+
+	public static Patient createPatient(String id, String localDomain, String localId, String family) {
+		Patient retVal = new Patient();
+		retVal.setId(id);
+		retVal.addIdentifier().setSystem(localDomain).setValue(localId);
+		retVal.addName().setFamily(family).addGiven("Jean");
+		retVal.setGender(AdministrativeGender.MALE);
+		return retVal;
+	}
+
+	public MpiSubscriptionReceiver.Outcome notifyJson(Patient... patients) {
+		return this.receiver.receive("Bearer " + this.secret, this.toJson(patients));
+	}
+
+	public MpiSubscriptionReceiver.Outcome notifyXml(Patient patient) {
+		return this.receiver.receive("Bearer " + this.secret, this.context.newXmlParser().encodeResourceToString(patient));
+	}
+
+	public MpiSubscriptionReceiver.Outcome notifyWithoutPayload() {
+		return this.receiver.receive("Bearer " + this.secret, null);
+	}
+
+	public MpiSubscriptionReceiver.Outcome notifyWithSecret(String otherSecret, Patient... patients) {
+		return this.receiver.receive(otherSecret == null ? null : "Bearer " + otherSecret, this.toJson(patients));
+	}
+
+	public MpiSubscriptionReceiver.Outcome notifyRaw(String payload) {
+		return this.receiver.receive("Bearer " + this.secret, payload);
+	}
+
+	private String toJson(Patient... patients) {
+		if (patients.length == 1)
+			return this.context.newJsonParser().encodeResourceToString(patients[0]);
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.HISTORY);
+		for (Patient patient : patients)
+			bundle.addEntry().setResource(patient);
+		return this.context.newJsonParser().encodeResourceToString(bundle);
+	}
+}
@@ -0,0 +1,104 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.openmrs.module.santedb.mpiclient.configuration.MpiClientConfiguration;
+
+public class SynchronizationExecutorTest {
+
+	private SynchronizationExecutor executor;
+
+	private CountDownLatch release;
+
+	@Before
+	public void setup() {
+		MpiClientConfiguration configuration = Mockito.mock(MpiClientConfiguration.class);
+		Mockito.when(configuration.getSyncPoolSize()).thenReturn(1);
+		Mockito.when(configuration.getSyncQueueSize()).thenReturn(1);
+		executor = new SynchronizationExecutor(configuration);
+		executor.start();
+		release = new CountDownLatch(1);
+	}
+
+	@After
+	public void teardown() {
+		release.countDown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSubmit_shouldRunQueuedWork() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(2);
+		Assert.assertTrue(executor.submit(ran::countDown, "first"));
+		Assert.assertTrue(executor.submit(ran::countDown, "second"));
+		Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSubmit_shouldRefuseWithoutWaitingWhenQueueFull() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicInteger completed = new AtomicInteger();
+		Runnable blocked = () -> {
+			started.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			completed.incrementAndGet();
+		};
+
+		// One running and one queued fill the pool
+		Assert.assertTrue(executor.submit(blocked, "running"));
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(executor.submit(completed::incrementAndGet, "queued"));
+
+		long start = System.currentTimeMillis();
+		Assert.assertFalse(executor.submit(completed::incrementAndGet, "overflow"));
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+		Assert.assertTrue(executor.getStatistics().contains("rejected: 1"));
+
+		release.countDown();
+		executor.shutdown();
+		Assert.assertEquals(2, completed.get());
+	}
+
+	@Test
+	public void testShutdown_shouldFinishQueuedWork() throws Exception {
+		final AtomicInteger completed = new AtomicInteger();
+		executor.submit(() -> {
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			completed.incrementAndGet();
+		}, "running");
+		executor.submit(completed::incrementAndGet, "queued");
+
+		release.countDown();
+		executor.shutdown();
+
+		Assert.assertEquals(2, completed.get());
+		Assert.assertEquals("not started", executor.getStatistics());
+	}
+
+	@Test
+	public void testSubmit_shouldNotRestartAfterShutdown() throws Exception {
+		final AtomicInteger completed = new AtomicInteger();
+		executor.shutdown();
+
+		Assert.assertFalse(executor.submit(completed::incrementAndGet, "late"));
+		Assert.assertEquals("not started", executor.getStatistics());
+		Assert.assertEquals(0, completed.get());
+	}
+}
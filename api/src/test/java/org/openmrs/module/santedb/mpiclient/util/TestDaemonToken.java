@@ -0,0 +1,27 @@
+package org.openmrs.module.santedb.mpiclient.util;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleFactory;
+
+/**
+ * Gets a daemon token for tests, which run without the module being started
+ */
+public class TestDaemonToken {
+
+	private TestDaemonToken() {
+	}
+
+	/**
+	 * Gets the token OpenMRS would give the module when it is started
+	 */
+	public static DaemonToken create() throws Exception {
+		Module module = new Module("MPI Client");
+		module.setModuleId("santedb-mpiclient");
+		Method getDaemonToken = ModuleFactory.class.getDeclaredMethod("getDaemonToken", Module.class);
+		getDaemonToken.setAccessible(true);
+		return (DaemonToken) getDaemonToken.invoke(null, module);
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.openmrs.module.santedb.mpiclient.extension.html;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openmrs.module.web.extension.AdministrationSectionExt;
+
+/**
+ * Links to the module's pages in the administration screen
+ */
+public class AdminList extends AdministrationSectionExt {
+
+	/**
+	 * @see AdministrationSectionExt#getTitle()
+	 */
+	@Override
+	public String getTitle() {
+		return "MPI Client";
+	}
+
+	/**
+	 * @see AdministrationSectionExt#getRequiredPrivilege()
+	 */
+	@Override
+	public String getRequiredPrivilege() {
+		return "Manage Scheduler";
+	}
+
+	/**
+	 * @see AdministrationSectionExt#getLinks()
+	 */
+	@Override
+	public Map<String, String> getLinks() {
+		Map<String, String> retVal = new LinkedHashMap<String, String>();
+		retVal.put("module/santedb-mpiclient/mpiFindPatient.form", "MPI Patient Search");
+		retVal.put("module/santedb-mpiclient/mpiBackfill.form", "MPI Patient Backfill");
+		return retVal;
+	}
+}
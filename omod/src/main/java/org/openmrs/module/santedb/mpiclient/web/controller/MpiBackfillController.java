@@ -0,0 +1,68 @@
+package org.openmrs.module.santedb.mpiclient.web.controller;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
+import org.openmrs.module.santedb.mpiclient.model.MpiBackfillState;
+import org.openmrs.module.santedb.mpiclient.util.MpiBackfillJob;
+import org.openmrs.module.santedb.mpiclient.util.MpiOutboxDrainer;
+import org.openmrs.module.santedb.mpiclient.util.PatientLockRegistry;
+import org.openmrs.module.santedb.mpiclient.util.SynchronizationExecutor;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Start, stop and follow the bulk export of existing patients to the MPI
+ */
+@Controller
+@RequestMapping("/module/santedb-mpiclient/mpiBackfill")
+public class MpiBackfillController {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Show the progress of the backfill and the state of the background synchronization
+	 * @param model
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	public void index(ModelMap model) {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_SCHEDULER);
+		MpiBackfillJob job = MpiBackfillJob.getInstance();
+		MpiBackfillState state = job.getState();
+		if(state == null)
+			state = Context.getService(MpiClientService.class).getBackfillState();
+
+		model.put("state", state);
+		model.put("running", job.isRunning());
+		model.put("throughput", String.format("%.1f", job.getThroughput()));
+		Long eta = job.getEstimatedSecondsRemaining();
+		if(eta != null)
+			model.put("eta", String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+
+		// How the background synchronization is keeping up
+		model.put("executorStatistics", SynchronizationExecutor.getInstance().getStatistics());
+		model.put("outboxStatistics", MpiOutboxDrainer.getInstance().getStatistics());
+		model.put("lockStatistics", PatientLockRegistry.getInstance().getStatistics());
+	}
+
+	/**
+	 * Start (or resume), restart or stop the backfill
+	 * @param action start, restart or stop
+	 */
+	@RequestMapping(method = RequestMethod.POST)
+	public ModelAndView doAction(ModelMap model, @RequestParam(value = "action") String action) {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_SCHEDULER);
+		MpiBackfillJob job = MpiBackfillJob.getInstance();
+		if("stop".equals(action))
+			job.stop();
+		else if(!job.start("restart".equals(action)))
+			log.warn("MPI backfill is already running");
+		return new ModelAndView("redirect:/module/santedb-mpiclient/mpiBackfill.form");
+	}
+}
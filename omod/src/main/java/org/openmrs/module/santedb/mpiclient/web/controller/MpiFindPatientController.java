@@ -9,11 +9,13 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.santedb.mpiclient.api.MpiClientService;
 import org.openmrs.module.santedb.mpiclient.exception.MpiClientException;
 import org.openmrs.module.santedb.mpiclient.model.MpiPatient;
+import org.openmrs.module.santedb.mpiclient.util.LocalPatientMatcher;
 import org.openmrs.module.santedb.mpiclient.web.model.PatientResultModel;
 import org.openmrs.module.santedb.mpiclient.web.model.PatientSearchModel;
 import org.springframework.stereotype.Controller;
@@ -81,8 +83,17 @@ public class MpiFindPatientController {
 
 			List<MpiPatient> results = service.searchPatient(search.getFamilyName(), search.getGivenName(), dobDate, isFuzzy, search.getGender(), null, search.getAddress(),  identifier, momsIdentifier, search.getRelativeName(), search.getBirthPlace(),null);
 			List<PatientResultModel> modelResult = new ArrayList<PatientResultModel>();
-			for(MpiPatient result : results) {
-				modelResult.add(new PatientResultModel(result));
+			List<Patient> matchedPatients = service.matchWithExistingPatients(results);
+			LocalPatientMatcher matcher = LocalPatientMatcher.getInstance();
+			for(int i = 0; i < results.size(); i++) {
+				PatientResultModel result = new PatientResultModel(results.get(i), matchedPatients.get(i));
+				// Point out a probable local duplicate before it is imported again
+				if(matchedPatients.get(i) == null && matcher.isReady()) {
+					List<LocalPatientMatcher.Match> possibleMatches = matcher.findMatches(results.get(i));
+					if(!possibleMatches.isEmpty())
+						result.setPossibleMatchId(possibleMatches.get(0).getPatientId());
+				}
+				modelResult.add(result);
 			}
 
 			model.put("successful", true);
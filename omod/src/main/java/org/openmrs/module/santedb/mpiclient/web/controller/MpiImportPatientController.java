@@ -55,6 +55,9 @@ public class MpiImportPatientController {
 				patient.removeIdentifier(nullPid);
 			
 			model.put("patient", patient);
+			// Warn of a probable local duplicate; the user has to confirm the import of another person
+			if(service.matchWithExistingPatient(patient) == null)
+				model.put("duplicateId", service.getProbableLocalDuplicate(patient));
 			return new ModelAndView("/module/santedb-mpiclient/mpiImportPatient", model);
 		}
 		catch(MpiClientException e) {
@@ -71,7 +74,8 @@ public class MpiImportPatientController {
 	 * @throws ParseException 
 	 */
 	@RequestMapping(method = RequestMethod.POST)
-	public ModelAndView doImport(Map<String, Object> model, @ModelAttribute("importPatient") PatientSearchModel search, @RequestParam(value = "ecid") String ecid) throws ParseException
+	public ModelAndView doImport(Map<String, Object> model, @ModelAttribute("importPatient") PatientSearchModel search, @RequestParam(value = "ecid") String ecid,
+			@RequestParam(value = "confirmDuplicate", defaultValue = "false") boolean confirmDuplicate) throws ParseException
 	{
 		if(ecid == null)
 			throw new IllegalArgumentException("ecid must be supplied");
@@ -82,7 +86,7 @@ public class MpiImportPatientController {
 			MpiClientService service = Context.getService(MpiClientService.class);
 			MpiClientConfiguration config = MpiClientConfiguration.getInstance();
 			MpiPatient pat = service.getPatient(ecid, config.getEnterprisePatientIdRoot());
-			Patient createdPat = service.importPatient(pat);
+			Patient createdPat = service.importPatient(pat, confirmDuplicate);
 			
 			// HACK: Create a visit and encounter
 			Visit visit = new Visit();
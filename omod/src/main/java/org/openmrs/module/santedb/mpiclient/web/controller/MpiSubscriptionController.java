@@ -0,0 +1,78 @@
+package org.openmrs.module.santedb.mpiclient.web.controller;
+
+import org.openmrs.module.santedb.mpiclient.util.MpiSubscriptionReceiver;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Receives the rest-hook notifications of the MPI patient subscription
+ */
+@Controller
+@RequestMapping("/module/santedb-mpiclient/mpiSubscription")
+public class MpiSubscriptionController {
+
+	// The receiver, or null to use the module's receiver
+	private final MpiSubscriptionReceiver m_receiver;
+
+	/**
+	 * Creates a controller which uses the module's receiver
+	 */
+	public MpiSubscriptionController() {
+		this(null);
+	}
+
+	/**
+	 * Creates a controller which uses the specified receiver
+	 */
+	MpiSubscriptionController(MpiSubscriptionReceiver receiver) {
+		this.m_receiver = receiver;
+	}
+
+	/**
+	 * Accept a notification sent to the endpoint itself (the handshake, or a notification
+	 * without a resource id), the patients it carries are applied in the background
+	 * @param authorization The shared secret of the subscription
+	 * @param payload The notification
+	 */
+	@RequestMapping(method = { RequestMethod.POST, RequestMethod.PUT })
+	public ResponseEntity<String> notify(@RequestHeader(value = "Authorization", required = false) String authorization,
+			@RequestBody(required = false) String payload) {
+		return this.receive(authorization, payload);
+	}
+
+	/**
+	 * Accept a notification carrying a patient. An R4 rest-hook with a payload is delivered
+	 * to [endpoint]/Patient/{id}; the patient in the body is applied in the background.
+	 * @param authorization The shared secret of the subscription
+	 * @param id The id of the patient on the MPI
+	 * @param payload The patient
+	 */
+	@RequestMapping(value = "/Patient/{id}", method = { RequestMethod.POST, RequestMethod.PUT })
+	public ResponseEntity<String> notifyPatient(@RequestHeader(value = "Authorization", required = false) String authorization,
+			@PathVariable("id") String id, @RequestBody(required = false) String payload) {
+		return this.receive(authorization, payload);
+	}
+
+	/**
+	 * Pass the notification to the receiver
+	 */
+	private ResponseEntity<String> receive(String authorization, String payload) {
+		MpiSubscriptionReceiver receiver = this.m_receiver == null ? MpiSubscriptionReceiver.getInstance() : this.m_receiver;
+		switch(receiver.receive(authorization, payload)) {
+			case UNAUTHORIZED:
+				return new ResponseEntity<String>(HttpStatus.UNAUTHORIZED);
+			case INVALID:
+				return new ResponseEntity<String>(HttpStatus.BAD_REQUEST);
+			case BUSY:
+				return new ResponseEntity<String>(HttpStatus.SERVICE_UNAVAILABLE);
+			default:
+				return new ResponseEntity<String>(HttpStatus.OK);
+		}
+	}
+}
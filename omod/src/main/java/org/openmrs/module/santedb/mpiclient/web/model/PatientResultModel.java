@@ -40,6 +40,8 @@ public class PatientResultModel {
 	private Integer openMrsId;
 	// Ecid
 	private String ecid;
+	// Local patient which probably matches
+	private Integer possibleMatchId;
 
     /**
      * @return the givenName
@@ -103,10 +105,32 @@ public class PatientResultModel {
     	return ecid;
     }
 
+    /**
+     * @return the possibleMatchId
+     */
+    public Integer getPossibleMatchId() {
+    	return possibleMatchId;
+    }
+
+    /**
+     * @param possibleMatchId the possibleMatchId to set
+     */
+    public void setPossibleMatchId(Integer possibleMatchId) {
+    	this.possibleMatchId = possibleMatchId;
+    }
+
 	/**
 	 * Create a result from the model
 	 */
 	public PatientResultModel(MpiPatient result)
+	{
+		this(result, Context.getService(MpiClientService.class).matchWithExistingPatient(result));
+	}
+
+	/**
+	 * Create a result from the model and the local patient it matches
+	 */
+	public PatientResultModel(MpiPatient result, Patient matchedPatient)
 	{
 		for(PersonName pn : result.getNames())
 		{
@@ -133,8 +157,7 @@ public class PatientResultModel {
 				this.nhid = pid.getIdentifier();
 			//this.isImported |= pid.getIdentifierType().getName().equals(this.m_configuration.getPatientRoot());
 		}
-		
-		Patient matchedPatient = Context.getService(MpiClientService.class).matchWithExistingPatient(result);
+
 		if(matchedPatient != null)
 		{
 			this.isImported = true;
@@ -0,0 +1,90 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<spring:htmlEscape defaultHtmlEscape="true" />
+<openmrs:require privilege="Manage Scheduler" otherwise="/login.htm" redirect="/index.htm" />
+
+<h2>MPI Patient Backfill</h2>
+<div>
+	<b class="boxHeader">Export Existing Patients</b>
+	<div class="box">
+		This will send every patient in this OpenMRS instance to the MPI. Patients are sent in pages in order of their
+		internal id and progress is saved after each page, so a backfill which is stopped (or interrupted by a restart)
+		continues where it left off. Patients which the MPI already has with the same data are not sent again.
+		<c:if test="${running}"><meta http-equiv="refresh" content="10" /></c:if>
+		<table>
+			<tr>
+				<td>Status:</td>
+				<td>
+					<c:choose>
+						<c:when test="${empty state}">Not started</c:when>
+						<c:when test="${!running && state.status == 'RUNNING'}">Interrupted</c:when>
+						<c:otherwise>${state.status}</c:otherwise>
+					</c:choose>
+				</td>
+			</tr>
+			<c:if test="${not empty state}">
+				<tr>
+					<td>Exported:</td>
+					<td>${state.exported} of ${state.totalPatients} (${state.failed} failed and queued for retry)</td>
+				</tr>
+				<tr>
+					<td>Last Patient Id:</td>
+					<td>${state.lastPatientId} of ${state.maxPatientId}</td>
+				</tr>
+				<tr>
+					<td>Started:</td>
+					<td><openmrs:formatDate date="${state.dateStarted}" type="long" /></td>
+				</tr>
+				<tr>
+					<td>Last Checkpoint:</td>
+					<td><openmrs:formatDate date="${state.dateCheckpointed}" type="long" /></td>
+				</tr>
+			</c:if>
+			<c:if test="${running}">
+				<tr>
+					<td>Throughput:</td>
+					<td>${throughput} patients per second</td>
+				</tr>
+				<tr>
+					<td>Time Remaining:</td>
+					<td><c:choose><c:when test="${not empty eta}">${eta}</c:when><c:otherwise>Calculating...</c:otherwise></c:choose></td>
+				</tr>
+			</c:if>
+		</table>
+		<br />
+		<form method="post">
+			<c:choose>
+				<c:when test="${running}">
+					<button type="submit" name="action" value="stop">Stop</button>
+				</c:when>
+				<c:otherwise>
+					<c:if test="${not empty state && state.status != 'COMPLETED'}">
+						<button type="submit" name="action" value="start">Resume</button>
+					</c:if>
+					<button type="submit" name="action" value="restart">Start New Backfill</button>
+				</c:otherwise>
+			</c:choose>
+		</form>
+	</div>
+	<br />
+	<b class="boxHeader">Synchronization</b>
+	<div class="box">
+		<table>
+			<tr>
+				<td>Workers:</td>
+				<td>${executorStatistics}</td>
+			</tr>
+			<tr>
+				<td>Outbox:</td>
+				<td>${outboxStatistics}</td>
+			</tr>
+			<tr>
+				<td>Patient Locks:</td>
+				<td>${lockStatistics}</td>
+			</tr>
+		</table>
+	</div>
+</div>
+
+<%@ include file="/WEB-INF/template/footer.jsp"%>
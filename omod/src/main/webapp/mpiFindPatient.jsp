@@ -76,6 +76,10 @@
 							<c:otherwise>
 								<c:url var="importPatientUrl" value="/module/santedb-mpiclient/mpiImportPatient.form"/>
 								<a href="${importPatientUrl }?ecid=${patient.ecid}">Import</a>
+								<c:if test="${not empty patient.possibleMatchId }">
+									<c:url var="viewPatientUrl" value="/patientDashboard.form"/>
+									| Possible local match: <a href="${viewPatientUrl }?patientId=${patient.possibleMatchId }">View</a>
+								</c:if>
 							</c:otherwise>
 						</c:choose>
 					</td>
@@ -10,8 +10,20 @@
 <h2>Import MPI Patient</h2>
 <p>The remote demographic record will be imported into OpenMRS as the following demographic record:</p>
 
+<c:if test="${not empty error}">
+	<div class="error">${error}</div>
+</c:if>
+
 <form id="importForm" modelAttribute="importPatient" method="post"
 			enctype="multipart/form-data">
+
+<c:if test="${not empty duplicateId}">
+	<c:url var="duplicateUrl" value="/patientDashboard.form"/>
+	<div class="error">
+		This patient is probably already registered locally: <a href="${duplicateUrl}?patientId=${duplicateId}">View the local patient</a>.
+		If it is another person (for example a twin or a namesake), confirm the import below.
+	</div>
+</c:if>
 			
 			
 <div id="patientHeaderPatientName">
@@ -204,6 +216,9 @@
 		</table>
 	</div>
 	<p>If you're satisfied with the data provided click the "import" button below.</p>
+	<c:if test="${not empty duplicateId}">
+		<p><label><input type="checkbox" name="confirmDuplicate" value="true"/> This is another person than the local patient, import it anyway</label></p>
+	</c:if>
 	<br /> <input type="submit" value="Import Patient" style="float:right"> <br />
 </form>
 
@@ -0,0 +1,116 @@
+package org.openmrs.module.santedb.mpiclient.web.controller;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.santedb.mpiclient.util.MpiSubscriptionReceiver;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class MpiSubscriptionControllerTest {
+
+	private static final FhirContext CONTEXT = FhirContext.forR4();
+
+	private List<Patient> applied;
+
+	private boolean queueFull;
+
+	private MpiSubscriptionController controller;
+
+	private static String createPayload(String family) {
+		Patient patient = new Patient();
+		patient.setId("Patient/1");
+		patient.addIdentifier().setSystem("http://mpi-project/identity/openmrs/clinic").setValue("101");
+		patient.addName().setFamily(family);
+		return CONTEXT.newJsonParser().encodeResourceToString(patient);
+	}
+
+	@Before
+	public void setup() {
+		applied = new ArrayList<Patient>();
+		queueFull = false;
+		controller = new MpiSubscriptionController(new MpiSubscriptionReceiver(CONTEXT, () -> "s3cret",
+				patients -> applied.addAll(patients), (task, description) -> {
+					if (queueFull)
+						return false;
+					task.run();
+					return true;
+				}));
+	}
+
+	@Test
+	public void testNotify_shouldBeMappedToSubscriptionEndpoint() throws Exception {
+		RequestMapping mapping = MpiSubscriptionController.class.getAnnotation(RequestMapping.class);
+		Assert.assertArrayEquals(new String[] { "/module/santedb-mpiclient/mpiSubscription" }, mapping.value());
+
+		Method notify = MpiSubscriptionController.class.getMethod("notify", String.class, String.class);
+		Assert.assertTrue(Arrays.asList(notify.getAnnotation(RequestMapping.class).method())
+				.containsAll(Arrays.asList(RequestMethod.POST, RequestMethod.PUT)));
+		Assert.assertEquals("Authorization",
+				((RequestHeader) notify.getParameterAnnotations()[0][0]).value());
+	}
+
+	@Test
+	public void testNotify_shouldAcceptNotificationAtRestHookResourcePath() throws Exception {
+		// An R4 rest-hook with a payload sends the resource to [endpoint]/Patient/{id}
+		MockMvc mvc = MockMvcBuilders.standaloneSetup(controller).build();
+		mvc.perform(MockMvcRequestBuilders.put("/module/santedb-mpiclient/mpiSubscription/Patient/1")
+				.header("Authorization", "Bearer s3cret").contentType(MediaType.parseMediaType("application/fhir+json"))
+				.content(createPayload("Joseph"))).andExpect(MockMvcResultMatchers.status().isOk());
+		Assert.assertEquals(1, applied.size());
+		Assert.assertEquals("Joseph", applied.get(0).getNameFirstRep().getFamily());
+
+		mvc.perform(MockMvcRequestBuilders.put("/module/santedb-mpiclient/mpiSubscription/Patient/1")
+				.header("Authorization", "Bearer wrong").contentType(MediaType.parseMediaType("application/fhir+json"))
+				.content(createPayload("Pierre"))).andExpect(MockMvcResultMatchers.status().isUnauthorized());
+
+		// The handshake is sent to the endpoint itself
+		mvc.perform(MockMvcRequestBuilders.post("/module/santedb-mpiclient/mpiSubscription")
+				.header("Authorization", "Bearer s3cret")).andExpect(MockMvcResultMatchers.status().isOk());
+		Assert.assertEquals(1, applied.size());
+	}
+
+	@Test
+	public void testNotify_shouldAcceptNotificationWithSecret() {
+		Assert.assertEquals(HttpStatus.OK, controller.notify("Bearer s3cret", createPayload("Joseph")).getStatusCode());
+		Assert.assertEquals(1, applied.size());
+		Assert.assertEquals("Joseph", applied.get(0).getNameFirstRep().getFamily());
+
+		// The handshake has no payload
+		Assert.assertEquals(HttpStatus.OK, controller.notify("Bearer s3cret", null).getStatusCode());
+	}
+
+	@Test
+	public void testNotify_shouldRejectMissingOrWrongSecret() {
+		Assert.assertEquals(HttpStatus.UNAUTHORIZED, controller.notify(null, createPayload("Joseph")).getStatusCode());
+		Assert.assertEquals(HttpStatus.UNAUTHORIZED,
+				controller.notify("Bearer wrong", createPayload("Joseph")).getStatusCode());
+		Assert.assertEquals(HttpStatus.UNAUTHORIZED, controller.notify("s3cre", createPayload("Joseph")).getStatusCode());
+		Assert.assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void testNotify_shouldRejectInvalidPayloadAndFullQueue() {
+		Assert.assertEquals(HttpStatus.BAD_REQUEST, controller.notify("Bearer s3cret", "not fhir").getStatusCode());
+
+		queueFull = true;
+		Assert.assertEquals(HttpStatus.SERVICE_UNAVAILABLE,
+				controller.notify("Bearer s3cret", createPayload("Joseph")).getStatusCode());
+		Assert.assertTrue(applied.isEmpty());
+	}
+}